@@ -0,0 +1,109 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures contention on the active transaction registry, which every transaction is added to on
+// start and removed from on completion, while a number of other long running transactions are
+// already active (e.g. requests waiting on a slow downstream service)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ActiveTransactionBenchmark {
+
+    @Param({"0", "1000"})
+    private int longRunningTransactions;
+
+    private final TransactionWorthy transactionWorthy = new TransactionWorthy();
+
+    private CountDownLatch endLongRunningTransactions;
+    private List<Thread> longRunningThreads;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        endLongRunningTransactions = new CountDownLatch(1);
+        final CountDownLatch startedLongRunningTransactions =
+                new CountDownLatch(longRunningTransactions);
+        longRunningThreads = Lists.newArrayList();
+        for (int i = 0; i < longRunningTransactions; i++) {
+            final LongRunningTransactionWorthy longRunningTransactionWorthy =
+                    new LongRunningTransactionWorthy(startedLongRunningTransactions,
+                            endLongRunningTransactions);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        longRunningTransactionWorthy.doSomethingTransactionWorthy();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            longRunningThreads.add(thread);
+        }
+        startedLongRunningTransactions.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        endLongRunningTransactions.countDown();
+        for (Thread thread : longRunningThreads) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void execute() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    private static class LongRunningTransactionWorthy extends TransactionWorthy {
+
+        private final CountDownLatch started;
+        private final CountDownLatch end;
+
+        private LongRunningTransactionWorthy(CountDownLatch started, CountDownLatch end) {
+            this.started = started;
+            this.end = end;
+        }
+
+        @Override
+        public void doSomethingTransactionWorthy() throws Exception {
+            started.countDown();
+            end.await();
+        }
+    }
+}
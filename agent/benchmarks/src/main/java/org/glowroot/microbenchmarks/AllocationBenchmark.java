@@ -0,0 +1,91 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TimerWorthy;
+import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// intended to be run with the gc profiler (-prof gc) in order to track the bytes allocated per
+// timer, per trace entry and per transaction (see also the allocation checks in
+// ThreadContextImplTest and TraceEntryComponentTest, which run as part of the build)
+//
+// timers and trace entries are captured inside of a transaction, so their numbers include their
+// share of the enclosing transaction's allocations
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+    // stays under the default max trace entries per transaction
+    private static final int OPERATIONS_PER_TRANSACTION = 1000;
+
+    private final TransactionWorthy timers = new TimerTransactionWorthy();
+    private final TransactionWorthy traceEntries = new TraceEntryTransactionWorthy();
+    private final TransactionWorthy transactionWorthy = new TransactionWorthy();
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS_PER_TRANSACTION)
+    public void timer() throws Exception {
+        timers.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS_PER_TRANSACTION)
+    public void traceEntry() throws Exception {
+        traceEntries.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    public void transaction() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    private static class TimerTransactionWorthy extends TransactionWorthy {
+
+        private final TimerWorthy timerWorthy = new TimerWorthy();
+
+        @Override
+        public void doSomethingTransactionWorthy() {
+            for (int i = 0; i < OPERATIONS_PER_TRANSACTION; i += 2) {
+                timerWorthy.doSomethingTimerWorthy();
+                timerWorthy.doSomethingTimerWorthyB();
+            }
+        }
+    }
+
+    private static class TraceEntryTransactionWorthy extends TransactionWorthy {
+
+        private final TraceEntryWorthy traceEntryWorthy = new TraceEntryWorthy();
+
+        @Override
+        public void doSomethingTransactionWorthy() {
+            for (int i = 0; i < OPERATIONS_PER_TRANSACTION; i++) {
+                traceEntryWorthy.doSomethingTraceEntryWorthy();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// measures merging of stack trace samples and of profiles (as done when aggregating), along with
+// the heap retained by the resulting profile, using deep synthetic stack traces that resemble
+// typical framework (e.g. spring/hibernate) call stacks
+//
+// run against the previous MutableProfile implementation to compare
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    private static final int SAMPLE_COUNT = 1000;
+
+    @Param({"50", "200"})
+    private int stackDepth;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private MutableProfile profile;
+    private Profile profileProto;
+
+    @Setup
+    public void setup() {
+        stackTraces = createStackTraces(stackDepth, new Random(0));
+        profile = createProfile(stackTraces);
+        profileProto = profile.toProto();
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        return createProfile(stackTraces);
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfile() {
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profile);
+        mergedProfile.merge(profile);
+        return mergedProfile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfileProto() {
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profileProto);
+        mergedProfile.merge(profileProto);
+        return mergedProfile;
+    }
+
+    @Benchmark
+    public void retainedHeap(RetainedHeap retainedHeap) {
+        // aux counters are read from the benchmark thread after the iteration
+        retainedHeap.retainedBytes = retainedHeap.measuredBytes;
+    }
+
+    private static MutableProfile createProfile(List<List<StackTraceElement>> stackTraces) {
+        MutableProfile profile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            profile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return profile;
+    }
+
+    private static List<List<StackTraceElement>> createStackTraces(int stackDepth,
+            Random random) {
+        // a shared "framework" prefix with a handful of branching points, so that the profile
+        // tree has both long chains and nodes with many children
+        List<StackTraceElement> prefix = Lists.newArrayList();
+        for (int i = 0; i < stackDepth; i++) {
+            prefix.add(createStackTraceElement(i, 0));
+        }
+        List<List<StackTraceElement>> stackTraces = Lists.newArrayList();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            int branchDepth = random.nextInt(stackDepth);
+            for (int j = 0; j < stackDepth; j++) {
+                if (j < branchDepth) {
+                    stackTrace.add(prefix.get(j));
+                } else {
+                    stackTrace.add(createStackTraceElement(j, random.nextInt(8)));
+                }
+            }
+            // stack traces are ordered from leaf to root
+            stackTraces.add(Lists.reverse(stackTrace));
+        }
+        return stackTraces;
+    }
+
+    private static StackTraceElement createStackTraceElement(int depth, int variant) {
+        return new StackTraceElement("org.example.framework.layer" + depth % 10 + ".Handler"
+                + variant, "handle" + depth % 5, "Handler" + variant + ".java", depth);
+    }
+
+    // the approximate heap retained by a profile containing all of the stack trace samples is
+    // reported in the benchmark output as the "retainedBytes" secondary result
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RetainedHeap {
+
+        public long retainedBytes;
+
+        private long measuredBytes;
+
+        // retained for the duration of the iteration
+        private MutableProfile profile = new MutableProfile();
+
+        @Setup(Level.Iteration)
+        public void setup(MutableProfileBenchmark benchmark) {
+            MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+            profile = new MutableProfile();
+            System.gc();
+            long before = memoryMXBean.getHeapMemoryUsage().getUsed();
+            profile = createProfile(benchmark.stackTraces);
+            System.gc();
+            long after = memoryMXBean.getHeapMemoryUsage().getUsed();
+            measuredBytes = after - before;
+        }
+    }
+}
@@ -61,7 +61,7 @@ public class WeavingBenchmark {
                 while (e.hasMoreElements()) {
                     JarEntry jarEntry = e.nextElement();
                     String name = jarEntry.getName();
-                    if (name.startsWith("org/springframework/") && name.endsWith(".class")) {
+                    if (isIncluded(name) && name.endsWith(".class")) {
                         name = name.replace('/', '.');
                         name = name.substring(0, name.length() - ".class".length());
                         classNames.add(name);
@@ -89,6 +89,10 @@ public class WeavingBenchmark {
         }
     }
 
+    boolean isIncluded(String path) {
+        return path.startsWith("org/springframework/");
+    }
+
     private static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.TransactionAggregate;
+
+// stores aggregate intervals that could not be sent to the central collector so that they can be
+// sent later once the central collector is reachable again (e.g. after a central collector
+// maintenance window), one file per interval, oldest intervals are dropped once maxBytes is reached
+//
+// this is only accessed by the aggregate flushing thread
+class AggregateSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateSpool.class);
+
+    private static final String SUFFIX = ".aggregates";
+
+    private static final long MB = 1024 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+
+    private final RateLimitedLogger droppingLogger = new RateLimitedLogger(AggregateSpool.class);
+
+    // ordered by capture time
+    private final TreeMap<Long, File> files = Maps.newTreeMap();
+    private long totalBytes;
+
+    AggregateSpool(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        File[] existingFiles = dir.listFiles();
+        if (existingFiles == null) {
+            return;
+        }
+        for (File file : existingFiles) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                // e.g. partially written file from prior jvm
+                deleteFile(file);
+                continue;
+            }
+            long captureTime;
+            try {
+                captureTime = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.debug(e.getMessage(), e);
+                deleteFile(file);
+                continue;
+            }
+            files.put(captureTime, file);
+            totalBytes += file.length();
+        }
+    }
+
+    boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    void write(AggregateReader aggregateReader) throws Exception {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        long captureTime = aggregateReader.captureTime();
+        File tmpFile = new File(dir, captureTime + ".tmp");
+        Closer closer = Closer.create();
+        try {
+            OutputStream out =
+                    closer.register(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            aggregateReader.accept(new SpoolingAggregateVisitor(out));
+        } catch (Throwable t) {
+            throw closer.rethrow(t, Exception.class);
+        } finally {
+            closer.close();
+        }
+        File file = new File(dir, captureTime + SUFFIX);
+        File existingFile = files.remove(captureTime);
+        if (existingFile != null) {
+            totalBytes -= existingFile.length();
+            deleteFile(existingFile);
+        }
+        if (!tmpFile.renameTo(file)) {
+            deleteFile(tmpFile);
+            throw new IOException("Could not rename file: " + tmpFile.getAbsolutePath());
+        }
+        files.put(captureTime, file);
+        totalBytes += file.length();
+        while (totalBytes > maxBytes && files.size() > 1) {
+            Map.Entry<Long, File> oldest = files.pollFirstEntry();
+            totalBytes -= oldest.getValue().length();
+            deleteFile(oldest.getValue());
+            droppingLogger.warn("dropping aggregates that could not be sent to the central"
+                    + " collector, because of an excessive backlog of {} MB", maxBytes / MB);
+        }
+    }
+
+    // returns the oldest intervals first
+    List<Long> getCaptureTimes(int limit) {
+        List<Long> captureTimes = Lists.newArrayList();
+        for (Long captureTime : files.keySet()) {
+            if (captureTimes.size() == limit) {
+                break;
+            }
+            captureTimes.add(captureTime);
+        }
+        return captureTimes;
+    }
+
+    // returns null (and removes the interval) if the interval could not be read
+    @Nullable
+    List<AggregateStreamMessage> read(long captureTime) {
+        File file = files.get(captureTime);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return readFile(file);
+        } catch (IOException e) {
+            logger.warn("could not read spooled aggregates {}: {}", file.getAbsolutePath(),
+                    e.getMessage(), e);
+            remove(ImmutableList.of(captureTime));
+            return null;
+        }
+    }
+
+    void remove(List<Long> captureTimes) {
+        for (Long captureTime : captureTimes) {
+            File file = files.remove(captureTime);
+            if (file != null) {
+                totalBytes -= file.length();
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static List<AggregateStreamMessage> readFile(File file) throws IOException {
+        List<AggregateStreamMessage> messages = Lists.newArrayList();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            AggregateStreamMessage message;
+            while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+        } finally {
+            in.close();
+        }
+        return messages;
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            logger.warn("could not delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    // shared query texts are always spooled as full text, and then reduced (where possible) when
+    // they are sent, since there is no telling when that will be
+    private static class SpoolingAggregateVisitor implements AggregateVisitor {
+
+        private final OutputStream out;
+
+        private SpoolingAggregateVisitor(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
+                Aggregate overallAggregate) throws IOException {
+            writeSharedQueryTexts(sharedQueryTexts);
+            AggregateStreamMessage.newBuilder()
+                    .setOverallAggregate(OverallAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setAggregate(overallAggregate))
+                    .build()
+                    .writeDelimitedTo(out);
+        }
+
+        @Override
+        public void visitTransactionAggregate(String transactionType, String transactionName,
+                List<String> sharedQueryTexts, Aggregate transactionAggregate)
+                throws IOException {
+            writeSharedQueryTexts(sharedQueryTexts);
+            AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(TransactionAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setTransactionName(transactionName)
+                            .setAggregate(transactionAggregate))
+                    .build()
+                    .writeDelimitedTo(out);
+        }
+
+        private void writeSharedQueryTexts(List<String> sharedQueryTexts) throws IOException {
+            for (String sharedQueryText : sharedQueryTexts) {
+                AggregateStreamMessage.newBuilder()
+                        .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                                .setFullText(sharedQueryText))
+                        .build()
+                        .writeDelimitedTo(out);
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
 import io.grpc.stub.StreamObserver;
@@ -41,6 +42,7 @@ import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -50,9 +52,6 @@ import org.glowroot.wire.api.model.CollectorServiceGrpc;
 import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
-import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.AggregateStreamHeader;
-import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.OverallAggregate;
-import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage.TransactionAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -89,6 +88,18 @@ public class CentralCollector implements Collector {
         SKIP_DELAY = Integer.getInteger("glowroot.internal.rollup.0.intervalMillis", 60000) < 10000;
     }
 
+    // max number of spooled aggregate intervals sent per stream when replaying the spool
+    private static final int AGGREGATE_SPOOL_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.collector.aggregateSpoolBatchSize", 10);
+
+    private static final long AGGREGATE_SPOOL_MAX_BYTES =
+            Long.getLong("glowroot.internal.collector.aggregateSpoolMaxMb", 100) * 1024 * 1024;
+
+    // replaying is limited on each aggregate collection so that the aggregate flushing thread is
+    // not tied up for too long while it works through a large spool (new intervals are spooled
+    // behind the remaining ones in the meantime)
+    private static final long AGGREGATE_SPOOL_REPLAY_MAX_MILLIS = 10000;
+
     private final String agentId;
     private final String collectorAddress;
     private final ConfigService configService;
@@ -102,12 +113,20 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final AggregateSpool aggregateSpool;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
+    // whether the central collector accepts multiple aggregate intervals per stream
+    private volatile boolean batchedAggregateStream;
+    // whether the central collector reads packed histogram buckets, until then (including before
+    // the init response is received) histograms are sent in the HdrHistogram encoding
+    private volatile boolean packedHistograms;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
+            @Nullable String collectorAuthority, List<File> confDirs, File tmpDir,
+            boolean configReadOnly, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService,
             LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
             ConfigService configService) throws Exception {
 
@@ -128,6 +147,8 @@ public class CentralCollector implements Collector {
         this.configService = configService;
         this.configReadOnly = configReadOnly;
         configSyncedFile = new File(confDirs.get(0), "config.synced");
+        aggregateSpool =
+                new AggregateSpool(new File(tmpDir, "aggregate-spool"), AGGREGATE_SPOOL_MAX_BYTES);
 
         startupLogger.info("agent id: {}", agentId);
 
@@ -166,6 +187,8 @@ public class CentralCollector implements Collector {
             @Override
             void doWithResponse(InitResponse response) {
                 CentralCollector.this.environment = environment;
+                batchedAggregateStream = response.getBatchedAggregateStream();
+                packedHistograms = response.getPackedHistograms();
                 // don't need to suppress sending this log message to the central collector because
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
@@ -202,8 +225,26 @@ public class CentralCollector implements Collector {
         if (!SKIP_DELAY) {
             MILLISECONDS.sleep(nextAggregateDelayMillis);
         }
-        centralConnection
-                .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        if (!aggregateSpool.isEmpty() && !centralConnection.isInConnectionFailure()) {
+            replayAggregateSpool();
+        }
+        boolean sent;
+        if (aggregateSpool.isEmpty()) {
+            sent = centralConnection
+                    .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        } else {
+            // spooled intervals are still waiting to be replayed, so this interval is queued
+            // behind them in order for the central collector to receive intervals in capture time
+            // order (e.g. alert windows rely on this)
+            sent = false;
+        }
+        if (!sent) {
+            try {
+                aggregateSpool.write(aggregateReader);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
     }
 
     @Override
@@ -271,6 +312,31 @@ public class CentralCollector implements Collector {
         });
     }
 
+    private void replayAggregateSpool() throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int batchSize = batchedAggregateStream ? AGGREGATE_SPOOL_BATCH_SIZE : 1;
+        while (!aggregateSpool.isEmpty()
+                && stopwatch.elapsed(MILLISECONDS) < AGGREGATE_SPOOL_REPLAY_MAX_MILLIS) {
+            List<Long> captureTimes = aggregateSpool.getCaptureTimes(batchSize);
+            // no retries, spooled intervals stay in the spool until they are sent successfully
+            if (!centralConnection.blockingCallOnce(new ReplayAggregatesGrpcCall(captureTimes))) {
+                return;
+            }
+            aggregateSpool.remove(captureTimes);
+        }
+    }
+
+    // aggregates are spooled with packed histograms, and only converted when sending
+    private Aggregate toCentralAggregate(Aggregate aggregate) {
+        if (packedHistograms || !aggregate.hasDurationNanosHistogram()) {
+            return aggregate;
+        }
+        return aggregate.toBuilder()
+                .setDurationNanosHistogram(
+                        LazyHistogram.toLegacyProto(aggregate.getDurationNanosHistogram()))
+                .build();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         downstreamServiceObserver.close();
@@ -394,7 +460,7 @@ public class CentralCollector implements Collector {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
+                    .setStreamHeader(AggregateStreamMessage.AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
                             .setCaptureTime(aggregateReader.captureTime())
                             .setPostV09(true))
@@ -439,9 +505,9 @@ public class CentralCollector implements Collector {
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
+                        .setOverallAggregate(AggregateStreamMessage.OverallAggregate.newBuilder()
                                 .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                                .setAggregate(toCentralAggregate(overallAggregate)))
                         .build());
             }
 
@@ -456,15 +522,98 @@ public class CentralCollector implements Collector {
                             .build());
                 }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                        .setTransactionAggregate(
+                                AggregateStreamMessage.TransactionAggregate.newBuilder()
+                                        .setTransactionType(transactionType)
+                                        .setTransactionName(transactionName)
+                                        .setAggregate(toCentralAggregate(transactionAggregate)))
                         .build());
             }
         }
     }
 
+    private class ReplayAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
+
+        private final List<Long> captureTimes;
+        private final List<String> fullTextSha1s = Lists.newArrayList();
+
+        private ReplayAggregatesGrpcCall(List<Long> captureTimes) {
+            this.captureTimes = captureTimes;
+        }
+
+        @Override
+        public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+            StreamObserver<AggregateStreamMessage> requestObserver =
+                    collectorServiceStub.collectAggregateStream(responseObserver);
+            fullTextSha1s.clear();
+            boolean first = true;
+            for (long captureTime : captureTimes) {
+                List<AggregateStreamMessage> messages = aggregateSpool.read(captureTime);
+                if (messages == null) {
+                    // could not be read (and was removed from the spool)
+                    continue;
+                }
+                if (first) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setStreamHeader(
+                                    AggregateStreamMessage.AggregateStreamHeader.newBuilder()
+                                            .setAgentId(agentId)
+                                            .setCaptureTime(captureTime)
+                                            .setPostV09(true))
+                            .build());
+                    first = false;
+                } else {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setIntervalHeader(
+                                    AggregateStreamMessage.AggregateIntervalHeader.newBuilder()
+                                            .setCaptureTime(captureTime))
+                            .build());
+                }
+                for (AggregateStreamMessage message : messages) {
+                    if (message.hasSharedQueryText()) {
+                        // spooled shared query texts are always full text
+                        message = AggregateStreamMessage.newBuilder()
+                                .setSharedQueryText(sharedQueryTextLimiter
+                                        .buildAggregateSharedQueryText(
+                                                message.getSharedQueryText().getFullText(),
+                                                fullTextSha1s))
+                                .build();
+                    } else if (message.hasOverallAggregate() && !packedHistograms) {
+                        AggregateStreamMessage.OverallAggregate overallAggregate =
+                                message.getOverallAggregate();
+                        message = AggregateStreamMessage.newBuilder()
+                                .setOverallAggregate(overallAggregate.toBuilder()
+                                        .setAggregate(toCentralAggregate(
+                                                overallAggregate.getAggregate())))
+                                .build();
+                    } else if (message.hasTransactionAggregate() && !packedHistograms) {
+                        AggregateStreamMessage.TransactionAggregate transactionAggregate =
+                                message.getTransactionAggregate();
+                        message = AggregateStreamMessage.newBuilder()
+                                .setTransactionAggregate(transactionAggregate.toBuilder()
+                                        .setAggregate(toCentralAggregate(
+                                                transactionAggregate.getAggregate())))
+                                .build();
+                    }
+                    requestObserver.onNext(message);
+                }
+            }
+            if (first) {
+                // none of the intervals could be read, so there is nothing to send
+                requestObserver.onError(new IllegalStateException("No spooled aggregates"));
+                return;
+            }
+            requestObserver.onCompleted();
+        }
+
+        @Override
+        public void doWithResponse(AggregateResponseMessage response) {
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+        }
+    }
+
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
@@ -146,30 +146,38 @@ class CentralConnection {
         return channel;
     }
 
-    <T extends /*@NonNull*/ Object> void blockingCallOnce(GrpcCall<T> call)
+    // returns false if the call did not succeed
+    <T extends /*@NonNull*/ Object> boolean blockingCallOnce(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(-1, call);
+        return blockingCallWithAFewRetries(-1, call);
     }
 
     // important that these calls are idempotent
-    <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(GrpcCall<T> call)
+    // returns false if the call did not succeed (including when it was not attempted at all due to
+    // connection failure)
+    <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(30000, call);
+        return blockingCallWithAFewRetries(30000, call);
+    }
+
+    boolean isInConnectionFailure() {
+        return inConnectionFailure.get();
     }
 
     // important that these calls are idempotent
-    private <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(int maxTotalMillis,
+    private <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(int maxTotalMillis,
             GrpcCall<T> call) throws InterruptedException {
         if (closed) {
-            return;
+            return false;
         }
         if (inConnectionFailure.get()) {
-            return;
+            return false;
         }
         RetryingStreamObserver<T> responseObserver =
                 new RetryingStreamObserver<T>(call, maxTotalMillis, maxTotalMillis, false);
         call.call(responseObserver);
         responseObserver.waitForFinish();
+        return responseObserver.succeeded;
     }
 
     <T extends /*@NonNull*/ Object> void asyncCallOnce(GrpcCall<T> call) {
@@ -307,6 +315,7 @@ class CentralConnection {
         private final Stopwatch stopwatch = Stopwatch.createStarted();
 
         private volatile long nextDelayMillis = 2000;
+        private volatile boolean succeeded;
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
@@ -337,6 +346,7 @@ class CentralConnection {
                 inMaybeInitFailure = false;
                 initCallSucceeded = true;
             }
+            succeeded = true;
             latch.countDown();
         }
 
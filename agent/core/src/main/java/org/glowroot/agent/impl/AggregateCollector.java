@@ -64,9 +64,9 @@ class AggregateCollector {
     private boolean asyncTransactions;
     private final RootTimerCollectorImpl mainThreadRootTimers = new RootTimerCollectorImpl();
     private final ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
-    // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
-    // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    // histogram values are in nanoseconds, tracked at the configured precision for the transaction
+    // type to bound the number of buckets (and memory) required
+    private final LazyHistogram durationNanosHistogram;
     private final QueryCollector queries;
     private final ServiceCallCollector serviceCalls;
     // lazy instantiated to reduce memory footprint
@@ -82,8 +82,9 @@ class AggregateCollector {
     private final Object lock = new Object();
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
-            int maxServiceCallAggregates) {
+            int maxServiceCallAggregates, int histogramSignificantDigits) {
         this.transactionName = transactionName;
+        durationNanosHistogram = new LazyHistogram(histogramSignificantDigits);
 
         int queriesHardLimitMultiplierWhileBuilding = transactionName == null
                 ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
@@ -146,6 +147,56 @@ class AggregateCollector {
         }
     }
 
+    // used to merge the shards of a sharded interval collector (see AggregateIntervalCollector)
+    void mergeDataFrom(AggregateCollector aggregateCollector) {
+        // locks are always acquired in this order (and "this" is never a live shard)
+        synchronized (lock) {
+            synchronized (aggregateCollector.lock) {
+                totalDurationNanos += aggregateCollector.totalDurationNanos;
+                totalCpuNanos += aggregateCollector.totalCpuNanos;
+                totalAllocatedBytes += aggregateCollector.totalAllocatedBytes;
+                transactionCount += aggregateCollector.transactionCount;
+                errorCount += aggregateCollector.errorCount;
+                asyncTransactions |= aggregateCollector.asyncTransactions;
+                mainThreadStats.mergeThreadStats(aggregateCollector.mainThreadStats);
+                mainThreadRootTimers.mergeRootTimers(aggregateCollector.mainThreadRootTimers);
+                if (aggregateCollector.auxThreadRootTimer != null) {
+                    if (auxThreadRootTimer == null) {
+                        auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+                    }
+                    auxThreadRootTimer.mergeDataFrom(aggregateCollector.auxThreadRootTimer);
+                    if (auxThreadStats == null) {
+                        auxThreadStats = new ThreadStatsCollectorImpl();
+                    }
+                    // aux thread stats is non-null when aux thread root timer is non-null
+                    auxThreadStats
+                            .mergeThreadStats(checkNotNull(aggregateCollector.auxThreadStats));
+                }
+                if (aggregateCollector.asyncTimers != null) {
+                    if (asyncTimers == null) {
+                        asyncTimers = new RootTimerCollectorImpl();
+                    }
+                    asyncTimers.mergeRootTimers(aggregateCollector.asyncTimers);
+                }
+                durationNanosHistogram.merge(aggregateCollector.durationNanosHistogram);
+                aggregateCollector.queries.mergeQueriesInto(queries);
+                aggregateCollector.serviceCalls.mergeServiceCallsInto(serviceCalls);
+                if (aggregateCollector.mainThreadProfile != null) {
+                    if (mainThreadProfile == null) {
+                        mainThreadProfile = new MutableProfile();
+                    }
+                    mainThreadProfile.merge(aggregateCollector.mainThreadProfile);
+                }
+                if (aggregateCollector.auxThreadProfile != null) {
+                    if (auxThreadProfile == null) {
+                        auxThreadProfile = new MutableProfile();
+                    }
+                    auxThreadProfile.merge(aggregateCollector.auxThreadProfile);
+                }
+            }
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
         synchronized (lock) {
@@ -312,6 +363,26 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void mergeRootTimers(RootTimerCollectorImpl rootTimerCollector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : rootTimerCollector.rootMutableTimers) {
+                mergeRootTimer(toBeMergedRootTimer);
+            }
+        }
+
+        private void mergeRootTimer(MutableAggregateTimer toBeMergedRootTimer) {
+            for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                        && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                    rootTimer.mergeDataFrom(toBeMergedRootTimer);
+                    return;
+                }
+            }
+            MutableAggregateTimer rootTimer = new MutableAggregateTimer(
+                    toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+            rootTimer.mergeDataFrom(toBeMergedRootTimer);
+            rootMutableTimers.add(rootTimer);
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -340,6 +411,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void mergeThreadStats(ThreadStatsCollectorImpl threadStats) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, threadStats.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, threadStats.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, threadStats.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
@@ -19,18 +19,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
 import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.common.config.TransactionConfig.HistogramPrecisionOverride;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -43,6 +49,8 @@ import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public class AggregateIntervalCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -51,74 +59,138 @@ public class AggregateIntervalCollector {
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
+    // key is transaction type
+    private final ImmutableMap<String, Integer> histogramSignificantDigits;
     private final Clock clock;
 
-    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+    // when aggregate processing is sharded across multiple threads, each shard is only ever added
+    // to by a single thread, and the shards are only merged when reading (flush or live data)
+    private final ImmutableList<ConcurrentMap<String, IntervalTypeCollector>> shards;
+
+    // key is transaction type, only added to by the processing thread (TransactionProcessorLoop)
+    //
+    // transaction names are admitted under the max transaction aggregates limit in processing order
+    // before the transaction is handed off to its shard, so that which transaction names get their
+    // own aggregate (and which go to the limit exceeded bucket) does not depend on the number of
+    // shards or on how the shard threads happen to be scheduled
+    private final ConcurrentMap<String, Set<String>> admittedTransactionNames =
             Maps.newConcurrentMap();
 
+    // counted down by each shard once it has added all of its transactions for this interval
+    private final CountDownLatch shardsCompletedLatch;
+
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            List<? extends HistogramPrecisionOverride> histogramPrecisionOverrides,
+            int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
+        Map<String, Integer> histogramSignificantDigits = Maps.newHashMap();
+        for (HistogramPrecisionOverride histogramPrecisionOverride : histogramPrecisionOverrides) {
+            histogramSignificantDigits.put(histogramPrecisionOverride.transactionType(),
+                    histogramPrecisionOverride.significantDigits());
+        }
+        this.histogramSignificantDigits = ImmutableMap.copyOf(histogramSignificantDigits);
         this.clock = clock;
+        ImmutableList.Builder<ConcurrentMap<String, IntervalTypeCollector>> shards =
+                ImmutableList.builder();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Maps.<String, IntervalTypeCollector>newConcurrentMap());
+        }
+        this.shards = shards.build();
+        shardsCompletedLatch = new CountDownLatch(shardCount);
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
+    static int getShardIndex(Transaction transaction, int shardCount) {
+        int hash = 31 * transaction.getTransactionType().hashCode()
+                + transaction.getTransactionName().hashCode();
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    // must only be called from the processing thread (TransactionProcessorLoop), returns the
+    // name of the transaction aggregate that the transaction should be merged into
+    String admitTransactionName(Transaction transaction) {
+        String transactionType = transaction.getTransactionType();
+        String transactionName = transaction.getTransactionName();
+        Set<String> transactionNames = admittedTransactionNames.get(transactionType);
+        if (transactionNames == null) {
+            transactionNames = Sets.newConcurrentHashSet();
+            admittedTransactionNames.put(transactionType, transactionNames);
+        }
+        if (transactionNames.contains(transactionName)) {
+            return transactionName;
+        }
+        if (transactionNames.size() < maxTransactionAggregates) {
+            transactionNames.add(transactionName);
+            return transactionName;
+        }
+        return LIMIT_EXCEEDED_BUCKET;
+    }
+
+    // aggregateTransactionName is the return value of admitTransactionName()
+    public void add(Transaction transaction, String aggregateTransactionName, int shardIndex) {
+        ConcurrentMap<String, IntervalTypeCollector> typeCollectors = shards.get(shardIndex);
         IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
         if (typeCollector == null) {
             // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
-            typeCollector = new IntervalTypeCollector();
+            // single thread per shard (TransactionProcessorLoop or AggregateShardLoop)
+            typeCollector = new IntervalTypeCollector(
+                    getHistogramSignificantDigits(transaction.getTransactionType()));
             typeCollectors.put(transaction.getTransactionType(), typeCollector);
         }
-        typeCollector.add(transaction);
+        typeCollector.add(transaction, aggregateTransactionName);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
     }
 
     public void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameSummariesInto(collector);
+            }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
     }
 
     public void mergeTransactionNameErrorSummariesInto(
             TransactionNameErrorSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+            }
         }
     }
 
@@ -156,10 +228,12 @@ public class AggregateIntervalCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-            if (fullQueryText != null) {
-                return fullQueryText;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                if (fullQueryText != null) {
+                    return fullQueryText;
+                }
             }
         }
         return null;
@@ -208,7 +282,24 @@ public class AggregateIntervalCollector {
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        return typeCollectors.keySet();
+        if (shards.size() == 1) {
+            return shards.get(0).keySet();
+        }
+        Set<String> transactionTypes = Sets.newHashSet();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            transactionTypes.addAll(typeCollectors.keySet());
+        }
+        return transactionTypes;
+    }
+
+    // called by each shard's processing thread once all transactions for this interval have been
+    // added to the shard
+    void shardCompleted() {
+        shardsCompletedLatch.countDown();
+    }
+
+    void awaitShardsCompleted() throws InterruptedException {
+        shardsCompletedLatch.await();
     }
 
     void flush(Collector collector) throws Exception {
@@ -216,21 +307,57 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        typeCollectors.clear();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            typeCollectors.clear();
+        }
+        admittedTransactionNames.clear();
     }
 
     // can be called without lock
     private @Nullable AggregateCollector getAggregateCollector(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
+        List<AggregateCollector> aggregateCollectors = Lists.newArrayList();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                continue;
+            }
+            AggregateCollector aggregateCollector;
+            if (transactionName == null) {
+                aggregateCollector = intervalTypeCollector.overallAggregateCollector;
+            } else {
+                aggregateCollector =
+                        intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+            if (aggregateCollector != null) {
+                aggregateCollectors.add(aggregateCollector);
+            }
+        }
+        return merge(transactionName, aggregateCollectors,
+                getHistogramSignificantDigits(transactionType));
+    }
+
+    private int getHistogramSignificantDigits(String transactionType) {
+        Integer significantDigits = histogramSignificantDigits.get(transactionType);
+        return significantDigits == null ? LazyHistogram.DEFAULT_SIGNIFICANT_DIGITS
+                : significantDigits;
+    }
+
+    private @Nullable AggregateCollector merge(@Nullable String transactionName,
+            List<AggregateCollector> aggregateCollectors, int histogramSignificantDigits) {
+        if (aggregateCollectors.isEmpty()) {
             return null;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        if (aggregateCollectors.size() == 1) {
+            // common case, and the only case when not sharded
+            return aggregateCollectors.get(0);
+        }
+        AggregateCollector mergedAggregateCollector = new AggregateCollector(transactionName,
+                maxQueryAggregates, maxServiceCallAggregates, histogramSignificantDigits);
+        for (AggregateCollector aggregateCollector : aggregateCollectors) {
+            mergedAggregateCollector.mergeDataFrom(aggregateCollector);
         }
+        return mergedAggregateCollector;
     }
 
     private class IntervalTypeCollector {
@@ -238,37 +365,31 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        private final int histogramSignificantDigits;
 
-        private IntervalTypeCollector() {
-            overallAggregateCollector =
-                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+        private IntervalTypeCollector(int histogramSignificantDigits) {
+            overallAggregateCollector = new AggregateCollector(null, maxQueryAggregates,
+                    maxServiceCallAggregates, histogramSignificantDigits);
+            this.histogramSignificantDigits = histogramSignificantDigits;
         }
 
-        private void add(Transaction transaction) {
+        private void add(Transaction transaction, String aggregateTransactionName) {
             merge(transaction, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
+                    transactionAggregateCollectors.get(aggregateTransactionName);
             if (transactionAggregateCollector == null) {
                 // don't need to worry about race condition here because add() is only called from a
-                // single thread (TransactionProcessorLoop)
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
-                    transactionAggregateCollector =
-                            createTransactionAggregateCollector(transaction.getTransactionName());
-                } else {
-                    transactionAggregateCollector =
-                            transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
-                    if (transactionAggregateCollector == null) {
-                        transactionAggregateCollector =
-                                createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
-                    }
-                }
+                // single thread per shard
+                transactionAggregateCollector =
+                        createTransactionAggregateCollector(aggregateTransactionName);
             }
             merge(transaction, transactionAggregateCollector);
         }
 
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxQueryAggregates, maxServiceCallAggregates);
+                    transactionName, maxQueryAggregates, maxServiceCallAggregates,
+                    histogramSignificantDigits);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
@@ -310,18 +431,48 @@ public class AggregateIntervalCollector {
             SharedQueryTextCollectionImpl sharedQueryTextCollector =
                     new SharedQueryTextCollectionImpl();
             ScratchBuffer scratchBuffer = new ScratchBuffer();
-            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                String transactionType = e.getKey();
-                IntervalTypeCollector intervalTypeCollector = e.getValue();
-                Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                        .build(sharedQueryTextCollector, scratchBuffer);
+            for (String transactionType : getTransactionTypes()) {
+                List<AggregateCollector> overallAggregateCollectors = Lists.newArrayList();
+                // only the limit exceeded bucket can be present in more than one shard since
+                // transactions are sharded by transaction name
+                Map<String, List<AggregateCollector>> transactionAggregateCollectors =
+                        Maps.newLinkedHashMap();
+                for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+                    IntervalTypeCollector intervalTypeCollector =
+                            typeCollectors.get(transactionType);
+                    if (intervalTypeCollector == null) {
+                        continue;
+                    }
+                    overallAggregateCollectors.add(intervalTypeCollector.overallAggregateCollector);
+                    for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector
+                            .transactionAggregateCollectors.entrySet()) {
+                        List<AggregateCollector> list =
+                                transactionAggregateCollectors.get(f.getKey());
+                        if (list == null) {
+                            list = Lists.newArrayList();
+                            transactionAggregateCollectors.put(f.getKey(), list);
+                        }
+                        list.add(f.getValue());
+                    }
+                }
+                int histogramSignificantDigits = getHistogramSignificantDigits(transactionType);
+                AggregateCollector overallAggregateCollector =
+                        merge(null, overallAggregateCollectors, histogramSignificantDigits);
+                if (overallAggregateCollector == null) {
+                    continue;
+                }
+                Aggregate overallAggregate =
+                        overallAggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
                 aggregateVisitor.visitOverallAggregate(transactionType,
                         sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
                         overallAggregate);
-                for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                for (Map.Entry<String, List<AggregateCollector>> f : transactionAggregateCollectors
                         .entrySet()) {
-                    Aggregate transactionAggregate =
-                            f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                    AggregateCollector transactionAggregateCollector =
+                            checkNotNull(merge(f.getKey(), f.getValue(),
+                                    histogramSignificantDigits));
+                    Aggregate transactionAggregate = transactionAggregateCollector
+                            .build(sharedQueryTextCollector, scratchBuffer);
                     aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
                             sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
                             transactionAggregate);
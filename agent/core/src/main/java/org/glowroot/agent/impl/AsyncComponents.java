@@ -20,6 +20,7 @@ import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -96,6 +97,17 @@ class AsyncComponents {
         }
     }
 
+    boolean anyQueryText(Predicate<String> predicate) {
+        for (Map<String, AsyncQueryData> queriesForType : asyncQueries.values()) {
+            for (AsyncQueryData queryData : queriesForType.values()) {
+                if (predicate.apply(queryData.getQueryText())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     void mergeServiceCallsInto(ServiceCallCollector collector) {
         for (Map.Entry<String, Map<String, AsyncQueryData>> outerEntry : asyncServiceCalls
                 .entrySet()) {
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.config.ConfigService;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// profiling backend that consumes JDK Flight Recorder execution samples from a streaming recording,
+// instead of polling ThreadMXBean.getThreadInfo(), which brings each sampled thread to a safepoint
+// (and so biases the samples towards safepoints)
+//
+// the time that virtual threads spend pinned to their carrier thread (jdk.VirtualThreadPinned) is
+// also attributed to the transaction, as its own thread stat (not as blocked time, since the thread
+// is not blocked from the application's point of view)
+//
+// events are delivered in batches (the recording stream is flushed about once a second), so each
+// event is matched to the thread context that was running on its thread at the time of the event,
+// and completed transactions are held back from processing (see deferProcessing()) until the events
+// recorded up to their completion have been delivered
+//
+// JFR event streaming was introduced in Java 14, and the agent is compiled against Java 8, so the
+// JFR api is accessed via reflection (the accessors that are called for every event and every frame
+// are resolved once to method handles, which avoid the per call overhead of Method.invoke())
+class JfrStackTraceSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(JfrStackTraceSampler.class);
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    private static final String NATIVE_METHOD_SAMPLE = "jdk.NativeMethodSample";
+    // introduced in Java 21, enabling an event that does not exist in the running jvm is a no-op
+    private static final String VIRTUAL_THREAD_PINNED = "jdk.VirtualThreadPinned";
+
+    // completed transactions are processed after this long even if the recording stream has
+    // stopped delivering events for some reason
+    private static final long MAX_DEFERRAL_MILLIS = SECONDS.toMillis(10);
+
+    private final TransactionRegistry transactionRegistry;
+    private final ConfigService configService;
+
+    private final Class<?> recordingStreamClass;
+    private final Method enableMethod;
+    private final Method withPeriodMethod;
+    private final Method withThresholdMethod;
+    private final Method onEventMethod;
+    private final Method onFlushMethod;
+    private final Method startAsyncMethod;
+    private final Method closeMethod;
+    private final MethodHandle getThreadHandle;
+    private final MethodHandle getJavaThreadIdHandle;
+    private final MethodHandle getStartTimeHandle;
+    private final MethodHandle getDurationHandle;
+    private final MethodHandle getStackTraceHandle;
+    private final MethodHandle getFramesHandle;
+    private final MethodHandle isTruncatedHandle;
+    private final MethodHandle getMethodHandle;
+    private final MethodHandle getLineNumberHandle;
+    private final MethodHandle getTypeHandle;
+    private final MethodHandle getClassNameHandle;
+    private final MethodHandle getMethodNameHandle;
+
+    // only accessed by the collector thread
+    private @Nullable Object recordingStream;
+
+    private volatile boolean running;
+
+    // completed transactions whose processing is held back, in order of completion
+    private final ConcurrentLinkedQueue<DeferredTransaction> deferredTransactions =
+            new ConcurrentLinkedQueue<DeferredTransaction>();
+
+    // only accessed by the recording stream's event dispatch thread (after being reset in start()),
+    // the events of a batch were recorded before the flush that delivers them, but possibly after
+    // the previous flush (see onFlush())
+    private long previousFlushTime;
+
+    // only accessed by the recording stream's event dispatch thread, reset after each flush so
+    // that each batch of events is matched against the thread contexts of the transactions that
+    // are active or deferred at that time (keyed by thread id)
+    private @Nullable Map<Long, List<ThreadContextImpl>> threadContexts;
+
+    private volatile boolean disabledDueToError;
+
+    static @Nullable JfrStackTraceSampler create(TransactionRegistry transactionRegistry,
+            ConfigService configService) {
+        try {
+            return new JfrStackTraceSampler(transactionRegistry, configService);
+        } catch (ClassNotFoundException e) {
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+            logger.warn("JFR profiling requires Java 14 or later, falling back to ThreadMXBean"
+                    + " stack trace sampling");
+            return null;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private JfrStackTraceSampler(TransactionRegistry transactionRegistry,
+            ConfigService configService) throws Exception {
+        this.transactionRegistry = transactionRegistry;
+        this.configService = configService;
+        recordingStreamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+        Class<?> eventSettingsClass = Class.forName("jdk.jfr.EventSettings");
+        Class<?> recordedObjectClass = Class.forName("jdk.jfr.consumer.RecordedObject");
+        Class<?> recordedEventClass = Class.forName("jdk.jfr.consumer.RecordedEvent");
+        Class<?> recordedThreadClass = Class.forName("jdk.jfr.consumer.RecordedThread");
+        Class<?> recordedStackTraceClass = Class.forName("jdk.jfr.consumer.RecordedStackTrace");
+        Class<?> recordedFrameClass = Class.forName("jdk.jfr.consumer.RecordedFrame");
+        Class<?> recordedMethodClass = Class.forName("jdk.jfr.consumer.RecordedMethod");
+        Class<?> recordedClassClass = Class.forName("jdk.jfr.consumer.RecordedClass");
+        enableMethod = recordingStreamClass.getMethod("enable", String.class);
+        withPeriodMethod = eventSettingsClass.getMethod("withPeriod", Duration.class);
+        withThresholdMethod = eventSettingsClass.getMethod("withThreshold", Duration.class);
+        onEventMethod = recordingStreamClass.getMethod("onEvent", String.class, Consumer.class);
+        onFlushMethod = recordingStreamClass.getMethod("onFlush", Runnable.class);
+        startAsyncMethod = recordingStreamClass.getMethod("startAsync");
+        closeMethod = recordingStreamClass.getMethod("close");
+        getThreadHandle = getAccessor(recordedObjectClass, "getThread", String.class);
+        getJavaThreadIdHandle = getAccessor(recordedThreadClass, "getJavaThreadId");
+        getStartTimeHandle = getAccessor(recordedEventClass, "getStartTime");
+        getDurationHandle = getAccessor(recordedEventClass, "getDuration");
+        getStackTraceHandle = getAccessor(recordedEventClass, "getStackTrace");
+        getFramesHandle = getAccessor(recordedStackTraceClass, "getFrames");
+        isTruncatedHandle = getAccessor(recordedStackTraceClass, "isTruncated");
+        getMethodHandle = getAccessor(recordedFrameClass, "getMethod");
+        getLineNumberHandle = getAccessor(recordedFrameClass, "getLineNumber");
+        getTypeHandle = getAccessor(recordedMethodClass, "getType");
+        getClassNameHandle = getAccessor(recordedClassClass, "getName");
+        getMethodNameHandle = getAccessor(recordedMethodClass, "getName");
+    }
+
+    // the returned method handle takes and returns Object (boxing primitive return values), so that
+    // it can be called with invokeExact() without compile time access to the JFR classes
+    private static MethodHandle getAccessor(Class<?> clazz, String name,
+            Class<?>... parameterTypes) throws Exception {
+        MethodHandle handle =
+                MethodHandles.publicLookup().unreflect(clazz.getMethod(name, parameterTypes));
+        return handle.asType(handle.type().generic());
+    }
+
+    // (re-)starts the recording stream with the given sampling interval
+    void start(int intervalMillis) throws Exception {
+        stop();
+        Object stream = recordingStreamClass.getConstructor().newInstance();
+        Duration period = Duration.ofMillis(intervalMillis);
+        withPeriodMethod.invoke(enableMethod.invoke(stream, EXECUTION_SAMPLE), period);
+        withPeriodMethod.invoke(enableMethod.invoke(stream, NATIVE_METHOD_SAMPLE), period);
+        Consumer<Object> sampleConsumer = new Consumer<Object>() {
+            @Override
+            public void accept(Object event) {
+                onSample(event);
+            }
+        };
+        onEventMethod.invoke(stream, EXECUTION_SAMPLE, sampleConsumer);
+        onEventMethod.invoke(stream, NATIVE_METHOD_SAMPLE, sampleConsumer);
+        // zero threshold (instead of the default 20 milliseconds) so that the total pinned time is
+        // captured
+        withThresholdMethod.invoke(enableMethod.invoke(stream, VIRTUAL_THREAD_PINNED),
+                Duration.ZERO);
+        onEventMethod.invoke(stream, VIRTUAL_THREAD_PINNED, new Consumer<Object>() {
+            @Override
+            public void accept(Object event) {
+                onVirtualThreadPinned(event);
+            }
+        });
+        onFlushMethod.invoke(stream, new Runnable() {
+            @Override
+            public void run() {
+                onFlush();
+            }
+        });
+        previousFlushTime = System.currentTimeMillis();
+        startAsyncMethod.invoke(stream);
+        recordingStream = stream;
+        running = true;
+    }
+
+    void stop() {
+        if (recordingStream == null) {
+            return;
+        }
+        running = false;
+        try {
+            closeMethod.invoke(recordingStream);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        recordingStream = null;
+        processDeferredTransactions(Long.MAX_VALUE);
+    }
+
+    // returns false if the transaction should be processed right away (because the recording stream
+    // is not running)
+    boolean deferProcessing(Transaction transaction, TransactionProcessor transactionProcessor) {
+        if (!running) {
+            return false;
+        }
+        long currentTime = System.currentTimeMillis();
+        deferredTransactions.add(
+                new DeferredTransaction(transaction, transactionProcessor, currentTime));
+        if (running) {
+            // in case the recording stream has stopped delivering events
+            processDeferredTransactions(currentTime - MAX_DEFERRAL_MILLIS);
+        } else {
+            // the recording stream was stopped concurrently, and may have already processed the
+            // deferred transactions
+            processDeferredTransactions(Long.MAX_VALUE);
+        }
+        return true;
+    }
+
+    private void onFlush() {
+        threadContexts = null;
+        long currentTime = System.currentTimeMillis();
+        // transactions that completed before the previous flush have had all of their events
+        // delivered by now (those that completed after it may still have events waiting to be
+        // delivered by the next flush)
+        processDeferredTransactions(previousFlushTime);
+        previousFlushTime = currentTime;
+    }
+
+    private void processDeferredTransactions(long completedBefore) {
+        DeferredTransaction deferredTransaction;
+        while ((deferredTransaction = deferredTransactions.peek()) != null
+                && deferredTransaction.completionTime < completedBefore) {
+            // remove() guards against processing the same transaction twice when called
+            // concurrently (e.g. from the event dispatch thread and from deferProcessing())
+            if (deferredTransactions.remove(deferredTransaction)) {
+                deferredTransaction.transactionProcessor
+                        .processOnCompletion(deferredTransaction.transaction);
+            }
+        }
+    }
+
+    private void onSample(Object event) {
+        if (disabledDueToError) {
+            // prevent excessive error logging in case there is a problem
+            return;
+        }
+        try {
+            onSampleInternal(event);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            disabledDueToError = true;
+        }
+    }
+
+    private void onVirtualThreadPinned(Object event) {
+        if (disabledDueToError) {
+            // prevent excessive error logging in case there is a problem
+            return;
+        }
+        try {
+            ThreadContextImpl threadContext = getThreadContext(event, "eventThread");
+            if (threadContext == null) {
+                return;
+            }
+            Duration duration = (Duration) (Object) getDurationHandle.invokeExact(event);
+            if (duration != null) {
+                threadContext.addVirtualThreadPinnedNanos(duration.toNanos());
+            }
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            disabledDueToError = true;
+        }
+    }
+
+    private void onSampleInternal(Object event) throws Throwable {
+        ThreadContextImpl threadContext = getThreadContext(event, "sampledThread");
+        if (threadContext == null) {
+            return;
+        }
+        Object stackTrace = (Object) getStackTraceHandle.invokeExact(event);
+        if (stackTrace == null) {
+            return;
+        }
+        List<?> frames = (List<?>) (Object) getFramesHandle.invokeExact(stackTrace);
+        int maxDepth = configService.getTransactionConfig().profilingMaxStackDepth();
+        int depth = maxDepth > 0 ? Math.min(frames.size(), maxDepth) : frames.size();
+        // jfr truncates stack traces on its own at the recording's stackdepth (64 by default)
+        boolean truncated = depth < frames.size()
+                || (Boolean) (Object) isTruncatedHandle.invokeExact(stackTrace);
+        List<StackTraceElement> stackTraceElements = Lists.newArrayListWithCapacity(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            Object frame = frames.get(i);
+            Object method = (Object) getMethodHandle.invokeExact(frame);
+            if (method == null) {
+                continue;
+            }
+            Object type = (Object) getTypeHandle.invokeExact(method);
+            String className =
+                    type == null ? "" : (String) (Object) getClassNameHandle.invokeExact(type);
+            String methodName = (String) (Object) getMethodNameHandle.invokeExact(method);
+            int lineNumber = (Integer) (Object) getLineNumberHandle.invokeExact(frame);
+            stackTraceElements.add(new StackTraceElement(className, methodName, null, lineNumber));
+        }
+        if (truncated) {
+            // same as for ThreadMXBean stack traces that are truncated at the max depth, so that
+            // truncated stack traces are merged under a single root in the profile tree
+            stackTraceElements.add(StackTraceCollector.TRUNCATED_STACK_TRACE_FRAME);
+        }
+        // jfr only samples threads that are running java code (jdk.ExecutionSample) or are
+        // executing native code (jdk.NativeMethodSample), both of which are reported as RUNNABLE by
+        // ThreadMXBean
+        threadContext.captureRecordedStackTrace(stackTraceElements, Thread.State.RUNNABLE);
+    }
+
+    private @Nullable ThreadContextImpl getThreadContext(Object event, String threadFieldName)
+            throws Throwable {
+        Object thread = (Object) getThreadHandle.invokeExact(event, (Object) threadFieldName);
+        if (thread == null) {
+            return null;
+        }
+        long threadId = (Long) (Object) getJavaThreadIdHandle.invokeExact(thread);
+        List<ThreadContextImpl> candidates = getThreadContexts().get(threadId);
+        if (candidates == null) {
+            return null;
+        }
+        Instant eventInstant = (Instant) (Object) getStartTimeHandle.invokeExact(event);
+        if (eventInstant == null) {
+            return null;
+        }
+        // the thread may have run several thread contexts since the previous batch (e.g. a pooled
+        // thread), and the event may also pre-date all of them (e.g. the thread was sitting idle in
+        // a thread pool), when thread contexts are nested (an outer transaction on hold while an
+        // inner transaction is executing), the inner (later starting) thread context wins
+        long eventTime = eventInstant.toEpochMilli();
+        ThreadContextImpl match = null;
+        long matchStartTime = 0;
+        for (ThreadContextImpl candidate : candidates) {
+            long startTime = getStartTime(candidate);
+            if (eventTime < startTime
+                    || candidate.isCompleted() && eventTime > getEndTime(candidate)) {
+                continue;
+            }
+            if (match == null || startTime > matchStartTime) {
+                match = candidate;
+                matchStartTime = startTime;
+            }
+        }
+        return match;
+    }
+
+    private Map<Long, List<ThreadContextImpl>> getThreadContexts() {
+        Map<Long, List<ThreadContextImpl>> threadContexts = this.threadContexts;
+        if (threadContexts != null) {
+            return threadContexts;
+        }
+        threadContexts = Maps.newHashMap();
+        for (Transaction transaction : transactionRegistry.getTransactions()) {
+            // completed transactions are either deferred (and added below), or are already being
+            // processed
+            if (!transaction.isCompleted()) {
+                addThreadContexts(transaction, threadContexts);
+            }
+        }
+        for (DeferredTransaction deferredTransaction : deferredTransactions) {
+            addThreadContexts(deferredTransaction.transaction, threadContexts);
+        }
+        this.threadContexts = threadContexts;
+        return threadContexts;
+    }
+
+    private static void addThreadContexts(Transaction transaction,
+            Map<Long, List<ThreadContextImpl>> threadContexts) {
+        addThreadContext(transaction.getMainThreadContext(), threadContexts);
+        for (ThreadContextImpl auxThreadContext : transaction.getAuxThreadContexts()) {
+            addThreadContext(auxThreadContext, threadContexts);
+        }
+    }
+
+    private static void addThreadContext(ThreadContextImpl threadContext,
+            Map<Long, List<ThreadContextImpl>> threadContexts) {
+        List<ThreadContextImpl> list = threadContexts.get(threadContext.getThreadId());
+        if (list == null) {
+            list = Lists.newArrayListWithCapacity(1);
+            threadContexts.put(threadContext.getThreadId(), list);
+        }
+        list.add(threadContext);
+    }
+
+    private static long getStartTime(ThreadContextImpl threadContext) {
+        Transaction transaction = threadContext.getTransaction();
+        return transaction.getStartTime() + NANOSECONDS
+                .toMillis(threadContext.getStartTick() - transaction.getStartTick());
+    }
+
+    private static long getEndTime(ThreadContextImpl threadContext) {
+        Transaction transaction = threadContext.getTransaction();
+        return transaction.getStartTime() + NANOSECONDS
+                .toMillis(threadContext.getEndTick() - transaction.getStartTick());
+    }
+
+    private static class DeferredTransaction {
+
+        private final Transaction transaction;
+        private final TransactionProcessor transactionProcessor;
+        private final long completionTime;
+
+        private DeferredTransaction(Transaction transaction,
+                TransactionProcessor transactionProcessor, long completionTime) {
+            this.transaction = transaction;
+            this.transactionProcessor = transactionProcessor;
+            this.completionTime = completionTime;
+        }
+    }
+}
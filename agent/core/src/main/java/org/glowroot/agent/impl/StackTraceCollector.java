@@ -20,6 +20,7 @@ import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.common.config.TransactionConfig;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -37,18 +39,42 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // upper bound on how far the profiling interval is stretched when the capture overhead exceeds
+    // the configured max overhead percent
+    private static final double MAX_BACKOFF_FACTOR = 100;
+
+    // use JDK Flight Recorder execution samples instead of ThreadMXBean.getThreadInfo() for
+    // transaction profiles (requires Java 14 or later, otherwise falls back to ThreadMXBean)
+    private static final boolean USE_JFR = Boolean.getBoolean("glowroot.internal.profiling.jfr");
+
+    // synthetic outermost frame that replaces the outer frames that were cut off by the profiling
+    // max stack depth, so that truncated stack traces are merged under a single root in the
+    // profile tree (instead of each one starting a new root at whatever frame it was cut at)
+    static final StackTraceElement TRUNCATED_STACK_TRACE_FRAME =
+            new StackTraceElement("<truncated stack trace>", "", null, -1);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
 
+    private final @Nullable JfrStackTraceSampler jfrStackTraceSampler;
+
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            TransactionService transactionService, final ConfigService configService,
+            Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        jfrStackTraceSampler =
+                USE_JFR ? JfrStackTraceSampler.create(transactionRegistry, configService) : null;
+        if (jfrStackTraceSampler != null) {
+            // so that completed transactions wait for their remaining samples to be delivered
+            // before being processed
+            transactionService.setJfrStackTraceSampler(jfrStackTraceSampler);
+        }
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -79,6 +105,23 @@ public class StackTraceCollector {
     }
 
     static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+        captureStackTraces(threadContexts, Integer.MAX_VALUE);
+    }
+
+    // the stack trace is ordered from innermost frame to outermost frame, and only the innermost
+    // frames are available when the stack trace is captured with a max depth
+    static List<StackTraceElement> truncateStackTrace(List<StackTraceElement> stackTrace,
+            int maxDepth) {
+        if (stackTrace.size() <= maxDepth) {
+            return stackTrace;
+        }
+        List<StackTraceElement> truncated = Lists.newArrayListWithCapacity(maxDepth + 1);
+        truncated.addAll(stackTrace.subList(0, maxDepth));
+        truncated.add(TRUNCATED_STACK_TRACE_FRAME);
+        return truncated;
+    }
+
+    static void captureStackTraces(List<ThreadContextImpl> threadContexts, int maxDepth) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
@@ -88,14 +131,20 @@ public class StackTraceCollector {
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
+        // one extra frame is requested in order to tell apart stack traces that were truncated from
+        // stack traces that are exactly max depth
+        int requestedDepth = maxDepth == Integer.MAX_VALUE ? maxDepth : maxDepth + 1;
         @Nullable
         ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, requestedDepth);
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
             if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo);
+                threadContext.captureStackTrace(threadInfo, maxDepth);
+            } else {
+                // ThreadMXBean.getThreadInfo() returns null for virtual threads
+                threadContext.captureVirtualThreadStackTrace(maxDepth);
             }
         }
     }
@@ -105,12 +154,22 @@ public class StackTraceCollector {
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
+        // >= 1, stretches the profiling interval when capture overhead exceeds the configured max
+        private double backoffFactor = 1;
+        // rotates which transaction threads are sampled first when there is a max threads per
+        // interval limit
+        private int rotation;
+
         @Override
         public void run() {
             // delay for first
             long remainingMillisInInterval = 0;
             while (!closed) {
                 currIntervalMillis = configService.getTransactionConfig().profilingIntervalMillis();
+                if (jfrStackTraceSampler != null) {
+                    runJfrStackTraceSampler(jfrStackTraceSampler);
+                    continue;
+                }
                 if (currIntervalMillis <= 0) {
                     try {
                         MILLISECONDS.sleep(Long.MAX_VALUE);
@@ -122,8 +181,9 @@ public class StackTraceCollector {
                         continue;
                     }
                 }
+                long effectiveIntervalMillis = (long) (currIntervalMillis * backoffFactor);
                 long randomDelayMillisFromIntervalStart =
-                        (long) (random.nextFloat() * currIntervalMillis);
+                        (long) (random.nextFloat() * effectiveIntervalMillis);
                 try {
                     MILLISECONDS
                             .sleep(remainingMillisInInterval + randomDelayMillisFromIntervalStart);
@@ -134,32 +194,124 @@ public class StackTraceCollector {
                     remainingMillisInInterval = 0;
                     continue;
                 }
-                remainingMillisInInterval = currIntervalMillis - randomDelayMillisFromIntervalStart;
+                remainingMillisInInterval =
+                        effectiveIntervalMillis - randomDelayMillisFromIntervalStart;
                 try {
-                    runInternal();
+                    runInternal(configService.getTransactionConfig(), effectiveIntervalMillis);
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
                 }
             }
+            if (jfrStackTraceSampler != null) {
+                jfrStackTraceSampler.stop();
+            }
         }
 
-        private void runInternal() {
+        // the recording stream samples on its own, so this thread only needs to (re-)start it when
+        // the profiling interval changes
+        private void runJfrStackTraceSampler(JfrStackTraceSampler jfrStackTraceSampler) {
+            try {
+                if (currIntervalMillis > 0) {
+                    jfrStackTraceSampler.start(currIntervalMillis);
+                } else {
+                    jfrStackTraceSampler.stop();
+                }
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+            try {
+                MILLISECONDS.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                // probably interrupt from config listener (see above)
+                logger.debug(e.getMessage(), e);
+            }
+        }
+
+        private void runInternal(TransactionConfig config, long effectiveIntervalMillis) {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
                 return;
             }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
+            List<List<ThreadContextImpl>> activeThreadContextsPerTransaction =
+                    Lists.newArrayListWithCapacity(transactions.size());
+            int activeThreadContextCount = 0;
             for (int i = 0; i < transactions.size(); i++) {
                 Transaction transaction = transactions.get(i);
+                List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
                 ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
                 if (mainThreadContext.isActive()) {
                     activeThreadContexts.add(mainThreadContext);
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+                if (!activeThreadContexts.isEmpty()) {
+                    activeThreadContextsPerTransaction.add(activeThreadContexts);
+                    activeThreadContextCount += activeThreadContexts.size();
+                }
+            }
+            int maxThreads = config.profilingMaxThreadsPerInterval();
+            List<ThreadContextImpl> sampledThreadContexts;
+            if (maxThreads > 0 && activeThreadContextCount > maxThreads) {
+                sampledThreadContexts =
+                        selectFairly(activeThreadContextsPerTransaction, maxThreads, rotation++);
+            } else {
+                sampledThreadContexts = Lists.newArrayListWithCapacity(activeThreadContextCount);
+                for (List<ThreadContextImpl> activeThreadContexts
+                        : activeThreadContextsPerTransaction) {
+                    sampledThreadContexts.addAll(activeThreadContexts);
+                }
+            }
+            int maxDepth = config.profilingMaxStackDepth();
+            long startNanos = System.nanoTime();
+            captureStackTraces(sampledThreadContexts, maxDepth > 0 ? maxDepth : Integer.MAX_VALUE);
+            double maxOverheadPercent = config.profilingMaxOverheadPercent();
+            if (maxOverheadPercent > 0) {
+                long captureNanos = System.nanoTime() - startNanos;
+                updateBackoffFactor(captureNanos, effectiveIntervalMillis, maxOverheadPercent);
+            } else {
+                backoffFactor = 1;
+            }
+        }
+
+        private void updateBackoffFactor(long captureNanos, long effectiveIntervalMillis,
+                double maxOverheadPercent) {
+            // the backoff factor that would bring the capture overhead to exactly the max overhead
+            // percent (assuming similar capture time on the next tick)
+            double targetBackoffFactor = backoffFactor * 100 * captureNanos
+                    / (MILLISECONDS.toNanos(effectiveIntervalMillis) * maxOverheadPercent);
+            // smooth out adjustments so that a single slow capture (e.g. due to an unrelated GC)
+            // does not immediately stretch the profiling interval all the way
+            backoffFactor = Math.max(1,
+                    Math.min(MAX_BACKOFF_FACTOR, (backoffFactor + targetBackoffFactor) / 2));
+        }
+    }
+
+    // picks threads round robin across transactions (one thread from each transaction, then a
+    // second thread from each transaction that has more than one, etc), with the starting
+    // transaction and the starting thread within each transaction rotated on each interval so that
+    // over multiple intervals each thread gets a fair share of samples
+    @VisibleForTesting
+    static List<ThreadContextImpl> selectFairly(
+            List<List<ThreadContextImpl>> threadContextsPerTransaction, int maxThreads,
+            int rotation) {
+        List<ThreadContextImpl> selected = Lists.newArrayListWithCapacity(maxThreads);
+        int transactionCount = threadContextsPerTransaction.size();
+        int transactionOffset = (int) (((long) rotation * maxThreads) % transactionCount);
+        for (int round = 0; selected.size() < maxThreads; round++) {
+            boolean anySelectedInRound = false;
+            for (int i = 0; i < transactionCount && selected.size() < maxThreads; i++) {
+                List<ThreadContextImpl> threadContexts = threadContextsPerTransaction
+                        .get((transactionOffset + i) % transactionCount);
+                int size = threadContexts.size();
+                if (round < size) {
+                    selected.add(threadContexts.get((round + rotation) % size));
+                    anySelectedInRound = true;
+                }
+            }
+            if (!anySelectedInRound) {
+                break;
             }
-            captureStackTraces(activeThreadContexts);
         }
+        return selected;
     }
 }
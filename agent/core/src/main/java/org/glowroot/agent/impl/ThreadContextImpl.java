@@ -15,11 +15,16 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.lang.management.ThreadInfo;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -116,6 +121,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final int maxServiceCallAggregates;
 
     private final long threadId;
+    // needed to capture stack traces of virtual threads, which ThreadMXBean does not report on
+    // (weak reference so that the thread context, which can be retained by the trace, does not
+    // retain the thread, and in particular the virtual thread's stack)
+    private final WeakReference<Thread> threadRef;
 
     private final boolean limitExceededAuxThreadContext;
 
@@ -153,7 +162,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
-        threadId = Thread.currentThread().getId();
+        Thread currentThread = Thread.currentThread();
+        threadRef = new WeakReference<Thread>(currentThread);
+        threadId = currentThread.getId();
         threadStatsComponent =
                 captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
         this.maxQueryAggregates = maxQueryAggregates;
@@ -206,6 +217,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadId;
     }
 
+    long getStartTick() {
+        return traceEntryComponent.getStartTick();
+    }
+
+    long getEndTick() {
+        return traceEntryComponent.getEndTick();
+    }
+
     boolean isCompleted() {
         return traceEntryComponent.isCompleted();
     }
@@ -259,6 +278,17 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
     }
 
+    boolean anyQueryText(Predicate<String> predicate) {
+        SyncQueryData curr = headQueryData;
+        while (curr != null) {
+            if (predicate.apply(curr.getQueryText())) {
+                return true;
+            }
+            curr = curr.getNextQueryData();
+        }
+        return false;
+    }
+
     void mergeServiceCallsInto(ServiceCallCollector collector) {
         SyncQueryData curr = headServiceCallData;
         while (curr != null) {
@@ -422,12 +452,52 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    void captureStackTrace(ThreadInfo threadInfo, int maxDepth) {
+        captureStackTrace(StackTraceCollector.truncateStackTrace(
+                Arrays.asList(threadInfo.getStackTrace()), maxDepth), threadInfo.getThreadState());
+    }
+
+    void captureStackTrace(List<StackTraceElement> stackTrace, Thread.State threadState) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
 
+    // stack traces recorded by JDK Flight Recorder are delivered in batches, and so can arrive after
+    // the thread context (or even the transaction) has completed, see JfrStackTraceSampler
+    void captureRecordedStackTrace(List<StackTraceElement> stackTrace, Thread.State threadState) {
+        transaction.captureRecordedStackTrace(isAuxiliary(), stackTrace, threadState);
+    }
+
+    // this is called when ThreadMXBean.getThreadInfo() returns null, which is always the case for
+    // virtual threads (but can also be the case for a platform thread that has just terminated)
+    void captureVirtualThreadStackTrace(int maxDepth) {
+        Thread thread = threadRef.get();
+        if (thread == null) {
+            // thread has terminated and been collected
+            return;
+        }
+        StackTraceElement[] stackTrace = thread.getStackTrace();
+        if (stackTrace.length == 0) {
+            // thread has terminated
+            return;
+        }
+        List<StackTraceElement> stackTraceList =
+                StackTraceCollector.truncateStackTrace(Arrays.asList(stackTrace), maxDepth);
+        // parked virtual threads are reported as WAITING or TIMED_WAITING, the same as parked
+        // platform threads, so that parking time shows up in the profile (which is the only place
+        // it shows up, since ThreadMXBean does not report waited time for virtual threads, and JFR
+        // has no event for virtual thread parking that could be accumulated)
+        captureStackTrace(stackTraceList, thread.getState());
+    }
+
+    // only called for virtual threads, see JfrStackTraceSampler
+    void addVirtualThreadPinnedNanos(long pinnedNanos) {
+        if (threadStatsComponent != null) {
+            threadStatsComponent.addVirtualThreadPinnedNanos(pinnedNanos);
+        }
+    }
+
     @Override
     public AuxThreadContext createAuxThreadContext() {
         ImmutableList<StackTraceElement> locationStackTrace = null;
@@ -474,6 +544,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (outerTransactionThreadContext != null) {
                 outerTransactionThreadContext.innerTransactionThreadContext = null;
             }
+        } else if (traceEntryComponent.getEntryCount() > transaction.getMaxTraceEntries()
+                && !isAuxiliary()) {
+            transaction.spillEntries();
         }
     }
 
@@ -1006,6 +1079,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return !traceEntryComponent.isEmpty();
     }
 
+    boolean mayHaveChildAuxThreadContext() {
+        return mayHaveChildAuxThreadContext;
+    }
+
+    void spillEntries(TraceEntrySpill spill, long captureTick, int keepCount) throws IOException {
+        traceEntryComponent.spillEntries(spill, transaction.getStartTick(), captureTick,
+                keepCount);
+    }
+
     void populateParentChildMap(ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap,
             long captureTick,
             ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryAuxThreadContextMap) {
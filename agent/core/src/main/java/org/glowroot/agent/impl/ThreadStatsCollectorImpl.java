@@ -26,6 +26,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
     private long blockedMillis;
     private long waitedMillis;
     private long allocatedBytes;
+    private long virtualThreadPinnedNanos;
 
     @Override
     public void mergeThreadStats(ThreadStats threadStats) {
@@ -34,10 +35,12 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
         waitedMillis = NotAvailableAware.add(waitedMillis, threadStats.getWaitedMillis());
         allocatedBytes =
                 NotAvailableAware.add(allocatedBytes, threadStats.getAllocatedBytes());
+        virtualThreadPinnedNanos += threadStats.getVirtualThreadPinnedNanos();
     }
 
     ThreadStats getMergedThreadStats() {
-        return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes);
+        return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes,
+                virtualThreadPinnedNanos);
     }
 
     long getCpuNanos() {
@@ -50,6 +53,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
                 .setBlockedNanos(NotAvailableAware.millisToNanos(blockedMillis))
                 .setWaitedNanos(NotAvailableAware.millisToNanos(waitedMillis))
                 .setAllocatedBytes(allocatedBytes)
+                .setVirtualThreadPinnedNanos(virtualThreadPinnedNanos)
                 .build();
     }
 }
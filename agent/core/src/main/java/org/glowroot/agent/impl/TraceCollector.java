@@ -66,6 +66,8 @@ public class TraceCollector {
     private final AtomicInteger partialCompletePendingCount = new AtomicInteger();
     private final AtomicInteger partialIncompletePendingCount = new AtomicInteger();
 
+    private final TraceSampler traceSampler = new TraceSampler();
+
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TraceCollector.class);
 
@@ -73,6 +75,11 @@ public class TraceCollector {
     private Map<String, SlowThresholdOverridesForType> slowThresholdOverrides = ImmutableMap.of();
     // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
     private long defaultSlowThresholdNanos;
+    // budget for completed traces, beyond which only the most informative traces in each second
+    // are stored (zero disables sampling)
+    //
+    // volatile since also read by the trace collector thread
+    private volatile int maxTracesPerSecond;
 
     private volatile boolean closed;
 
@@ -145,11 +152,13 @@ public class TraceCollector {
         for (PendingTrace pendingTrace : pendingTraces) {
             pendingTransactions.add(pendingTrace.transaction());
         }
+        pendingTransactions.addAll(traceSampler.getPendingTransactions());
         return pendingTransactions;
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        storeSampledTraces();
         closed = true;
         // shutdownNow() is needed here to send interrupt to collector thread
         dedicatedExecutor.shutdownNow();
@@ -161,30 +170,37 @@ public class TraceCollector {
     void collectTrace(Transaction transaction) {
         boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            transaction.releaseEntrySpill();
             return;
         }
-        // don't need to worry about race condition since only ever called from a single thread
-        if (transaction.isPartiallyStored()
-                && partialCompletePendingCount.get() >= PENDING_LIMIT) {
-            backPressureLogger.warn("not storing a completed (and once partial) trace because of an"
-                    + " excessive backlog of {} completed (and once partial) traces already waiting"
-                    + " to be stored", PENDING_LIMIT);
-            return;
-        } else if (!transaction.isPartiallyStored()
-                && normalCompletePendingCount.get() >= PENDING_LIMIT) {
-            backPressureLogger.warn("not storing a completed trace because of an excessive backlog"
-                    + " of {} completed traces already waiting to be stored", PENDING_LIMIT);
+        int maxTracesPerSecond = this.maxTracesPerSecond;
+        if (maxTracesPerSecond == 0 || transaction.isPartiallyStored()) {
+            // once partial traces are always completed, regardless of the trace budget
+            storeCompleted(ImmutablePendingTrace.builder()
+                    .transaction(transaction)
+                    .slow(slow)
+                    .partial(false)
+                    .novelty(0)
+                    .build());
             return;
         }
-        PendingTrace pendingTransaction = ImmutablePendingTrace.builder()
+        long currentTimeMillis = clock.currentTimeMillis();
+        for (PendingTrace pendingTrace : traceSampler.drainIfWindowEnded(currentTimeMillis)) {
+            storeCompleted(pendingTrace);
+        }
+        // don't need to worry about race condition since only ever called from a single thread
+        PendingTrace pendingTrace = ImmutablePendingTrace.builder()
                 .transaction(transaction)
                 .slow(slow)
                 .partial(false)
+                .novelty(traceSampler.getNovelty(transaction, currentTimeMillis))
                 .build();
-        if (!pendingTraces.offer(pendingTransaction)) {
-            // this should never happen
-            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
+        PendingTrace notKept =
+                traceSampler.offer(pendingTrace, maxTracesPerSecond, currentTimeMillis);
+        if (notKept != null) {
+            notKept.transaction().releaseEntrySpill();
+            logger.debug("not storing a less informative trace because of the trace budget of {}"
+                    + " traces per second", maxTracesPerSecond);
         }
     }
 
@@ -199,14 +215,98 @@ public class TraceCollector {
                 .transaction(transaction)
                 .slow(false)
                 .partial(true)
+                .novelty(0)
                 .build();
+        partialIncompletePendingCount.incrementAndGet();
         if (!pendingTraces.offer(pendingTransaction)) {
+            partialIncompletePendingCount.decrementAndGet();
+            // this should never happen
+            backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
+                    + " traces already waiting to be stored", PENDING_LIMIT * 3);
+        }
+    }
+
+    // called from both the transaction processing thread and (when releasing sampled traces at
+    // the end of a second) the trace collector thread
+    private synchronized void storeCompleted(PendingTrace pendingTrace) {
+        AtomicInteger pendingCount;
+        if (pendingTrace.transaction().isPartiallyStored()) {
+            pendingCount = partialCompletePendingCount;
+            if (pendingCount.get() >= PENDING_LIMIT) {
+                backPressureLogger.warn("not storing a completed (and once partial) trace because"
+                        + " of an excessive backlog of {} completed (and once partial) traces"
+                        + " already waiting to be stored", PENDING_LIMIT);
+                pendingTrace.transaction().releaseEntrySpill();
+                return;
+            }
+        } else {
+            pendingCount = normalCompletePendingCount;
+            if (pendingCount.get() >= PENDING_LIMIT && !evictLessInformative(pendingTrace)) {
+                backPressureLogger.warn("not storing a completed trace because of an excessive"
+                        + " backlog of {} completed traces already waiting to be stored",
+                        PENDING_LIMIT);
+                pendingTrace.transaction().releaseEntrySpill();
+                return;
+            }
+        }
+        pendingCount.incrementAndGet();
+        if (!pendingTraces.offer(pendingTrace)) {
+            pendingCount.decrementAndGet();
+            pendingTrace.transaction().releaseEntrySpill();
             // this should never happen
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT * 3);
         }
     }
 
+    // evicts the least informative normal completed trace that is still waiting to be stored, as
+    // long as it is less informative than the one given
+    private boolean evictLessInformative(PendingTrace pendingTrace) {
+        @Nullable
+        PendingTrace leastInformative = null;
+        for (PendingTrace queued : pendingTraces) {
+            if (queued.partial() || queued.transaction().isPartiallyStored()) {
+                continue;
+            }
+            if (leastInformative == null
+                    || TraceSampler.LEAST_INFORMATIVE_FIRST.compare(queued, leastInformative) < 0) {
+                leastInformative = queued;
+            }
+        }
+        if (leastInformative == null || TraceSampler.LEAST_INFORMATIVE_FIRST
+                .compare(leastInformative, pendingTrace) >= 0) {
+            return false;
+        }
+        if (!pendingTraces.remove(leastInformative)) {
+            // trace collector thread already picked it up
+            return false;
+        }
+        normalCompletePendingCount.decrementAndGet();
+        leastInformative.transaction().releaseEntrySpill();
+        return true;
+    }
+
+    // traces held back by the sampler have already completed, so they are stored directly instead
+    // of being lost along with the rest of the sampling window
+    private void storeSampledTraces() {
+        for (PendingTrace pendingTrace : traceSampler.drainAll()) {
+            try {
+                collectCompleted(pendingTrace.transaction(), pendingTrace.slow());
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private void collectCompleted(Transaction transaction, boolean slow) throws Exception {
+        TraceReader traceReader = TraceCreator.createTraceReaderForCompleted(transaction, slow);
+        try {
+            collector.collectTrace(traceReader);
+        } finally {
+            transaction.releaseEntrySpill();
+        }
+    }
+
     private static @Nullable Long getSlowThreshold(
             SlowThresholdOverridesForType slowThresholdOverridesForType, String transactionName) {
         Long slowThreshold = slowThresholdOverridesForType.thresholdNanos().get(transactionName);
@@ -280,6 +380,7 @@ public class TraceCollector {
             TraceCollector.this.slowThresholdOverrides = ImmutableMap.copyOf(builder);
             defaultSlowThresholdNanos =
                     MILLISECONDS.toNanos(transactionConfig.slowThresholdMillis());
+            maxTracesPerSecond = configService.getAdvancedConfig().maxTracesPerSecond();
         }
     }
 
@@ -289,7 +390,11 @@ public class TraceCollector {
         public void run() {
             while (!closed) {
                 try {
-                    PendingTrace pendingTrace = pendingTraces.take();
+                    PendingTrace pendingTrace = takeNext();
+                    if (pendingTrace == null) {
+                        continue;
+                    }
+                    getPendingCount(pendingTrace).decrementAndGet();
                     if (pendingTrace.partial()) {
                         collectPartial(pendingTrace.transaction());
                     } else {
@@ -305,6 +410,29 @@ public class TraceCollector {
             }
         }
 
+        // polls (rather than blocking indefinitely) so that sampled traces are released at the end
+        // of their window even if no new traces are coming in, and even if sampling has just been
+        // enabled
+        private @Nullable PendingTrace takeNext() throws InterruptedException {
+            PendingTrace pendingTrace = pendingTraces.poll(
+                    traceSampler.getMillisUntilWindowEnd(clock.currentTimeMillis()), MILLISECONDS);
+            for (PendingTrace released : traceSampler
+                    .drainIfWindowEnded(clock.currentTimeMillis())) {
+                storeCompleted(released);
+            }
+            return pendingTrace;
+        }
+
+        private AtomicInteger getPendingCount(PendingTrace pendingTrace) {
+            if (pendingTrace.partial()) {
+                return partialIncompletePendingCount;
+            } else if (pendingTrace.transaction().isPartiallyStored()) {
+                return partialCompletePendingCount;
+            } else {
+                return normalCompletePendingCount;
+            }
+        }
+
         private void collectPartial(Transaction transaction) throws Exception {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
@@ -315,11 +443,6 @@ public class TraceCollector {
             }
         }
 
-        private void collectCompleted(Transaction transaction, boolean slow) throws Exception {
-            TraceReader traceReader = TraceCreator.createTraceReaderForCompleted(
-                    transaction, slow);
-            collector.collectTrace(traceReader);
-        }
     }
 
     @Value.Immutable
@@ -327,6 +450,8 @@ public class TraceCollector {
         Transaction transaction();
         boolean slow();
         boolean partial();
+        // number of things not seen yet in the current interval, used for sampling
+        int novelty();
     }
 
     @Value.Immutable
@@ -15,6 +15,10 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +47,9 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // number of trace entries currently held in memory (excluding the root entry)
+    private int entryCount;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -77,6 +84,7 @@ class TraceEntryComponent {
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
+        entryCount++;
         return entry;
     }
 
@@ -104,6 +112,7 @@ class TraceEntryComponent {
                 messageSupplier, queryData, errorMessage, startTick, endTick);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
+        entryCount++;
         return entry;
     }
 
@@ -119,6 +128,68 @@ class TraceEntryComponent {
         return rootEntry == tailEntry;
     }
 
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    // moves completed trace entries out of memory and into the spill, oldest first, keeping the
+    // most recent keepCount trace entries in memory since recently completed trace entries can
+    // still be extended (e.g. while iterating over a jdbc result set)
+    //
+    // must be called by the thread that updates this component, with the spill lock held
+    void spillEntries(TraceEntrySpill spill, long transactionStartTick, long captureTick,
+            int keepCount) throws IOException {
+        int spillableCount = entryCount - keepCount;
+        if (spillableCount <= 0) {
+            return;
+        }
+        // active trace entries and the tail entry must stay in memory, and so must their ancestors
+        // so that they can still be reached from the root entry
+        Set<TraceEntryImpl> retained = Sets.newIdentityHashSet();
+        retained.add(rootEntry);
+        int index = 0;
+        TraceEntryImpl entry = rootEntry.getNextTraceEntry();
+        while (entry != null) {
+            if (index++ >= spillableCount || !entry.isCompleted() || entry == tailEntry) {
+                retainWithAncestors(entry, retained);
+            }
+            entry = entry.getNextTraceEntry();
+        }
+        TraceEntryImpl retainedEntry = rootEntry;
+        entry = rootEntry.getNextTraceEntry();
+        while (entry != null) {
+            TraceEntryImpl nextEntry = entry.getNextTraceEntry();
+            if (retained.contains(entry)) {
+                retainedEntry.setNextTraceEntry(entry);
+                retainedEntry = entry;
+            } else {
+                spill.write(retainedEntry, entry, getDepth(entry), transactionStartTick,
+                        captureTick);
+                entryCount--;
+            }
+            entry = nextEntry;
+        }
+        spill.flush();
+    }
+
+    private static void retainWithAncestors(@Nullable TraceEntryImpl entry,
+            Set<TraceEntryImpl> retained) {
+        while (entry != null && retained.add(entry)) {
+            entry = entry.getParentTraceEntry();
+        }
+    }
+
+    // depth as visited in Transaction, where children of the root entry have depth 0
+    private static int getDepth(TraceEntryImpl entry) {
+        int depth = -1;
+        TraceEntryImpl parentTraceEntry = entry.getParentTraceEntry();
+        while (parentTraceEntry != null) {
+            depth++;
+            parentTraceEntry = parentTraceEntry.getParentTraceEntry();
+        }
+        return depth;
+    }
+
     private void popEntrySafe(TraceEntryImpl entry) {
         if (activeEntry != entry) {
             // somehow(?) a pop was missed (or maybe too many pops), this is just damage control
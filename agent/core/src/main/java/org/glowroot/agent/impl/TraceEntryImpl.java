@@ -411,7 +411,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
     }
 
-    private boolean isCompleted() {
+    boolean isCompleted() {
         // initialComplete is needed for async trace entries which have selfNestingLevel = 0 after
         // calling stopSyncTimer(), but are not complete until end() is called
         return initialComplete && selfNestingLevel == 0;
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.impl.Transaction.TraceEntryVisitor;
+import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// completed trace entries of a very large transaction that have been moved out of the heap and into
+// a local file, so that the transaction can retain trace entries well beyond
+// maxTraceEntriesPerTransaction while only holding a bounded number of them in memory
+//
+// spilled trace entries are stored as length delimited protobuf, in runs, each run is attached to
+// the in-memory trace entry that it follows in the (depth first) trace entry ordering
+//
+// written only by the transaction's main thread, and read by any thread, all access is guarded by
+// lock, and the writer only ever uses tryLock() so that it is never blocked by a slow reader
+class TraceEntrySpill implements SharedQueryTextCollection {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceEntrySpill.class);
+
+    private static final String FILE_PREFIX = "trace-entries-";
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final File file;
+    private final CountingOutputStream out;
+
+    // key is the in-memory trace entry that the spilled trace entries follow, value is list of
+    // [start, end) file positions
+    private final Map<TraceEntryImpl, List<long[]>> spilledRanges = Maps.newIdentityHashMap();
+
+    // spilled query entries reference these (local) indexes, which are mapped to the transaction's
+    // shared query text indexes when the spilled trace entries are read back
+    private final Map<String, Integer> queryTextIndexes = Maps.newHashMap();
+    private final List<String> queryTexts = Lists.newArrayList();
+
+    private final TraceEntryVisitor writer = new TraceEntryVisitor() {
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            try {
+                entry.writeDelimitedTo(out);
+            } catch (IOException e) {
+                throw new SpillException(e);
+            }
+        }
+    };
+
+    private int entryCount;
+    private boolean closed;
+
+    static TraceEntrySpill create(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        File file = File.createTempFile(FILE_PREFIX, ".spill", dir);
+        return new TraceEntrySpill(file);
+    }
+
+    // spill files are deleted once their trace has been stored, so any found at startup were left
+    // behind by a JVM that exited before then
+    static void deletePreviousFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                logger.warn("could not delete file: {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    private TraceEntrySpill(File file) throws IOException {
+        this.file = file;
+        out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    // must be called with lock held
+    void write(TraceEntryImpl precedingEntry, TraceEntryImpl entry, int depth,
+            long transactionStartTick, long captureTick) throws IOException {
+        if (closed) {
+            throw new IOException("trace entry spill already closed");
+        }
+        long start = out.getCount();
+        try {
+            entry.accept(depth, transactionStartTick, captureTick, writer, this);
+        } catch (SpillException e) {
+            throw e.getCause();
+        }
+        addRange(precedingEntry, start, out.getCount());
+        entryCount++;
+        // trace entries that were spilled earlier following this (now spilled) trace entry have to
+        // stay right after it
+        List<long[]> ranges = spilledRanges.remove(entry);
+        if (ranges != null) {
+            for (long[] range : ranges) {
+                addRange(precedingEntry, range[0], range[1]);
+            }
+        }
+    }
+
+    // must be called with lock held
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // must be called with lock held
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    // must be called with lock held
+    void visitSpilledEntries(TraceEntryImpl precedingEntry, long transactionStartTick,
+            long captureTick, TraceEntryVisitor entryVisitor,
+            SharedQueryTextCollection sharedQueryTextCollection) {
+        List<long[]> ranges = spilledRanges.get(precedingEntry);
+        if (ranges == null || closed) {
+            return;
+        }
+        long captureOffsetNanos = captureTick - transactionStartTick;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                for (long[] range : ranges) {
+                    raf.seek(range[0]);
+                    InputStream in = ByteStreams.limit(
+                            new BufferedInputStream(Channels.newInputStream(raf.getChannel())),
+                            range[1] - range[0]);
+                    Trace.Entry entry;
+                    while ((entry = Trace.Entry.parseDelimitedFrom(in)) != null) {
+                        if (entry.getStartOffsetNanos() > captureOffsetNanos) {
+                            // filter out trace entries that started after the capture tick
+                            continue;
+                        }
+                        entryVisitor.visitEntry(
+                                remapSharedQueryText(entry, sharedQueryTextCollection));
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            logger.warn("could not read spilled trace entries {}: {}", file.getAbsolutePath(),
+                    e.getMessage(), e);
+        }
+    }
+
+    // must be called with lock held
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        spilledRanges.clear();
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        if (!file.delete()) {
+            logger.warn("could not delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public int getSharedQueryTextIndex(String queryText) {
+        Integer index = queryTextIndexes.get(queryText);
+        if (index == null) {
+            index = queryTexts.size();
+            queryTextIndexes.put(queryText, index);
+            queryTexts.add(queryText);
+        }
+        return index;
+    }
+
+    private void addRange(TraceEntryImpl precedingEntry, long start, long end) {
+        List<long[]> ranges = spilledRanges.get(precedingEntry);
+        if (ranges == null) {
+            ranges = Lists.newArrayList();
+            spilledRanges.put(precedingEntry, ranges);
+        }
+        if (!ranges.isEmpty()) {
+            long[] lastRange = ranges.get(ranges.size() - 1);
+            if (lastRange[1] == start) {
+                // contiguous, so just extend
+                lastRange[1] = end;
+                return;
+            }
+        }
+        ranges.add(new long[] {start, end});
+    }
+
+    private Trace.Entry remapSharedQueryText(Trace.Entry entry,
+            SharedQueryTextCollection sharedQueryTextCollection) {
+        if (!entry.hasQueryEntryMessage()) {
+            return entry;
+        }
+        String queryText =
+                queryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex());
+        Trace.Entry.Builder builder = entry.toBuilder();
+        builder.getQueryEntryMessageBuilder().setSharedQueryTextIndex(
+                sharedQueryTextCollection.getSharedQueryTextIndex(queryText));
+        return builder.build();
+    }
+
+    @SuppressWarnings("serial")
+    private static class SpillException extends RuntimeException {
+
+        private SpillException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
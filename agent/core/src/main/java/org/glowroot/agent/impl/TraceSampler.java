@@ -0,0 +1,164 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.impl.TraceCollector.PendingTrace;
+import org.glowroot.agent.model.ErrorMessage;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// tail-based sampling of completed traces
+//
+// traces are held for up to one second, and at the end of each second only the most informative
+// traces (most novel, then slowest) are released, up to the per-second trace budget
+class TraceSampler {
+
+    static final long WINDOW_MILLIS = SECONDS.toMillis(1);
+
+    // novelty is judged against what has already been seen in the current aggregate interval
+    private static final long NOVELTY_WINDOW_MILLIS = MINUTES.toMillis(1);
+
+    // bound memory in case of unbounded transaction names, error messages or queries
+    private static final int SEEN_LIMIT = 10000;
+
+    static final Comparator<PendingTrace> LEAST_INFORMATIVE_FIRST =
+            new Comparator<PendingTrace>() {
+                @Override
+                public int compare(PendingTrace left, PendingTrace right) {
+                    if (left.novelty() != right.novelty()) {
+                        return left.novelty() - right.novelty();
+                    }
+                    return Longs.compare(left.transaction().getDurationNanos(),
+                            right.transaction().getDurationNanos());
+                }
+            };
+
+    // these are only accessed from the single thread that calls getNovelty()
+    private final Set<String> seenTransactionNames = Sets.newHashSet();
+    private final Set<String> seenErrorMessages = Sets.newHashSet();
+    private final Set<String> seenQueries = Sets.newHashSet();
+    private final Predicate<String> markSeenQuery = new Predicate<String>() {
+        @Override
+        public boolean apply(String queryText) {
+            return markSeen(seenQueries, queryText);
+        }
+    };
+    private long noveltyWindowEndMillis;
+
+    // these are guarded by this
+    private final PriorityQueue<PendingTrace> window =
+            new PriorityQueue<PendingTrace>(11, LEAST_INFORMATIVE_FIRST);
+    private long windowEndMillis;
+
+    // returns the number of things about this transaction that have not been seen yet in the
+    // current novelty window (transaction name, error message, queries)
+    //
+    // only ever called from a single thread
+    int getNovelty(Transaction transaction, long currentTimeMillis) {
+        if (currentTimeMillis >= noveltyWindowEndMillis) {
+            seenTransactionNames.clear();
+            seenErrorMessages.clear();
+            seenQueries.clear();
+            noveltyWindowEndMillis = currentTimeMillis - currentTimeMillis % NOVELTY_WINDOW_MILLIS
+                    + NOVELTY_WINDOW_MILLIS;
+        }
+        int novelty = 0;
+        if (markSeen(seenTransactionNames,
+                transaction.getTransactionType() + ':' + transaction.getTransactionName())) {
+            novelty++;
+        }
+        ErrorMessage errorMessage = transaction.getErrorMessage();
+        if (errorMessage != null && markSeen(seenErrorMessages, errorMessage.message())) {
+            novelty++;
+        }
+        // a single new query is enough, no need to keep scoring the rest
+        if (transaction.anyQueryText(markSeenQuery)) {
+            novelty++;
+        }
+        return novelty;
+    }
+
+    // returns the trace that was not kept (either the one offered, or a less informative one that
+    // it displaced), or null if all traces in the current window are still within the budget
+    synchronized @Nullable PendingTrace offer(PendingTrace pendingTrace, int maxTracesPerSecond,
+            long currentTimeMillis) {
+        if (window.isEmpty()) {
+            windowEndMillis = currentTimeMillis + WINDOW_MILLIS;
+        }
+        window.add(pendingTrace);
+        if (window.size() <= maxTracesPerSecond) {
+            return null;
+        }
+        return window.poll();
+    }
+
+    // returns the traces to store, most informative first, if the current window has ended
+    synchronized List<PendingTrace> drainIfWindowEnded(long currentTimeMillis) {
+        if (window.isEmpty() || currentTimeMillis < windowEndMillis) {
+            return Collections.emptyList();
+        }
+        return drainAll();
+    }
+
+    // returns the traces to store, most informative first, regardless of whether the current
+    // window has ended (used at shutdown)
+    synchronized List<PendingTrace> drainAll() {
+        List<PendingTrace> pendingTraces = Lists.newArrayList(window);
+        window.clear();
+        Collections.sort(pendingTraces, Collections.reverseOrder(LEAST_INFORMATIVE_FIRST));
+        return pendingTraces;
+    }
+
+    synchronized long getMillisUntilWindowEnd(long currentTimeMillis) {
+        if (window.isEmpty()) {
+            return WINDOW_MILLIS;
+        }
+        return Math.max(windowEndMillis - currentTimeMillis, 0);
+    }
+
+    synchronized List<Transaction> getPendingTransactions() {
+        List<Transaction> pendingTransactions = Lists.newArrayList();
+        for (PendingTrace pendingTrace : window) {
+            pendingTransactions.add(pendingTrace.transaction());
+        }
+        return pendingTransactions;
+    }
+
+    private static boolean markSeen(Set<String> seen, String key) {
+        if (seen.contains(key)) {
+            return false;
+        }
+        if (seen.size() >= SEEN_LIMIT) {
+            // once the limit is hit, nothing more is considered novel until the next window
+            return false;
+        }
+        seen.add(key);
+        return true;
+    }
+}
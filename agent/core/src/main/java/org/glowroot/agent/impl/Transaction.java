@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.util.Collection;
@@ -28,6 +29,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ArrayListMultimap;
@@ -133,6 +135,8 @@ public class Transaction {
     private volatile @Nullable ErrorMessage errorMessage;
 
     private final int maxTraceEntries;
+    // maximum number of trace entries (including spilled trace entries), zero disables spilling
+    private final int traceEntrySpillLimit;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
     private final int maxProfileSamples;
@@ -176,6 +180,11 @@ public class Transaction {
 
     private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
 
+    // completed trace entries beyond maxTraceEntries, only used when the trace entry spill limit
+    // is configured, and only for transactions whose trace entries are all on the main thread
+    private volatile @MonotonicNonNull TraceEntrySpill entrySpill;
+    private volatile boolean entrySpillFailed;
+
     private final ThreadContextImpl mainThreadContext;
 
     @GuardedBy("mainThreadContext")
@@ -216,7 +225,8 @@ public class Transaction {
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
             int maxTraceEntries, int maxQueryAggregates, int maxServiceCallAggregates,
-            int maxProfileSamples, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            int maxProfileSamples, int traceEntrySpillLimit,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionService transactionService,
             ConfigService configService, ThreadContextThreadLocal.Holder threadContextHolder,
@@ -229,6 +239,7 @@ public class Transaction {
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.maxProfileSamples = maxProfileSamples;
+        this.traceEntrySpillLimit = traceEntrySpillLimit;
         this.completionCallback = completionCallback;
         this.ticker = ticker;
         this.transactionRegistry = transactionRegistry;
@@ -441,6 +452,29 @@ public class Transaction {
         }
     }
 
+    // visits the query texts already captured by each thread (without merging their stats into a
+    // new QueryCollector), stopping at the first query text that matches
+    boolean anyQueryText(Predicate<String> predicate) {
+        memoryBarrierRead();
+        if (mainThreadContext.anyQueryText(predicate)) {
+            return true;
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                if (alreadyMergedAuxQueries != null
+                        && alreadyMergedAuxQueries.anyQueryText(predicate)) {
+                    return true;
+                }
+                for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
+                    if (auxThreadContext.anyQueryText(predicate)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return asyncComponents != null && asyncComponents.anyQueryText(predicate);
+    }
+
     int getQueryCount() {
         return getQueriesInternal(new NopSharedQueryTextCollection()).size();
     }
@@ -482,7 +516,8 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
-        return entryLimitCounter++ < maxTraceEntries;
+        return entryLimitCounter++ < maxTraceEntries
+                || (isEntrySpillAllowed() && entryLimitCounter <= traceEntrySpillLimit);
     }
 
     // this method has side effect of incrementing counter
@@ -497,18 +532,101 @@ public class Transaction {
             if (sharedQueryTextCollection == null) {
                 sharedQueryTextCollection = new SharedQueryTextCollectionImpl();
             }
-            visitEntriesInternal(captureTick, entryVisitor, sharedQueryTextCollection);
+            TraceEntrySpill entrySpill = this.entrySpill;
+            if (entrySpill == null) {
+                visitEntriesInternal(captureTick, entryVisitor, sharedQueryTextCollection, null);
+                return;
+            }
+            // the main thread does not spill trace entries while they are being visited
+            entrySpill.lock();
+            try {
+                visitEntriesInternal(captureTick, entryVisitor, sharedQueryTextCollection,
+                        entrySpill);
+            } finally {
+                entrySpill.unlock();
+            }
         }
     }
 
     int getEntryCount(long captureTick) {
         CountingEntryVisitor entryVisitor = new CountingEntryVisitor();
-        visitEntriesInternal(captureTick, entryVisitor, new NopSharedQueryTextCollection());
-        return entryVisitor.count;
+        TraceEntrySpill entrySpill = this.entrySpill;
+        if (entrySpill == null) {
+            visitEntriesInternal(captureTick, entryVisitor, new NopSharedQueryTextCollection(),
+                    null);
+            return entryVisitor.count;
+        }
+        entrySpill.lock();
+        try {
+            // not visiting spilled trace entries here since that would mean reading them all from
+            // disk just to count them
+            visitEntriesInternal(captureTick, entryVisitor, new NopSharedQueryTextCollection(),
+                    null);
+            return entryVisitor.count + entrySpill.getEntryCount();
+        } finally {
+            entrySpill.unlock();
+        }
+    }
+
+    // called from the main thread when its in-memory trace entries exceed maxTraceEntries
+    void spillEntries() {
+        if (!isEntrySpillAllowed()) {
+            return;
+        }
+        TraceEntrySpill entrySpill = this.entrySpill;
+        if (entrySpill == null) {
+            try {
+                entrySpill = TraceEntrySpill.create(transactionService.getTraceEntrySpillDir());
+            } catch (IOException e) {
+                logger.warn("could not create trace entry spill file: {}", e.getMessage(), e);
+                entrySpillFailed = true;
+                return;
+            }
+            this.entrySpill = entrySpill;
+        }
+        if (!entrySpill.tryLock()) {
+            // trace entries are being visited, will try again after the next trace entry
+            return;
+        }
+        try {
+            // keep half in memory so that recently completed trace entries can still be extended
+            mainThreadContext.spillEntries(entrySpill, ticker.read(), maxTraceEntries / 2);
+        } catch (IOException e) {
+            logger.warn("could not spill trace entries: {}", e.getMessage(), e);
+            entrySpillFailed = true;
+        } finally {
+            entrySpill.unlock();
+        }
+    }
+
+    // called once the transaction's trace has been stored (or will not be stored)
+    void releaseEntrySpill() {
+        TraceEntrySpill entrySpill = this.entrySpill;
+        if (entrySpill == null) {
+            return;
+        }
+        entrySpill.lock();
+        try {
+            entrySpill.close();
+        } finally {
+            entrySpill.unlock();
+        }
+    }
+
+    int getMaxTraceEntries() {
+        return maxTraceEntries;
+    }
+
+    private boolean isEntrySpillAllowed() {
+        // aux thread and async trace entries are attached to main thread trace entries by
+        // reference, so those must all stay in memory
+        return traceEntrySpillLimit > maxTraceEntries && !entrySpillFailed && !async
+                && !mainThreadContext.mayHaveChildAuxThreadContext();
     }
 
     private void visitEntriesInternal(long captureTick, TraceEntryVisitor entryVisitor,
-            SharedQueryTextCollection sharedQueryTextCollection) {
+            SharedQueryTextCollection sharedQueryTextCollection,
+            @Nullable TraceEntrySpill entrySpill) {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -525,8 +643,12 @@ public class Transaction {
         }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
                 .traverse();
+        if (entrySpill != null) {
+            entrySpill.visitSpilledEntries(mainThreadContext.getRootEntry(), startTick,
+                    captureTick, entryVisitor, sharedQueryTextCollection);
+        }
         addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
-                captureTick, 0, entryVisitor, sharedQueryTextCollection, async);
+                captureTick, 0, entryVisitor, sharedQueryTextCollection, async, entrySpill);
     }
 
     long getMainThreadProfileSampleCount() {
@@ -595,6 +717,16 @@ public class Transaction {
         return mainThreadContext;
     }
 
+    // includes aux thread contexts that have completed (but have not been merged yet)
+    List<ThreadContextImpl> getAuxThreadContexts() {
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts == null) {
+                return ImmutableList.of();
+            }
+            return ImmutableList.copyOf(getUnmergedAuxThreadContext());
+        }
+    }
+
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
@@ -774,6 +906,9 @@ public class Transaction {
     }
 
     boolean isEntryLimitExceeded(int entryCount) {
+        if (entrySpill != null) {
+            return entryLimitCounter > traceEntrySpillLimit;
+        }
         return entryCount >= maxTraceEntries && entryLimitCounter > maxTraceEntries;
     }
 
@@ -782,10 +917,24 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, List<StackTraceElement> stackTrace,
+            Thread.State threadState) {
         if (completed) {
             return;
         }
+        addStackTrace(auxiliary, stackTrace, threadState);
+    }
+
+    // unlike captureStackTrace() above, this also captures the stack trace after the transaction
+    // has completed, which is only safe while JfrStackTraceSampler is holding off the processing
+    // of the transaction
+    void captureRecordedStackTrace(boolean auxiliary, List<StackTraceElement> stackTrace,
+            Thread.State threadState) {
+        addStackTrace(auxiliary, stackTrace, threadState);
+    }
+
+    private void addStackTrace(boolean auxiliary, List<StackTraceElement> stackTrace,
+            Thread.State threadState) {
         ThreadProfile profile;
         if (auxiliary) {
             profile = auxThreadProfile;
@@ -801,7 +950,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
+            profile.addStackTrace(stackTrace, threadState);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -809,7 +958,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(stackTrace, threadState);
     }
 
     void trackResourceAcquired(Object resource, boolean withLocationStackTrace) {
@@ -1018,7 +1167,8 @@ public class Transaction {
     private static void addProtobufChildEntries(TraceEntryImpl entry,
             ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
             long captureTick, int depth, TraceEntryVisitor entryVisitor,
-            SharedQueryTextCollection sharedQueryTextCollection, boolean removeSingleAuxEntry) {
+            SharedQueryTextCollection sharedQueryTextCollection, boolean removeSingleAuxEntry,
+            @Nullable TraceEntrySpill entrySpill) {
         if (!parentChildMap.containsKey(entry)) {
             // check containsKey to avoid creating garbage empty list via ListMultimap
             return;
@@ -1030,12 +1180,18 @@ public class Transaction {
             if (singleAuxEntry && removeSingleAuxEntry) {
                 addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
                         captureTick, depth, entryVisitor, sharedQueryTextCollection,
-                        removeSingleAuxEntry);
+                        removeSingleAuxEntry, entrySpill);
             } else {
                 childEntry.accept(depth, transactionStartTick, captureTick, entryVisitor,
                         sharedQueryTextCollection);
+                if (entrySpill != null) {
+                    // spilled trace entries come right after the trace entry they followed
+                    entrySpill.visitSpilledEntries(childEntry, transactionStartTick, captureTick,
+                            entryVisitor, sharedQueryTextCollection);
+                }
                 addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                        captureTick, depth + 1, entryVisitor, sharedQueryTextCollection, false);
+                        captureTick, depth + 1, entryVisitor, sharedQueryTextCollection, false,
+                        entrySpill);
             }
         }
     }
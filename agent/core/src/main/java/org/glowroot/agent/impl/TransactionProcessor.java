@@ -29,14 +29,18 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.concurrent.GuardedBy;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class TransactionProcessor {
@@ -48,7 +52,11 @@ public class TransactionProcessor {
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    final Object monitor = new Object();
+    // optionally merge transactions into aggregates using multiple threads, each owning a shard of
+    // the interval collector (transactions are sharded by transaction type and name), the default
+    // is to merge transactions on the single processing thread
+    private static final int PROCESSING_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.aggregate.processingThreads", 1));
 
     private volatile AggregateIntervalCollector activeIntervalCollector;
 
@@ -59,6 +67,9 @@ public class TransactionProcessor {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService shardProcessingExecutor;
+    // empty when not sharded
+    private final List<BlockingQueue<ShardTask>> shardQueues;
     private final Collector collector;
     private final TraceCollector traceCollector;
     private final ConfigService configService;
@@ -66,14 +77,26 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
+    // the transaction queue is a lock free multi-producer / single-consumer linked list, producers
+    // swap themselves in as the new tail and then link the previous tail to themselves, and only
+    // the processing thread ever reads from head
+    //
+    // queueLength is incremented by producers *before* reading the capture time and decremented
+    // by the processing thread only after the transaction has been fully processed, this is what
+    // allows the processing thread to know that no transaction with an earlier capture time can
+    // still be on its way into the queue (see maybeEndOfInterval() below)
     private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    private final AtomicReference<PendingTransaction> tail =
+            new AtomicReference<PendingTransaction>(head);
+    private final AtomicInteger queueLength = new AtomicInteger();
+
+    // only accessed by the processing thread
+    private long lastCaptureTime;
+
+    private volatile @Nullable Thread processingThread;
+    // set by the processing thread just before parking, so that producers can skip the (relatively
+    // expensive) unpark when the processing thread is already busy
+    private volatile boolean processingThreadParked;
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -91,11 +114,21 @@ public class TransactionProcessor {
                 .newFixedThreadPool(1, ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newFixedThreadPool(1, ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        if (PROCESSING_THREADS == 1) {
+            shardProcessingExecutor = null;
+            shardQueues = ImmutableList.of();
+        } else {
+            shardProcessingExecutor = Executors.newFixedThreadPool(PROCESSING_THREADS,
+                    ThreadFactories.create("Glowroot-Aggregate-Processing-Shard-%d"));
+            shardQueues = Lists.newArrayList();
+            for (int i = 0; i < PROCESSING_THREADS; i++) {
+                BlockingQueue<ShardTask> shardQueue =
+                        new ArrayBlockingQueue<ShardTask>(TRANSACTION_PENDING_LIMIT);
+                shardQueues.add(shardQueue);
+                shardProcessingExecutor.execute(new AggregateShardLoop(shardQueue, i));
+            }
+        }
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -130,36 +163,39 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        boolean addedToQueue = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-                addedToQueue = true;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (addedToQueue) {
-            synchronized (monitor) {
-                monitor.notify();
-            }
-        }
-        if (exceededLimit) {
+        // reserve a slot before reading the capture time, see comment above queueLength
+        if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            queueLength.decrementAndGet();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
             transaction.removeFromActiveTransactions();
+            return;
+        }
+        PendingTransaction newTail = new PendingTransaction(transaction);
+        newTail.captureTime = clock.currentTimeMillis();
+        PendingTransaction prevTail = tail.getAndSet(newTail);
+        // until this link is made, the processing thread will see the queue as (temporarily)
+        // shorter than queueLength, which is ok since it will not end the interval while
+        // queueLength is non-zero
+        prevTail.next = newTail;
+        if (processingThreadParked) {
+            Thread processingThread = this.processingThread;
+            if (processingThread != null) {
+                LockSupport.unpark(processingThread);
+            }
         }
     }
 
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(),
+                configService.getTransactionConfig().histogramPrecisionOverrides(),
+                PROCESSING_THREADS, clock);
+    }
+
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
@@ -179,13 +215,21 @@ public class TransactionProcessor {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
-        synchronized (monitor) {
-            monitor.notifyAll();
+        Thread processingThread = this.processingThread;
+        if (processingThread != null) {
+            LockSupport.unpark(processingThread);
         }
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (shardProcessingExecutor != null) {
+            // shutdownNow() is needed here to send interrupt to shard processing threads
+            shardProcessingExecutor.shutdownNow();
+            if (!shardProcessingExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -197,13 +241,19 @@ public class TransactionProcessor {
 
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
+            long parkNanos = MILLISECONDS.toNanos(Math.min(100, aggregateIntervalMillis));
             while (!closed) {
                 try {
                     boolean hasNext = processOne();
                     if (!hasNext) {
-                        synchronized (monitor) {
-                            monitor.wait(Math.min(100, aggregateIntervalMillis));
+                        processingThreadParked = true;
+                        // re-check after publishing processingThreadParked to avoid missing an
+                        // unpark from a producer that linked itself in just before
+                        if (head.next == null && !closed) {
+                            LockSupport.parkNanos(TransactionProcessor.this, parkNanos);
                         }
+                        processingThreadParked = false;
                     }
                 } catch (Throwable e) {
                     // log and continue processing
@@ -220,68 +270,92 @@ public class TransactionProcessor {
                 }
                 return false;
             }
-            // remove transaction from list of active transactions
-            // used to do this at the very end of Transaction.end(), but moved to here to remove the
-            // (minor) cost from the transaction main path
+            // producers read the capture time before swapping themselves into the tail, so two
+            // concurrent producers can end up in the queue in the opposite order of their capture
+            // times (by at most the time between reading the clock and swapping), clamping here
+            // preserves the guarantee that capture times are non-decreasing in processing order
+            long captureTime = Math.max(pendingTransaction.captureTime, lastCaptureTime);
+            lastCaptureTime = captureTime;
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.setCaptureTime(pendingTransaction.captureTime);
+            transaction.setCaptureTime(captureTime);
 
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
             // between removing the transaction from the registry and storing it
             traceCollector.collectTrace(transaction);
 
-            transaction.removeFromActiveTransactions();
-
-            boolean hasNext = false;
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
+            // unlink the processed node (single consumer, so no synchronization needed), head stays
+            // the fixed stub, and if the processed node was the last one, the tail is swung back
+            // to head so that the next producer links itself directly after head
+            PendingTransaction next = pendingTransaction.next;
+            head.next = next;
+            if (next == null && !tail.compareAndSet(pendingTransaction, head)) {
+                // a producer has swapped itself into the tail but not linked it yet, wait for
+                // the link so that the list is not broken when head.next is re-pointed
+                next = awaitNext(pendingTransaction);
                 head.next = next;
-                if (next == null) {
-                    tail = head;
-                } else {
-                    hasNext = true;
-                }
-                queueLength--;
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+            pendingTransaction.transaction = null;
+            queueLength.decrementAndGet();
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushAndResetActiveIntervalCollector(captureTime);
+            }
+            String aggregateTransactionName =
+                    activeIntervalCollector.admitTransactionName(transaction);
+            if (shardQueues.isEmpty()) {
+                addToAggregates(activeIntervalCollector, transaction, aggregateTransactionName, 0);
+            } else {
+                int shardIndex =
+                        AggregateIntervalCollector.getShardIndex(transaction, shardQueues.size());
+                putUninterruptibly(shardQueues.get(shardIndex), new ShardTask(
+                        activeIntervalCollector, transaction, aggregateTransactionName));
             }
-            activeIntervalCollector.add(transaction);
-            return hasNext;
+            return next != null;
+        }
+
+        private PendingTransaction awaitNext(PendingTransaction pendingTransaction) {
+            PendingTransaction next;
+            while ((next = pendingTransaction.next) == null) {
+                // the window between the tail swap and the link is a couple of instructions
+                Thread.yield();
+            }
+            return next;
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+            // read the current time *before* checking queueLength, any producer that has not yet
+            // reserved its slot will read its capture time after this point
+            long currentTime = clock.currentTimeMillis();
+            if (queueLength.get() != 0) {
+                // something just crept into the queue, possibly still something from active
+                // interval, it will get picked up right away and if it is in next interval it
+                // will force active aggregate to be flushed anyways
+                return;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
+            if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                // safe to flush, no other pending transactions can enter queue with earlier time
+                // (since the queue was empty, including producers that had reserved a slot but
+                // not linked themselves in yet, after the current time was read)
+                lastCaptureTime = Math.max(lastCaptureTime, currentTime);
                 flushAndResetActiveIntervalCollector(currentTime);
             }
         }
 
         private void flushAndResetActiveIntervalCollector(long currentTime) {
             flushActiveIntervalCollector();
-            activeIntervalCollector =
-                    new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
-                            configService.getAdvancedConfig().maxTransactionAggregates(),
-                            configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            activeIntervalCollector = createIntervalCollector(currentTime);
         }
 
         private void flushActiveIntervalCollector() {
+            if (shardQueues.isEmpty()) {
+                activeIntervalCollector.shardCompleted();
+            } else {
+                // the shard task queues are FIFO, so once each shard processes this it has added
+                // all of its transactions for the interval
+                for (BlockingQueue<ShardTask> shardQueue : shardQueues) {
+                    putUninterruptibly(shardQueue, new ShardTask(activeIntervalCollector));
+                }
+            }
             boolean accepted = pendingIntervalCollectors.offer(activeIntervalCollector);
             if (!accepted) {
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
@@ -297,6 +371,7 @@ public class TransactionProcessor {
                 try {
                     AggregateIntervalCollector intervalCollector =
                             pendingIntervalCollectors.take();
+                    intervalCollector.awaitShardsCompleted();
                     intervalCollector.flush(collector);
                 } catch (InterruptedException e) {
                     // probably shutdown requested (see close method above)
@@ -309,10 +384,97 @@ public class TransactionProcessor {
         }
     }
 
+    private class AggregateShardLoop implements Runnable {
+
+        private final BlockingQueue<ShardTask> shardQueue;
+        private final int shardIndex;
+
+        private AggregateShardLoop(BlockingQueue<ShardTask> shardQueue, int shardIndex) {
+            this.shardQueue = shardQueue;
+            this.shardIndex = shardIndex;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    ShardTask shardTask = shardQueue.take();
+                    Transaction transaction = shardTask.transaction;
+                    if (transaction == null) {
+                        shardTask.intervalCollector.shardCompleted();
+                    } else {
+                        addToAggregates(shardTask.intervalCollector, transaction,
+                                checkNotNull(shardTask.aggregateTransactionName), shardIndex);
+                    }
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static void addToAggregates(AggregateIntervalCollector intervalCollector,
+            Transaction transaction, String aggregateTransactionName, int shardIndex) {
+        try {
+            intervalCollector.add(transaction, aggregateTransactionName, shardIndex);
+        } finally {
+            // remove transaction from list of active transactions only after it has been added to
+            // the aggregates, so that there is no gap where the transaction is in neither
+            //
+            // used to do this at the very end of Transaction.end(), but moved to here to remove the
+            // (minor) cost from the transaction main path
+            transaction.removeFromActiveTransactions();
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<ShardTask> shardQueue,
+            ShardTask shardTask) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    shardQueue.put(shardTask);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class ShardTask {
+
+        private final AggregateIntervalCollector intervalCollector;
+        // null indicates end of interval
+        private final @Nullable Transaction transaction;
+        private final @Nullable String aggregateTransactionName;
+
+        private ShardTask(AggregateIntervalCollector intervalCollector) {
+            this(intervalCollector, null, null);
+        }
+
+        private ShardTask(AggregateIntervalCollector intervalCollector,
+                @Nullable Transaction transaction, @Nullable String aggregateTransactionName) {
+            this.intervalCollector = intervalCollector;
+            this.transaction = transaction;
+            this.aggregateTransactionName = aggregateTransactionName;
+        }
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head (and cleared after processing so that the unlinked node does not
+        // retain the transaction)
+        private @Nullable Transaction transaction;
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
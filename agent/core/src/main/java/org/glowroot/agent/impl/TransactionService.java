@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.File;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -45,6 +46,7 @@ public class TransactionService implements ConfigListener {
     private final TimerNameCache timerNameCache;
     private final Clock clock;
     private final Ticker ticker;
+    private final File traceEntrySpillDir;
 
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
@@ -56,28 +58,33 @@ public class TransactionService implements ConfigListener {
     private int maxQueryAggregates;
     private int maxServiceCallAggregates;
     private int maxProfileSamples;
+    private int traceEntrySpillLimit;
 
     // intentionally not volatile for small optimization
     private @MonotonicNonNull TransactionProcessor transactionProcessor;
     // intentionally not volatile for small optimization
     private @Nullable ThreadAllocatedBytes threadAllocatedBytes;
+    // intentionally not volatile for small optimization
+    private @Nullable JfrStackTraceSampler jfrStackTraceSampler;
 
     public static TransactionService create(TransactionRegistry transactionRegistry,
             ConfigService configService, TimerNameCache timerNameCache, Ticker ticker,
-            Clock clock) {
+            Clock clock, File traceEntrySpillDir) {
+        TraceEntrySpill.deletePreviousFiles(traceEntrySpillDir);
         TransactionService transactionService = new TransactionService(transactionRegistry,
-                configService, timerNameCache, ticker, clock);
+                configService, timerNameCache, ticker, clock, traceEntrySpillDir);
         configService.addConfigListener(transactionService);
         return transactionService;
     }
 
     private TransactionService(TransactionRegistry transactionRegistry, ConfigService configService,
-            TimerNameCache timerNameCache, Ticker ticker, Clock clock) {
+            TimerNameCache timerNameCache, Ticker ticker, Clock clock, File traceEntrySpillDir) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.timerNameCache = timerNameCache;
         this.clock = clock;
         this.ticker = ticker;
+        this.traceEntrySpillDir = traceEntrySpillDir;
     }
 
     public void setTransactionProcessor(TransactionProcessor transactionProcessor) {
@@ -85,10 +92,18 @@ public class TransactionService implements ConfigListener {
         transactionCompletionCallback.processStartupTransaction(transactionProcessor);
     }
 
+    File getTraceEntrySpillDir() {
+        return traceEntrySpillDir;
+    }
+
     public void setThreadAllocatedBytes(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         this.threadAllocatedBytes = threadAllocatedBytes;
     }
 
+    void setJfrStackTraceSampler(JfrStackTraceSampler jfrStackTraceSampler) {
+        this.jfrStackTraceSampler = jfrStackTraceSampler;
+    }
+
     TraceEntryImpl startTransaction(String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName,
             ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
@@ -99,8 +114,9 @@ public class TransactionService implements ConfigListener {
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
                 maxTraceEntries, maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples,
-                threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
-                this, configService, threadContextHolder, rootNestingGroupId, rootSuppressionKeyId);
+                traceEntrySpillLimit, threadAllocatedBytes, transactionCompletionCallback, ticker,
+                transactionRegistry, this, configService, threadContextHolder, rootNestingGroupId,
+                rootSuppressionKeyId);
         SelfRemovableEntry transactionEntry = transactionRegistry.addTransaction(transaction);
         transaction.setTransactionEntry(transactionEntry);
         // see counterpart to this synchronization (and explanation) in ThreadContextImpl.detach()
@@ -135,6 +151,7 @@ public class TransactionService implements ConfigListener {
         maxServiceCallAggregates = advancedConfig.maxServiceCallAggregates();
         maxTraceEntries = advancedConfig.maxTraceEntriesPerTransaction();
         maxProfileSamples = advancedConfig.maxProfileSamplesPerTransaction();
+        traceEntrySpillLimit = advancedConfig.traceEntrySpillLimit();
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -150,7 +167,8 @@ public class TransactionService implements ConfigListener {
                 } else {
                     logger.warn("not processing startup transaction because already 100 pending");
                 }
-            } else {
+            } else if (jfrStackTraceSampler == null || !jfrStackTraceSampler
+                    .deferProcessing(transaction, transactionProcessor)) {
                 transactionProcessor.processOnCompletion(transaction);
             }
         }
@@ -173,7 +173,7 @@ public class AgentModule {
         PluginServiceHolder.set(pluginService);
         random = new Random();
         transactionService = TransactionService.create(transactionRegistry, configService,
-                timerNameCache, ticker, clock);
+                timerNameCache, ticker, clock, new File(tmpDir, "trace-entry-spill"));
         bytecodeService = new BytecodeServiceImpl(transactionRegistry, transactionService,
                 preloadSomeSuperTypesCache);
         BytecodeServiceHolder.set(bytecodeService);
@@ -234,7 +234,8 @@ public class AgentModule {
         initPlugins(pluginCache.pluginDescriptors());
 
         // init stack trace collector early for profiling other agents
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector = new StackTraceCollector(transactionRegistry, transactionService,
+                configService, random);
     }
 
     public void setOnEnteringMain(OnEnteringMain onEnteringMain) {
@@ -70,6 +70,27 @@ public class MutableAggregateTimer implements AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    public void mergeDataFrom(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended);
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.mergeDataFrom(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         return toProto(0);
     }
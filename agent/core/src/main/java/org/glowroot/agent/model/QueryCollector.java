@@ -20,6 +20,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hashing;
@@ -159,6 +160,17 @@ public class QueryCollector {
         }
     }
 
+    public boolean anyQueryText(Predicate<String> predicate) {
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            for (String queryText : queriesForType.keySet()) {
+                if (predicate.apply(queryText)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
         for (Map.Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
             for (String fullQueryText : entry.getValue().keySet()) {
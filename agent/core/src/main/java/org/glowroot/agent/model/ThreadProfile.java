@@ -84,12 +84,14 @@ public class ThreadProfile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo) {
+        addStackTrace(Arrays.asList(threadInfo.getStackTrace()), threadInfo.getThreadState());
+    }
+
+    public void addStackTrace(List<StackTraceElement> stackTrace, Thread.State threadState) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
             if (profile == null) {
                 unmergedStackTraces.add(stackTrace);
                 unmergedStackTraceThreadStates.add(threadState);
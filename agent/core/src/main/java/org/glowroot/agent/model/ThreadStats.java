@@ -21,19 +21,22 @@ import org.glowroot.common.util.NotAvailableAware;
 public class ThreadStats {
 
     public static final ThreadStats NA = new ThreadStats(NotAvailableAware.NA, NotAvailableAware.NA,
-            NotAvailableAware.NA, NotAvailableAware.NA);
+            NotAvailableAware.NA, NotAvailableAware.NA, 0);
 
     private final long cpuNanos;
     private final long blockedMillis; // not converting to nanos here for micro-opt purposes
     private final long waitedMillis; // not converting to nanos here for micro-opt purposes
     private final long allocatedBytes;
+    // zero unless the thread is a virtual thread and JFR profiling is enabled
+    private final long virtualThreadPinnedNanos;
 
     public ThreadStats(long cpuNanos, long blockedMillis, long waitedMillis,
-            long totalAllocatedBytes) {
+            long totalAllocatedBytes, long virtualThreadPinnedNanos) {
         this.cpuNanos = cpuNanos;
         this.blockedMillis = blockedMillis;
         this.waitedMillis = waitedMillis;
         this.allocatedBytes = totalAllocatedBytes;
+        this.virtualThreadPinnedNanos = virtualThreadPinnedNanos;
     }
 
     public long getCpuNanos() {
@@ -51,4 +54,8 @@ public class ThreadStats {
     public long getAllocatedBytes() {
         return allocatedBytes;
     }
+
+    public long getVirtualThreadPinnedNanos() {
+        return virtualThreadPinnedNanos;
+    }
 }
@@ -51,6 +51,11 @@ public class ThreadStatsComponent {
 
     private final Object lock = new Object();
 
+    // the time that a virtual thread spends pinned to its carrier thread, which is only available
+    // from JDK Flight Recorder (see JfrStackTraceSampler)
+    @GuardedBy("lock")
+    private long virtualThreadPinnedNanos;
+
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
@@ -83,6 +88,15 @@ public class ThreadStatsComponent {
         }
     }
 
+    // safe to be called from another thread
+    public void addVirtualThreadPinnedNanos(long pinnedNanos) {
+        synchronized (lock) {
+            if (completedThreadStats == null) {
+                virtualThreadPinnedNanos += pinnedNanos;
+            }
+        }
+    }
+
     // safe to be called from another thread
     public ThreadStats getThreadStats() {
         synchronized (lock) {
@@ -127,7 +141,7 @@ public class ThreadStatsComponent {
         ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
         if (threadInfo == null && !isVirtualThread) {
             // thread must have just recently terminated
-            return new ThreadStats(0, 0, 0, 0);
+            return new ThreadStats(0, 0, 0, 0, 0);
         }
         if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED && !isVirtualThread) {
             waitedMillis = getWaitedMillisInternal(threadInfo);
@@ -142,7 +156,8 @@ public class ThreadStatsComponent {
         } else {
             allocatedBytes = -1;
         }
-        return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes);
+        return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes,
+                virtualThreadPinnedNanos);
     }
 
     private long getCpuNanosInternal() {
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.util;
 
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
@@ -24,95 +25,148 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+// entries are spread across a number of independently locked stripes so that adding an entry (which
+// happens on every transaction start) does not contend on a single global lock, each stripe is a
+// doubly linked list so that removal is still O(1), and iteration is weakly consistent (it never
+// takes a lock, and may or may not see entries that are added or removed concurrently)
 public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
 
-    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
+    // number of adds to a stripe between sweeps of that stripe for cleared references that have
+    // not (or not yet) been enqueued on the reference queue (#1110)
+    private static final int SWEEP_INTERVAL = 1024;
 
-    private final Entry headEntry = new Entry(null, queue);
+    private static final int STRIPE_COUNT = getStripeCount();
 
-    // tail is non-volatile since only accessed under lock
-    private Entry tailEntry = headEntry;
+    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
 
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    private final Stripe<E>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public IterableWithSelfRemovableEntries() {
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe<E>();
+        }
+    }
 
     public SelfRemovableEntry add(E e) {
-        Entry newTailEntry = new Entry(e, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
+        expungeEnqueuedEntries();
+        // using the thread id to pick the stripe spreads concurrent adds from different threads
+        Stripe<E> stripe = stripes[(int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)];
+        Entry<E> newTailEntry = new Entry<E>(e, queue, stripe);
+        boolean sweep;
+        synchronized (stripe) {
+            Entry<E> tailEntry = stripe.tailEntry;
             tailEntry.nextEntry = newTailEntry;
             newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
+            stripe.tailEntry = newTailEntry;
+            sweep = ++stripe.addCountSinceSweep >= SWEEP_INTERVAL;
+            if (sweep) {
+                stripe.addCountSinceSweep = 0;
+            }
+        }
+        if (sweep) {
+            stripe.expungeStaleEntries();
         }
         return newTailEntry;
     }
 
     @Override
     public Iterator<E> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
+        expungeEnqueuedEntries();
         return new ElementIterator();
     }
 
     // package-private for tests (#1110)
     int linkedEntryCountForTest() {
-        synchronized (lock) {
-            expungeStaleEntries();
-            int count = 0;
-            Entry currEntry = headEntry.nextEntry;
-            while (currEntry != null) {
-                count++;
-                currEntry = currEntry.nextEntry;
+        int count = 0;
+        for (Stripe<E> stripe : stripes) {
+            stripe.expungeStaleEntries();
+            synchronized (stripe) {
+                Entry<E> currEntry = stripe.headEntry.nextEntry;
+                while (currEntry != null) {
+                    count++;
+                    currEntry = currEntry.nextEntry;
+                }
             }
-            return count;
         }
+        return count;
     }
 
     // Clears referents via WeakReference.clear() which does not enqueue on ReferenceQueue,
     // reproducing the pending-window case where get() is null but poll() is empty (#1110).
     void clearReferentsForTest() {
-        synchronized (lock) {
-            Entry currEntry = headEntry.nextEntry;
-            while (currEntry != null) {
-                if (currEntry.ref != null) {
-                    currEntry.ref.clear();
+        for (Stripe<E> stripe : stripes) {
+            synchronized (stripe) {
+                Entry<E> currEntry = stripe.headEntry.nextEntry;
+                while (currEntry != null) {
+                    currEntry.clear();
+                    currEntry = currEntry.nextEntry;
                 }
-                currEntry = currEntry.nextEntry;
             }
         }
     }
 
-    // requires lock
-    private void expungeStaleEntries() {
-        // Drain ReferenceQueue if the JVM has enqueued cleared refs. Always walk the list as well:
-        // WeakReference.get() can already be null while the ref is still pending on the queue
-        // (or cleared without enqueue), which used to early-return and leave tombstones (#1110).
-        while (queue.poll() != null) {
-        }
-        Entry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            Entry next = currEntry.nextEntry;
-            if (currEntry.getElement() == null) {
-                currEntry.remove();
-            }
-            currEntry = next;
+    @SuppressWarnings("unchecked")
+    private void expungeEnqueuedEntries() {
+        // the entries are themselves the weak references, so each one that the JVM has enqueued
+        // can be removed directly without walking the list
+        Reference<? extends E> ref;
+        while ((ref = queue.poll()) != null) {
+            ((Entry<E>) ref).remove();
         }
     }
 
+    private static int getStripeCount() {
+        int stripeCount = 1;
+        int target = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        while (stripeCount < target) {
+            stripeCount <<= 1;
+        }
+        return stripeCount;
+    }
+
     public interface SelfRemovableEntry {
         void remove();
     }
 
+    private static class Stripe<E> {
+
+        @SuppressWarnings("method.invocation.invalid")
+        private final Entry<E> headEntry = new Entry<E>(null, null, this);
+
+        // tail is non-volatile since only accessed under stripe lock
+        private Entry<E> tailEntry = headEntry;
+
+        // only accessed under stripe lock
+        private int addCountSinceSweep;
+
+        // Always walk the list: WeakReference.get() can already be null while the ref is still
+        // pending on the queue (or cleared without enqueue), which would otherwise leave
+        // tombstones (#1110).
+        private void expungeStaleEntries() {
+            synchronized (this) {
+                Entry<E> currEntry = headEntry.nextEntry;
+                while (currEntry != null) {
+                    Entry<E> next = currEntry.nextEntry;
+                    if (currEntry.get() == null) {
+                        currEntry.removeUnderLock();
+                    }
+                    currEntry = next;
+                }
+            }
+        }
+    }
+
     private class ElementIterator implements Iterator<E> {
 
-        private @Nullable Entry nextEntry;
+        private int stripeIndex;
+        private @Nullable Entry<E> nextEntry;
         private @Nullable E nextElement;
 
         @SuppressWarnings("method.invocation.invalid")
         private ElementIterator() {
-            nextEntry = headEntry;
+            nextEntry = stripes[0].headEntry;
             advance();
         }
 
@@ -146,52 +200,53 @@ public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
         private void advanceOne() {
             checkNotNull(nextEntry);
             nextEntry = nextEntry.nextEntry;
-            nextElement = nextEntry == null ? null : nextEntry.getElement();
+            while (nextEntry == null && stripeIndex < STRIPE_COUNT - 1) {
+                // move on to the next stripe
+                nextEntry = stripes[++stripeIndex].headEntry.nextEntry;
+            }
+            nextElement = nextEntry == null ? null : nextEntry.get();
         }
     }
 
-    private class Entry implements SelfRemovableEntry {
+    private static class Entry<E> extends WeakReference<E> implements SelfRemovableEntry {
 
-        private final @Nullable WeakReference<E> ref; // only null for head
+        private final Stripe<E> stripe;
 
-        // prev is non-volatile since only accessed under lock
-        private @Nullable Entry prevEntry; // only null for head and removed
+        // prev is non-volatile since only accessed under stripe lock
+        private @Nullable Entry<E> prevEntry; // only null for head and removed
 
         // next is volatile since accessed by iterator outside of lock
-        private volatile @Nullable Entry nextEntry;
+        private volatile @Nullable Entry<E> nextEntry;
 
-        private Entry(@Nullable E e, ReferenceQueue<E> queue) {
-            if (e == null) {
-                ref = null;
-            } else {
-                ref = new WeakReference<E>(e, queue);
-            }
+        // element and queue are only null for head
+        private Entry(@Nullable E e, @Nullable ReferenceQueue<E> queue, Stripe<E> stripe) {
+            super(e, queue);
+            this.stripe = stripe;
         }
 
         @Override
         public void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                Entry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
+            synchronized (stripe) {
+                removeUnderLock();
             }
         }
 
-        private @Nullable E getElement() {
-            if (ref == null) {
-                return null;
+        // requires stripe lock
+        private void removeUnderLock() {
+            if (prevEntry == null) {
+                // already removed
+                return;
+            }
+            Entry<E> localPrevEntry = checkNotNull(prevEntry);
+            Entry<E> localNextEntry = nextEntry;
+            localPrevEntry.nextEntry = localNextEntry;
+            if (localNextEntry != null) {
+                localNextEntry.prevEntry = localPrevEntry;
+            }
+            if (this == stripe.tailEntry) {
+                stripe.tailEntry = localPrevEntry;
             }
-            return ref.get();
+            prevEntry = null;
         }
     }
 }
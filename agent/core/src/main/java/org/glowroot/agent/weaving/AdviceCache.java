@@ -65,7 +65,7 @@ public class AdviceCache {
     private volatile ImmutableList<Advice> reweavableAdvisors;
     private volatile ImmutableSet<String> reweavableConfigVersions;
 
-    private volatile ImmutableList<Advice> allAdvisors;
+    private volatile AdviceIndex allAdvisors;
 
     public AdviceCache(List<PluginDescriptor> pluginDescriptors,
             List<InstrumentationConfig> reweavableConfigs,
@@ -117,7 +117,8 @@ public class AdviceCache {
         reweavableAdvisors =
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, true);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
-        allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        allAdvisors = AdviceIndex.create(
+                ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors)));
     }
 
     public Supplier<List<Advice>> getAdvisorsSupplier() {
@@ -163,7 +164,8 @@ public class AdviceCache {
         reweavableAdvisors =
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, false);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
-        allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        allAdvisors = AdviceIndex.create(
+                ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors)));
     }
 
     public boolean isOutOfSync(List<InstrumentationConfig> reweavableConfigs) {
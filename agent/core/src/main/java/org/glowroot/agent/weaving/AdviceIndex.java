@@ -0,0 +1,221 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// precompiled class level advice matching, so that most classes can be rejected without evaluating
+// every advice's class name, class annotation and super type patterns
+//
+// each advice is indexed under a single condition that is necessary for it to match (exact class
+// name, class name prefix, exact super type, super type prefix, exact class annotation or class
+// annotation prefix), advice that cannot be indexed is always a candidate, and all candidates are
+// still fully matched by AdviceMatcher, so the matches are the same as with a linear scan
+class AdviceIndex extends AbstractList<Advice> {
+
+    private final ImmutableList<Advice> advisors;
+
+    private final Map<String, BitSet> byClassName = Maps.newHashMap();
+    private final PrefixTrie byClassNamePrefix = new PrefixTrie();
+    private final Map<String, BitSet> bySuperTypeName = Maps.newHashMap();
+    private final PrefixTrie bySuperTypeNamePrefix = new PrefixTrie();
+    private final Map<String, BitSet> byClassAnnotation = Maps.newHashMap();
+    private final PrefixTrie byClassAnnotationPrefix = new PrefixTrie();
+    private final BitSet unindexed = new BitSet();
+
+    static AdviceIndex create(List<Advice> advisors) {
+        return new AdviceIndex(ImmutableList.copyOf(advisors));
+    }
+
+    private AdviceIndex(ImmutableList<Advice> advisors) {
+        this.advisors = advisors;
+        for (int i = 0; i < advisors.size(); i++) {
+            index(advisors.get(i), i);
+        }
+    }
+
+    @Override
+    public Advice get(int index) {
+        return advisors.get(index);
+    }
+
+    @Override
+    public int size() {
+        return advisors.size();
+    }
+
+    // returns the advice that may match at the class level, in their original order
+    List<Advice> getClassMatchCandidates(String className, List<String> classAnnotations,
+            Collection<String> superClassNames) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        addAll(candidates, byClassName.get(className));
+        byClassNamePrefix.addMatches(className, candidates);
+        for (String superClassName : superClassNames) {
+            addAll(candidates, bySuperTypeName.get(superClassName));
+            bySuperTypeNamePrefix.addMatches(superClassName, candidates);
+        }
+        for (String classAnnotation : classAnnotations) {
+            String annotationClassName = AdviceMatcher.getAnnotationClassName(classAnnotation);
+            addAll(candidates, byClassAnnotation.get(annotationClassName));
+            byClassAnnotationPrefix.addMatches(annotationClassName, candidates);
+        }
+        List<Advice> candidateAdvisors = Lists.newArrayListWithCapacity(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            candidateAdvisors.add(advisors.get(i));
+        }
+        return candidateAdvisors;
+    }
+
+    private void index(Advice advice, int index) {
+        if (index(advice.pointcut().className(), advice.pointcutClassNamePattern(), byClassName,
+                byClassNamePrefix, index)) {
+            return;
+        }
+        if (index(advice.pointcut().superTypeRestriction(),
+                advice.pointcutSuperTypeRestrictionPattern(), bySuperTypeName,
+                bySuperTypeNamePrefix, index)) {
+            return;
+        }
+        if (index(advice.pointcut().classAnnotation(), advice.pointcutClassAnnotationPattern(),
+                byClassAnnotation, byClassAnnotationPrefix, index)) {
+            return;
+        }
+        unindexed.set(index);
+    }
+
+    private static boolean index(String value, @Nullable Pattern pattern,
+            Map<String, BitSet> exactIndex, PrefixTrie prefixIndex, int index) {
+        if (pattern == null) {
+            if (value.isEmpty()) {
+                return false;
+            }
+            put(exactIndex, value, index);
+            return true;
+        }
+        List<String> prefixes = getLiteralPrefixes(pattern);
+        if (prefixes == null) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            prefixIndex.put(prefix, index);
+        }
+        // the pattern text itself is also matched exactly for annotations (see
+        // AdviceMatcher.isAnnotationMatch())
+        put(exactIndex, value, index);
+        return true;
+    }
+
+    // returns the literal prefix of each alternative in the pattern, or null if the pattern is not
+    // one of the limited patterns built by MaybePatterns, or if any alternative has an empty
+    // literal prefix (and so can match anything)
+    static @Nullable List<String> getLiteralPrefixes(Pattern pattern) {
+        String regex = pattern.pattern();
+        List<String> prefixes = Lists.newArrayList();
+        StringBuilder prefix = new StringBuilder();
+        boolean inPrefix = true;
+        int i = 0;
+        while (i < regex.length()) {
+            if (regex.startsWith("\\Q", i)) {
+                int end = regex.indexOf("\\E", i + 2);
+                if (end == -1) {
+                    return null;
+                }
+                if (inPrefix) {
+                    prefix.append(regex, i + 2, end);
+                }
+                i = end + 2;
+            } else if (regex.startsWith(".*", i)) {
+                inPrefix = false;
+                i += 2;
+            } else if (regex.charAt(i) == '|') {
+                prefixes.add(prefix.toString());
+                prefix.setLength(0);
+                inPrefix = true;
+                i++;
+            } else {
+                return null;
+            }
+        }
+        prefixes.add(prefix.toString());
+        for (String loopPrefix : prefixes) {
+            if (loopPrefix.isEmpty()) {
+                return null;
+            }
+        }
+        return prefixes;
+    }
+
+    private static void put(Map<String, BitSet> exactIndex, String key, int index) {
+        BitSet bitSet = exactIndex.get(key);
+        if (bitSet == null) {
+            bitSet = new BitSet();
+            exactIndex.put(key, bitSet);
+        }
+        bitSet.set(index);
+    }
+
+    private static void addAll(BitSet candidates, @Nullable BitSet bitSet) {
+        if (bitSet != null) {
+            candidates.or(bitSet);
+        }
+    }
+
+    private static class PrefixTrie {
+
+        private final Node root = new Node();
+
+        private void put(String prefix, int index) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.values.set(index);
+        }
+
+        private void addMatches(String name, BitSet candidates) {
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.children.get(name.charAt(i));
+                if (node == null) {
+                    return;
+                }
+                candidates.or(node.values);
+            }
+        }
+    }
+
+    private static class Node {
+
+        private final Map<Character, Node> children = Maps.newHashMap();
+        private final BitSet values = new BitSet();
+    }
+}
@@ -40,8 +40,15 @@ abstract class AdviceMatcher {
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
             List<String> classAnnotations, Collection<String> superClassNames,
             List<Advice> advisors) {
+        List<Advice> candidateAdvisors;
+        if (advisors instanceof AdviceIndex) {
+            candidateAdvisors = ((AdviceIndex) advisors).getClassMatchCandidates(className,
+                    classAnnotations, superClassNames);
+        } else {
+            candidateAdvisors = advisors;
+        }
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : candidateAdvisors) {
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -174,7 +181,7 @@ abstract class AdviceMatcher {
     private static boolean isAnnotationMatch(List<String> annotations, @Nullable Pattern pattern,
             String strictMatch) {
         for (String annotation : annotations) {
-            annotation = annotation.replace('/', '.').substring(1, annotation.length() - 1);
+            annotation = getAnnotationClassName(annotation);
             if (pattern != null && pattern.matcher(annotation).matches()) {
                 return true;
             }
@@ -184,4 +191,8 @@ abstract class AdviceMatcher {
         }
         return strictMatch.isEmpty();
     }
+
+    static String getAnnotationClassName(String annotation) {
+        return annotation.replace('/', '.').substring(1, annotation.length() - 1);
+    }
 }
@@ -258,6 +258,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$ElementIterator");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$Entry");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$SelfRemovableEntry");
+        types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$Stripe");
         types.add("org.glowroot.agent.util.MaybePatterns");
         types.add("org.glowroot.agent.util.Tickers");
         types.add("org.glowroot.agent.util.Tickers$DummyTicker");
@@ -277,6 +278,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceAdapter");
         types.add("org.glowroot.agent.weaving.AdviceBuilder");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$Node");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$PrefixTrie");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSpoolTest {
+
+    private File dir;
+
+    @BeforeEach
+    public void beforeEach() {
+        dir = Files.createTempDir();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadBackSpooledIntervals() throws Exception {
+        // given
+        AggregateSpool spool = new AggregateSpool(dir, Long.MAX_VALUE);
+
+        // when
+        spool.write(new AggregateReaderImpl(2000));
+        spool.write(new AggregateReaderImpl(1000));
+
+        // then
+        assertThat(spool.getCaptureTimes(10)).containsExactly(1000L, 2000L);
+        List<AggregateStreamMessage> messages = spool.read(1000);
+        assertThat(messages).hasSize(4);
+        assertThat(messages.get(0).getSharedQueryText().getFullText()).isEqualTo("select 1000");
+        assertThat(messages.get(1).getOverallAggregate().getTransactionType()).isEqualTo("Web");
+        assertThat(messages.get(2).getSharedQueryText().getFullText()).isEqualTo("select 1000");
+        assertThat(messages.get(3).getTransactionAggregate().getTransactionName())
+                .isEqualTo("/abc");
+    }
+
+    @Test
+    public void shouldReloadSpoolFromDisk() throws Exception {
+        // given
+        AggregateSpool spool = new AggregateSpool(dir, Long.MAX_VALUE);
+        spool.write(new AggregateReaderImpl(1000));
+        spool.write(new AggregateReaderImpl(2000));
+        spool.write(new AggregateReaderImpl(3000));
+        spool.remove(ImmutableList.of(1000L));
+        new File(dir, "4000.tmp").createNewFile();
+
+        // when
+        spool = new AggregateSpool(dir, Long.MAX_VALUE);
+
+        // then
+        assertThat(spool.getCaptureTimes(1)).containsExactly(2000L);
+        assertThat(spool.getCaptureTimes(10)).containsExactly(2000L, 3000L);
+        assertThat(new File(dir, "4000.tmp")).doesNotExist();
+    }
+
+    @Test
+    public void shouldDropOldestIntervalsWhenFull() throws Exception {
+        // given
+        File sizingDir = Files.createTempDir();
+        AggregateSpool sizingSpool = new AggregateSpool(sizingDir, Long.MAX_VALUE);
+        sizingSpool.write(new AggregateReaderImpl(1000));
+        long intervalBytes = new File(sizingDir, "1000.aggregates").length();
+        sizingSpool.remove(ImmutableList.of(1000L));
+        sizingDir.delete();
+        AggregateSpool spool = new AggregateSpool(dir, intervalBytes * 3);
+
+        // when
+        for (int i = 1; i <= 5; i++) {
+            spool.write(new AggregateReaderImpl(i * 1000));
+        }
+
+        // then
+        assertThat(spool.getCaptureTimes(10)).containsExactly(3000L, 4000L, 5000L);
+        assertThat(dir.listFiles()).hasSize(3);
+    }
+
+    private static class AggregateReaderImpl implements AggregateReader {
+
+        private final long captureTime;
+
+        private AggregateReaderImpl(long captureTime) {
+            this.captureTime = captureTime;
+        }
+
+        @Override
+        public long captureTime() {
+            return captureTime;
+        }
+
+        @Override
+        public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+            List<String> sharedQueryTexts = ImmutableList.of("select " + captureTime);
+            Aggregate aggregate = Aggregate.newBuilder()
+                    .setTotalDurationNanos(captureTime)
+                    .setTransactionCount(1)
+                    .build();
+            aggregateVisitor.visitOverallAggregate("Web", sharedQueryTexts, aggregate);
+            aggregateVisitor.visitTransactionAggregate("Web", "/abc", sharedQueryTexts,
+                    aggregate);
+        }
+    }
+}
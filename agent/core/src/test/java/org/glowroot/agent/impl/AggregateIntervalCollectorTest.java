@@ -0,0 +1,176 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.model.ImmutableTransactionTimerSnapshot;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.config.TransactionConfig.HistogramPrecisionOverride;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final int MAX_TRANSACTION_AGGREGATES = 10;
+
+    @Test
+    public void shouldProduceSameAggregatesRegardlessOfShardCount() throws Exception {
+        // given
+        List<Transaction> transactions = createTransactions();
+
+        // when
+        Map<String, Long> unsharded = collect(transactions, 1);
+        Map<String, Long> sharded = collect(transactions, 4);
+
+        // then
+        assertThat(sharded).isEqualTo(unsharded);
+    }
+
+    @Test
+    public void shouldAdmitTransactionNamesInProcessingOrder() throws Exception {
+        // given
+        List<Transaction> transactions = createTransactions();
+
+        // when
+        Map<String, Long> transactionCounts = collect(transactions, 4);
+
+        // then
+        assertThat(transactionCounts).hasSize(MAX_TRANSACTION_AGGREGATES + 2);
+        assertThat(transactionCounts.get("<overall>")).isEqualTo(transactions.size());
+        for (int i = 0; i < MAX_TRANSACTION_AGGREGATES; i++) {
+            assertThat(transactionCounts.get("tn" + i)).isEqualTo(3);
+        }
+        assertThat(transactionCounts.get("LIMIT EXCEEDED BUCKET"))
+                .isEqualTo(3 * (30 - MAX_TRANSACTION_AGGREGATES));
+    }
+
+    // 30 transaction names, each one 3 times, interleaved
+    private static List<Transaction> createTransactions() {
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 30; j++) {
+                transactions.add(mockTransaction("tn" + j));
+            }
+        }
+        return transactions;
+    }
+
+    private static Transaction mockTransaction(String transactionName) {
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("root");
+        when(rootTimer.getSnapshot())
+                .thenReturn(ImmutableTransactionTimerSnapshot.of(1000000, 1, false));
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(1000000L);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+
+    // same as TransactionProcessor, admits transaction names on the calling thread and then adds
+    // each transaction on its shard's thread
+    private static Map<String, Long> collect(List<Transaction> transactions, int shardCount)
+            throws Exception {
+        final AggregateIntervalCollector intervalCollector =
+                new AggregateIntervalCollector(0, 60000, MAX_TRANSACTION_AGGREGATES, 500, 500,
+                        ImmutableList.<HistogramPrecisionOverride>of(), shardCount,
+                        mock(Clock.class));
+        final List<List<Transaction>> shardTransactions = Lists.newArrayList();
+        final List<List<String>> shardAggregateTransactionNames = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            shardTransactions.add(Lists.<Transaction>newArrayList());
+            shardAggregateTransactionNames.add(Lists.<String>newArrayList());
+        }
+        for (Transaction transaction : transactions) {
+            int shardIndex = AggregateIntervalCollector.getShardIndex(transaction, shardCount);
+            shardTransactions.get(shardIndex).add(transaction);
+            shardAggregateTransactionNames.get(shardIndex)
+                    .add(intervalCollector.admitTransactionName(transaction));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(shardCount);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            final int shardIndex = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    List<Transaction> transactions = shardTransactions.get(shardIndex);
+                    List<String> aggregateTransactionNames =
+                            shardAggregateTransactionNames.get(shardIndex);
+                    for (int j = 0; j < transactions.size(); j++) {
+                        intervalCollector.add(transactions.get(j),
+                                aggregateTransactionNames.get(j), shardIndex);
+                    }
+                    intervalCollector.shardCompleted();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        intervalCollector.awaitShardsCompleted();
+
+        final Map<String, Long> transactionCounts = Maps.newHashMap();
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                AggregateReader aggregateReader = invocation.getArgument(0);
+                aggregateReader.accept(new AggregateVisitor() {
+                    @Override
+                    public void visitOverallAggregate(String transactionType,
+                            List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                        transactionCounts.put("<overall>", overallAggregate.getTransactionCount());
+                    }
+                    @Override
+                    public void visitTransactionAggregate(String transactionType,
+                            String transactionName, List<String> sharedQueryTexts,
+                            Aggregate transactionAggregate) {
+                        transactionCounts.put(transactionName,
+                                transactionAggregate.getTransactionCount());
+                    }
+                });
+                return null;
+            }
+        }).when(collector).collectAggregates(any(AggregateReader.class));
+        intervalCollector.flush(collector);
+        return transactionCounts;
+    }
+}
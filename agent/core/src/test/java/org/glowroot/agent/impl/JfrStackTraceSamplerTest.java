@@ -0,0 +1,237 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.common.config.ImmutableTransactionConfig;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JfrStackTraceSamplerTest {
+
+    @Test
+    public void shouldAttributeSamplesToActiveThreadContext() throws Exception {
+        // given
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getTransactionConfig())
+                .thenReturn(ImmutableTransactionConfig.builder().build());
+        JfrStackTraceSampler sampler =
+                JfrStackTraceSampler.create(transactionRegistry, configService);
+        assumeTrue(sampler != null);
+        BusyThread busyThread = new BusyThread();
+        busyThread.start();
+        Transaction transaction = mock(Transaction.class);
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(busyThread.getId());
+        when(threadContext.isActive()).thenReturn(true);
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        when(transaction.getMainThreadContext()).thenReturn(threadContext);
+        when(transaction.getActiveAuxThreadContexts())
+                .thenReturn(ImmutableList.<ThreadContextImpl>of());
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.of(transaction));
+
+        // when
+        sampler.start(10);
+
+        // then
+        try {
+            @SuppressWarnings("unchecked")
+            ArgumentCaptor<List<StackTraceElement>> captor = ArgumentCaptor.forClass(List.class);
+            verify(threadContext, timeout(30000).atLeastOnce())
+                    .captureRecordedStackTrace(captor.capture(), eq(Thread.State.RUNNABLE));
+            boolean found = false;
+            for (List<StackTraceElement> stackTrace : captor.getAllValues()) {
+                for (StackTraceElement element : stackTrace) {
+                    if (element.getClassName().equals(BusyThread.class.getName())) {
+                        found = true;
+                    }
+                }
+            }
+            assertThat(found).isTrue();
+        } finally {
+            sampler.stop();
+            busyThread.done = true;
+            busyThread.join();
+        }
+    }
+
+    @Test
+    public void shouldMarkTruncatedStackTraces() throws Exception {
+        // given
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getTransactionConfig())
+                .thenReturn(ImmutableTransactionConfig.builder().build());
+        JfrStackTraceSampler sampler =
+                JfrStackTraceSampler.create(transactionRegistry, configService);
+        assumeTrue(sampler != null);
+        // well past the default jfr stackdepth of 64
+        DeepBusyThread busyThread = new DeepBusyThread(200);
+        busyThread.start();
+        Transaction transaction = mock(Transaction.class);
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(busyThread.getId());
+        when(threadContext.isActive()).thenReturn(true);
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        when(transaction.getMainThreadContext()).thenReturn(threadContext);
+        when(transaction.getActiveAuxThreadContexts())
+                .thenReturn(ImmutableList.<ThreadContextImpl>of());
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.of(transaction));
+
+        // when
+        sampler.start(10);
+
+        // then
+        try {
+            @SuppressWarnings("unchecked")
+            ArgumentCaptor<List<StackTraceElement>> captor = ArgumentCaptor.forClass(List.class);
+            verify(threadContext, timeout(30000).atLeastOnce())
+                    .captureRecordedStackTrace(captor.capture(), eq(Thread.State.RUNNABLE));
+            for (List<StackTraceElement> stackTrace : captor.getAllValues()) {
+                assertThat(stackTrace.get(stackTrace.size() - 1))
+                        .isEqualTo(StackTraceCollector.TRUNCATED_STACK_TRACE_FRAME);
+            }
+        } finally {
+            sampler.stop();
+            busyThread.done = true;
+            busyThread.join();
+        }
+    }
+
+    @Test
+    public void shouldAttributeSamplesToTransactionThatCompletesBeforeTheyAreDelivered()
+            throws Exception {
+        // given
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getTransactionConfig())
+                .thenReturn(ImmutableTransactionConfig.builder().build());
+        JfrStackTraceSampler sampler =
+                JfrStackTraceSampler.create(transactionRegistry, configService);
+        assumeTrue(sampler != null);
+        BusyThread busyThread = new BusyThread();
+        busyThread.start();
+        // the transaction ran on the busy thread for the first 500 milliseconds, and has already
+        // completed (and been removed from the active transactions) by the time the first batch of
+        // samples is delivered
+        Transaction transaction = mock(Transaction.class);
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(busyThread.getId());
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        when(threadContext.isCompleted()).thenReturn(true);
+        when(threadContext.getEndTick()).thenReturn(MILLISECONDS.toNanos(500));
+        when(transaction.getStartTime()).thenReturn(System.currentTimeMillis());
+        when(transaction.isCompleted()).thenReturn(true);
+        when(transaction.getMainThreadContext()).thenReturn(threadContext);
+        when(transaction.getAuxThreadContexts()).thenReturn(ImmutableList.<ThreadContextImpl>of());
+        when(transactionRegistry.getTransactions()).thenReturn(ImmutableList.<Transaction>of());
+        TransactionProcessor transactionProcessor = mock(TransactionProcessor.class);
+
+        // when
+        sampler.start(10);
+        boolean deferred = sampler.deferProcessing(transaction, transactionProcessor);
+
+        // then
+        try {
+            assertThat(deferred).isTrue();
+            verify(transactionProcessor, timeout(30000)).processOnCompletion(transaction);
+            InOrder inOrder = inOrder(threadContext, transactionProcessor);
+            inOrder.verify(threadContext, atLeastOnce()).captureRecordedStackTrace(
+                    ArgumentMatchers.<StackTraceElement>anyList(), eq(Thread.State.RUNNABLE));
+            inOrder.verify(transactionProcessor).processOnCompletion(transaction);
+        } finally {
+            sampler.stop();
+            busyThread.done = true;
+            busyThread.join();
+        }
+    }
+
+    @Test
+    public void shouldNotDeferProcessingWhenNotRunning() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        JfrStackTraceSampler sampler =
+                JfrStackTraceSampler.create(mock(TransactionRegistry.class), configService);
+        assumeTrue(sampler != null);
+
+        // when
+        boolean deferred = sampler.deferProcessing(mock(Transaction.class),
+                mock(TransactionProcessor.class));
+
+        // then
+        assertThat(deferred).isFalse();
+    }
+
+    private static class BusyThread extends Thread {
+
+        private volatile boolean done;
+
+        @Override
+        public void run() {
+            long count = 0;
+            while (!done) {
+                count += Long.toString(count).length();
+            }
+        }
+    }
+
+    private static class DeepBusyThread extends Thread {
+
+        private final int depth;
+
+        private volatile boolean done;
+
+        private DeepBusyThread(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {
+            recurse(depth);
+        }
+
+        private long recurse(int remaining) {
+            if (remaining > 0) {
+                return recurse(remaining - 1) + 1;
+            }
+            long count = 0;
+            while (!done) {
+                count += Long.toString(count).length();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    @Test
+    public void shouldSelectOneThreadPerTransactionFirst() {
+        // given
+        ThreadContextImpl a1 = mock(ThreadContextImpl.class);
+        ThreadContextImpl a2 = mock(ThreadContextImpl.class);
+        ThreadContextImpl a3 = mock(ThreadContextImpl.class);
+        ThreadContextImpl b1 = mock(ThreadContextImpl.class);
+        ThreadContextImpl c1 = mock(ThreadContextImpl.class);
+        List<List<ThreadContextImpl>> threadContextsPerTransaction =
+                ImmutableList.<List<ThreadContextImpl>>of(ImmutableList.of(a1, a2, a3),
+                        ImmutableList.of(b1), ImmutableList.of(c1));
+
+        // when
+        List<ThreadContextImpl> selected =
+                StackTraceCollector.selectFairly(threadContextsPerTransaction, 3, 0);
+
+        // then
+        assertThat(selected).containsExactly(a1, b1, c1);
+    }
+
+    @Test
+    public void shouldRotateFairlyAcrossIntervals() {
+        // given
+        List<List<ThreadContextImpl>> threadContextsPerTransaction = Lists.newArrayList();
+        List<ThreadContextImpl> all = Lists.newArrayList();
+        for (int i = 0; i < 7; i++) {
+            List<ThreadContextImpl> threadContexts = Lists.newArrayList();
+            for (int j = 0; j <= i % 3; j++) {
+                ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+                threadContexts.add(threadContext);
+                all.add(threadContext);
+            }
+            threadContextsPerTransaction.add(threadContexts);
+        }
+        Map<ThreadContextImpl, Integer> counts = Maps.newHashMap();
+
+        // when
+        for (int rotation = 0; rotation < 100; rotation++) {
+            for (ThreadContextImpl threadContext : StackTraceCollector
+                    .selectFairly(threadContextsPerTransaction, 5, rotation)) {
+                Integer count = counts.get(threadContext);
+                counts.put(threadContext, count == null ? 1 : count + 1);
+            }
+        }
+
+        // then
+        assertThat(counts.keySet()).containsOnlyElementsOf(all).hasSameSizeAs(all);
+    }
+
+    @Test
+    public void shouldNotSelectMoreThanAvailable() {
+        // given
+        ThreadContextImpl a1 = mock(ThreadContextImpl.class);
+        ThreadContextImpl b1 = mock(ThreadContextImpl.class);
+        List<List<ThreadContextImpl>> threadContextsPerTransaction =
+                ImmutableList.<List<ThreadContextImpl>>of(ImmutableList.of(a1),
+                        ImmutableList.of(b1));
+
+        // when
+        List<ThreadContextImpl> selected =
+                StackTraceCollector.selectFairly(threadContextsPerTransaction, 5, 1);
+
+        // then
+        assertThat(selected).containsExactly(b1, a1);
+    }
+
+    @Test
+    public void shouldFallBackToThreadStackTraceWhenThreadInfoIsNotAvailable() throws Exception {
+        // given
+        // ThreadMXBean.getThreadInfo() returns null for virtual threads, and also for terminated
+        // platform threads
+        Thread thread = new Thread();
+        thread.start();
+        thread.join();
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.getThreadId()).thenReturn(thread.getId());
+
+        // when
+        StackTraceCollector.captureStackTraces(ImmutableList.of(threadContext), 10);
+
+        // then
+        verify(threadContext).captureVirtualThreadStackTrace(10);
+        verify(threadContext, never()).captureStackTrace(anyList(), any(Thread.State.class));
+    }
+
+    @Test
+    public void shouldMergeTruncatedStackTracesUnderSingleRoot() {
+        // given
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            stackTrace.add(new StackTraceElement("Example", "method" + i, "Example.java", i));
+        }
+        MutableProfile profile = new MutableProfile();
+
+        // when
+        // the innermost frames differ in depth, so each truncated stack trace is cut at a
+        // different outer frame
+        profile.merge(StackTraceCollector.truncateStackTrace(stackTrace, 10),
+                Thread.State.RUNNABLE);
+        profile.merge(StackTraceCollector.truncateStackTrace(stackTrace.subList(2, 20), 10),
+                Thread.State.RUNNABLE);
+        profile.merge(StackTraceCollector.truncateStackTrace(stackTrace.subList(5, 20), 10),
+                Thread.State.RUNNABLE);
+
+        // then
+        int rootCount = 0;
+        for (Profile.ProfileNode node : profile.toProto().getNodeList()) {
+            if (node.getDepth() == 0) {
+                rootCount++;
+            }
+        }
+        assertThat(rootCount).isEqualTo(1);
+        assertThat(profile.getSampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotTruncateStackTraceWithinMaxDepth() {
+        // given
+        List<StackTraceElement> stackTrace = ImmutableList.of(
+                new StackTraceElement("Example", "inner", "Example.java", 1),
+                new StackTraceElement("Example", "outer", "Example.java", 2));
+
+        // when
+        List<StackTraceElement> truncated = StackTraceCollector.truncateStackTrace(stackTrace, 2);
+
+        // then
+        assertThat(truncated).isSameAs(stackTrace);
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    public void shouldCaptureParkedVirtualThread() throws Exception {
+        // given
+        final Transaction transaction = mock(Transaction.class);
+        final AtomicReference<ThreadContextImpl> threadContextHolder =
+                new AtomicReference<ThreadContextImpl>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                threadContextHolder.set(new ThreadContextImpl(transaction, null, null,
+                        mock(MessageSupplier.class), mock(TimerNameImpl.class), 0, false, 0, 0,
+                        null, false, mock(Ticker.class),
+                        mock(ThreadContextThreadLocal.Holder.class), null, 0, 0));
+                started.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        // the agent is compiled against Java 8, so the virtual thread api is accessed via
+        // reflection
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Method unstartedMethod =
+                Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        Thread thread = (Thread) unstartedMethod.invoke(builder, runnable);
+        thread.start();
+        started.await();
+        // wait for the virtual thread to park
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        // when
+        try {
+            StackTraceCollector.captureStackTraces(ImmutableList.of(threadContextHolder.get()),
+                    100);
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+
+        // then
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<StackTraceElement>> captor = ArgumentCaptor.forClass(List.class);
+        verify(transaction).captureStackTrace(eq(false), captor.capture(),
+                eq(Thread.State.WAITING));
+        boolean found = false;
+        for (StackTraceElement element : captor.getValue()) {
+            if (element.getClassName().startsWith(StackTraceCollectorTest.class.getName())) {
+                found = true;
+            }
+        }
+        assertThat(found).isTrue();
+    }
+}
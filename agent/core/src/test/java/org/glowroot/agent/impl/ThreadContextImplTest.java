@@ -15,18 +15,23 @@
  */
 package org.glowroot.agent.impl;
 
+import java.lang.management.ManagementFactory;
+
 import com.google.common.base.Ticker;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.agent.impl.NopTransactionService.NopTimer;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
 
 public class ThreadContextImplTest {
@@ -177,4 +182,85 @@ public class ThreadContextImplTest {
         threadContext.setTransactionSlowThreshold(0, null, 0);
         threadContext.setTransactionError((String) null);
     }
+
+    @Test
+    public void shouldNotAllocateWhenRestartingTimers() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+        TimerNameImpl timerNameA = ImmutableTimerNameImpl.of("a", false);
+        TimerNameImpl timerNameB = ImmutableTimerNameImpl.of("b", false);
+        // nested timers are only allocated the first time each timer name is started
+        startAndStopTimers(timerNameA, timerNameB, 1);
+
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        int iterations = 100000;
+        startAndStopTimers(timerNameA, timerNameB, iterations);
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes;
+
+        // any per-iteration allocation would be at least 16 bytes per iteration, the allowance is
+        // for one-time allocations (e.g. by getThreadAllocatedBytes() itself)
+        assertThat(allocatedBytes).isLessThan(iterations);
+    }
+
+    @Test
+    public void shouldNotAllocateWhenRestartingDeeplyNestedTimers() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+        TimerNameImpl httpRequestTimerName = ImmutableTimerNameImpl.of("http request", false);
+        TimerNameImpl jdbcExecuteTimerName = ImmutableTimerNameImpl.of("jdbc execute", false);
+        TimerNameImpl jdbcGetConnectionTimerName =
+                ImmutableTimerNameImpl.of("jdbc get connection", false);
+        TimerNameImpl jdbcCommitTimerName = ImmutableTimerNameImpl.of("jdbc commit", false);
+        TimerNameImpl jspRenderTimerName = ImmutableTimerNameImpl.of("jsp render", false);
+        startAndStopDeeplyNestedTimers(httpRequestTimerName, jdbcExecuteTimerName,
+                jdbcGetConnectionTimerName, jdbcCommitTimerName, jspRenderTimerName, 1);
+
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        int iterations = 100000;
+        startAndStopDeeplyNestedTimers(httpRequestTimerName, jdbcExecuteTimerName,
+                jdbcGetConnectionTimerName, jdbcCommitTimerName, jspRenderTimerName, iterations);
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes;
+
+        assertThat(allocatedBytes).isLessThan(iterations);
+    }
+
+    private void startAndStopTimers(TimerNameImpl timerNameA, TimerNameImpl timerNameB,
+            int count) {
+        for (int i = 0; i < count; i++) {
+            Timer timerA = threadContext.startTimer(timerNameA);
+            Timer timerB = threadContext.startTimer(timerNameB);
+            timerB.stop();
+            timerA.stop();
+            timerB = threadContext.startTimer(timerNameB);
+            timerB.stop();
+        }
+    }
+
+    // http request -> (jdbc execute -> jdbc get connection, jdbc execute, jdbc commit, jsp render)
+    private void startAndStopDeeplyNestedTimers(TimerNameImpl httpRequestTimerName,
+            TimerNameImpl jdbcExecuteTimerName, TimerNameImpl jdbcGetConnectionTimerName,
+            TimerNameImpl jdbcCommitTimerName, TimerNameImpl jspRenderTimerName, int count) {
+        for (int i = 0; i < count; i++) {
+            Timer httpRequestTimer = threadContext.startTimer(httpRequestTimerName);
+            Timer jdbcExecuteTimer = threadContext.startTimer(jdbcExecuteTimerName);
+            Timer jdbcGetConnectionTimer = threadContext.startTimer(jdbcGetConnectionTimerName);
+            jdbcGetConnectionTimer.stop();
+            jdbcExecuteTimer.stop();
+            for (int j = 0; j < 5; j++) {
+                jdbcExecuteTimer = threadContext.startTimer(jdbcExecuteTimerName);
+                jdbcExecuteTimer.stop();
+            }
+            Timer jdbcCommitTimer = threadContext.startTimer(jdbcCommitTimerName);
+            jdbcCommitTimer.stop();
+            Timer jspRenderTimer = threadContext.startTimer(jspRenderTimerName);
+            jspRenderTimer.stop();
+            httpRequestTimer.stop();
+        }
+    }
 }
@@ -15,17 +15,60 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import org.junit.jupiter.api.Test;
 
+import org.glowroot.agent.impl.Transaction.TraceEntryVisitor;
+import org.glowroot.agent.model.SharedQueryTextCollection;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class TraceEntryComponentTest {
 
+    // the shallow size of TraceEntryImpl (including its QueryEntryBase fields) is a little over
+    // 200 bytes with compressed oops
+    private static final int MAX_BYTES_PER_TRACE_ENTRY = 256;
+
+    @Test
+    public void shouldOnlyAllocateTheEntryPerTraceEntry() {
+        // given
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
+        pushAndPopEntries(traceEntryComponent, messageSupplier, timer, 1);
+
+        // when
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        int iterations = 10000;
+        pushAndPopEntries(traceEntryComponent, messageSupplier, timer, iterations);
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes;
+
+        // then
+        // trace entries are retained until the trace is collected so they cannot be pooled, but
+        // pushing and popping an entry should allocate nothing beyond the TraceEntryImpl itself
+        // (the allowance is for one-time allocations, e.g. by getThreadAllocatedBytes() itself)
+        assertThat(allocatedBytes).isLessThan(iterations * MAX_BYTES_PER_TRACE_ENTRY);
+    }
+
     @Test
     public void testTooManyPops() {
         // given
@@ -78,4 +121,71 @@ public class TraceEntryComponentTest {
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testSpillEntries() throws Exception {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        long startTick = Tickers.getTicker().read();
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, createMessageSupplier("root"), timer,
+                        startTick);
+        TraceEntryImpl jobEntry = traceEntryComponent.pushEntry(startTick,
+                createMessageSupplier("job"), timer, null, null, 0);
+        for (int i = 0; i < 10; i++) {
+            TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick + i,
+                    createMessageSupplier("entry " + i), timer, null, null, 0);
+            entry.end();
+            traceEntryComponent.popEntry(entry, 0);
+        }
+        long captureTick = Tickers.getTicker().read();
+        File dir = Files.createTempDir();
+        TraceEntrySpill spill = TraceEntrySpill.create(dir);
+        spill.lock();
+        try {
+            // when
+            traceEntryComponent.spillEntries(spill, startTick, captureTick, 2);
+
+            // then
+            assertThat(traceEntryComponent.getEntryCount()).isEqualTo(3);
+            assertThat(spill.getEntryCount()).isEqualTo(8);
+            assertThat(traceEntryComponent.getRootEntry().getNextTraceEntry()).isEqualTo(jobEntry);
+            final List<Trace.Entry> spilledEntries = Lists.newArrayList();
+            spill.visitSpilledEntries(jobEntry, startTick, captureTick,
+                    new TraceEntryVisitor() {
+                        @Override
+                        public void visitEntry(Trace.Entry entry) {
+                            spilledEntries.add(entry);
+                        }
+                    }, mock(SharedQueryTextCollection.class));
+            assertThat(spilledEntries).hasSize(8);
+            for (int i = 0; i < 8; i++) {
+                assertThat(spilledEntries.get(i).getMessage()).isEqualTo("entry " + i);
+                assertThat(spilledEntries.get(i).getDepth()).isEqualTo(1);
+                assertThat(spilledEntries.get(i).getStartOffsetNanos()).isEqualTo(i);
+            }
+            assertThat(jobEntry.getNextTraceEntry().getNextTraceEntry())
+                    .isEqualTo(traceEntryComponent.getTailEntry());
+        } finally {
+            spill.close();
+            spill.unlock();
+            dir.delete();
+        }
+    }
+
+    private static MessageSupplier createMessageSupplier(String message) {
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.create(message));
+        return messageSupplier;
+    }
+
+    private static void pushAndPopEntries(TraceEntryComponent traceEntryComponent,
+            MessageSupplier messageSupplier, TimerImpl timer, int count) {
+        for (int i = 0; i < count; i++) {
+            TraceEntryImpl entry = traceEntryComponent.pushEntry(0, messageSupplier, timer, null,
+                    null, 0);
+            traceEntryComponent.popEntry(entry, 0);
+        }
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.impl.TraceCollector.PendingTrace;
+import org.glowroot.agent.model.ErrorMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceSamplerTest {
+
+    @Test
+    public void shouldHoldTracesUntilEndOfWindow() {
+        // given
+        TraceSampler traceSampler = new TraceSampler();
+        PendingTrace pendingTrace = createPendingTrace(100, 0);
+
+        // when
+        traceSampler.offer(pendingTrace, 10, 1000);
+
+        // then
+        assertThat(traceSampler.drainIfWindowEnded(1999)).isEmpty();
+        assertThat(traceSampler.getPendingTransactions())
+                .containsExactly(pendingTrace.transaction());
+        assertThat(traceSampler.getMillisUntilWindowEnd(1999)).isEqualTo(1);
+        assertThat(traceSampler.drainIfWindowEnded(2000)).containsExactly(pendingTrace);
+        assertThat(traceSampler.getPendingTransactions()).isEmpty();
+    }
+
+    @Test
+    public void shouldDrainAllBeforeEndOfWindow() {
+        // given
+        TraceSampler traceSampler = new TraceSampler();
+        PendingTrace fast = createPendingTrace(100, 0);
+        PendingTrace slow = createPendingTrace(300, 0);
+        traceSampler.offer(fast, 10, 1000);
+        traceSampler.offer(slow, 10, 1100);
+
+        // when
+        List<PendingTrace> pendingTraces = traceSampler.drainAll();
+
+        // then
+        assertThat(pendingTraces).containsExactly(slow, fast);
+        assertThat(traceSampler.getPendingTransactions()).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepSlowestTracesWithinBudget() {
+        // given
+        TraceSampler traceSampler = new TraceSampler();
+        PendingTrace fast = createPendingTrace(100, 0);
+        PendingTrace slow = createPendingTrace(300, 0);
+        PendingTrace medium = createPendingTrace(200, 0);
+
+        // when
+        PendingTrace notKept1 = traceSampler.offer(fast, 2, 1000);
+        PendingTrace notKept2 = traceSampler.offer(slow, 2, 1100);
+        PendingTrace notKept3 = traceSampler.offer(medium, 2, 1200);
+
+        // then
+        assertThat(notKept1).isNull();
+        assertThat(notKept2).isNull();
+        assertThat(notKept3).isEqualTo(fast);
+        assertThat(traceSampler.drainIfWindowEnded(2000)).containsExactly(slow, medium);
+    }
+
+    @Test
+    public void shouldPreferNovelTracesOverSlowerTraces() {
+        // given
+        TraceSampler traceSampler = new TraceSampler();
+        PendingTrace slow = createPendingTrace(300, 0);
+        PendingTrace novel = createPendingTrace(100, 1);
+
+        // when
+        traceSampler.offer(slow, 1, 1000);
+        PendingTrace notKept = traceSampler.offer(novel, 1, 1100);
+
+        // then
+        assertThat(notKept).isEqualTo(slow);
+        assertThat(traceSampler.drainIfWindowEnded(2000)).containsExactly(novel);
+    }
+
+    @Test
+    public void shouldScoreNovelty() {
+        // given
+        TraceSampler traceSampler = new TraceSampler();
+        Transaction transaction = createTransaction("/abc", "boom", ImmutableList.of("select 1"));
+        Transaction sameTransaction =
+                createTransaction("/abc", "boom", ImmutableList.of("select 1"));
+        Transaction newQueryTransaction =
+                createTransaction("/abc", "boom", ImmutableList.of("select 2"));
+
+        // when
+        int novelty = traceSampler.getNovelty(transaction, 1000);
+        int sameNovelty = traceSampler.getNovelty(sameTransaction, 2000);
+        int newQueryNovelty = traceSampler.getNovelty(newQueryTransaction, 3000);
+        int nextIntervalNovelty = traceSampler.getNovelty(sameTransaction, 60000);
+
+        // then
+        assertThat(novelty).isEqualTo(3);
+        assertThat(sameNovelty).isEqualTo(0);
+        assertThat(newQueryNovelty).isEqualTo(1);
+        assertThat(nextIntervalNovelty).isEqualTo(3);
+    }
+
+    private static PendingTrace createPendingTrace(long durationNanos, int novelty) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        return ImmutablePendingTrace.builder()
+                .transaction(transaction)
+                .slow(true)
+                .partial(false)
+                .novelty(novelty)
+                .build();
+    }
+
+    private static Transaction createTransaction(String transactionName, String errorMessage,
+            final List<String> queryTexts) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getErrorMessage()).thenReturn(ErrorMessage.create(errorMessage, null,
+                new AtomicInteger()));
+        when(transaction.anyQueryText(ArgumentMatchers.<Predicate<String>>any()))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        Predicate<String> predicate = invocation.getArgument(0);
+                        return Iterables.any(queryTexts, predicate);
+                    }
+                });
+        return transaction;
+    }
+}
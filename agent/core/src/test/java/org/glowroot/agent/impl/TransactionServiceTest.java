@@ -0,0 +1,156 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+public class TransactionServiceTest {
+
+    // see comment in shouldBoundAllocationPerTransaction() below
+    private static final int MAX_BYTES_PER_TRANSACTION = 8 * 1024;
+
+    private static final int QUERIES_PER_TRANSACTION = 10;
+
+    private final TimerNameImpl httpRequestTimerName =
+            ImmutableTimerNameImpl.of("http request", false);
+    private final TimerNameImpl jspRenderTimerName = ImmutableTimerNameImpl.of("jsp render", false);
+    private final TimerNameImpl jdbcGetConnectionTimerName =
+            ImmutableTimerNameImpl.of("jdbc get connection", false);
+    private final TimerNameImpl jdbcExecuteTimerName =
+            ImmutableTimerNameImpl.of("jdbc execute", false);
+    private final TimerNameImpl jdbcCommitTimerName =
+            ImmutableTimerNameImpl.of("jdbc commit", false);
+    private final MessageSupplier messageSupplier = MessageSupplier.create("GET /orders");
+    private final QueryMessageSupplier queryMessageSupplier = QueryMessageSupplier.create("");
+
+    private File tempDir;
+    private TransactionRegistry transactionRegistry;
+    private TransactionService transactionService;
+    private ThreadContextThreadLocal.Holder threadContextHolder;
+
+    @BeforeEach
+    public void beforeEach() {
+        tempDir = Files.createTempDir();
+        ConfigService configService = ConfigService.create(ImmutableList.of(tempDir), false,
+                ImmutableList.<PluginDescriptor>of());
+        transactionRegistry = new TransactionRegistry();
+        transactionService = TransactionService.create(transactionRegistry, configService,
+                new TimerNameCache(), Ticker.systemTicker(), Clock.systemClock(),
+                new File(tempDir, "trace-entry-spill"));
+        // stub only, so that the mock does not retain (or allocate on behalf of) invocations
+        transactionService.setTransactionProcessor(
+                mock(TransactionProcessor.class, withSettings().stubOnly()));
+        threadContextHolder = transactionRegistry.getCurrentThreadContextHolder();
+    }
+
+    @AfterEach
+    public void afterEach() throws Exception {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void shouldBoundAllocationPerTransaction() {
+        // given
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+        // warm up (e.g. class loading and lazily initialized caches)
+        runServletAndJdbcTransactions(1000);
+
+        // when
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        int iterations = 1000;
+        runServletAndJdbcTransactions(iterations);
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startAllocatedBytes;
+
+        // then
+        // the transaction, its thread context, trace entries, query data and timers are
+        // (necessarily) allocated per transaction, and add up to roughly 6.5kb for this transaction
+        // shape, the limit is there to catch new per-transaction or per-entry allocations (e.g. an
+        // iterator or boxing in the timer or entry path would add at least several hundred bytes)
+        assertThat(allocatedBytes / iterations).isLessThan(MAX_BYTES_PER_TRANSACTION);
+    }
+
+    // same shape as a servlet request that runs a handful of jdbc queries: a root http request
+    // entry, a nested jsp render timer, a jdbc get connection timer, query entries (with the same
+    // query text, each with row navigation) and a commit
+    private void runServletAndJdbcTransactions(int count) {
+        for (int i = 0; i < count; i++) {
+            TraceEntryImpl rootEntry = transactionService.startTransaction("Web", "/orders",
+                    messageSupplier, httpRequestTimerName, threadContextHolder, 0, 0);
+            ThreadContextImpl threadContext = (ThreadContextImpl) threadContextHolder.get();
+            threadContext.setTransactionName("/orders/{id}", 0);
+            Timer getConnectionTimer = threadContext.startTimer(jdbcGetConnectionTimerName);
+            getConnectionTimer.stop();
+            for (int j = 0; j < QUERIES_PER_TRANSACTION; j++) {
+                QueryEntry queryEntry = threadContext.startQueryEntry("SQL",
+                        "select * from orders where id = ?", queryMessageSupplier,
+                        jdbcExecuteTimerName);
+                queryEntry.endWithLocationStackTrace(1, SECONDS);
+                for (int k = 0; k < 3; k++) {
+                    queryEntry.rowNavigationAttempted();
+                    queryEntry.incrementCurrRow();
+                }
+                queryEntry.rowNavigationAttempted();
+            }
+            Timer commitTimer = threadContext.startTimer(jdbcCommitTimerName);
+            commitTimer.stop();
+            Timer jspRenderTimer = threadContext.startTimer(jspRenderTimerName);
+            jspRenderTimer.stop();
+            Transaction transaction = threadContext.getTransaction();
+            rootEntry.end();
+            // normally done by the transaction processor
+            transaction.removeFromActiveTransactions();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -40,6 +40,35 @@ public class IterableWithSelfRemovableEntriesTest {
         assertThat(collection.iterator().hasNext()).isFalse();
     }
 
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception {
+        final IterableWithSelfRemovableEntries<Object> collection =
+                new IterableWithSelfRemovableEntries<Object>();
+        final List<Object> retained = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            final Object element = new Object();
+            retained.add(element);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        collection.add(new Object()).remove();
+                    }
+                    collection.add(element);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(collection.linkedEntryCountForTest()).isEqualTo(8);
+        assertThat(Lists.newArrayList(collection)).containsOnlyElementsOf(retained).hasSize(8);
+    }
+
     // Cleared WeakReferences may not yet appear on ReferenceQueue (JVM pending window). Expunge
     // must still unlink those tombstone Entry nodes or the active-transaction chain leaks (#1110).
     @Test
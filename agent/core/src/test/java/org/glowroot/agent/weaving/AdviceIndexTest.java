@@ -0,0 +1,105 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.util.MaybePatterns;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    @Test
+    public void shouldMatchSameAsLinearScan() throws Exception {
+        // given
+        List<Advice> advisors = Lists.newArrayList();
+        for (Class<?> clazz : SomeAspect.class.getDeclaredClasses()) {
+            if (clazz.isAnnotationPresent(Pointcut.class)) {
+                advisors.add(new AdviceBuilder(PluginDetailBuilder.buildAdviceClass(clazz))
+                        .build());
+            }
+        }
+        AdviceIndex adviceIndex = AdviceIndex.create(advisors);
+        List<String> classNames = ImmutableList.of("org.glowroot.agent.weaving.targets.BasicMisc",
+                "org.glowroot.agent.weaving.targets.SubBasicMisc",
+                "org.glowroot.agent.weaving.targets.Misc",
+                "org.glowroot.agent.weaving.targets.Misc2",
+                "org.glowroot.agent.weaving.targets.ThrowingMisc",
+                "org.glowroot.agent.weaving.targets.SuperBasicMisc",
+                "HackedConstructorBytecode", "MoreHackedConstructorBytecode",
+                "java.lang.String", "com.example.Unrelated");
+        List<String> classAnnotations = ImmutableList.of(
+                "Lorg/glowroot/agent/weaving/SomeAspect$SomeClass;", "Ljavax/ejb/Stateless;");
+
+        for (String className : classNames) {
+            for (List<String> superClassNames : ImmutableList.<List<String>>of(
+                    ImmutableList.of(className),
+                    ImmutableList.of(className, "org.glowroot.agent.weaving.targets.Misc",
+                            "org.glowroot.agent.weaving.targets.SuperBasicMisc"))) {
+                for (List<String> annotations : ImmutableList.<List<String>>of(
+                        ImmutableList.<String>of(), classAnnotations)) {
+                    // when
+                    List<AdviceMatcher> indexedMatchers = AdviceMatcher.getAdviceMatchers(
+                            className, annotations, superClassNames, adviceIndex);
+                    List<AdviceMatcher> linearMatchers = AdviceMatcher.getAdviceMatchers(
+                            className, annotations, superClassNames, advisors);
+
+                    // then
+                    assertThat(indexedMatchers).isEqualTo(linearMatchers);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldRejectUnrelatedClassesWithoutScanning() throws Exception {
+        // given
+        List<Advice> advisors = Lists.newArrayList();
+        advisors.add(new AdviceBuilder(
+                PluginDetailBuilder.buildAdviceClass(SomeAspect.BasicAdvice.class)).build());
+        AdviceIndex adviceIndex = AdviceIndex.create(advisors);
+
+        // when
+        List<Advice> candidates = adviceIndex.getClassMatchCandidates("com.example.Unrelated",
+                ImmutableList.<String>of(), ImmutableList.of("com.example.Unrelated"));
+
+        // then
+        assertThat(candidates).isEmpty();
+    }
+
+    @Test
+    public void shouldExtractLiteralPrefixes() {
+        assertThat(getLiteralPrefixes("org.example.*")).containsExactly("org.example.");
+        assertThat(getLiteralPrefixes("org.example.Abc|org.other.*Impl"))
+                .containsExactly("org.example.Abc", "org.other.");
+        assertThat(getLiteralPrefixes("*.Abc")).isNull();
+        assertThat(getLiteralPrefixes("org.example.Abc|*Impl")).isNull();
+        assertThat(getLiteralPrefixes("/org\\.example\\..*/")).isNull();
+    }
+
+    private static List<String> getLiteralPrefixes(String maybePattern) {
+        Pattern pattern = MaybePatterns.buildPattern(maybePattern);
+        assertThat(pattern).isNotNull();
+        return AdviceIndex.getLiteralPrefixes(pattern);
+    }
+}
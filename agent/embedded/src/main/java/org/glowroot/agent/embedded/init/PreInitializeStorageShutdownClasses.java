@@ -80,8 +80,8 @@ class PreInitializeStorageShutdownClasses {
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream$FsyncRunnable");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$ReaderConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
-        types.add("org.glowroot.agent.util.JavaVersion");
         types.add("org.glowroot.common.util.Cancellable");
         types.add("org.glowroot.common.util.ScheduledRunnable");
         types.add("org.glowroot.common.util.ScheduledRunnable"
@@ -125,9 +125,12 @@ class PreInitializeStorageShutdownClasses {
 
     private static List<String> getGuavaUsedTypes() {
         List<String> types = Lists.newArrayList();
-        types.add("com.google.common.base.StandardSystemProperty");
+        types.add("com.google.common.base.Function");
         types.add("com.google.common.base.Ticker");
         types.add("com.google.common.base.Ticker$1");
+        types.add("com.google.common.cache.Cache");
+        types.add("com.google.common.cache.LoadingCache");
+        types.add("com.google.common.collect.Lists");
         return types;
     }
 
@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicLongArray;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.math.IntMath;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -788,7 +789,8 @@ public class AggregateDao implements AggregateRepository {
             preparedStatement.setLong(i++, query.from());
             preparedStatement.setLong(i++, query.to());
             // limit + 100 since this result still needs to be merged with other results
-            preparedStatement.setInt(i++, limit + 100);
+            // (saturated since callers may pass Integer.MAX_VALUE for no limit)
+            preparedStatement.setInt(i++, IntMath.saturatedAdd(limit, 100));
         }
 
         @Override
@@ -919,7 +921,8 @@ public class AggregateDao implements AggregateRepository {
             preparedStatement.setLong(i++, query.from());
             preparedStatement.setLong(i++, query.to());
             // limit + 100 since this result still needs to be merged with other results
-            preparedStatement.setInt(i++, limit + 100);
+            // (saturated since callers may pass Integer.MAX_VALUE for no limit)
+            preparedStatement.setInt(i++, IntMath.saturatedAdd(limit, 100));
         }
 
         @Override
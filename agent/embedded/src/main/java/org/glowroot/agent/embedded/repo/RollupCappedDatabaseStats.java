@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBean {
@@ -44,4 +45,14 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseStats getLzfCodec() {
+        return cappedDatabase.getCodecStats(CappedDatabaseCodec.LZF);
+    }
+
+    @Override
+    public CappedDatabaseStats getDeflateCodec() {
+        return cappedDatabase.getCodecStats(CappedDatabaseCodec.DEFLATE);
+    }
 }
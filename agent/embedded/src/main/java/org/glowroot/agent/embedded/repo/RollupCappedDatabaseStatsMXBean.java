@@ -22,4 +22,7 @@ public interface RollupCappedDatabaseStatsMXBean {
     CappedDatabaseStats getAggregateQueries();
     CappedDatabaseStats getAggregateServiceCalls();
     CappedDatabaseStats getAggregateProfiles();
+
+    CappedDatabaseStats getLzfCodec();
+    CappedDatabaseStats getDeflateCodec();
 }
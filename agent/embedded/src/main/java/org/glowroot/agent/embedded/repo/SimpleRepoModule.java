@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.H2DatabaseStats;
 import org.glowroot.common.util.Clock;
@@ -54,6 +55,12 @@ public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    // codecs used for writing new blocks (existing blocks remain readable after changing these)
+    private static final CappedDatabaseCodec ROLLUP_CAPPED_DATABASE_CODEC = CappedDatabaseCodec
+            .fromName(System.getProperty("glowroot.internal.rollupCappedDatabase.codec", "lzf"));
+    private static final CappedDatabaseCodec TRACE_CAPPED_DATABASE_CODEC = CappedDatabaseCodec
+            .fromName(System.getProperty("glowroot.internal.traceCappedDatabase.codec", "lzf"));
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
@@ -85,11 +92,13 @@ public class SimpleRepoModule {
         for (int i = 0; i < storageConfig.rollupCappedDatabaseSizesMb().size(); i++) {
             File file = new File(dataDir, "rollup-" + i + "-detail.capped.db");
             int sizeKb = storageConfig.rollupCappedDatabaseSizesMb().get(i) * 1024;
-            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, backgroundExecutor, ticker));
+            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, backgroundExecutor, ticker,
+                    ROLLUP_CAPPED_DATABASE_CODEC));
         }
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
-                storageConfig.traceCappedDatabaseSizeMb() * 1024, backgroundExecutor, ticker);
+                storageConfig.traceCappedDatabaseSizeMb() * 1024, backgroundExecutor, ticker,
+                TRACE_CAPPED_DATABASE_CODEC);
 
         SchemaUpgrade schemaUpgrade = new SchemaUpgrade(dataSource);
         Integer initialSchemaVersion = schemaUpgrade.getInitialSchemaVersion();
@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean {
@@ -50,4 +51,14 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
     public CappedDatabaseStats getTraceProfiles() {
         return cappedDatabase.getStats(TRACE_PROFILES);
     }
+
+    @Override
+    public CappedDatabaseStats getLzfCodec() {
+        return cappedDatabase.getCodecStats(CappedDatabaseCodec.LZF);
+    }
+
+    @Override
+    public CappedDatabaseStats getDeflateCodec() {
+        return cappedDatabase.getCodecStats(CappedDatabaseCodec.DEFLATE);
+    }
 }
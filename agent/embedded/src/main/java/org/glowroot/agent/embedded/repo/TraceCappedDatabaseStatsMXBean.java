@@ -23,4 +23,7 @@ public interface TraceCappedDatabaseStatsMXBean {
     CappedDatabaseStats getTraceQueries();
     CappedDatabaseStats getTraceSharedQueryTexts();
     CappedDatabaseStats getTraceProfiles();
+
+    CappedDatabaseStats getLzfCodec();
+    CappedDatabaseStats getDeflateCodec();
 }
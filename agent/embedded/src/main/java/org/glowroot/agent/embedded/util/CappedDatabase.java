@@ -16,6 +16,8 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,73 +26,104 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
-import com.ning.compress.lzf.util.ChunkDecoderFactory;
-import com.ning.compress.lzf.util.ChunkEncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private static final boolean USE_SAFE_LZF_ENCODER;
-
-    static {
-        String arch = StandardSystemProperty.OS_ARCH.value();
-        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
-        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
-                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
-                || "ppc64le".equals(arch);
-        USE_SAFE_LZF_ENCODER =
-                !unalignedAccessAllowed || (JavaVersion.isJ9Jvm() && JavaVersion.isJava6());
-    }
+    // decompressed blocks are cached so that repeated reads of the same block (e.g. reloading a
+    // trace detail page, which reads entries, queries and profile separately) do not need to hit
+    // the file and decompress again
+    private static final int BLOCK_CACHE_SIZE_KB =
+            Integer.getInteger("glowroot.internal.cappedDatabase.blockCacheSizeKb", 1024);
+    // large blocks are not cached, so that a single large block cannot evict all the others
+    private static final int MAX_CACHED_BLOCK_BYTES = BLOCK_CACHE_SIZE_KB * 1024 / 8;
 
     private final File file;
+    // lock is only used by writers, readers do not block writers (and vice versa)
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // the read lock is held by readers, and the write lock is only held while the underlying file
+    // is being replaced (resize) or closed
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    // positional reads on the file channel are safe to perform concurrently
+    // (volatile since it is re-opened by readers if closed due to thread interrupt)
+    private volatile FileChannel inChannel;
+    private final Object reopenLock = new Object();
     private volatile boolean closed = false;
 
+    private final Cache<Long, byte[]> blockCache;
+
+    // codec used for writing new blocks, existing blocks are read using the codec they were written
+    // with
+    private final CappedDatabaseCodec codec;
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
+    private final ImmutableMap<CappedDatabaseCodec, CappedDatabaseStats> statsByCodec;
 
     public CappedDatabase(File file, int requestedSizeKb,
             @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
             throws IOException {
+        this(file, requestedSizeKb, scheduledExecutor, ticker, CappedDatabaseCodec.LZF);
+    }
+
+    public CappedDatabase(File file, int requestedSizeKb,
+            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker,
+            CappedDatabaseCodec codec) throws IOException {
         this.file = file;
         this.ticker = ticker;
+        this.codec = codec;
+        ImmutableMap.Builder<CappedDatabaseCodec, CappedDatabaseStats> statsByCodec =
+                ImmutableMap.builder();
+        for (CappedDatabaseCodec c : CappedDatabaseCodec.values()) {
+            statsByCodec.put(c, new CappedDatabaseStats());
+        }
+        this.statsByCodec = statsByCodec.build();
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
-        inFile = new RandomAccessFile(file, "r");
+        inChannel = openChannel(file);
+        blockCache = CacheBuilder.newBuilder()
+                .maximumWeight(BLOCK_CACHE_SIZE_KB * 1024L)
+                .weigher(new BlockWeigher())
+                .build();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -124,6 +157,11 @@ public class CappedDatabase {
         return stats;
     }
 
+    public CappedDatabaseStats getCodecStats(CappedDatabaseCodec codec) {
+        // non-null since there are stats for every codec
+        return checkNotNull(statsByCodec.get(codec));
+    }
+
     @OnlyUsedByTests
     long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
@@ -145,7 +183,7 @@ public class CappedDatabase {
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(codec.newOutputStream(countingStreamAfterCompression));
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
@@ -156,6 +194,8 @@ public class CappedDatabase {
             }
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
+            getCodecStats(codec).record(countingStreamBeforeCompression.getCount(),
+                    countingStreamAfterCompression.getCount(), endTick - startTick);
             blockStartIndex = out.endBlock();
         }
         // fsync (if really needed here) does not need to be done under lock
@@ -176,13 +216,8 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-
-        try (InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize))) {
-            return parser.parseFrom(input);
+        try {
+            return parser.parseFrom(readBlock(cappedId));
         } catch (Exception e) {
             if (!out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
@@ -204,11 +239,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        try (InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize))) {
+        try (InputStream input = new ByteArrayInputStream(readBlock(cappedId))) {
             SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                     new SizeLimitBypassingParser<T>(parser);
             List<T> messages = Lists.newArrayList();
@@ -218,6 +249,9 @@ public class CappedDatabase {
                 messages.add(message);
             }
             return messages;
+        } catch (CappedBlockRolledOverMidReadException e) {
+            // same as if it had already been overwritten before the read started
+            return ImmutableList.of();
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         } catch (Exception e) {
@@ -228,6 +262,31 @@ public class CappedDatabase {
         }
     }
 
+    private byte[] readBlock(long cappedId) throws IOException {
+        byte[] block = blockCache.getIfPresent(cappedId);
+        if (block != null) {
+            return block;
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying file channel
+        final int bufferSize = 32768;
+        long startTick = ticker.read();
+        InputStream compressedInput =
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+        CappedDatabaseCodec blockCodec = CappedDatabaseCodec.readHeader(compressedInput);
+        try (InputStream input = blockCodec.newInputStream(compressedInput)) {
+            block = ByteStreams.toByteArray(input);
+        }
+        getCodecStats(blockCodec).recordRead(block.length, ticker.read() - startTick);
+        if (block.length <= MAX_CACHED_BLOCK_BYTES) {
+            // capped ids are never re-used, so cached blocks never need to be invalidated (once
+            // overwritten, they are no longer requested, see isOverwritten() checks, and are
+            // eventually evicted)
+            blockCache.put(cappedId, block);
+        }
+        return block;
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
@@ -246,9 +305,14 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            fileLock.writeLock().lock();
+            try {
+                inChannel.close();
+                out.resize(newSizeKb);
+                inChannel = openChannel(file);
+            } finally {
+                fileLock.writeLock().unlock();
+            }
         }
     }
 
@@ -257,27 +321,59 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            closeInChannel();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
-        } else {
-            return new LZFOutputStream(outputStream);
+    private void closeInChannel() throws IOException {
+        fileLock.writeLock().lock();
+        try {
+            inChannel.close();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    // must be called under the file read lock
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            FileChannel channel = inChannel;
+            int n;
+            try {
+                n = channel.read(buffer, currPosition);
+            } catch (ClosedByInterruptException e) {
+                // the interrupt closes the channel for all readers, so re-open it for others
+                reopenInChannel(channel);
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another reader's interrupt
+                reopenInChannel(channel);
+                continue;
+            }
+            if (n == -1) {
+                throw new EOFException();
+            }
+            currPosition += n;
         }
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
-        } else {
-            return new LZFInputStream(inputStream);
+    private void reopenInChannel(FileChannel closedChannel) throws IOException {
+        synchronized (reopenLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (inChannel == closedChannel) {
+                inChannel = openChannel(file);
+            }
         }
     }
 
+    private static FileChannel openChannel(File file) throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -290,11 +386,12 @@ public class CappedDatabase {
         @Override
         public Reader openStream() throws IOException {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
+            // lots of small reads from the underlying file channel
             final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    UTF_8);
+            InputStream compressedInput =
+                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+            CappedDatabaseCodec blockCodec = CappedDatabaseCodec.readHeader(compressedInput);
+            return new InputStreamReader(blockCodec.newInputStream(compressedInput), UTF_8);
         }
     }
 
@@ -313,24 +410,38 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
+            fileLock.readLock().lock();
+            try {
+                checkNotOverwritten();
                 if (blockLength == -1) {
                     long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+                    ByteBuffer buffer = ByteBuffer.allocate(8);
+                    readFully(buffer,
+                            CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                    checkNotOverwritten();
+                    blockLength = buffer.getLong(0);
                 }
                 long filePosition = out.convertToFilePosition(
                         cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
                 long blockRemaining = blockLength - blockIndex;
                 long fileRemaining = out.getSizeKb() * 1024L - filePosition;
                 int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
+                readFully(ByteBuffer.wrap(bytes, off, numToRead),
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                // the writer advances the smallest non-overwritten id before overwriting any bytes,
+                // so checking after the read guarantees that the bytes read were not overwritten
+                // concurrently
+                checkNotOverwritten();
                 blockIndex += numToRead;
                 return numToRead;
+            } finally {
+                fileLock.readLock().unlock();
+            }
+        }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
         }
 
@@ -358,7 +469,7 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    closeInChannel();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -366,6 +477,13 @@ public class CappedDatabase {
         }
     }
 
+    private static class BlockWeigher implements Weigher<Long, byte[]> {
+        @Override
+        public int weigh(Long cappedId, byte[] block) {
+            return block.length;
+        }
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.StandardSystemProperty;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import com.ning.compress.lzf.util.ChunkDecoderFactory;
+import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+import org.glowroot.agent.util.JavaVersion;
+
+// each block records the codec that it was written with, so that the codec can be changed without
+// affecting the readability of existing blocks
+//
+// lzf blocks are written without a codec header (lzf streams always start with 'Z'), which keeps
+// them identical to blocks written before codecs were introduced, while all other codecs write a
+// single header byte
+public enum CappedDatabaseCodec {
+
+    // fast, used by default
+    LZF('Z') {
+        @Override
+        OutputStream newOutputStream(OutputStream out) {
+            if (USE_SAFE_LZF_ENCODER) {
+                return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), out);
+            } else {
+                return new LZFOutputStream(out);
+            }
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) throws IOException {
+            if (USE_SAFE_LZF_ENCODER) {
+                return new LZFInputStream(ChunkDecoderFactory.safeInstance(), in);
+            } else {
+                return new LZFInputStream(in);
+            }
+        }
+    },
+
+    // denser but slower to encode, a better fit for data that is written once and rarely read
+    // (e.g. trace entries)
+    DEFLATE(1) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) throws IOException {
+            out.write(header);
+            return new EndingDeflaterOutputStream(out);
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) {
+            return new EndingInflaterInputStream(in);
+        }
+    },
+
+    // denser than lzf, and faster to encode and decode (pure java implementation from
+    // aircompressor, which requires a little endian platform)
+    LZ4(2) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) throws IOException {
+            out.write(header);
+            return new Lz4OutputStream(out);
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) {
+            return new Lz4InputStream(in);
+        }
+    },
+
+    // denser than deflate, and faster to encode (pure java implementation from aircompressor,
+    // which requires a little endian platform)
+    ZSTD(3) {
+        @Override
+        OutputStream newOutputStream(OutputStream out) throws IOException {
+            out.write(header);
+            return new ZstdOutputStream(out);
+        }
+
+        @Override
+        InputStream newInputStream(InputStream in) {
+            return new ZstdInputStream(in);
+        }
+    };
+
+    // lz4 is a block format, so the stream is written as a sequence of independently compressed
+    // chunks, each preceded by its uncompressed and compressed lengths
+    private static final int LZ4_CHUNK_SIZE = 65536;
+
+    private static final boolean USE_SAFE_LZF_ENCODER;
+
+    static {
+        String arch = StandardSystemProperty.OS_ARCH.value();
+        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
+        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
+                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
+                || "ppc64le".equals(arch);
+        USE_SAFE_LZF_ENCODER =
+                !unalignedAccessAllowed || (JavaVersion.isJ9Jvm() && JavaVersion.isJava6());
+    }
+
+    final int header;
+
+    private CappedDatabaseCodec(int header) {
+        this.header = header;
+    }
+
+    // the returned stream writes the codec header (if any) followed by the compressed data
+    abstract OutputStream newOutputStream(OutputStream out) throws IOException;
+
+    // the passed in stream must already be positioned after the codec header (if any)
+    abstract InputStream newInputStream(InputStream in) throws IOException;
+
+    public static CappedDatabaseCodec fromName(String name) {
+        return valueOf(name.toUpperCase(Locale.ENGLISH));
+    }
+
+    // reads the codec header (if any), the passed in stream must support mark/reset
+    static CappedDatabaseCodec readHeader(InputStream in) throws IOException {
+        in.mark(1);
+        int header = in.read();
+        if (header == LZF.header || header == -1) {
+            // empty blocks are written by lzf as empty
+            in.reset();
+            return LZF;
+        }
+        for (CappedDatabaseCodec codec : values()) {
+            if (codec.header == header) {
+                return codec;
+            }
+        }
+        throw new IOException("Unexpected capped database codec header: " + header);
+    }
+
+    private static class Lz4OutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final Lz4Compressor compressor = new Lz4Compressor();
+        private final byte[] chunk = new byte[LZ4_CHUNK_SIZE];
+        private final byte[] compressed = new byte[compressor.maxCompressedLength(LZ4_CHUNK_SIZE)];
+        private int chunkSize;
+
+        private Lz4OutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (chunkSize == chunk.length) {
+                writeChunk();
+            }
+            chunk[chunkSize++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (chunkSize == chunk.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, chunk.length - chunkSize);
+                System.arraycopy(b, off, chunk, chunkSize, n);
+                chunkSize += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (chunkSize > 0) {
+                writeChunk();
+            }
+            out.close();
+        }
+
+        private void writeChunk() throws IOException {
+            int compressedSize =
+                    compressor.compress(chunk, 0, chunkSize, compressed, 0, compressed.length);
+            out.writeInt(chunkSize);
+            out.writeInt(compressedSize);
+            out.write(compressed, 0, compressedSize);
+            chunkSize = 0;
+        }
+    }
+
+    private static class Lz4InputStream extends InputStream {
+
+        private final DataInputStream in;
+        private final Lz4Decompressor decompressor = new Lz4Decompressor();
+        private byte[] compressed = new byte[0];
+        private byte[] chunk = new byte[0];
+        private int chunkSize;
+        private int chunkIndex;
+
+        private Lz4InputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (chunkIndex == chunkSize && !readChunk()) {
+                return -1;
+            }
+            return chunk[chunkIndex++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkIndex == chunkSize && !readChunk()) {
+                return -1;
+            }
+            int n = Math.min(len, chunkSize - chunkIndex);
+            System.arraycopy(chunk, chunkIndex, b, off, n);
+            chunkIndex += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean readChunk() throws IOException {
+            int firstByte = in.read();
+            if (firstByte == -1) {
+                return false;
+            }
+            int uncompressedSize = (firstByte << 24) | (in.readUnsignedByte() << 16)
+                    | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+            int compressedSize = in.readInt();
+            if (compressed.length < compressedSize) {
+                compressed = new byte[compressedSize];
+            }
+            if (chunk.length < uncompressedSize) {
+                chunk = new byte[uncompressedSize];
+            }
+            in.readFully(compressed, 0, compressedSize);
+            chunkSize = decompressor.decompress(compressed, 0, compressedSize, chunk, 0,
+                    uncompressedSize);
+            chunkIndex = 0;
+            return true;
+        }
+    }
+
+    // these release the native zlib resources on close, instead of waiting on finalization
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+
+        private EndingDeflaterOutputStream(OutputStream out) {
+            super(out, new Deflater());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+
+        private EndingInflaterInputStream(InputStream in) {
+            super(in, new Inflater());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Readers of the underlying file do not need to be synchronized with the writer (see write()).
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -156,6 +157,8 @@ class CappedDatabaseOutputStream extends OutputStream {
         return sizeKb;
     }
 
+    // this is ok to call outside of external synchronization, as long as it is not concurrent with
+    // resize()
     long convertToFilePosition(long index) {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
@@ -226,6 +229,10 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        // advance the smallest non-overwritten id before overwriting any bytes, since readers are
+        // not externally synchronized with the writer and check this after reading
+        smallestNonOverwrittenId =
+                calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex + len, sizeBytes);
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import javax.annotation.concurrent.GuardedBy;
+
 public class CappedDatabaseStats {
 
     private long totalBytesBeforeCompression;
@@ -22,6 +24,15 @@ public class CappedDatabaseStats {
     private long totalNanos;
     private long writeCount;
 
+    // reads are not externally synchronized
+    private final Object readLock = new Object();
+    @GuardedBy("readLock")
+    private long totalBytesAfterDecompression;
+    @GuardedBy("readLock")
+    private long totalReadNanos;
+    @GuardedBy("readLock")
+    private long readCount;
+
     public long getTotalBytesBeforeCompression() {
         return totalBytesBeforeCompression;
     }
@@ -55,10 +66,52 @@ public class CappedDatabaseStats {
         return totalNanos / (1000 * 1000 * (double) writeCount);
     }
 
+    // read stats are only recorded per codec, and only include reads that are not served from the
+    // block cache
+    public double getTotalReadMillis() {
+        synchronized (readLock) {
+            return totalReadNanos / 1000000.0;
+        }
+    }
+
+    public long getReadCount() {
+        synchronized (readLock) {
+            return readCount;
+        }
+    }
+
+    public double getAverageBytesPerReadAfterDecompression() {
+        synchronized (readLock) {
+            if (readCount == 0) {
+                // per type stats never record reads
+                return 0;
+            }
+            return totalBytesAfterDecompression / (double) readCount;
+        }
+    }
+
+    // this includes reading the compressed bytes from disk
+    public double getAverageMillisPerRead() {
+        synchronized (readLock) {
+            if (readCount == 0) {
+                return 0;
+            }
+            return totalReadNanos / (1000 * 1000 * (double) readCount);
+        }
+    }
+
     void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos) {
         totalBytesBeforeCompression += bytesBeforeCompression;
         totalBytesAfterCompression += bytesAfterCompression;
         totalNanos += nanos;
         writeCount++;
     }
+
+    void recordRead(long bytesAfterDecompression, long nanos) {
+        synchronized (readLock) {
+            totalBytesAfterDecompression += bytesAfterDecompression;
+            totalReadNanos += nanos;
+            readCount++;
+        }
+    }
 }
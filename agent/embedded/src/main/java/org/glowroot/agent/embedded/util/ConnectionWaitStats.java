@@ -0,0 +1,54 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import javax.annotation.concurrent.GuardedBy;
+
+// time spent waiting to obtain a connection, tracked separately for the writer connection and for
+// the pool of reader connections
+public class ConnectionWaitStats {
+
+    @GuardedBy("this")
+    private long totalWaitNanos;
+    @GuardedBy("this")
+    private long maxWaitNanos;
+    @GuardedBy("this")
+    private long acquireCount;
+
+    public synchronized double getTotalWaitMillis() {
+        return totalWaitNanos / 1000000.0;
+    }
+
+    public synchronized double getMaxWaitMillis() {
+        return maxWaitNanos / 1000000.0;
+    }
+
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    public synchronized double getAverageWaitMillis() {
+        return totalWaitNanos / (1000 * 1000 * (double) acquireCount);
+    }
+
+    synchronized void record(long waitNanos) {
+        totalWaitNanos += waitNanos;
+        if (waitNanos > maxWaitNanos) {
+            maxWaitNanos = waitNanos;
+        }
+        acquireCount++;
+    }
+}
@@ -24,6 +24,8 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -63,12 +65,27 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // number of connections used (in addition to the single writer connection) for running queries
+    // concurrently with each other and with writes, e.g. so that UI queries are not blocked behind
+    // trace storage or aggregate rollups (H2 MVStore readers do not block on writers)
+    private static final int READER_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readerConnections", 2);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private Connection connection;
+    // idle reader connections, a reader connection is only used by one thread at a time
+    private final BlockingQueue<ReaderConnection> readers;
+    private final int readerConnections;
+    // allows nested queries (e.g. from inside JdbcQuery.processResultSet()) to re-use the reader
+    // connection already held by the current thread instead of waiting on another one
+    private final ThreadLocal</*@Nullable*/ ReaderConnection> currentReader =
+            new ThreadLocal</*@Nullable*/ ReaderConnection>();
+    private final ConnectionWaitStats writerWaitStats = new ConnectionWaitStats();
+    private final ConnectionWaitStats readerWaitStats = new ConnectionWaitStats();
     private volatile boolean closed;
     // H2 cache_size unit is KB; resolved via H2CacheSize (UI + optional system property)
     private volatile int cacheSizeKb;
@@ -101,6 +118,10 @@ public class DataSource {
         dbFile = null;
         cacheSizeKb = resolveInitialCacheSizeKb();
         connection = createConnection(null, cacheSizeKb);
+        // each connection to an unnamed in-memory database gets its own private database, so all
+        // queries use the writer connection
+        readerConnections = 0;
+        readers = new ArrayBlockingQueue<ReaderConnection>(1);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -109,6 +130,12 @@ public class DataSource {
         this.dbFile = dbFile;
         cacheSizeKb = resolveInitialCacheSizeKb();
         connection = createConnection(dbFile, cacheSizeKb);
+        readerConnections = Math.max(READER_CONNECTIONS, 0);
+        readers = new ArrayBlockingQueue<ReaderConnection>(Math.max(readerConnections, 1));
+        for (int i = 0; i < readerConnections; i++) {
+            // reader connections are opened lazily
+            readers.add(new ReaderConnection());
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -142,14 +169,20 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        List<ReaderConnection> closedReaders = closeReaders();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                execute("shutdown compact");
+                connection = createConnection(dbFile, cacheSizeKb);
+                preparedStatementCache.invalidateAll();
             }
-            checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile, cacheSizeKb);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            // reader connections are re-opened lazily
+            readers.addAll(closedReaders);
         }
     }
 
@@ -157,17 +190,35 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        List<ReaderConnection> closedReaders = closeReaders();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                execute("shutdown compact");
+                connection = createConnection(dbFile, cacheSizeKb);
+                preparedStatementCache.invalidateAll();
             }
-            checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile, cacheSizeKb);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            // reader connections are re-opened lazily
+            readers.addAll(closedReaders);
         }
     }
 
+    public int getReaderConnections() {
+        return readerConnections;
+    }
+
+    public ConnectionWaitStats getWriterWaitStats() {
+        return writerWaitStats;
+    }
+
+    public ConnectionWaitStats getReaderWaitStats() {
+        return readerWaitStats;
+    }
+
     public long getH2DataFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
@@ -185,36 +236,45 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            checkConnectionUnderLock();
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile, cacheSizeKb);
-            preparedStatementCache.invalidateAll();
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        List<ReaderConnection> closedReaders = closeReaders();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                List<String> schemaVersionRows =
+                        queryForStringList("select schema_version from schema_version");
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile, cacheSizeKb);
+                preparedStatementCache.invalidateAll();
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                for (String schemaVersionRow : schemaVersionRows) {
+                    update("insert into schema_version (schema_version) values (?)",
+                            schemaVersionRow);
+                }
             }
+        } finally {
+            // reader connections are re-opened lazily
+            readers.addAll(closedReaders);
         }
     }
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writerWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return;
             }
@@ -236,53 +296,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return queryForValue(sql, args, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        }, 0L);
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return queryForValue(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        }, null);
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -301,24 +349,26 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
+        ReaderConnection reader = acquireReader();
+        if (reader == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                writerWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return jdbcQuery.valueIfDataSourceClosed();
+                }
+                checkConnectionUnderLock();
+                return executeQuery(preparedStatementCache, jdbcQuery);
+            }
+        }
+        try {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            reader.checkConnection();
+            return executeQuery(reader.preparedStatementCache, jdbcQuery);
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -336,28 +386,26 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
+        ReaderConnection reader = acquireReader();
+        if (reader == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                writerWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return ImmutableList.of();
+                }
+                checkConnectionUnderLock();
+                return executeQuery(preparedStatementCache, jdbcQuery);
+            }
+        }
+        try {
             if (closed) {
                 return ImmutableList.of();
             }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
+            reader.checkConnection();
+            return executeQuery(reader.preparedStatementCache, jdbcQuery);
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -384,12 +432,15 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return 0;
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writerWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return 0;
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement = prepareStatementUnderLock(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    prepareStatement(preparedStatementCache, jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeUpdate();
             // don't need to close statement since they are all cached and used under lock
@@ -403,12 +454,15 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return new int[0];
         }
+        long startTick = System.nanoTime();
         synchronized (lock) {
+            writerWaitStats.record(System.nanoTime() - startTick);
             if (closed) {
                 return new int[0];
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement = prepareStatementUnderLock(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement =
+                    prepareStatement(preparedStatementCache, jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -422,7 +476,7 @@ public class DataSource {
     public void deleteBefore(@Untainted String tableName, @Untainted String columnName,
             long captureTime) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
+        // lock the writer jdbc connection for one large chunk of time
         int deleted;
         do {
             deleted = update("delete from " + tableName + " where " + columnName
@@ -433,7 +487,7 @@ public class DataSource {
     public void deleteBeforeUsingLock(@Untainted String tableName, @Untainted String columnName,
             long captureTime, Object externalLock) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
+        // lock the writer jdbc connection for one large chunk of time
         int deleted;
         do {
             synchronized (externalLock) {
@@ -541,6 +595,7 @@ public class DataSource {
             closed = true;
             connection.close();
         }
+        readers.addAll(closeReaders());
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
@@ -553,9 +608,95 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
-            int queryTimeoutSeconds) throws SQLException {
+    // returns null if the query should run on the writer connection
+    private @Nullable ReaderConnection acquireReader() throws SQLException {
+        if (readerConnections == 0 || closed || Thread.holdsLock(lock)) {
+            // queries nested under the writer lock (e.g. from deleteAll()) use the writer connection
+            return null;
+        }
+        ReaderConnection reader = currentReader.get();
+        if (reader != null) {
+            reader.nestingDepth++;
+            return reader;
+        }
+        long startTick = System.nanoTime();
+        reader = readers.poll();
+        if (reader == null) {
+            try {
+                reader = readers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+        }
+        readerWaitStats.record(System.nanoTime() - startTick);
+        currentReader.set(reader);
+        return reader;
+    }
+
+    private void releaseReader(ReaderConnection reader) throws SQLException {
+        if (reader.nestingDepth > 0) {
+            reader.nestingDepth--;
+            return;
+        }
+        currentReader.remove();
+        try {
+            if (closed) {
+                reader.close();
+            }
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    // waits for all reader connections to be released and then closes them, this must not be
+    // called while holding the writer lock since a thread holding a reader connection may be
+    // waiting on the writer lock
+    private List<ReaderConnection> closeReaders() throws SQLException {
+        List<ReaderConnection> closedReaders = Lists.newArrayList();
+        try {
+            for (int i = 0; i < readerConnections; i++) {
+                closedReaders.add(readers.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            readers.addAll(closedReaders);
+            throw new SQLException(e);
+        }
+        for (ReaderConnection reader : closedReaders) {
+            reader.close();
+        }
+        return closedReaders;
+    }
+
+    private <T extends /*@Nullable*/ Object> T queryForValue(@Untainted String sql, Object[] args,
+            ResultSetExtractor<T> rse, T valueIfDataSourceClosed) throws SQLException {
+        ReaderConnection reader = acquireReader();
+        if (reader == null) {
+            long startTick = System.nanoTime();
+            synchronized (lock) {
+                writerWaitStats.record(System.nanoTime() - startTick);
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                checkConnectionUnderLock();
+                return executeQuery(preparedStatementCache, sql, args, rse);
+            }
+        }
+        try {
+            if (closed) {
+                return valueIfDataSourceClosed;
+            }
+            reader.checkConnection();
+            return executeQuery(reader.preparedStatementCache, sql, args, rse);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -575,16 +716,61 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
+    // the connection that owns the prepared statement cache must be held by the current thread
+    private <T extends /*@Nullable*/ Object> T executeQuery(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement =
+                prepareStatement(preparedStatementCache, sql, QUERY_TIMEOUT_SECONDS);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
         ResultSet resultSet = preparedStatement.executeQuery();
         return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and only used by the thread
+        // holding the connection
+    }
+
+    private <T> T executeQuery(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            JdbcQuery<T> jdbcQuery) throws Exception {
+        PreparedStatement preparedStatement = prepareStatement(preparedStatementCache,
+                jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+        // don't need to close statement since they are all cached and only used by the thread
+        // holding the connection
+    }
+
+    private <T extends /*@NonNull*/ Object> List<T> executeQuery(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        PreparedStatement preparedStatement = prepareStatement(preparedStatementCache,
+                jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+        // don't need to close statement since they are all cached and only used by the thread
+        // holding the connection
     }
 
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
@@ -727,6 +913,42 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // only used by the thread that acquired it from the readers queue (the queue hand-off provides
+    // visibility between threads)
+    private class ReaderConnection {
+
+        private @Nullable Connection connection;
+        private int nestingDepth;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
+                CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return checkNotNull(connection).prepareStatement(sql);
+                            }
+                        });
+
+        private void checkConnection() throws SQLException {
+            if (connection == null || connection.isClosed()) {
+                // lazily opened, or closed by defrag() / compact() / deleteAll(), or closed
+                // internally (e.g. due to OutOfMemoryError)
+                connection = createConnection(dbFile, cacheSizeKb);
+                preparedStatementCache.invalidateAll();
+            }
+        }
+
+        private void close() throws SQLException {
+            preparedStatementCache.invalidateAll();
+            Connection connection = this.connection;
+            this.connection = null;
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -741,6 +963,16 @@ public class DataSource {
                 synchronized (lock) {
                     connection.close();
                 }
+                // reader connections that are currently in use are closed when they are released
+                List<ReaderConnection> idleReaders = Lists.newArrayList();
+                readers.drainTo(idleReaders);
+                try {
+                    for (ReaderConnection reader : idleReaders) {
+                        reader.close();
+                    }
+                } finally {
+                    readers.addAll(idleReaders);
+                }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
@@ -27,4 +27,19 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public int getReaderConnections() {
+        return dataSource.getReaderConnections();
+    }
+
+    @Override
+    public ConnectionWaitStats getWriterConnectionWait() {
+        return dataSource.getWriterWaitStats();
+    }
+
+    @Override
+    public ConnectionWaitStats getReaderConnectionWait() {
+        return dataSource.getReaderWaitStats();
+    }
 }
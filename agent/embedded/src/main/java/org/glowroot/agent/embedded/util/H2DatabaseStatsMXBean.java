@@ -18,4 +18,10 @@ package org.glowroot.agent.embedded.util;
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    int getReaderConnections();
+
+    ConnectionWaitStats getWriterConnectionWait();
+
+    ConnectionWaitStats getReaderConnectionWait();
 }
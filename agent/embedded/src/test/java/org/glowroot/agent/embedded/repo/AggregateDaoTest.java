@@ -39,6 +39,8 @@ import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector;
+import org.glowroot.common.model.TransactionNameErrorSummaryCollector.ErrorSummarySortOrder;
 import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
@@ -140,6 +142,35 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadTransactionsWithoutLimit() throws Exception {
+        // given
+        populateAggregates();
+
+        // when
+        SummaryQuery summaryQuery = ImmutableSummaryQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        aggregateDao.mergeTransactionNameSummariesInto(AGENT_ID, summaryQuery,
+                SummarySortOrder.TOTAL_TIME, Integer.MAX_VALUE, collector, CassandraProfile.web)
+                .toCompletableFuture().join();
+        TransactionNameErrorSummaryCollector errorCollector =
+                new TransactionNameErrorSummaryCollector();
+        aggregateDao.mergeTransactionNameErrorSummariesInto(AGENT_ID, summaryQuery,
+                ErrorSummarySortOrder.ERROR_COUNT, Integer.MAX_VALUE, errorCollector,
+                CassandraProfile.web).toCompletableFuture().join();
+
+        // then
+        assertThat(collector.getResult(SummarySortOrder.TOTAL_TIME, Integer.MAX_VALUE).records())
+                .hasSize(3);
+        assertThat(errorCollector.getResult(ErrorSummarySortOrder.ERROR_COUNT, Integer.MAX_VALUE)
+                .records()).isEmpty();
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// compares compression ratio and encode/decode time of each codec over trace entries that resemble
+// a typical jdbc-heavy web request
+public class CappedDatabaseCodecPerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabaseCodecPerformanceMain.class);
+
+    private static final int TRACE_COUNT = 2000;
+    private static final int ENTRIES_PER_TRACE = 200;
+
+    private CappedDatabaseCodecPerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<List<Trace.Entry>> traces = Lists.newArrayList();
+        Random random = new Random(0);
+        for (int i = 0; i < TRACE_COUNT; i++) {
+            traces.add(createEntries(random));
+        }
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        for (CappedDatabaseCodec codec : CappedDatabaseCodec.values()) {
+            File file = File.createTempFile("glowroot-perf-", ".capped.db");
+            CappedDatabase cappedDatabase = new CappedDatabase(file, 1000000, scheduledExecutor,
+                    Ticker.systemTicker(), codec);
+            // warm up
+            for (List<Trace.Entry> entries : traces) {
+                long cappedId = cappedDatabase.writeMessages(entries, "entries");
+                cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+            }
+            cappedDatabase.close();
+            file.delete();
+            cappedDatabase = new CappedDatabase(file, 1000000, scheduledExecutor,
+                    Ticker.systemTicker(), codec);
+            long[] cappedIds = new long[traces.size()];
+            for (int i = 0; i < traces.size(); i++) {
+                cappedIds[i] = cappedDatabase.writeMessages(traces.get(i), "entries");
+            }
+            for (long cappedId : cappedIds) {
+                cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+            }
+            CappedDatabaseStats stats = cappedDatabase.getCodecStats(codec);
+            logger.info("{}: compression ratio {}, average write millis {}, average read millis {}",
+                    codec, stats.getCompressionRatio(), stats.getAverageMillisPerWrite(),
+                    stats.getAverageMillisPerRead());
+            cappedDatabase.close();
+            file.delete();
+        }
+        scheduledExecutor.shutdown();
+    }
+
+    private static List<Trace.Entry> createEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        long startOffsetNanos = 0;
+        for (int i = 0; i < ENTRIES_PER_TRACE; i++) {
+            long durationNanos = 10000 + random.nextInt(1000000);
+            Trace.Entry.Builder entry = Trace.Entry.newBuilder()
+                    .setDepth(1 + random.nextInt(3))
+                    .setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(durationNanos);
+            if (random.nextInt(4) == 0) {
+                entry.setMessage("http client request: GET http://inventory-service/items/"
+                        + random.nextInt(100000));
+            } else {
+                entry.setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(random.nextInt(20))
+                        .setPrefix("jdbc query: ")
+                        .setSuffix(" ['" + random.nextInt(100000) + "', " + random.nextInt(10)
+                                + "] => " + random.nextInt(50) + " rows"));
+            }
+            if (durationNanos > 900000) {
+                // slow entries capture the location stack trace
+                for (int j = 0; j < 30; j++) {
+                    entry.addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                            .setClassName("org.springframework.web.servlet.FrameworkServlet" + j)
+                            .setMethodName("processRequest")
+                            .setFileName("FrameworkServlet.java")
+                            .setLineNumber(100 + j));
+                }
+            }
+            entries.add(entry.build());
+            startOffsetNanos += durationNanos;
+        }
+        return entries;
+    }
+}
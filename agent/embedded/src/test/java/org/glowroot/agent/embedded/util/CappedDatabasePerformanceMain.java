@@ -0,0 +1,115 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// measures concurrent read and write throughput, with a single writer (as in production, where
+// writes are from the aggregate flush and trace store) and multiple readers (e.g. UI queries)
+public class CappedDatabasePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabasePerformanceMain.class);
+
+    private static final int READER_THREADS = 8;
+    private static final int BLOCK_COUNT = 1000;
+    private static final int MESSAGES_PER_BLOCK = 1000;
+    private static final int DURATION_SECONDS = 10;
+
+    private CappedDatabasePerformanceMain() {}
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(file, 1000000, scheduledExecutor, Ticker.systemTicker());
+
+        final List<OptionalInt64> messages = Lists.newArrayList();
+        Random random = new Random();
+        for (int i = 0; i < MESSAGES_PER_BLOCK; i++) {
+            messages.add(OptionalInt64.newBuilder()
+                    .setValue(random.nextInt(1000))
+                    .build());
+        }
+        final long[] cappedIds = new long[BLOCK_COUNT];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            cappedIds[i] = cappedDatabase.writeMessages(messages, "perf");
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong writeCount = new AtomicLong();
+        final AtomicLong readCount = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(READER_THREADS + 1);
+        List<Future<Void>> futures = Lists.newArrayList();
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while (!stop.get()) {
+                    cappedDatabase.writeMessages(messages, "perf");
+                    writeCount.incrementAndGet();
+                }
+                return null;
+            }
+        }));
+        for (int i = 0; i < READER_THREADS; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random();
+                    while (!stop.get()) {
+                        // skewed towards recent blocks, similar to UI usage
+                        int index = BLOCK_COUNT - 1
+                                - Math.min(BLOCK_COUNT - 1, Math.abs((int) (random.nextGaussian()
+                                        * BLOCK_COUNT / 4)));
+                        cappedDatabase.readMessages(cappedIds[index], OptionalInt64.parser());
+                        readCount.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        SECONDS.sleep(DURATION_SECONDS);
+        stop.set(true);
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        logger.info("writes per second: {}", writeCount.get() / DURATION_SECONDS);
+        logger.info("reads per second: {}", readCount.get() / DURATION_SECONDS);
+
+        scheduledExecutor.shutdown();
+        cappedDatabase.close();
+        file.delete();
+    }
+}
@@ -18,16 +18,26 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
 import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -152,4 +162,151 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadBlocksWrittenWithDifferentCodecs() throws Exception {
+        // given
+        String text1 = "0123456789";
+        String text2 = "abcdefghij";
+        long cappedId1 = cappedDatabase.write(ByteSource.wrap(text1.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, scheduledExecutor,
+                Ticker.systemTicker(), CappedDatabaseCodec.DEFLATE);
+
+        // when
+        long cappedId2 = cappedDatabase.write(ByteSource.wrap(text2.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(cappedId1).read()).isEqualTo(text1);
+        assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(text2);
+        assertThat(cappedDatabase.getCodecStats(CappedDatabaseCodec.DEFLATE).getWriteCount())
+                .isEqualTo(1);
+        assertThat(cappedDatabase.getCodecStats(CappedDatabaseCodec.LZF).getWriteCount())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReadBlocksLargerThanChunkWithEachCodec() throws Exception {
+        // given
+        cappedDatabase.close();
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(0);
+        while (sb.length() < 200000) {
+            sb.append("select * from employee where id = ").append(random.nextInt(1000))
+                    .append('\n');
+        }
+        String text = sb.toString();
+        for (CappedDatabaseCodec codec : CappedDatabaseCodec.values()) {
+            tempFile.delete();
+            cappedDatabase = new CappedDatabase(tempFile, 1000, scheduledExecutor,
+                    Ticker.systemTicker(), codec);
+
+            // when
+            long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+            long emptyCappedId = cappedDatabase.write(ByteSource.empty(), "test");
+
+            // then
+            assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+            assertThat(cappedDatabase.read(emptyCappedId).read()).isEmpty();
+            assertThat(cappedDatabase.getCodecStats(codec).getCompressionRatio()).isGreaterThan(0.5);
+            cappedDatabase.close();
+        }
+        cappedDatabase = new CappedDatabase(tempFile, 1, scheduledExecutor, Ticker.systemTicker());
+    }
+
+    @Test
+    public void shouldReadMessagesWrittenWithDeflate() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1, scheduledExecutor,
+                Ticker.systemTicker(), CappedDatabaseCodec.DEFLATE);
+        List<OptionalInt64> messages = ImmutableList.of(
+                OptionalInt64.newBuilder().setValue(1).build(),
+                OptionalInt64.newBuilder().setValue(2).build());
+
+        // when
+        long cappedId = cappedDatabase.writeMessages(messages, "test");
+
+        // then
+        assertThat(cappedDatabase.readMessages(cappedId, OptionalInt64.parser()))
+                .isEqualTo(messages);
+        assertThat(cappedDatabase.getCodecStats(CappedDatabaseCodec.DEFLATE).getReadCount())
+                .isEqualTo(1);
+        assertThat(cappedDatabase.getStats("test").getAverageMillisPerRead()).isEqualTo(0);
+        assertThat(cappedDatabase.getStats("test").getAverageBytesPerReadAfterDecompression())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReadConsistentlyWhileWriting() throws Exception {
+        // given
+        List<OptionalInt64> initialMessages =
+                ImmutableList.of(OptionalInt64.newBuilder().setValue(1).build());
+        long initialCappedId = cappedDatabase.writeMessages(initialMessages, "test");
+        final AtomicReference<WrittenBlock> lastWrittenBlock = new AtomicReference<WrittenBlock>(
+                new WrittenBlock(initialCappedId, initialMessages));
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<?> writerFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Random random = new Random();
+                while (!stop.get()) {
+                    // random values so that the lzf compressed blocks are large and force wrapping
+                    List<OptionalInt64> messages = Lists.newArrayList();
+                    for (int i = 0; i < 20; i++) {
+                        messages.add(OptionalInt64.newBuilder()
+                                .setValue(random.nextLong())
+                                .build());
+                    }
+                    long cappedId = cappedDatabase.writeMessages(messages, "test");
+                    lastWrittenBlock.set(new WrittenBlock(cappedId, messages));
+                }
+                return null;
+            }
+        });
+        List<Future<Integer>> readerFutures = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            readerFutures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int validReadCount = 0;
+                    for (int j = 0; j < 2000; j++) {
+                        WrittenBlock writtenBlock = lastWrittenBlock.get();
+                        List<OptionalInt64> messages = cappedDatabase
+                                .readMessages(writtenBlock.cappedId, OptionalInt64.parser());
+                        // either overwritten already or read in full without being corrupted
+                        if (!messages.isEmpty()) {
+                            assertThat(messages).isEqualTo(writtenBlock.messages);
+                            validReadCount++;
+                        }
+                    }
+                    return validReadCount;
+                }
+            }));
+        }
+
+        // when
+        int validReadCount = 0;
+        for (Future<Integer> readerFuture : readerFutures) {
+            validReadCount += readerFuture.get();
+        }
+        stop.set(true);
+        writerFuture.get();
+        executor.shutdown();
+
+        // then
+        assertThat(validReadCount).isGreaterThan(0);
+    }
+
+    private static class WrittenBlock {
+
+        private final long cappedId;
+        private final ImmutableList<OptionalInt64> messages;
+
+        private WrittenBlock(long cappedId, List<OptionalInt64> messages) {
+            this.cappedId = cappedId;
+            this.messages = ImmutableList.copyOf(messages);
+        }
+    }
 }
@@ -15,11 +15,29 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.tainting.qual.Untainted;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +112,132 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldQueryWhileWriterConnectionIsInUse() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            createTable(dataSource);
+            dataSource.update("insert into test (id) values (?)", 1);
+            final CountDownLatch writerInUse = new CountDownLatch(1);
+            final CountDownLatch releaseWriter = new CountDownLatch(1);
+            Future<Integer> future = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return dataSource.update(new JdbcUpdate() {
+                        @Override
+                        public @Untainted String getSql() {
+                            return "insert into test (id) values (?)";
+                        }
+                        @Override
+                        public void bind(PreparedStatement preparedStatement)
+                                throws SQLException {
+                            writerInUse.countDown();
+                            try {
+                                releaseWriter.await();
+                            } catch (InterruptedException e) {
+                                throw new SQLException(e);
+                            }
+                            preparedStatement.setLong(1, 2);
+                        }
+                    });
+                }
+            });
+            writerInUse.await();
+
+            // when
+            long count = dataSource.queryForLong("select count(*) from test");
+            releaseWriter.countDown();
+            future.get(10, SECONDS);
+
+            // then
+            assertThat(count).isEqualTo(1);
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+            assertThat(dataSource.getReaderWaitStats().getAcquireCount()).isEqualTo(2);
+            assertThat(dataSource.getWriterWaitStats().getAcquireCount()).isGreaterThan(0);
+        } finally {
+            executor.shutdown();
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldRunNestedQueriesOnSameReaderConnection() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        try {
+            createTable(dataSource);
+            for (int i = 0; i < 5; i++) {
+                dataSource.update("insert into test (id) values (?)", i);
+            }
+
+            // when
+            long sum = dataSource.query(new JdbcQuery<Long>() {
+                @Override
+                public @Untainted String getSql() {
+                    return "select id from test";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) {}
+                @Override
+                public Long processResultSet(ResultSet resultSet) throws Exception {
+                    long sum = 0;
+                    while (resultSet.next()) {
+                        // more levels of nesting than there are reader connections
+                        sum += dataSource.queryForLong(
+                                "select count(*) from test where id <= ?", resultSet.getLong(1));
+                    }
+                    return sum;
+                }
+                @Override
+                public Long valueIfDataSourceClosed() {
+                    return 0L;
+                }
+            });
+
+            // then
+            assertThat(sum).isEqualTo(1 + 2 + 3 + 4 + 5);
+            assertThat(dataSource.getReaderWaitStats().getAcquireCount()).isEqualTo(1);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldReopenReaderConnectionsAfterDeleteAll() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".mv.db");
+        // let h2 create the database file so that deleteAll() deletes the actual data
+        dbFile.delete();
+        DataSource dataSource = new DataSource(dbFile);
+        try {
+            dataSource.syncTable("schema_version",
+                    ImmutableList.<Column>of(ImmutableColumn.of("schema_version", ColumnType.BIGINT)));
+            createTable(dataSource);
+            dataSource.update("insert into test (id) values (?)", 1);
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+
+            // when
+            dataSource.compact();
+            dataSource.deleteAll();
+
+            // then
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    private static void createTable(DataSource dataSource) throws SQLException {
+        dataSource.syncTable("test",
+                ImmutableList.<Column>of(ImmutableColumn.of("id", ColumnType.BIGINT)));
+        dataSource.syncIndexes("test", ImmutableList.<Index>of());
+    }
 }
@@ -208,6 +208,8 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxServiceCallAggregates(of(500))
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxProfileSamplesPerTransaction(of(50000))
+                .setTraceEntrySpillLimit(0)
+                .setMaxTracesPerSecond(0)
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
                 .build();
     }
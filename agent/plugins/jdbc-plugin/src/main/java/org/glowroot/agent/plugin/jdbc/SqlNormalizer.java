@@ -0,0 +1,363 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+
+// replaces numeric and string literals with "?" and collapses IN lists of literals to "(?)", so
+// that queries executed via plain java.sql.Statement with inlined literals are aggregated together
+// instead of each one being a distinct query
+//
+// this is a single pass lexer, which only needs to distinguish literals from identifiers, quoted
+// identifiers and comments (which are all left as is)
+//
+// string literals follow the sql standard, where a quote is escaped by doubling it, except for
+// postgresql escape strings (e.g. E'it\'s') which are defined to use backslash escapes
+//
+// whether a backslash escapes the quote that follows it in other string literals depends on the
+// database and its settings (e.g. it does in mysql by default, but it does not in most other
+// databases), so the query text is left as is in that case, since guessing wrong either leaks the
+// literal into the query text or swallows the rest of the query into the literal
+class SqlNormalizer {
+
+    // must be a power of 2
+    private static final int CACHE_SIZE = 1024;
+
+    // longer queries are not cached, so that the cache cannot pin down large query strings
+    private static final int MAX_CACHED_SQL_LENGTH = 1000;
+
+    // keywords after which a "-" or "+" is a sign (e.g. "where -1 < x") as opposed to an operator
+    private static final String[] KEYWORDS_BEFORE_SIGN = {"select", "where", "and", "or", "not",
+            "set", "values", "when", "then", "else", "case", "between", "like", "on", "having",
+            "by", "return", "limit", "offset", "is"};
+
+    // bounded cache keyed by identity of the original query text, which helps when the same String
+    // instance (e.g. a constant) is executed over and over
+    //
+    // racy reads and writes are ok since entries are immutable (with final fields) and a missed
+    // cache entry just means normalizing again
+    private static final CacheEntry[] cache = new CacheEntry[CACHE_SIZE];
+
+    private SqlNormalizer() {}
+
+    static String normalize(String sql) {
+        if (sql.length() > MAX_CACHED_SQL_LENGTH) {
+            return normalizeInternal(sql);
+        }
+        int index = System.identityHashCode(sql) & (CACHE_SIZE - 1);
+        @Nullable
+        CacheEntry entry = cache[index];
+        if (entry != null && entry.sql == sql) {
+            return entry.normalizedSql;
+        }
+        String normalizedSql = normalizeInternal(sql);
+        cache[index] = new CacheEntry(sql, normalizedSql);
+        return normalizedSql;
+    }
+
+    static String normalizeInternal(String sql) {
+        int length = sql.length();
+        // lazily created, since many queries do not have any literals
+        @Nullable
+        StringBuilder sb = null;
+        // position in sql up to which has been copied to sb
+        int copied = 0;
+        boolean afterIn = false;
+        // whether the previous token was an operand, in which case a following "-" or "+" is a
+        // binary operator instead of the sign of a number
+        boolean afterOperand = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            int end;
+            if (c == '\'') {
+                end = skipQuoted(sql, i, '\'', isEscapeStringPrefix(sql, i));
+                if (end == -1) {
+                    return sql;
+                }
+                int start = isStringLiteralPrefix(sql, i) ? i - 1 : i;
+                sb = replace(sql, sb, copied, start, "?");
+                copied = end;
+                afterIn = false;
+                afterOperand = true;
+            } else if (c == '"' || c == '`') {
+                end = skipQuoted(sql, i, c, false);
+                if (end == -1) {
+                    return sql;
+                }
+                afterIn = false;
+                afterOperand = true;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                end = skipLineComment(sql, i);
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                end = skipBlockComment(sql, i);
+            } else if (isIdentifierStart(c)) {
+                end = skipIdentifier(sql, i);
+                afterIn = end - i == 2 && sql.regionMatches(true, i, "in", 0, 2);
+                afterOperand = !afterIn && !isKeywordBeforeSign(sql, i, end);
+            } else if (isNumberStart(sql, i)) {
+                end = skipNumber(sql, i);
+                sb = replace(sql, sb, copied, i, "?");
+                copied = end;
+                afterIn = false;
+                afterOperand = true;
+            } else if ((c == '-' || c == '+') && !afterOperand) {
+                int numberStart = skipWhitespace(sql, i + 1);
+                if (numberStart < length && isNumberStart(sql, numberStart)) {
+                    // the sign is part of the literal
+                    end = skipNumber(sql, numberStart);
+                    sb = replace(sql, sb, copied, i, "?");
+                    copied = end;
+                    afterOperand = true;
+                } else {
+                    end = i + 1;
+                }
+                afterIn = false;
+            } else if (c == '(' && afterIn) {
+                end = skipLiteralList(sql, i);
+                if (end == -1) {
+                    end = i + 1;
+                    afterOperand = false;
+                } else {
+                    sb = replace(sql, sb, copied, i, "(?)");
+                    copied = end;
+                    afterOperand = true;
+                }
+                afterIn = false;
+            } else {
+                end = i + 1;
+                if (!Character.isWhitespace(c)) {
+                    afterIn = false;
+                    afterOperand = c == ')' || c == ']' || c == '?';
+                }
+            }
+            i = end;
+        }
+        if (sb == null) {
+            return sql;
+        }
+        sb.append(sql, copied, length);
+        return sb.toString();
+    }
+
+    private static StringBuilder replace(String sql, @Nullable StringBuilder sb, int copied,
+            int start, String replacement) {
+        if (sb == null) {
+            sb = new StringBuilder(sql.length());
+        }
+        sb.append(sql, copied, start);
+        sb.append(replacement);
+        return sb;
+    }
+
+    // returns the index after the closing parenthesis if the list contains only literals and "?"
+    // placeholders, otherwise returns -1
+    private static int skipLiteralList(String sql, int openParen) {
+        int length = sql.length();
+        int i = openParen + 1;
+        boolean expectElement = true;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (expectElement) {
+                if (c == '?') {
+                    i++;
+                } else if (c == '\'') {
+                    i = skipQuoted(sql, i, '\'', false);
+                    if (i == -1) {
+                        return -1;
+                    }
+                } else if ((c == '-' || c == '+') && i + 1 < length
+                        && isNumberStart(sql, i + 1)) {
+                    i = skipNumber(sql, i + 1);
+                } else if (isNumberStart(sql, i)) {
+                    i = skipNumber(sql, i);
+                } else {
+                    return -1;
+                }
+                expectElement = false;
+            } else if (c == ',') {
+                i++;
+                expectElement = true;
+            } else if (c == ')') {
+                return i + 1;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index after the closing quote (or the end of sql if not closed), or -1 if it
+    // depends on the database whether a backslash escapes the quote
+    private static int skipQuoted(String sql, int openQuote, char quote,
+            boolean backslashEscapes) {
+        int length = sql.length();
+        int i = openQuote + 1;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\\' && backslashEscapes) {
+                i += 2;
+                continue;
+            }
+            if (c == quote) {
+                if (quote != '`' && isPrecededByOddBackslashes(sql, openQuote, i)) {
+                    return -1;
+                }
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    // escaped quote
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    // an odd number of backslashes means the last one escapes the quote if backslash escapes are
+    // enabled (while an even number are all escaped backslashes)
+    private static boolean isPrecededByOddBackslashes(String sql, int openQuote, int quote) {
+        int i = quote - 1;
+        while (i > openQuote && sql.charAt(i) == '\\') {
+            i--;
+        }
+        return (quote - 1 - i) % 2 == 1;
+    }
+
+    private static int skipWhitespace(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        while (i < length && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipLineComment(String sql, int start) {
+        int index = sql.indexOf('\n', start + 2);
+        return index == -1 ? sql.length() : index + 1;
+    }
+
+    private static int skipBlockComment(String sql, int start) {
+        int index = sql.indexOf("*/", start + 2);
+        return index == -1 ? sql.length() : index + 2;
+    }
+
+    private static int skipIdentifier(String sql, int start) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length && isIdentifierPart(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        if (sql.charAt(i) == '0' && i + 1 < length
+                && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(sql.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length && (isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                j++;
+            }
+            if (j < length && isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static boolean isNumberStart(String sql, int i) {
+        char c = sql.charAt(i);
+        if (isDigit(c)) {
+            return true;
+        }
+        return c == '.' && i + 1 < sql.length() && isDigit(sql.charAt(i + 1))
+                && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)));
+    }
+
+    private static boolean isKeywordBeforeSign(String sql, int start, int end) {
+        for (String keyword : KEYWORDS_BEFORE_SIGN) {
+            if (end - start == keyword.length()
+                    && sql.regionMatches(true, start, keyword, 0, keyword.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // e.g. N'abc' (national character) or E'abc' (postgresql escape string)
+    private static boolean isStringLiteralPrefix(String sql, int openQuote) {
+        if (openQuote == 0) {
+            return false;
+        }
+        char c = sql.charAt(openQuote - 1);
+        if (c != 'N' && c != 'n' && c != 'E' && c != 'e' && c != 'X' && c != 'x' && c != 'B'
+                && c != 'b') {
+            return false;
+        }
+        return openQuote == 1 || !isIdentifierPart(sql.charAt(openQuote - 2));
+    }
+
+    // e.g. E'it\'s' (postgresql escape string)
+    private static boolean isEscapeStringPrefix(String sql, int openQuote) {
+        if (!isStringLiteralPrefix(sql, openQuote)) {
+            return false;
+        }
+        char c = sql.charAt(openQuote - 1);
+        return c == 'E' || c == 'e';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static class CacheEntry {
+
+        private final String sql;
+        private final String normalizedSql;
+
+        private CacheEntry(String sql, String normalizedSql) {
+            this.sql = sql;
+            this.normalizedSql = normalizedSql;
+        }
+    }
+}
@@ -60,6 +60,9 @@ public class StatementAspect {
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
 
+    private static final BooleanProperty normalizeStatementLiterals =
+            configService.getBooleanProperty("normalizeStatementLiterals");
+
     private static boolean captureBindParameters;
 
     static {
@@ -316,7 +319,7 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
+            QueryEntry query = context.startQueryEntry(QUERY_TYPE, getQueryText(sql),
                     QueryMessageSupplier.create("jdbc query: "), timerName);
             mirror.setLastQueryEntry(query);
             return query;
@@ -588,7 +591,7 @@ public class StatementAspect {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(sql);
+                    sb.append(getQueryText(sql));
                     first = false;
                 }
                 concatenated = sb.toString();
@@ -601,6 +604,15 @@ public class StatementAspect {
         }
     }
 
+    // literals are only normalized for plain Statements, since PreparedStatements already use bind
+    // parameters (and their captured bind parameters need to line up with the query text)
+    private static String getQueryText(String sql) {
+        if (normalizeStatementLiterals.value()) {
+            return SqlNormalizer.normalize(sql);
+        }
+        return sql;
+    }
+
     // ================== Additional ResultSet Tracking ==================
 
     @Pointcut(className = "java.sql.Statement", methodName = "getResultSet",
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select * from employee where id = 123 and name = 'john o''brien'"))
+                        .isEqualTo("select * from employee where id = ? and name = ?");
+        assertThat(SqlNormalizer.normalizeInternal(
+                "update t set a = 1.5e-3, b = .25, c = 0x1F, d = N'abc' where e = -7"))
+                        .isEqualTo("update t set a = ?, b = ?, c = ?, d = ? where e = ?");
+    }
+
+    @Test
+    public void shouldFoldSignIntoLiteral() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select -1, x from t where a = -7 and b in (-1, +2) and c > - 3 and d = +.5"))
+                        .isEqualTo(
+                                "select ?, x from t where a = ? and b in (?) and c > ? and d = ?");
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select a-1, b - 2, f(c) + 3, ? - 4, 'x' || -5 from t"))
+                        .isEqualTo("select a-?, b - ?, f(c) + ?, ? - ?, ? || ? from t");
+    }
+
+    @Test
+    public void shouldTreatBackslashAsRegularCharacterBeforeNonQuote() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select * from t where path = 'C:\\dir' and name = 'x\\\\' and id = 5"))
+                        .isEqualTo("select * from t where path = ? and name = ? and id = ?");
+    }
+
+    @Test
+    public void shouldTreatBackslashAsEscapeInEscapeStrings() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select * from t where name = E'it\\'s' and path = e'C:\\\\' and id = 5"))
+                        .isEqualTo("select * from t where name = ? and path = ? and id = ?");
+    }
+
+    @Test
+    public void shouldNotNormalizeWhenBackslashMayEscapeQuote() {
+        // e.g. mysql by default
+        String sql = "select * from t where name = 'O\\'Brien' and id = 5";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+        sql = "select * from t where name = 'it\\''s' and id = 5";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+        sql = "select * from t where name = \"O\\\"Brien\" and id = 5";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+        // e.g. sql standard
+        sql = "select * from t where path = 'C:\\' and id = 5";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+        sql = "select * from t where id in (1, 'C:\\') and id = 5";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select * from t where id in (1, 2, 3) and name IN ('a','b') and x in (?, ?)"))
+                        .isEqualTo("select * from t where id in (?) and name IN (?) and x in (?)");
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select * from t where id in (select id from u where v = 1)"))
+                        .isEqualTo("select * from t where id in (select id from u where v = ?)");
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersOrComments() {
+        assertThat(SqlNormalizer.normalizeInternal(
+                "select t1.col_2, \"x 3\" from table1 t1 -- id = 5\nwhere /* 'a' */ t1.a = b"))
+                        .isEqualTo("select t1.col_2, \"x 3\" from table1 t1 -- id = 5\n"
+                                + "where /* 'a' */ t1.a = b");
+    }
+
+    @Test
+    public void shouldReturnSameInstanceWhenNothingToNormalize() {
+        String sql = "select * from employee";
+        assertThat(SqlNormalizer.normalizeInternal(sql)).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldCacheByIdentity() {
+        String sql = "select * from employee where id = 1";
+        assertThat(SqlNormalizer.normalize(sql)).isSameAs(SqlNormalizer.normalize(sql));
+    }
+
+    @Test
+    public void shouldNotCacheLongQueries() {
+        StringBuilder sb = new StringBuilder("select * from employee where id in (1");
+        for (int i = 0; i < 1000; i++) {
+            sb.append(", 1");
+        }
+        String sql = sb.append(") and name = 'x'").toString();
+        String normalizedSql = SqlNormalizer.normalize(sql);
+        assertThat(normalizedSql).isEqualTo("select * from employee where id in (?) and name = ?");
+        assertThat(SqlNormalizer.normalize(sql)).isNotSameAs(normalizedSql);
+    }
+}
@@ -21,7 +21,9 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import com.google.common.collect.Maps;
 import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbcp.DelegatingStatement;
 import org.junit.jupiter.api.AfterEach;
@@ -40,6 +42,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class StatementIT {
 
+    private static final String PLUGIN_ID = "jdbc";
+
     private static Container container;
 
     @BeforeAll
@@ -150,6 +154,57 @@ public class StatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testStatementUpdateWithNormalizedLiterals() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeStatementLiterals",
+                true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementUpdatesWithLiterals.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("update employee set name = ? where id > ?");
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+
+        entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("update employee set name = ? where id > ?");
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+
+        // whether the backslash escapes the quote depends on the database, so not normalized
+        entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("update employee set name = 'C:\\' where id > -3");
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+
+        assertThat(i.hasNext()).isFalse();
+
+        Map<String, Aggregate.Query> queries = Maps.newHashMap();
+        for (Aggregate.Query query : trace.getQueryList()) {
+            assertThat(query.getType()).isEqualTo("SQL");
+            queries.put(sharedQueryTexts.get(query.getSharedQueryTextIndex()).getFullText(),
+                    query);
+        }
+        assertThat(queries).hasSize(2);
+
+        Aggregate.Query query = queries.get("update employee set name = ? where id > ?");
+        assertThat(query.getExecutionCount()).isEqualTo(2);
+        assertThat(query.getTotalRows().getValue()).isEqualTo(6);
+
+        query = queries.get("update employee set name = 'C:\\' where id > -3");
+        assertThat(query.getExecutionCount()).isEqualTo(1);
+        assertThat(query.getTotalRows().getValue()).isEqualTo(3);
+    }
+
     @Test
     public void testNullStatement() throws Exception {
         // when
@@ -495,6 +550,31 @@ public class StatementIT {
         }
     }
 
+    public static class ExecuteStatementUpdatesWithLiterals
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("update employee set name = 'nobody' where id > -1");
+                statement.executeUpdate("update employee set name = 'O''Brien' where id > -2");
+                statement.executeUpdate("update employee set name = 'C:\\' where id > -3");
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteNullStatement implements AppUnderTest, TransactionMarker {
         private Connection delegatingConnection;
         @Override
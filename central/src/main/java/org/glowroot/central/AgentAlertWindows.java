@@ -0,0 +1,433 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.central.repo.proto.StoredAlertWindows;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.util.AlertingService.MetricWindowValue;
+import org.glowroot.common2.repo.util.ImmutableMetricWindowValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sliding windows over the data that an agent's metric alerts are calculated from, which are fed
+// directly from the aggregates and gauge values as they are received from the agent, so that once
+// a window covers an alert's time period, checking the alert does not need to read anything back
+// from the database
+//
+// only the transaction types/names and gauges that are referenced by the agent's alert configs are
+// tracked, each for the longest time period of the alerts that reference it
+class AgentAlertWindows {
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    // these are guarded by this
+    private final Map<TransactionKey, TransactionWindow> transactionWindows = Maps.newHashMap();
+    private final Map<String, GaugeWindow> gaugeWindows = Maps.newHashMap();
+    // the alert configs that the windows were last updated from, the agent config is cached so
+    // this is the same instance until the agent config changes
+    private @Nullable List<AlertConfig> alertConfigs;
+
+    static boolean isSupported(MetricCondition metricCondition) {
+        String metric = metricCondition.getMetric();
+        if (metric.equals("error:count")) {
+            // error message filter requires reading traces
+            return metricCondition.getErrorMessageFilter().isEmpty();
+        }
+        return metric.equals("transaction:x-percentile") || metric.equals("transaction:average")
+                || metric.equals("transaction:count") || metric.equals("error:rate")
+                || metric.startsWith("gauge:");
+    }
+
+    static AgentAlertWindows fromProto(StoredAlertWindows.AlertWindows alertWindows)
+            throws InvalidProtocolBufferException {
+        AgentAlertWindows agentAlertWindows = new AgentAlertWindows();
+        for (StoredAlertWindows.TransactionWindow window : alertWindows
+                .getTransactionWindowList()) {
+            TransactionWindow transactionWindow = new TransactionWindow();
+            transactionWindow.coveredFrom = window.getCoveredFrom();
+            transactionWindow.needsHistogram = window.getNeedsHistogram();
+            for (StoredAlertWindows.TransactionBucket bucket : window.getBucketList()) {
+                Aggregate.@Nullable Histogram durationNanosHistogram = null;
+                if (!bucket.getDurationNanosHistogram().isEmpty()) {
+                    durationNanosHistogram =
+                            Aggregate.Histogram.parseFrom(bucket.getDurationNanosHistogram());
+                }
+                transactionWindow.buckets.put(bucket.getCaptureTime(),
+                        new TransactionBucket(bucket.getTotalDurationNanos(),
+                                bucket.getTransactionCount(), bucket.getErrorCount(),
+                                durationNanosHistogram));
+            }
+            agentAlertWindows.transactionWindows.put(
+                    ImmutableTransactionKey.of(window.getTransactionType(),
+                            Strings.emptyToNull(window.getTransactionName())),
+                    transactionWindow);
+        }
+        for (StoredAlertWindows.GaugeWindow window : alertWindows.getGaugeWindowList()) {
+            GaugeWindow gaugeWindow = new GaugeWindow();
+            gaugeWindow.coveredFrom = window.getCoveredFrom();
+            for (StoredAlertWindows.GaugeBucket bucket : window.getBucketList()) {
+                gaugeWindow.buckets.put(bucket.getCaptureTime(),
+                        new GaugeBucket(bucket.getValue(), bucket.getWeight()));
+            }
+            agentAlertWindows.gaugeWindows.put(window.getGaugeName(), gaugeWindow);
+        }
+        return agentAlertWindows;
+    }
+
+    // returns false if none of the alert configs can be calculated from alert windows
+    synchronized boolean updateAlertConfigs(List<AlertConfig> alertConfigs) {
+        if (alertConfigs == this.alertConfigs) {
+            return !transactionWindows.isEmpty() || !gaugeWindows.isEmpty();
+        }
+        this.alertConfigs = alertConfigs;
+        Map<TransactionKey, Long> transactionRetentionMillis = Maps.newHashMap();
+        Set<TransactionKey> histogramTransactionKeys = Sets.newHashSet();
+        Map<String, Long> gaugeRetentionMillis = Maps.newHashMap();
+        for (AlertConfig alertConfig : alertConfigs) {
+            AlertCondition alertCondition = alertConfig.getCondition();
+            if (alertCondition.getValCase() != AlertCondition.ValCase.METRIC_CONDITION) {
+                continue;
+            }
+            MetricCondition metricCondition = alertCondition.getMetricCondition();
+            if (!isSupported(metricCondition)) {
+                continue;
+            }
+            long timePeriodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+            String metric = metricCondition.getMetric();
+            if (metric.startsWith("gauge:")) {
+                gaugeRetentionMillis.merge(metric.substring("gauge:".length()),
+                        timePeriodMillis, Math::max);
+            } else {
+                TransactionKey transactionKey = getTransactionKey(metricCondition);
+                transactionRetentionMillis.merge(transactionKey, timePeriodMillis, Math::max);
+                if (metric.equals("transaction:x-percentile")) {
+                    histogramTransactionKeys.add(transactionKey);
+                }
+            }
+        }
+        transactionWindows.keySet().retainAll(transactionRetentionMillis.keySet());
+        for (Map.Entry<TransactionKey, Long> entry : transactionRetentionMillis.entrySet()) {
+            TransactionKey transactionKey = entry.getKey();
+            TransactionWindow window = transactionWindows.get(transactionKey);
+            if (window == null) {
+                window = new TransactionWindow();
+                transactionWindows.put(transactionKey, window);
+            }
+            window.retentionMillis = entry.getValue();
+            boolean needsHistogram = histogramTransactionKeys.contains(transactionKey);
+            if (needsHistogram && !window.needsHistogram) {
+                // existing buckets do not have histograms, so start over
+                window.buckets.clear();
+                window.coveredFrom = Long.MAX_VALUE;
+            }
+            window.needsHistogram = needsHistogram;
+        }
+        gaugeWindows.keySet().retainAll(gaugeRetentionMillis.keySet());
+        for (Map.Entry<String, Long> entry : gaugeRetentionMillis.entrySet()) {
+            GaugeWindow window = gaugeWindows.get(entry.getKey());
+            if (window == null) {
+                window = new GaugeWindow();
+                gaugeWindows.put(entry.getKey(), window);
+            }
+            window.retentionMillis = entry.getValue();
+        }
+        return !transactionWindows.isEmpty() || !gaugeWindows.isEmpty();
+    }
+
+    synchronized void addAggregates(long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList) {
+        if (transactionWindows.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<TransactionKey, TransactionWindow> entry : transactionWindows.entrySet()) {
+            TransactionKey transactionKey = entry.getKey();
+            TransactionWindow window = entry.getValue();
+            Aggregate aggregate = getAggregate(aggregatesByTypeList, transactionKey);
+            if (aggregate != null) {
+                window.buckets.put(captureTime, new TransactionBucket(
+                        aggregate.getTotalDurationNanos(), aggregate.getTransactionCount(),
+                        aggregate.getErrorCount(),
+                        window.needsHistogram ? aggregate.getDurationNanosHistogram() : null));
+            }
+            window.added(captureTime);
+        }
+    }
+
+    synchronized void addGaugeValues(List<GaugeValue> gaugeValues) {
+        if (gaugeWindows.isEmpty() || gaugeValues.isEmpty()) {
+            return;
+        }
+        long minCaptureTime = Long.MAX_VALUE;
+        long maxCaptureTime = Long.MIN_VALUE;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            minCaptureTime = Math.min(minCaptureTime, gaugeValue.getCaptureTime());
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+            GaugeWindow window = gaugeWindows.get(gaugeValue.getGaugeName());
+            if (window != null) {
+                window.buckets.put(gaugeValue.getCaptureTime(),
+                        new GaugeBucket(gaugeValue.getValue(), gaugeValue.getWeight()));
+            }
+        }
+        for (GaugeWindow window : gaugeWindows.values()) {
+            window.added(minCaptureTime);
+            window.prune(maxCaptureTime);
+        }
+    }
+
+    // returns null if the alert's metric cannot be calculated from the alert windows, in which
+    // case it needs to be read from the database
+    synchronized @Nullable MetricWindowValue getMetricWindowValue(
+            MetricCondition metricCondition, long endTime) {
+        if (!isSupported(metricCondition)) {
+            return null;
+        }
+        // the data at startTime is not included, same as when reading from the database
+        long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+        String metric = metricCondition.getMetric();
+        if (metric.startsWith("gauge:")) {
+            GaugeWindow window = gaugeWindows.get(metric.substring("gauge:".length()));
+            if (window == null || !window.covers(startTime)) {
+                return null;
+            }
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (GaugeBucket bucket : window.buckets.subMap(startTime, false, endTime, true)
+                    .values()) {
+                totalWeightedValue += bucket.value * bucket.weight;
+                totalWeight += bucket.weight;
+            }
+            return ImmutableMetricWindowValue.builder()
+                    .value(totalWeight == 0 ? null : totalWeightedValue / totalWeight)
+                    .transactionCount(0)
+                    .build();
+        }
+        TransactionWindow window = transactionWindows.get(getTransactionKey(metricCondition));
+        if (window == null || !window.covers(startTime)) {
+            return null;
+        }
+        boolean percentile = metric.equals("transaction:x-percentile");
+        if (percentile && !window.needsHistogram) {
+            return null;
+        }
+        double totalDurationNanos = 0;
+        long totalTransactionCount = 0;
+        long totalErrorCount = 0;
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
+        for (TransactionBucket bucket : window.buckets.subMap(startTime, false, endTime, true)
+                .values()) {
+            totalDurationNanos += bucket.totalDurationNanos;
+            totalTransactionCount += bucket.transactionCount;
+            totalErrorCount += bucket.errorCount;
+            if (percentile && bucket.durationNanosHistogram != null) {
+                durationNanosHistogram.merge(bucket.durationNanosHistogram);
+            }
+        }
+        Double value;
+        if (metric.equals("transaction:count")) {
+            value = (double) totalTransactionCount;
+        } else if (metric.equals("error:count")) {
+            value = (double) totalErrorCount;
+        } else if (totalTransactionCount == 0) {
+            // cannot calculate due to no data
+            value = null;
+        } else if (percentile) {
+            value = durationNanosHistogram.getValueAtPercentile(
+                    metricCondition.getPercentile().getValue()) / NANOSECONDS_PER_MILLISECOND;
+        } else if (metric.equals("transaction:average")) {
+            value = totalDurationNanos / (totalTransactionCount * NANOSECONDS_PER_MILLISECOND);
+        } else {
+            // error:rate
+            value = (100.0 * totalErrorCount) / totalTransactionCount;
+        }
+        return ImmutableMetricWindowValue.builder()
+                .value(value)
+                .transactionCount(totalTransactionCount)
+                .build();
+    }
+
+    synchronized boolean isEmpty() {
+        return transactionWindows.isEmpty() && gaugeWindows.isEmpty();
+    }
+
+    synchronized StoredAlertWindows.AlertWindows toProto() {
+        StoredAlertWindows.AlertWindows.Builder builder =
+                StoredAlertWindows.AlertWindows.newBuilder();
+        for (Map.Entry<TransactionKey, TransactionWindow> entry : transactionWindows.entrySet()) {
+            TransactionKey transactionKey = entry.getKey();
+            TransactionWindow window = entry.getValue();
+            StoredAlertWindows.TransactionWindow.Builder windowBuilder =
+                    StoredAlertWindows.TransactionWindow.newBuilder()
+                            .setTransactionType(transactionKey.transactionType())
+                            .setTransactionName(
+                                    Strings.nullToEmpty(transactionKey.transactionName()))
+                            .setCoveredFrom(window.coveredFrom)
+                            .setNeedsHistogram(window.needsHistogram);
+            for (Map.Entry<Long, TransactionBucket> bucketEntry : window.buckets.entrySet()) {
+                TransactionBucket bucket = bucketEntry.getValue();
+                StoredAlertWindows.TransactionBucket.Builder bucketBuilder =
+                        StoredAlertWindows.TransactionBucket.newBuilder()
+                                .setCaptureTime(bucketEntry.getKey())
+                                .setTotalDurationNanos(bucket.totalDurationNanos)
+                                .setTransactionCount(bucket.transactionCount)
+                                .setErrorCount(bucket.errorCount);
+                if (bucket.durationNanosHistogram != null) {
+                    bucketBuilder.setDurationNanosHistogram(
+                            bucket.durationNanosHistogram.toByteString());
+                }
+                windowBuilder.addBucket(bucketBuilder);
+            }
+            builder.addTransactionWindow(windowBuilder);
+        }
+        for (Map.Entry<String, GaugeWindow> entry : gaugeWindows.entrySet()) {
+            GaugeWindow window = entry.getValue();
+            StoredAlertWindows.GaugeWindow.Builder windowBuilder =
+                    StoredAlertWindows.GaugeWindow.newBuilder()
+                            .setGaugeName(entry.getKey())
+                            .setCoveredFrom(window.coveredFrom);
+            for (Map.Entry<Long, GaugeBucket> bucketEntry : window.buckets.entrySet()) {
+                GaugeBucket bucket = bucketEntry.getValue();
+                windowBuilder.addBucket(StoredAlertWindows.GaugeBucket.newBuilder()
+                        .setCaptureTime(bucketEntry.getKey())
+                        .setValue(bucket.value)
+                        .setWeight(bucket.weight));
+            }
+            builder.addGaugeWindow(windowBuilder);
+        }
+        return builder.build();
+    }
+
+    private static TransactionKey getTransactionKey(MetricCondition metricCondition) {
+        return ImmutableTransactionKey.of(metricCondition.getTransactionType(),
+                Strings.emptyToNull(metricCondition.getTransactionName()));
+    }
+
+    private static @Nullable Aggregate getAggregate(List<OldAggregatesByType> aggregatesByTypeList,
+            TransactionKey transactionKey) {
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            if (!aggregatesByType.getTransactionType().equals(transactionKey.transactionType())) {
+                continue;
+            }
+            String transactionName = transactionKey.transactionName();
+            if (transactionName == null) {
+                return aggregatesByType.getOverallAggregate();
+            }
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (transactionAggregate.getTransactionName().equals(transactionName)) {
+                    return transactionAggregate.getAggregate();
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TransactionKey {
+        String transactionType();
+        @Nullable
+        String transactionName();
+    }
+
+    private static class Window<B> {
+
+        final NavigableMap<Long, B> buckets = new TreeMap<>();
+
+        // all capture times >= coveredFrom have been added to this window
+        long coveredFrom = Long.MAX_VALUE;
+
+        long retentionMillis;
+
+        void added(long captureTime) {
+            if (coveredFrom == Long.MAX_VALUE) {
+                coveredFrom = captureTime;
+            }
+            prune(captureTime);
+        }
+
+        void prune(long captureTime) {
+            // buckets at or before this are not needed by any alert that is checked from now on
+            long pruneTo = captureTime - retentionMillis;
+            NavigableMap<Long, B> pruned = buckets.headMap(pruneTo, true);
+            if (!pruned.isEmpty()) {
+                pruned.clear();
+            }
+            if (coveredFrom <= pruneTo) {
+                coveredFrom = pruneTo + 1;
+            }
+        }
+
+        boolean covers(long startTime) {
+            // the data at startTime is not included in the alert's time period
+            return startTime + 1 >= coveredFrom;
+        }
+    }
+
+    private static class TransactionWindow extends Window<TransactionBucket> {
+        boolean needsHistogram;
+    }
+
+    private static class GaugeWindow extends Window<GaugeBucket> {}
+
+    private static class TransactionBucket {
+
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final long errorCount;
+        private final Aggregate.@Nullable Histogram durationNanosHistogram;
+
+        private TransactionBucket(double totalDurationNanos, long transactionCount,
+                long errorCount, Aggregate.@Nullable Histogram durationNanosHistogram) {
+            this.totalDurationNanos = totalDurationNanos;
+            this.transactionCount = transactionCount;
+            this.errorCount = errorCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+
+    private static class GaugeBucket {
+
+        private final double value;
+        private final long weight;
+
+        private GaugeBucket(double value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -16,27 +16,39 @@
 package org.glowroot.central;
 
 import com.google.common.base.Stopwatch;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.agent.api.Instrumentation.AlreadyInTransactionBehavior;
+import org.glowroot.central.repo.AlertWindowsDao;
 import org.glowroot.central.repo.AlertingDisabledDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.util.MoreExecutors2;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.CassandraProfile;
 import org.glowroot.common2.repo.ConfigRepository.AgentConfigNotFoundException;
 import org.glowroot.common2.repo.util.AlertingService;
+import org.glowroot.common2.repo.util.AlertingService.MetricWindowValue;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -49,8 +61,17 @@ class CentralAlertingService {
     private final AlertingService alertingService;
     private final HeartbeatAlertingService heartbeatAlertingService;
     private final AlertingDisabledDao alertingDisabledDao;
+    private final AlertWindowsDao alertWindowsDao;
     private final Clock clock;
 
+    // alert windows are fed from the data received from agents, which only works when all of an
+    // agent's data is received by this central node, i.e. not when running in a cluster (where
+    // agents distribute their requests across the central nodes)
+    private final boolean alertWindowsEnabled;
+
+    private final ConcurrentMap<String, CompletableFuture<AgentAlertWindows>> agentAlertWindows =
+            new ConcurrentHashMap<>();
+
     private final ExecutorService workerExecutor;
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
@@ -59,11 +80,14 @@ class CentralAlertingService {
 
     CentralAlertingService(ConfigRepositoryImpl configRepository, AlertingService alertingService,
                            HeartbeatAlertingService heartbeatAlertingService,
-                           AlertingDisabledDao alertingDisabledDao, Clock clock) {
+                           AlertingDisabledDao alertingDisabledDao, AlertWindowsDao alertWindowsDao,
+                           boolean alertWindowsEnabled, Clock clock) {
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.heartbeatAlertingService = heartbeatAlertingService;
         this.alertingDisabledDao = alertingDisabledDao;
+        this.alertWindowsDao = alertWindowsDao;
+        this.alertWindowsEnabled = alertWindowsEnabled;
         this.clock = clock;
         workerExecutor = MoreExecutors2.newCachedThreadPool("Alert-Async-Worker-%d");
     }
@@ -78,6 +102,37 @@ class CentralAlertingService {
         }
     }
 
+    // needs to be called after the grpc server has been closed, so that no more data is added to the
+    // alert windows
+    void checkpointAlertWindows() {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<AgentAlertWindows>> entry : agentAlertWindows
+                .entrySet()) {
+            AgentAlertWindows alertWindows = entry.getValue().getNow(null);
+            if (alertWindows == null || alertWindows.isEmpty()) {
+                continue;
+            }
+            futures.add(alertWindowsDao.store(entry.getKey(), alertWindows.toProto(),
+                    CassandraProfile.collector).toCompletableFuture());
+        }
+        try {
+            MoreFutures.waitForAll(futures);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    CompletionStage<?> addAggregatesToAlertWindows(String agentId, long captureTime,
+                                                   List<OldAggregatesByType> aggregatesByTypeList) {
+        return updateAlertWindows(agentId,
+                alertWindows -> alertWindows.addAggregates(captureTime, aggregatesByTypeList));
+    }
+
+    CompletionStage<?> addGaugeValuesToAlertWindows(String agentId, List<GaugeValue> gaugeValues) {
+        return updateAlertWindows(agentId,
+                alertWindows -> alertWindows.addGaugeValues(gaugeValues));
+    }
+
     CompletionStage<?> checkForDeletedAlerts(String agentRollupId, CassandraProfile profile) {
         return alertingService.checkForDeletedAlerts(agentRollupId, profile);
     }
@@ -184,6 +239,74 @@ class CentralAlertingService {
         });
     }
 
+    private CompletionStage<?> updateAlertWindows(String agentId,
+                                                  Consumer<AgentAlertWindows> update) {
+        if (!alertWindowsEnabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return configRepository.getAlertConfigsNonBlocking(agentId).thenCompose(alertConfigs -> {
+            CompletableFuture<AgentAlertWindows> future = agentAlertWindows.get(agentId);
+            if (future == null) {
+                if (!hasAlertWindowsSupportedCondition(alertConfigs)) {
+                    // no need to track (or read checkpoint for) agents without supported alerts
+                    return CompletableFuture.completedFuture(null);
+                }
+                future = agentAlertWindows.computeIfAbsent(agentId, this::readAlertWindows);
+            }
+            CompletableFuture<AgentAlertWindows> finalFuture = future;
+            return future.thenAccept(alertWindows -> {
+                if (alertWindows.updateAlertConfigs(alertConfigs)) {
+                    update.accept(alertWindows);
+                } else {
+                    // the agent's supported alerts have all been deleted
+                    agentAlertWindows.remove(agentId, finalFuture);
+                }
+            });
+        }).exceptionally(throwable -> {
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause instanceof AgentConfigNotFoundException) {
+                // be lenient if agent_config table is messed up
+                logger.debug(cause.getMessage(), cause);
+                return null;
+            }
+            logger.error("{} - {}", agentId, throwable.getMessage(), throwable);
+            return null;
+        });
+    }
+
+    private CompletableFuture<AgentAlertWindows> readAlertWindows(String agentId) {
+        return alertWindowsDao.readAndDelete(agentId, CassandraProfile.collector)
+                .handle((alertWindows, t) -> {
+                    if (t != null) {
+                        logger.error("{} - {}", agentId, t.getMessage(), t);
+                        return new AgentAlertWindows();
+                    }
+                    if (alertWindows == null) {
+                        return new AgentAlertWindows();
+                    }
+                    try {
+                        return AgentAlertWindows.fromProto(alertWindows);
+                    } catch (InvalidProtocolBufferException e) {
+                        logger.error("{} - {}", agentId, e.getMessage(), e);
+                        return new AgentAlertWindows();
+                    }
+                }).toCompletableFuture();
+    }
+
+    private @Nullable MetricWindowValue getMetricWindowValue(String agentRollupId,
+                                                             MetricCondition metricCondition, long endTime) {
+        CompletableFuture<AgentAlertWindows> future = agentAlertWindows.get(agentRollupId);
+        if (future == null) {
+            return null;
+        }
+        AgentAlertWindows alertWindows = future.getNow(null);
+        if (alertWindows == null) {
+            // checkpoint is still being read
+            return null;
+        }
+        return alertWindows.getMetricWindowValue(metricCondition, endTime);
+    }
+
     private CompletionStage<Boolean> isCurrentlyDisabled(String agentRollupId, CassandraProfile profile) {
         return alertingDisabledDao.getAlertingDisabledUntilTime(agentRollupId, profile).thenApply(disabledUntilTime -> {
             return disabledUntilTime != null && disabledUntilTime > clock.currentTimeMillis();
@@ -214,10 +337,20 @@ class CentralAlertingService {
             AlertCondition alertCondition = alertConfig.getCondition();
             switch (alertCondition.getValCase()) {
                 case METRIC_CONDITION:
+                    MetricCondition metricCondition = alertCondition.getMetricCondition();
+                    MetricWindowValue metricWindowValue =
+                            getMetricWindowValue(agentRollupId, metricCondition, endTime);
+                    if (metricWindowValue != null) {
+                        // no need to read the data back over the alert's time period
+                        return alertingService.checkMetricAlert(
+                                centralAdminGeneralConfig.centralDisplayName(),
+                                agentRollupId, agentDisplay, alertConfig, metricCondition, endTime,
+                                metricWindowValue, profile).thenAccept(ig -> {});
+                    }
                     return alertingService.checkMetricAlert(
                             centralAdminGeneralConfig.centralDisplayName(),
                             agentRollupId, agentDisplay, alertConfig,
-                            alertCondition.getMetricCondition(), endTime, profile).thenAccept(ig -> {});
+                            metricCondition, endTime, profile).thenAccept(ig -> {});
                 case HEARTBEAT_CONDITION:
                     if (stopwatch.elapsed(MINUTES) >= 4) {
                         // give agents plenty of time to re-connect after central start-up, needs to be
@@ -236,6 +369,17 @@ class CentralAlertingService {
         });
     }
 
+    private static boolean hasAlertWindowsSupportedCondition(List<AlertConfig> alertConfigs) {
+        for (AlertConfig alertConfig : alertConfigs) {
+            AlertCondition alertCondition = alertConfig.getCondition();
+            if (alertCondition.getValCase() == AlertCondition.ValCase.METRIC_CONDITION
+                    && AgentAlertWindows.isSupported(alertCondition.getMetricCondition())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static boolean isAggregateCondition(AlertCondition alertCondition) {
         if (alertCondition.getValCase() != AlertCondition.ValCase.METRIC_CONDITION) {
             return false;
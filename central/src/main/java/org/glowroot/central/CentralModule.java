@@ -210,7 +210,7 @@ public class CentralModule {
                     repos.getConfigRepository());
             centralAlertingService = new CentralAlertingService(repos.getConfigRepository(),
                     alertingService, heartbeatAlertingService, repos.getAlertingDisabledDao(),
-                    clock);
+                    repos.getAlertWindowsDao(), !clusterManager.isClustered(), clock);
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(),
                     centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(),
@@ -234,7 +234,7 @@ public class CentralModule {
             });
             rollupService = new RollupService(repos.getActiveAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    clusterManager, repos.getRollupLagMetrics(), clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getActiveAgentDao(),
                     repos.getConfigRepository(), repos.getAlertingDisabledDao(),
                     repos.getIncidentDao(), alertingService, repos.getSyntheticResultDao(),
@@ -358,9 +358,13 @@ public class CentralModule {
             futures.add(submit(executor, updateAgentConfigIfNeededService::close));
             futures.add(submit(executor, () -> grpcServer.close(jvmTermination)));
 
+            MoreFutures.waitForAll(futures);
+            // grpc server is closed at this point, so no more data is being added to the alert
+            // windows, and the repository has not started closing yet
+            centralAlertingService.checkpointAlertWindows();
+
             if (jvmTermination) {
                 // nothing else needs orderly shutdown when JVM is being terminated
-                MoreFutures.waitForAll(futures);
                 if (startupLogger != null) {
                     startupLogger.info("shutdown complete");
                 }
@@ -375,7 +379,6 @@ public class CentralModule {
             backgroundFutures.add(submit(executor, alertingService::close));
             backgroundFutures.add(submit(executor, repos::close));
 
-            MoreFutures.waitForAll(futures);
             MoreFutures.waitForAll(backgroundFutures);
 
             repoAsyncExecutor.shutdown();
@@ -124,7 +124,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 logger.info("agent connected: {}, version {}", finalAgentId,
                         request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
                 InitResponse.Builder response = InitResponse.newBuilder()
-                        .setGlowrootCentralVersion(version);
+                        .setGlowrootCentralVersion(version)
+                        .setBatchedAggregateStream(true)
+                        .setPackedHistograms(true);
                 if (!updatedAgentConfig.equals(request.getAgentConfig())) {
                     response.setAgentConfig(updatedAgentConfig);
                 }
@@ -234,6 +236,17 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                                                 List<Aggregate.SharedQueryText> sharedQueryTexts,
                                                 List<OldAggregatesByType> aggregatesByTypeList,
                                                 StreamObserver<AggregateResponseMessage> responseObserver) {
+        return storeAggregateIntervals(agentId, postV09, Collections.singletonList(
+                new AggregateInterval(captureTime, sharedQueryTexts, aggregatesByTypeList)),
+                responseObserver);
+    }
+
+    // intervals are stored one after another (instead of concurrently) since batches are mostly
+    // sent when an agent is replaying its backlog after central has been unavailable, and many
+    // agents may be doing this at the same time
+    private CompletionStage<?> storeAggregateIntervals(String agentId, boolean postV09,
+                                                        List<AggregateInterval> intervals,
+                                                        StreamObserver<AggregateResponseMessage> responseObserver) {
         String postV09AgentId;
         try {
             postV09AgentId = grpcCommon.getAgentId(agentId, postV09);
@@ -243,7 +256,16 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             return CompletableFuture.completedFuture(null);
         }
         try {
-            return aggregateDao.store(postV09AgentId, captureTime, aggregatesByTypeList, sharedQueryTexts)
+            CompletionStage<?> future = CompletableFuture.completedFuture(null);
+            long maxCaptureTime = 0;
+            for (AggregateInterval interval : intervals) {
+                future = future.thenCompose(ignored -> aggregateDao.store(postV09AgentId,
+                        interval.captureTime, interval.aggregatesByTypeList,
+                        interval.sharedQueryTexts));
+                maxCaptureTime = Math.max(maxCaptureTime, interval.captureTime);
+            }
+            long finalMaxCaptureTime = maxCaptureTime;
+            return future
                     .whenComplete((res, t) -> {
                         if (t != null) {
                             logger.error("{} - {}", postV09AgentId, t.getMessage(), t);
@@ -255,12 +277,25 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                                 .setNextDelayMillis(getNextDelayMillis())
                                 .build());
                         responseObserver.onCompleted();
+                        // alert windows are fed with every interval (including backlog), so
+                        // that they stay complete
+                        CompletionStage<?> alertWindowsFuture =
+                                CompletableFuture.completedFuture(null);
+                        for (AggregateInterval interval : intervals) {
+                            alertWindowsFuture = alertWindowsFuture.thenCompose(
+                                    ignored -> centralAlertingService.addAggregatesToAlertWindows(
+                                            postV09AgentId, interval.captureTime,
+                                            interval.aggregatesByTypeList));
+                        }
                         // check alerts separately, errors only logged
-                        agentDisplayDao.readFullDisplay(postV09AgentId).thenCompose(agentDisplay -> {
+                        // (only for the most recent interval, older intervals in a batch are
+                        // backlog and alerting on them now would be stale)
+                        alertWindowsFuture.thenCompose(ignored -> agentDisplayDao
+                                .readFullDisplay(postV09AgentId)).thenCompose(agentDisplay -> {
                             return centralAlertingService.checkForDeletedAlerts(postV09AgentId, CassandraProfile.collector).thenApply(v -> agentDisplay);
                         }).thenCompose(agentDisplay -> {
                             return centralAlertingService.checkAggregateAlertsAsync(postV09AgentId, agentDisplay,
-                                    captureTime, CassandraProfile.collector);
+                                    finalMaxCaptureTime, CassandraProfile.collector);
                         }).exceptionally(t2 -> {
                             logger.error("{} - {}", postV09AgentId, t2.getMessage(), t2);
                             return null;
@@ -294,7 +329,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             final long finalMaxCaptureTime = maxCaptureTime;
             return heartbeatDao.store(postV09AgentId).thenCompose(ignored -> {
                 // check alerts separately, errors only logged
-                agentDisplayDao.readFullDisplay(postV09AgentId).thenCompose(agentDisplay -> {
+                centralAlertingService.addGaugeValuesToAlertWindows(postV09AgentId, gaugeValues)
+                        .thenCompose(ignored2 -> agentDisplayDao.readFullDisplay(postV09AgentId))
+                        .thenCompose(agentDisplay -> {
                     return centralAlertingService.checkForDeletedAlerts(postV09AgentId, CassandraProfile.collector).thenCompose(v -> {
                         return centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(postV09AgentId, agentDisplay,
                                 finalMaxCaptureTime, CassandraProfile.collector);
@@ -459,8 +496,11 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
         private final StreamObserver<AggregateResponseMessage> responseObserver;
         private @MonotonicNonNull AggregateStreamHeader streamHeader;
+        private long captureTime;
         private List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = new HashMap<>();
+        // prior intervals, only used for batched aggregate streams
+        private final List<AggregateInterval> completedIntervals = new ArrayList<>();
 
         private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
             this.responseObserver = responseObserver;
@@ -498,6 +538,13 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             switch (value.getMessageCase()) {
                 case STREAM_HEADER:
                     streamHeader = value.getStreamHeader();
+                    captureTime = streamHeader.getCaptureTime();
+                    break;
+                case INTERVAL_HEADER:
+                    completedIntervals.add(completeInterval());
+                    captureTime = value.getIntervalHeader().getCaptureTime();
+                    sharedQueryTexts = new ArrayList<>();
+                    aggregatesByTypeMap = new HashMap<>();
                     break;
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
@@ -525,14 +572,18 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
         private void onCompletedInternal() {
             checkNotNull(streamHeader);
+            completedIntervals.add(completeInterval());
+            storeAggregateIntervals(streamHeader.getAgentId(), streamHeader.getPostV09(),
+                    completedIntervals, responseObserver);
+        }
+
+        private AggregateInterval completeInterval() {
             List<OldAggregatesByType> aggregatesByTypeList = new ArrayList<>();
             for (OldAggregatesByType.Builder aggregatesByType : aggregatesByTypeMap.values()) {
                 aggregatesByTypeList.add(aggregatesByType.build());
             }
-            storeAggregates(streamHeader.getAgentId(), streamHeader.getPostV09(),
-                    getFutureProofAggregateCaptureTime(streamHeader.getCaptureTime()),
-                    sharedQueryTexts,
-                    aggregatesByTypeList, responseObserver);
+            return new AggregateInterval(getFutureProofAggregateCaptureTime(captureTime),
+                    sharedQueryTexts, aggregatesByTypeList);
         }
 
         private void logError(Throwable t) {
@@ -545,6 +596,21 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         }
     }
 
+    private static final class AggregateInterval {
+
+        private final long captureTime;
+        private final List<Aggregate.SharedQueryText> sharedQueryTexts;
+        private final List<OldAggregatesByType> aggregatesByTypeList;
+
+        private AggregateInterval(long captureTime,
+                                  List<Aggregate.SharedQueryText> sharedQueryTexts,
+                                  List<OldAggregatesByType> aggregatesByTypeList) {
+            this.captureTime = captureTime;
+            this.sharedQueryTexts = sharedQueryTexts;
+            this.aggregatesByTypeList = aggregatesByTypeList;
+        }
+    }
+
     private final class TraceStreamObserver implements StreamObserver<TraceStreamMessage> {
 
         private final StreamObserver<EmptyMessage> responseObserver;
@@ -16,18 +16,30 @@
 package org.glowroot.central;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Exchanger;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.base.Optional;
-import com.google.common.base.Stopwatch;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -39,6 +51,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DistributedExecutionMap;
+import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableQueries;
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
@@ -105,28 +118,72 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class DownstreamServiceImpl extends DownstreamServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceImpl.class);
 
+    // requests beyond this limit are queued (per agent) until an earlier request completes, so that
+    // many users hitting the same agent cannot overwhelm it
+    private static final int MAX_IN_FLIGHT_REQUESTS_PER_AGENT =
+            Integer.getInteger("glowroot.internal.downstreamMaxInFlightRequestsPerAgent", 8);
+
+    // long-running requests (e.g. heap dumps) can only occupy part of the in-flight slots, so that
+    // short requests (e.g. live trace requests) are never queued behind them
+    private static final int MAX_IN_FLIGHT_LONG_RUNNING_REQUESTS_PER_AGENT =
+            Math.max(1, MAX_IN_FLIGHT_REQUESTS_PER_AGENT / 2);
+
+    // request timeouts start when the request is sent to the agent, this limits the time that a
+    // request can be queued before that
+    private static final int MAX_QUEUED_SECONDS = 60;
+
     private final GrpcCommon grpcCommon;
 
     private final DistributedExecutionMap<String, ConnectedAgent> connectedAgents;
 
     private final ReadWriteLock shuttingDownLock = new ReentrantReadWriteLock(true);
 
+    // all requests that have been accepted but not yet completed, across all connected agents
+    private final Set<PendingRequest> pendingRequests = ConcurrentHashMap.newKeySet();
+
+    // shared timer for request timeouts and for retries on shutting-down responses, so that no
+    // thread is held while waiting for an agent
+    private final ScheduledThreadPoolExecutor timer;
+
+    // futures returned by runOnClusterAsync() are completed on this executor (instead of by the
+    // thread that receives the agent's response or by the shared timer), since callers chain work
+    // on them that can block (e.g. reading stored traces when the trace is no longer live)
+    private final ExecutorService responseExecutor;
+
     DownstreamServiceImpl(GrpcCommon grpcCommon, ClusterManager clusterManager) {
         this.grpcCommon = grpcCommon;
         connectedAgents = clusterManager.createDistributedExecutionMap("connectedAgents");
+        timer = new ScheduledThreadPoolExecutor(1,
+                MoreExecutors2.newThreadFactory("Downstream-Timer"));
+        // timeouts are cancelled when the response arrives, and should not linger in the queue
+        timer.setRemoveOnCancelPolicy(true);
+        responseExecutor = MoreExecutors2.newCachedThreadPool("Downstream-Response");
     }
 
     void stopSendingDownstreamRequests() {
         shuttingDownLock.writeLock().lock();
+        // pending requests always complete, at the latest when their timeout fires
+        for (PendingRequest pendingRequest : pendingRequests) {
+            pendingRequest.future.handle((result, t) -> null).join();
+        }
+    }
+
+    void close() throws InterruptedException {
+        timer.shutdown();
+        responseExecutor.shutdown();
+        if (!timer.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (!responseExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Override
@@ -137,117 +194,130 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     // returns true if agent was updated
     boolean updateAgentConfigIfConnected(String agentId, AgentConfig agentConfig) throws Exception {
         // no need to retry on shutting-down response
-        return connectedAgents.execute(agentId, 60, new SendDownstreamFunction(
-                CentralRequest.newBuilder()
-                        .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
-                                .setAgentConfig(agentConfig))
-                        .build(),
-                60))
-                .isPresent();
+        try {
+            return await(connectedAgents.executeAsync(agentId, getClusterTimeoutSeconds(60),
+                    new SendDownstreamFunction(CentralRequest.newBuilder()
+                            .setAgentConfigUpdateRequest(AgentConfigUpdateRequest.newBuilder()
+                                    .setAgentConfig(agentConfig))
+                            .build(),
+                            60)))
+                    .isPresent();
+        } catch (AgentNotConnectedException e) {
+            // agent disconnected before responding
+            return false;
+        }
     }
 
     boolean isAvailable(String agentId) throws Exception {
-        // retry up to 5 seconds on shutting-down response to give agent time to reconnect to
-        // another cluster node
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        while (stopwatch.elapsed(SECONDS) < 5) {
-            java.util.Optional<AgentResult> optional =
-                    connectedAgents.execute(agentId, 30, new IsAvailableFunction());
-            if (!optional.isPresent()) {
-                return false;
-            }
-            AgentResult result = optional.get();
-            if (!result.shuttingDown()) {
-                return true;
-            }
-            MILLISECONDS.sleep(100);
-        }
-        // received shutting-down response for 5+ seconds
-        return false;
+        java.util.Optional<AgentResult> optional = await(
+                executeRetryingOnShuttingDown(agentId, 30, new IsAvailableFunction()));
+        // still shutting-down means received shutting-down response for 5+ seconds
+        return optional.isPresent() && !optional.get().shuttingDown();
     }
 
-    ThreadDump threadDump(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<ThreadDump> threadDump(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance())
-                .build());
-        return responseWrapper.getThreadDumpResponse().getThreadDump();
+                .build())
+                        .thenApply(responseWrapper -> responseWrapper.getThreadDumpResponse()
+                                .getThreadDump());
     }
 
-    String jstack(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<String> jstack(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setJstackRequest(JstackRequest.getDefaultInstance())
-                .build());
-        JstackResponse response = responseWrapper.getJstackResponse();
-        if (response.getUnavailableDueToRunningInJre()) {
-            throw new UnavailableDueToRunningInJreException();
-        }
-        if (response.getUnavailableDueToRunningInJ9Jvm()) {
-            // Eclipse OpenJ9 VM or IBM J9 VM
-            throw new UnavailableDueToRunningInJ9JvmException();
-        }
-        return response.getJstack();
+                .build())
+                        .thenCompose(responseWrapper -> {
+                            JstackResponse response = responseWrapper.getJstackResponse();
+                            if (response.getUnavailableDueToRunningInJre()) {
+                                return CompletableFuture.failedFuture(
+                                        new UnavailableDueToRunningInJreException());
+                            }
+                            if (response.getUnavailableDueToRunningInJ9Jvm()) {
+                                // Eclipse OpenJ9 VM or IBM J9 VM
+                                return CompletableFuture.failedFuture(
+                                        new UnavailableDueToRunningInJ9JvmException());
+                            }
+                            return CompletableFuture.completedFuture(response.getJstack());
+                        });
     }
 
-    long availableDiskSpaceBytes(String agentId, String directory) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<Long> availableDiskSpaceBytes(String agentId, String directory) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setAvailableDiskSpaceRequest(AvailableDiskSpaceRequest.newBuilder()
                         .setDirectory(directory))
-                .build());
-        AvailableDiskSpaceResponse response = responseWrapper.getAvailableDiskSpaceResponse();
-        if (response.getDirectoryDoesNotExist()) {
-            throw new DirectoryDoesNotExistException();
-        }
-        return response.getAvailableBytes();
+                .build())
+                        .thenCompose(responseWrapper -> {
+                            AvailableDiskSpaceResponse response =
+                                    responseWrapper.getAvailableDiskSpaceResponse();
+                            if (response.getDirectoryDoesNotExist()) {
+                                return CompletableFuture.failedFuture(
+                                        new DirectoryDoesNotExistException());
+                            }
+                            return CompletableFuture.completedFuture(response.getAvailableBytes());
+                        });
     }
 
-    HeapDumpFileInfo heapDump(String agentId, String directory) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<HeapDumpFileInfo> heapDump(String agentId, String directory) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setHeapDumpRequest(HeapDumpRequest.newBuilder()
                         .setDirectory(directory))
-                .build());
-        HeapDumpResponse response = responseWrapper.getHeapDumpResponse();
-        if (response.getDirectoryDoesNotExist()) {
-            throw new DirectoryDoesNotExistException();
-        }
-        return response.getHeapDumpFileInfo();
+                .build())
+                        .thenCompose(responseWrapper -> {
+                            HeapDumpResponse response = responseWrapper.getHeapDumpResponse();
+                            if (response.getDirectoryDoesNotExist()) {
+                                return CompletableFuture.failedFuture(
+                                        new DirectoryDoesNotExistException());
+                            }
+                            return CompletableFuture
+                                    .completedFuture(response.getHeapDumpFileInfo());
+                        });
     }
 
-    HeapHistogram heapHistogram(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<HeapHistogram> heapHistogram(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setHeapHistogramRequest(HeapHistogramRequest.newBuilder())
-                .build());
-        HeapHistogramResponse response = responseWrapper.getHeapHistogramResponse();
-        if (response.getUnavailableDueToRunningInJre()) {
-            throw new UnavailableDueToRunningInJreException();
-        }
-        if (response.getUnavailableDueToRunningInJ9Jvm()) {
-            // Eclipse OpenJ9 VM or IBM J9 VM
-            throw new UnavailableDueToRunningInJ9JvmException();
-        }
-        return response.getHeapHistogram();
+                .build())
+                        .thenCompose(responseWrapper -> {
+                            HeapHistogramResponse response =
+                                    responseWrapper.getHeapHistogramResponse();
+                            if (response.getUnavailableDueToRunningInJre()) {
+                                return CompletableFuture.failedFuture(
+                                        new UnavailableDueToRunningInJreException());
+                            }
+                            if (response.getUnavailableDueToRunningInJ9Jvm()) {
+                                // Eclipse OpenJ9 VM or IBM J9 VM
+                                return CompletableFuture.failedFuture(
+                                        new UnavailableDueToRunningInJ9JvmException());
+                            }
+                            return CompletableFuture.completedFuture(response.getHeapHistogram());
+                        });
     }
 
-    boolean isExplicitGcDisabled(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<Boolean> isExplicitGcDisabled(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setExplicitGcDisabledRequest(ExplicitGcDisabledRequest.getDefaultInstance())
-                .build());
-        return responseWrapper.getExplicitGcDisabledResponse().getDisabled();
+                .build())
+                        .thenApply(responseWrapper -> responseWrapper
+                                .getExplicitGcDisabledResponse().getDisabled());
     }
 
-    void forceGC(String agentId) throws Exception {
-        runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<Void> forceGC(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setForceGcRequest(ForceGcRequest.getDefaultInstance())
-                .build());
+                .build())
+                        .thenAccept(responseWrapper -> {});
     }
 
-    MBeanDump mbeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames)
-            throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<MBeanDump> mbeanDump(String agentId, MBeanDumpKind mbeanDumpKind,
+            List<String> objectNames) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setMbeanDumpRequest(MBeanDumpRequest.newBuilder()
                         .setKind(mbeanDumpKind)
                         .addAllObjectName(objectNames))
-                .build());
-        return responseWrapper.getMbeanDumpResponse().getMbeanDump();
+                .build())
+                        .thenApply(responseWrapper -> responseWrapper.getMbeanDumpResponse()
+                                .getMbeanDump());
     }
 
     List<String> matchingMBeanObjectNames(String agentId, String partialObjectName, int limit)
@@ -268,11 +338,12 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return responseWrapper.getMbeanMetaResponse().getMbeanMeta();
     }
 
-    Map<String, String> systemProperties(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<Map<String, String>> systemProperties(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setSystemPropertiesRequest(SystemPropertiesRequest.getDefaultInstance())
-                .build());
-        return responseWrapper.getSystemPropertiesResponse().getSystemPropertiesMap();
+                .build())
+                        .thenApply(responseWrapper -> responseWrapper
+                                .getSystemPropertiesResponse().getSystemPropertiesMap());
     }
 
     long currentTime(String agentId) throws Exception {
@@ -282,11 +353,12 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return responseWrapper.getCurrentTimeResponse().getCurrentTimeMillis();
     }
 
-    Capabilities capabilities(String agentId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    CompletableFuture<Capabilities> capabilities(String agentId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setCapabilitiesRequest(CapabilitiesRequest.getDefaultInstance())
-                .build());
-        return responseWrapper.getCapabilitiesResponse().getCapabilities();
+                .build())
+                        .thenApply(responseWrapper -> responseWrapper.getCapabilitiesResponse()
+                                .getCapabilities());
     }
 
     GlobalMeta globalMeta(String agentId) throws Exception {
@@ -341,17 +413,20 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return responseWrapper.getReweaveResponse().getClassUpdateCount();
     }
 
-    Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception {
-        AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
+    // the future's value is null when the trace is not found
+    CompletableFuture<Trace. /*@Nullable*/ Header> getHeader(String agentId, String traceId) {
+        return runOnClusterAsync(agentId, CentralRequest.newBuilder()
                 .setHeaderRequest(HeaderRequest.newBuilder()
                         .setTraceId(traceId))
-                .build());
-        HeaderResponse response = responseWrapper.getHeaderResponse();
-        if (response.hasHeader()) {
-            return response.getHeader();
-        } else {
-            return null;
-        }
+                .build())
+                        .thenApply(responseWrapper -> {
+                            HeaderResponse response = responseWrapper.getHeaderResponse();
+                            if (response.hasHeader()) {
+                                return response.getHeader();
+                            } else {
+                                return null;
+                            }
+                        });
     }
 
     @Nullable
@@ -432,68 +507,156 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
+    // the returned future is completed on the response executor, see comment on responseExecutor
+    CompletableFuture<AgentResponse> runOnClusterAsync(String agentId,
+            CentralRequest centralRequest) {
+        int timeoutSeconds = getTimeoutSeconds(centralRequest);
+        CompletableFuture<AgentResponse> future = new CompletableFuture<>();
+        executeRetryingOnShuttingDown(agentId, getClusterTimeoutSeconds(timeoutSeconds),
+                new SendDownstreamFunction(centralRequest, timeoutSeconds))
+                        .whenCompleteAsync((optional, t) -> {
+                            if (t != null) {
+                                future.completeExceptionally(unwrap(t));
+                                return;
+                            }
+                            try {
+                                future.complete(getResponse(optional));
+                            } catch (Exception e) {
+                                future.completeExceptionally(e);
+                            }
+                        }, responseExecutor);
+        return future;
+    }
+
     private AgentResponse runOnCluster(String agentId, CentralRequest centralRequest)
             throws Exception {
-        int timeoutSeconds;
+        return await(runOnClusterAsync(agentId, centralRequest));
+    }
+
+    // retry up to 5 seconds on shutting-down response to give agent time to reconnect to another
+    // cluster node
+    private CompletableFuture<java.util.Optional<AgentResult>> executeRetryingOnShuttingDown(
+            String agentId, int timeoutSeconds,
+            SerializableFunction<ConnectedAgent, CompletableFuture<AgentResult>> task) {
+        CompletableFuture<java.util.Optional<AgentResult>> future = new CompletableFuture<>();
+        executeRetryingOnShuttingDown(agentId, timeoutSeconds, task,
+                System.nanoTime() + SECONDS.toNanos(5), future);
+        return future;
+    }
+
+    private void executeRetryingOnShuttingDown(String agentId, int timeoutSeconds,
+            SerializableFunction<ConnectedAgent, CompletableFuture<AgentResult>> task,
+            long retryDeadlineNanos, CompletableFuture<java.util.Optional<AgentResult>> future) {
+        connectedAgents.executeAsync(agentId, timeoutSeconds, task)
+                .whenComplete((optional, t) -> {
+                    if (t != null) {
+                        future.completeExceptionally(t);
+                    } else if (optional.isPresent() && optional.get().shuttingDown()
+                            && System.nanoTime() - retryDeadlineNanos < 0) {
+                        try {
+                            timer.schedule(() -> executeRetryingOnShuttingDown(agentId,
+                                    timeoutSeconds, task, retryDeadlineNanos, future), 100,
+                                    MILLISECONDS);
+                        } catch (RejectedExecutionException e) {
+                            // timer has been closed
+                            future.complete(optional);
+                        }
+                    } else {
+                        future.complete(optional);
+                    }
+                });
+    }
+
+    // the request can be queued before it is sent to the agent (and its timeout starts), plus some
+    // leeway for the communication between cluster nodes
+    private static int getClusterTimeoutSeconds(int timeoutSeconds) {
+        return MAX_QUEUED_SECONDS + timeoutSeconds + 5;
+    }
+
+    private static boolean isLongRunning(CentralRequest centralRequest) {
+        switch (centralRequest.getMessageCase()) {
+            case HEAP_DUMP_REQUEST:
+            case HEAP_HISTOGRAM_REQUEST:
+            case FORCE_GC_REQUEST:
+            case REWEAVE_REQUEST:
+            case PRELOAD_CLASSPATH_CACHE_REQUEST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int getTimeoutSeconds(CentralRequest centralRequest) {
         switch (centralRequest.getMessageCase()) {
             case HEADER_REQUEST:
             case ENTRIES_REQUEST:
             case MAIN_THREAD_PROFILE_REQUEST:
             case AUX_THREAD_PROFILE_REQUEST:
             case FULL_TRACE_REQUEST:
-                timeoutSeconds = 5;
-                break;
+                return 5;
             case HEAP_DUMP_REQUEST:
-                timeoutSeconds = 300;
-                break;
+                return 300;
             default:
-                timeoutSeconds = 60;
-        }
-        // retry up to 5 seconds on shutting-down response to give agent time to reconnect to
-        // another cluster node
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        while (stopwatch.elapsed(SECONDS) < 5) {
-            java.util.Optional<AgentResult> optional = connectedAgents.execute(agentId,
-                    timeoutSeconds, new SendDownstreamFunction(centralRequest, timeoutSeconds));
-            if (!optional.isPresent()) {
-                throw new AgentNotConnectedException();
+                return 60;
+        }
+    }
+
+    private static AgentResponse getResponse(java.util.Optional<AgentResult> optional)
+            throws Exception {
+        if (!optional.isPresent()) {
+            throw new AgentNotConnectedException();
+        }
+        AgentResult result = optional.get();
+        Optional<AgentResponse> value = result.value();
+        if (value.isPresent()) {
+            AgentResponse response = value.get();
+            if (response.getMessageCase() == AgentResponse.MessageCase.UNKNOWN_REQUEST_RESPONSE) {
+                throw new AgentUnsupportedOperationException();
             }
-            AgentResult result = optional.get();
-            Optional<AgentResponse> value = result.value();
-            if (value.isPresent()) {
-                AgentResponse response = value.get();
-                if (response
-                        .getMessageCase() == AgentResponse.MessageCase.UNKNOWN_REQUEST_RESPONSE) {
-                    throw new AgentUnsupportedOperationException();
-                }
-                if (response.getMessageCase() == AgentResponse.MessageCase.EXCEPTION_RESPONSE) {
-                    throw new AgentException();
-                }
-                return response;
-            } else if (result.timeout()) {
-                throw new TimeoutException();
-            } else if (result.interrupted()) {
-                // this should not happen
-                throw new RuntimeException(
-                        "Glowroot central thread was interrupted while waiting for agent response");
+            if (response.getMessageCase() == AgentResponse.MessageCase.EXCEPTION_RESPONSE) {
+                throw new AgentException();
             }
-            // only other case is shutting-down response
-            checkState(result.shuttingDown());
-            MILLISECONDS.sleep(100);
+            return response;
+        } else if (result.timeout()) {
+            throw new TimeoutException();
+        } else if (result.interrupted()) {
+            // this should not happen
+            throw new RuntimeException(
+                    "Glowroot central thread was interrupted while waiting for agent response");
         }
-        // received shutting-down response for 5+ seconds
+        // only other case is shutting-down response, received for 5+ seconds
+        checkState(result.shuttingDown());
         throw new AgentNotConnectedException();
     }
 
+    static <V> V await(CompletableFuture<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            return t.getCause();
+        }
+        return t;
+    }
+
     private class ConnectedAgent implements StreamObserver<AgentResponse> {
 
         private final AtomicLong nextRequestId = new AtomicLong(1);
 
-        // expiration in the unlikely case that response is never returned from agent
-        private final com.google.common.cache.Cache<Long, ResponseHolder> responseHolders =
-                CacheBuilder.newBuilder()
-                        .expireAfterWrite(1, HOURS)
-                        .build();
+        // these are guarded by this
+        private final Map<Long, PendingRequest> inFlightRequests = Maps.newHashMap();
+        private int inFlightLongRunningRequestCount;
+        private final Queue<PendingRequest> queuedRequests = new ArrayDeque<>();
+        private final Queue<PendingRequest> queuedLongRunningRequests = new ArrayDeque<>();
 
         private volatile @MonotonicNonNull String agentId;
 
@@ -522,6 +685,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
             if (agentId != null) {
                 connectedAgents.remove(agentId, ConnectedAgent.this);
             }
+            failAll();
         }
 
         @Override
@@ -531,6 +695,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 logger.info("downstream connection lost with agent: {}", agentId);
                 connectedAgents.remove(agentId, ConnectedAgent.this);
             }
+            failAll();
         }
 
         private void onNextInternal(AgentResponse value) {
@@ -558,80 +723,222 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
                 return;
             }
             long requestId = value.getRequestId();
-            ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
-            responseHolders.invalidate(requestId);
-            if (responseHolder == null) {
-                logger.error("no response holder for request id: {}", requestId);
-                return;
+            PendingRequest pendingRequest;
+            synchronized (this) {
+                pendingRequest = removeInFlight(requestId);
             }
-            try {
-                // this shouldn't timeout since it is the other side of the exchange that is waiting
-                responseHolder.response.exchange(value, 1, MINUTES);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.error("{} - {}", agentId, e.getMessage(), e);
-            } catch (TimeoutException e) {
-                logger.error("{} - {}", agentId, e.getMessage(), e);
+            if (pendingRequest == null) {
+                logger.error("no pending request for request id: {}", requestId);
+                return;
             }
+            // this is a no-op if the request already timed out
+            pendingRequest.future.complete(ImmutableAgentResult.builder()
+                    .value(value)
+                    .build());
+            sendQueuedRequests();
         }
 
-        private AgentResult isAvailable() {
+        private CompletableFuture<AgentResult> isAvailable() {
             Lock readLock = shuttingDownLock.readLock();
             if (!readLock.tryLock()) {
-                return ImmutableAgentResult.builder()
+                return CompletableFuture.completedFuture(ImmutableAgentResult.builder()
                         .shuttingDown(true)
-                        .build();
+                        .build());
             }
             try {
-                return ImmutableAgentResult.builder()
-                        .build();
+                return CompletableFuture.completedFuture(ImmutableAgentResult.builder()
+                        .build());
             } finally {
                 readLock.unlock();
             }
         }
 
-        private AgentResult sendDownstream(CentralRequest requestWithoutRequestId,
-                int timeoutSeconds) {
+        private CompletableFuture<AgentResult> sendDownstream(
+                CentralRequest requestWithoutRequestId, int timeoutSeconds) {
             Lock readLock = shuttingDownLock.readLock();
             if (!readLock.tryLock()) {
-                return ImmutableAgentResult.builder()
+                return CompletableFuture.completedFuture(ImmutableAgentResult.builder()
                         .shuttingDown(true)
-                        .build();
+                        .build());
             }
-            long requestId = nextRequestId.getAndIncrement();
             try {
-                CentralRequest request = CentralRequest.newBuilder(requestWithoutRequestId)
-                        .setRequestId(requestId)
-                        .build();
-                ResponseHolder responseHolder = new ResponseHolder();
-                responseHolders.put(requestId, responseHolder);
-                // synchronization required since individual StreamObservers are not thread-safe
-                synchronized (requestObserver) {
-                    requestObserver.onNext(request);
+                long requestId = nextRequestId.getAndIncrement();
+                PendingRequest pendingRequest =
+                        new PendingRequest(CentralRequest.newBuilder(requestWithoutRequestId)
+                                .setRequestId(requestId)
+                                .build(), timeoutSeconds);
+                pendingRequests.add(pendingRequest);
+                pendingRequest.future.whenComplete((result, t) -> {
+                    ScheduledFuture<?> timeoutFuture = pendingRequest.timeoutFuture;
+                    if (timeoutFuture != null) {
+                        timeoutFuture.cancel(false);
+                    }
+                    pendingRequests.remove(pendingRequest);
+                });
+                boolean sendNow;
+                synchronized (this) {
+                    sendNow = hasSlotFor(pendingRequest);
+                    if (sendNow) {
+                        addInFlight(pendingRequest);
+                    } else if (pendingRequest.longRunning) {
+                        queuedLongRunningRequests.add(pendingRequest);
+                    } else {
+                        queuedRequests.add(pendingRequest);
+                    }
                 }
-                // timeout is in case agent never responds
-                // passing AgentResponse.getDefaultInstance() is just dummy (non-null) value
-                AgentResponse response = responseHolder.response
-                        .exchange(AgentResponse.getDefaultInstance(), timeoutSeconds, SECONDS);
-                return ImmutableAgentResult.builder()
-                        .value(response)
-                        .build();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                responseHolders.invalidate(requestId);
-                return ImmutableAgentResult.builder()
-                        .interrupted(true)
-                        .build();
-            } catch (TimeoutException e) {
-                responseHolders.invalidate(requestId);
-                return ImmutableAgentResult.builder()
-                        .timeout(true)
-                        .build();
+                if (sendNow) {
+                    send(pendingRequest);
+                } else {
+                    pendingRequest.timeoutFuture = timer.schedule(
+                            () -> onQueuedTimeout(pendingRequest), MAX_QUEUED_SECONDS, SECONDS);
+                }
+                return pendingRequest.future;
             } finally {
                 readLock.unlock();
             }
         }
 
+        // the caller is notified of the timeout, but the request keeps its in-flight slot since the
+        // agent is most likely still working on it, until the agent responds (or until it has
+        // taken twice the timeout, in case the agent never responds)
+        private void onTimeout(PendingRequest pendingRequest) {
+            pendingRequest.future.complete(ImmutableAgentResult.builder()
+                    .timeout(true)
+                    .build());
+            try {
+                timer.schedule(() -> onAbandoned(pendingRequest), pendingRequest.timeoutSeconds,
+                        SECONDS);
+            } catch (RejectedExecutionException e) {
+                // timer has been closed
+                logger.debug(e.getMessage(), e);
+            }
+        }
+
+        private void onAbandoned(PendingRequest pendingRequest) {
+            synchronized (this) {
+                if (inFlightRequests.get(pendingRequest.request.getRequestId()) != pendingRequest) {
+                    // agent has responded in the meantime
+                    return;
+                }
+                removeInFlight(pendingRequest.request.getRequestId());
+            }
+            logger.debug("no response from agent {} for request id {}", agentId,
+                    pendingRequest.request.getRequestId());
+            sendQueuedRequests();
+        }
+
+        private void onQueuedTimeout(PendingRequest pendingRequest) {
+            boolean wasQueued;
+            synchronized (this) {
+                wasQueued = queuedRequests.remove(pendingRequest)
+                        || queuedLongRunningRequests.remove(pendingRequest);
+            }
+            if (wasQueued) {
+                pendingRequest.future.complete(ImmutableAgentResult.builder()
+                        .timeout(true)
+                        .build());
+            }
+        }
+
+        private void sendQueuedRequests() {
+            while (true) {
+                PendingRequest pendingRequest;
+                synchronized (this) {
+                    pendingRequest = pollQueued();
+                    if (pendingRequest == null) {
+                        return;
+                    }
+                    addInFlight(pendingRequest);
+                }
+                send(pendingRequest);
+            }
+        }
+
+        private void send(PendingRequest pendingRequest) {
+            // the timeout starts now, and not when the request was queued, so that short requests
+            // that were queued are not timed out because of the requests ahead of them
+            ScheduledFuture<?> queuedTimeoutFuture = pendingRequest.timeoutFuture;
+            if (queuedTimeoutFuture != null) {
+                queuedTimeoutFuture.cancel(false);
+            }
+            try {
+                pendingRequest.timeoutFuture = timer.schedule(() -> onTimeout(pendingRequest),
+                        pendingRequest.timeoutSeconds, SECONDS);
+            } catch (RejectedExecutionException e) {
+                // timer has been closed
+                logger.debug(e.getMessage(), e);
+            }
+            try {
+                // synchronization required since individual StreamObservers are not thread-safe
+                synchronized (requestObserver) {
+                    requestObserver.onNext(pendingRequest.request);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    removeInFlight(pendingRequest.request.getRequestId());
+                }
+                pendingRequest.future.completeExceptionally(e);
+                sendQueuedRequests();
+            }
+        }
+
+        @GuardedBy("this")
+        private boolean hasSlotFor(PendingRequest pendingRequest) {
+            if (inFlightRequests.size() >= MAX_IN_FLIGHT_REQUESTS_PER_AGENT) {
+                return false;
+            }
+            return !pendingRequest.longRunning || inFlightLongRunningRequestCount
+                    < MAX_IN_FLIGHT_LONG_RUNNING_REQUESTS_PER_AGENT;
+        }
+
+        // short requests go first, since they are not limited to part of the in-flight slots
+        @GuardedBy("this")
+        private @Nullable PendingRequest pollQueued() {
+            PendingRequest pendingRequest = queuedRequests.peek();
+            if (pendingRequest != null && hasSlotFor(pendingRequest)) {
+                return queuedRequests.remove();
+            }
+            pendingRequest = queuedLongRunningRequests.peek();
+            if (pendingRequest != null && hasSlotFor(pendingRequest)) {
+                return queuedLongRunningRequests.remove();
+            }
+            return null;
+        }
+
+        @GuardedBy("this")
+        private void addInFlight(PendingRequest pendingRequest) {
+            inFlightRequests.put(pendingRequest.request.getRequestId(), pendingRequest);
+            if (pendingRequest.longRunning) {
+                inFlightLongRunningRequestCount++;
+            }
+        }
+
+        @GuardedBy("this")
+        private @Nullable PendingRequest removeInFlight(long requestId) {
+            PendingRequest pendingRequest = inFlightRequests.remove(requestId);
+            if (pendingRequest != null && pendingRequest.longRunning) {
+                inFlightLongRunningRequestCount--;
+            }
+            return pendingRequest;
+        }
+
+        // the agent cannot respond on a broken stream, so there is no point waiting for timeouts
+        private void failAll() {
+            List<PendingRequest> failed;
+            synchronized (this) {
+                failed = Lists.newArrayList(inFlightRequests.values());
+                failed.addAll(queuedRequests);
+                failed.addAll(queuedLongRunningRequests);
+                inFlightRequests.clear();
+                inFlightLongRunningRequestCount = 0;
+                queuedRequests.clear();
+                queuedLongRunningRequests.clear();
+            }
+            for (PendingRequest pendingRequest : failed) {
+                pendingRequest.future.completeExceptionally(new AgentNotConnectedException());
+            }
+        }
+
         private String getAgentIdForLogging(String agentId, boolean postV09) {
             return grpcCommon.getAgentIdForLogging(agentId, postV09);
         }
@@ -659,8 +966,21 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
     }
 
-    private static class ResponseHolder {
-        private final Exchanger<AgentResponse> response = new Exchanger<>();
+    private static class PendingRequest {
+
+        private final CentralRequest request;
+        private final int timeoutSeconds;
+        private final boolean longRunning;
+        private final CompletableFuture<AgentResult> future = new CompletableFuture<>();
+
+        // timeout while queued, and then timeout after being sent
+        private volatile @Nullable ScheduledFuture<?> timeoutFuture;
+
+        private PendingRequest(CentralRequest request, int timeoutSeconds) {
+            this.request = request;
+            this.timeoutSeconds = timeoutSeconds;
+            longRunning = isLongRunning(request);
+        }
     }
 
     @SuppressWarnings("serial")
@@ -670,12 +990,12 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     // is running with this class compiled by eclipse and one node is running with this class
     // compiled by javac, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=516620
     private static class IsAvailableFunction
-            implements SerializableFunction<ConnectedAgent, AgentResult> {
+            implements SerializableFunction<ConnectedAgent, CompletableFuture<AgentResult>> {
 
         private static final long serialVersionUID = 0L;
 
         @Override
-        public AgentResult apply(ConnectedAgent connectedAgent) {
+        public CompletableFuture<AgentResult> apply(ConnectedAgent connectedAgent) {
             return connectedAgent.isAvailable();
         }
     }
@@ -684,7 +1004,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
     // is running with this class compiled by eclipse and one node is running with this class
     // compiled by javac, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=516620
     private static class SendDownstreamFunction
-            implements SerializableFunction<ConnectedAgent, AgentResult> {
+            implements SerializableFunction<ConnectedAgent, CompletableFuture<AgentResult>> {
 
         private static final long serialVersionUID = 0L;
 
@@ -697,7 +1017,7 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         }
 
         @Override
-        public AgentResult apply(ConnectedAgent connectedAgent) {
+        public CompletableFuture<AgentResult> apply(ConnectedAgent connectedAgent) {
             return connectedAgent.sendDownstream(centralRequest, timeoutSeconds);
         }
     }
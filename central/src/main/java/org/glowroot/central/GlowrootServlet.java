@@ -24,9 +24,12 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.ServletOutputStream;
@@ -43,6 +46,8 @@ import com.google.common.io.CharStreams;
 import io.netty.buffer.ByteBuf;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.ui.ChunkSource;
 import org.glowroot.ui.ChunkSource.ChunkCopier;
@@ -54,10 +59,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 // loadOnStartup is needed so that gRPC listener starts right away
-@WebServlet(value = "/*", loadOnStartup = 0)
+// asyncSupported is needed so that requests waiting on a remote agent don't hold a container thread
+@WebServlet(value = "/*", loadOnStartup = 0, asyncSupported = true)
 @SuppressWarnings("serial")
 public class GlowrootServlet extends HttpServlet {
 
+    private static final Logger logger = LoggerFactory.getLogger(GlowrootServlet.class);
+
     private volatile @MonotonicNonNull CentralModule centralModule;
     private volatile @MonotonicNonNull CommonHandler commonHandler;
 
@@ -90,12 +98,45 @@ public class GlowrootServlet extends HttpServlet {
             throws ServletException, IOException {
         HttpServletRequest request = (HttpServletRequest) req;
         HttpServletResponse response = (HttpServletResponse) res;
-        CommonResponse commonResponse;
+        CompletableFuture<CommonResponse> future;
         try {
-            commonResponse = checkNotNull(commonHandler).handle(new ServletReq(request));
+            future = checkNotNull(commonHandler).handle(new ServletReq(request))
+                    .toCompletableFuture();
         } catch (Exception e) {
             throw new ServletException(e);
         }
+        if (future.isDone()) {
+            CommonResponse commonResponse;
+            try {
+                commonResponse = future.join();
+            } catch (CompletionException e) {
+                throw new ServletException(e.getCause());
+            }
+            writeResponse(commonResponse, response);
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        // the downstream service already bounds how long the response can take
+        asyncContext.setTimeout(0);
+        future.whenComplete((commonResponse, t) -> {
+            try {
+                if (t == null) {
+                    writeResponse(commonResponse, response);
+                } else {
+                    logger.error("error handling request {}: {}", request.getRequestURI(),
+                            t.getMessage(), t);
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            } finally {
+                asyncContext.complete();
+            }
+        });
+    }
+
+    private static void writeResponse(CommonResponse commonResponse,
+            HttpServletResponse response) throws IOException {
         response.setStatus(commonResponse.getStatus().code());
         for (Map.Entry<String, String> entry : commonResponse.getHeaders()) {
             response.addHeader(entry.getKey(), entry.getValue());
@@ -114,13 +155,13 @@ public class GlowrootServlet extends HttpServlet {
             ChunkSource chunkSource = (ChunkSource) content;
             String zipFileName = commonResponse.getZipFileName();
             if (zipFileName == null) {
-                PrintWriter out = res.getWriter();
+                PrintWriter out = response.getWriter();
                 ChunkCopier copier = chunkSource.getCopier(out);
                 while (copier.copyNext()) {
                 }
                 out.flush();
             } else {
-                ServletOutputStream out = res.getOutputStream();
+                ServletOutputStream out = response.getOutputStream();
                 ZipOutputStream zipOut = new ZipOutputStream(out);
                 zipOut.putNextEntry(new ZipEntry(zipFileName + ".html"));
                 OutputStreamWriter zipWriter = new OutputStreamWriter(zipOut, UTF_8);
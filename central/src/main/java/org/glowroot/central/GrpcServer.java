@@ -192,14 +192,18 @@ class GrpcServer {
             httpServer.shutdownNow();
         }
         stopwatch = Stopwatch.createStarted();
-        if (httpsServer != null && !httpsServer.isTerminated()
-                && !httpsServer.awaitTermination(5, SECONDS)) {
-            throw new IllegalStateException("Timed out waiting for grpc server to terminate");
-        }
-        long remainingMillis = Math.max(0, 5000 - stopwatch.elapsed(MILLISECONDS));
-        if (httpServer != null && !httpServer.isTerminated()
-                && !httpServer.awaitTermination(remainingMillis, MILLISECONDS)) {
-            throw new IllegalStateException("Timed out waiting for grpc server to terminate");
+        try {
+            if (httpsServer != null && !httpsServer.isTerminated()
+                    && !httpsServer.awaitTermination(5, SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for grpc server to terminate");
+            }
+            long remainingMillis = Math.max(0, 5000 - stopwatch.elapsed(MILLISECONDS));
+            if (httpServer != null && !httpServer.isTerminated()
+                    && !httpServer.awaitTermination(remainingMillis, MILLISECONDS)) {
+                throw new IllegalStateException("Timed out waiting for grpc server to terminate");
+            }
+        } finally {
+            downstreamService.close();
         }
     }
 
@@ -17,6 +17,7 @@ package org.glowroot.central;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import org.glowroot.common.live.LiveJvmService;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
@@ -27,6 +28,8 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDumpRequest.
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 
+import static org.glowroot.central.DownstreamServiceImpl.await;
+
 class LiveJvmServiceImpl implements LiveJvmService {
 
     private final DownstreamServiceImpl downstreamService;
@@ -42,42 +45,83 @@ class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public ThreadDump getThreadDump(String agentId) throws Exception {
+        return await(downstreamService.threadDump(agentId));
+    }
+
+    @Override
+    public CompletionStage<ThreadDump> getThreadDumpAsync(String agentId) {
         return downstreamService.threadDump(agentId);
     }
 
     @Override
     public String getJstack(String agentId) throws Exception {
+        return await(downstreamService.jstack(agentId));
+    }
+
+    @Override
+    public CompletionStage<String> getJstackAsync(String agentId) {
         return downstreamService.jstack(agentId);
     }
 
     @Override
     public long getAvailableDiskSpace(String agentId, String directory) throws Exception {
+        return await(downstreamService.availableDiskSpaceBytes(agentId, directory));
+    }
+
+    @Override
+    public CompletionStage<Long> getAvailableDiskSpaceAsync(String agentId, String directory) {
         return downstreamService.availableDiskSpaceBytes(agentId, directory);
     }
 
     @Override
     public HeapDumpFileInfo heapDump(String agentId, String directory) throws Exception {
+        return await(downstreamService.heapDump(agentId, directory));
+    }
+
+    @Override
+    public CompletionStage<HeapDumpFileInfo> heapDumpAsync(String agentId, String directory) {
         return downstreamService.heapDump(agentId, directory);
     }
 
     @Override
     public HeapHistogram heapHistogram(String agentId) throws Exception {
+        return await(downstreamService.heapHistogram(agentId));
+    }
+
+    @Override
+    public CompletionStage<HeapHistogram> heapHistogramAsync(String agentId) {
         return downstreamService.heapHistogram(agentId);
     }
 
     @Override
     public boolean isExplicitGcDisabled(String agentId) throws Exception {
+        return await(downstreamService.isExplicitGcDisabled(agentId));
+    }
+
+    @Override
+    public CompletionStage<Boolean> isExplicitGcDisabledAsync(String agentId) {
         return downstreamService.isExplicitGcDisabled(agentId);
     }
 
     @Override
     public void forceGC(String agentId) throws Exception {
-        downstreamService.forceGC(agentId);
+        await(downstreamService.forceGC(agentId));
+    }
+
+    @Override
+    public CompletionStage<Void> forceGCAsync(String agentId) {
+        return downstreamService.forceGC(agentId);
     }
 
     @Override
     public MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind,
             List<String> objectNames) throws Exception {
+        return await(downstreamService.mbeanDump(agentId, mbeanDumpKind, objectNames));
+    }
+
+    @Override
+    public CompletionStage<MBeanDump> getMBeanDumpAsync(String agentId,
+            MBeanDumpKind mbeanDumpKind, List<String> objectNames) {
         return downstreamService.mbeanDump(agentId, mbeanDumpKind, objectNames);
     }
 
@@ -101,6 +145,11 @@ class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public Map<String, String> getSystemProperties(String agentId) throws Exception {
+        return await(downstreamService.systemProperties(agentId));
+    }
+
+    @Override
+    public CompletionStage<Map<String, String>> getSystemPropertiesAsync(String agentId) {
         return downstreamService.systemProperties(agentId);
     }
 
@@ -111,6 +160,11 @@ class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public Capabilities getCapabilities(String agentId) throws Exception {
+        return await(downstreamService.capabilities(agentId));
+    }
+
+    @Override
+    public CompletionStage<Capabilities> getCapabilitiesAsync(String agentId) {
         return downstreamService.capabilities(agentId);
     }
 }
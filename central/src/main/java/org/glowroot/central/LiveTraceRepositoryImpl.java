@@ -17,6 +17,7 @@ package org.glowroot.central;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -26,6 +27,8 @@ import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static org.glowroot.central.DownstreamServiceImpl.await;
+
 class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
     private final DownstreamServiceImpl downstreamService;
@@ -36,6 +39,12 @@ class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
     @Override
     public Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception {
+        return await(downstreamService.getHeader(agentId, traceId));
+    }
+
+    @Override
+    public CompletionStage<Trace. /*@Nullable*/ Header> getHeaderAsync(String agentId,
+            String traceId) {
         return downstreamService.getHeader(agentId, traceId);
     }
 
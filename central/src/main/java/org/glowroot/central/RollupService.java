@@ -23,7 +23,9 @@ import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
 import org.glowroot.common2.repo.CassandraProfile;
@@ -31,11 +33,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.util.concurrent.TimeUnit.*;
 
@@ -43,26 +47,43 @@ class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    // maximum number of (top level) agent rollups that are rolled up concurrently by this central
+    // collector node
+    private static final int ROLLUP_CONCURRENCY =
+            Integer.getInteger("glowroot.internal.rollupConcurrency", 8);
+
     private final ActiveAgentDao activeAgentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final CentralAlertingService centralAlertingService;
+    private final ClusterManager clusterManager;
+    private final RollupLagMetrics rollupLagMetrics;
     private final Clock clock;
 
+    // top level agent rollup ids that are either queued or currently being rolled up, so that a
+    // slow agent rollup is skipped (instead of piling up) in subsequent rollup cycles
+    private final Set<String> inFlightAgentRollupIds = ConcurrentHashMap.newKeySet();
+
     private final ExecutorService mainLoopExecutor;
+    private final ExecutorService workerExecutor;
 
     private volatile boolean closed;
 
     RollupService(ActiveAgentDao activeAgentDao, AggregateDao aggregateDao,
                   GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
-                  CentralAlertingService centralAlertingService, Clock clock) {
+                  CentralAlertingService centralAlertingService, ClusterManager clusterManager,
+                  RollupLagMetrics rollupLagMetrics, Clock clock) {
         this.activeAgentDao = activeAgentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
+        this.clusterManager = clusterManager;
+        this.rollupLagMetrics = rollupLagMetrics;
         this.clock = clock;
+        rollupLagMetrics.registerMBeans();
+        workerExecutor = MoreExecutors2.newFixedThreadPool(ROLLUP_CONCURRENCY, "Rollup-Worker-%d");
         mainLoopExecutor = MoreExecutors2.newSingleThreadExecutor("Rollup-Main-Loop");
         mainLoopExecutor.execute(castInitialized(this));
     }
@@ -98,69 +119,107 @@ class RollupService implements Runnable {
             throw new IllegalStateException(
                     "Timed out waiting for main rollup thread to terminate");
         }
+        // shutdownNow() is needed here to send interrupt to rollup worker threads
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for rollup worker threads to terminate");
+        }
+        rollupLagMetrics.unregisterMBeans();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal(List<AgentRollup> agentRollups) {
-        List<CompletableFuture<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentRollups)) {
-            // run aggregate, gauge, and synthetic monitor rollups independently so that a
-            // failure in one type does not prevent the others from completing, and so that an
-            // async exception from one agent does not cause allAsList to fail-fast and abandon
-            // rollups for all other agents
-            CompletableFuture<?> aggregateFut = rollupAggregates(agentRollup)
-                    .exceptionally(t -> {
-                        logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                        return null;
-                    })
-                    .toCompletableFuture();
-            CompletableFuture<?> gaugeFut = rollupGauges(agentRollup)
-                    .exceptionally(t -> {
-                        logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                        return null;
-                    })
-                    .toCompletableFuture();
-            CompletableFuture<?> syntheticFut = rollupSyntheticMonitors(agentRollup)
-                    .exceptionally(t -> {
-                        logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                        return null;
-                    })
-                    .toCompletableFuture();
-            // checking aggregate and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length (and alerts on rollups are not checked
-            // anywhere else)
-            //
-            // agent (not rollup) alerts are also checked right after receiving the respective data
-            // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-            // minute in case no data has been received from the agent recently
-            CompletableFuture<?> fut = CompletableFuture.allOf(
-                            aggregateFut, gaugeFut, syntheticFut)
-                    .thenCompose(ignore -> {
-                        return checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
-                    })
-                    .exceptionally(t -> {
+    private void runInternal(List<AgentRollup> agentRollups) throws Exception {
+        for (AgentRollup agentRollup : agentRollups) {
+            // each top level agent rollup (together with its children, which need to be rolled up
+            // first) is rolled up by exactly one central collector node
+            if (!clusterManager.isLocallyOwned(agentRollup.id())) {
+                continue;
+            }
+            if (!inFlightAgentRollupIds.add(agentRollup.id())) {
+                logger.debug("{} - skipping, prior rollup still in progress", agentRollup.id());
+                continue;
+            }
+            try {
+                workerExecutor.execute(() -> {
+                    try {
+                        rollupAndCheckAlerts(agentRollup);
+                    } catch (InterruptedException e) {
+                        // probably shutdown requested (see close method above)
+                        logger.debug(e.getMessage(), e);
+                    } catch (Throwable t) {
                         logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
-                        return null;
-                    });
-            futures.add(fut);
+                    } finally {
+                        inFlightAgentRollupIds.remove(agentRollup.id());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // probably shutdown requested (see close method above)
+                logger.debug(e.getMessage(), e);
+                inFlightAgentRollupIds.remove(agentRollup.id());
+            }
+        }
+        if (!clusterManager.isLocallyOwned("checkForAllDeletedAlerts")) {
+            return;
         }
-        CompletableFutures.allAsList(futures).thenCompose(ignore -> {
-            return centralAlertingService.checkForAllDeletedAlerts(CassandraProfile.rollup);
-        }).exceptionally(t -> {
-            logger.error(t.getMessage(), t);
-            return null;
-        }).toCompletableFuture().join();
+        centralAlertingService.checkForAllDeletedAlerts(CassandraProfile.rollup)
+                .exceptionally(t -> {
+                    logger.error(t.getMessage(), t);
+                    return null;
+                }).toCompletableFuture().get();
+    }
+
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Agent rollup", traceHeadline = "Agent rollup",
+            timer = "agent rollup")
+    private void rollupAndCheckAlerts(AgentRollup agentRollup) throws Exception {
+        // run aggregate, gauge, and synthetic monitor rollups independently so that a failure in
+        // one type does not prevent the others from completing
+        CompletableFuture<?> aggregateFut = rollupAggregates(agentRollup)
+                .exceptionally(t -> {
+                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                    return null;
+                })
+                .toCompletableFuture();
+        CompletableFuture<?> gaugeFut = rollupGauges(agentRollup)
+                .exceptionally(t -> {
+                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                    return null;
+                })
+                .toCompletableFuture();
+        CompletableFuture<?> syntheticFut = rollupSyntheticMonitors(agentRollup)
+                .exceptionally(t -> {
+                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                    return null;
+                })
+                .toCompletableFuture();
+        // checking aggregate and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length (and alerts on rollups are not checked
+        // anywhere else)
+        //
+        // agent (not rollup) alerts are also checked right after receiving the respective data
+        // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
+        // minute in case no data has been received from the agent recently
+        //
+        // waiting here ties up this worker thread for the duration, which is what bounds the
+        // number of agent rollups being rolled up concurrently (using get() rather than join() so
+        // that the wait is interrupted on shutdown, see close method above)
+        CompletableFuture.allOf(aggregateFut, gaugeFut, syntheticFut)
+                .thenCompose(ignore -> {
+                    return checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+                })
+                .exceptionally(t -> {
+                    logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                    return null;
+                })
+                .get();
     }
 
     private CompletionStage<?> rollupAggregates(AgentRollup agentRollup) {
         List<CompletableFuture<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
             futures.add(rollupAggregates(childAgentRollup).toCompletableFuture());
         }
         return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
@@ -192,7 +251,7 @@ class RollupService implements Runnable {
         // need to roll up children first, since gauge values initial roll up from children is
         // done on the 1-min aggregates of the children
         List<CompletionStage<?>> futures = new ArrayList<>();
-        for (AgentRollup childAgentRollup : shuffle(childAgentRollups)) {
+        for (AgentRollup childAgentRollup : childAgentRollups) {
             futures.add(rollupGauges(childAgentRollup));
         }
         // using _allAsList_ because need to _not_ roll up parent if exception occurs while
@@ -213,7 +272,7 @@ class RollupService implements Runnable {
 
     private CompletionStage<?> rollupSyntheticMonitors(AgentRollup agentRollup) {
         List<CompletionStage<?>> futures = new ArrayList<>();
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
             futures.add(rollupSyntheticMonitors(childAgentRollup));
         }
         return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
@@ -244,12 +303,6 @@ class RollupService implements Runnable {
         });
     }
 
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
-        Collections.shuffle(mutable);
-        return mutable;
-    }
-
     private static int count(List<AgentRollup> agentRollups) {
         int count = agentRollups.size();
         for (AgentRollup agentRollup : agentRollups) {
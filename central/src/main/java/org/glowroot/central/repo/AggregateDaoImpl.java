@@ -34,6 +34,7 @@ import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
@@ -68,6 +69,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -82,6 +84,18 @@ public class AggregateDaoImpl implements AggregateDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // number of transaction names retained per interval (by total time and by throughput) in the
+    // aggregate_tn_summary_top_rollup_* tables
+    private static final int TOP_TRANSACTION_NAMES = 200;
+
+    // extra transaction names returned beyond the limit, since the result still needs to be merged
+    // with other results (e.g. live data and lower rollup levels), same as the embedded repository
+    private static final int TOP_TRANSACTION_NAMES_SLACK = 100;
+
+    // upper bound on the number of transaction names whose exact summaries are read from the
+    // overview table before giving up and falling back to reading all transaction name summaries
+    private static final int TOP_TRANSACTION_NAMES_MAX_CANDIDATES = 2 * TOP_TRANSACTION_NAMES;
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -188,6 +202,7 @@ public class AggregateDaoImpl implements AggregateDao {
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepositoryImpl configRepository;
     private final Executor asyncExecutor;
+    private final RollupLagMetrics rollupLagMetrics;
     private final Clock clock;
 
     // list index is rollupLevel
@@ -205,6 +220,13 @@ public class AggregateDaoImpl implements AggregateDao {
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
     private final List<PreparedStatement> existsAuxThreadProfileTransactionPS;
 
+    // list index is rollupLevel
+    private final List<PreparedStatement> insertSummaryTopThresholdPS;
+    private final List<PreparedStatement> insertSummaryTopPS;
+    private final List<PreparedStatement> readSummaryTopThresholdPS;
+    private final List<PreparedStatement> readSummaryTopPS;
+    private final List<PreparedStatement> readTransactionNameSummaryFromOverviewPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -217,7 +239,8 @@ public class AggregateDaoImpl implements AggregateDao {
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
                      TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-                     ConfigRepositoryImpl configRepository, Executor asyncExecutor, int cassandraGcGraceSeconds, Clock clock)
+                     ConfigRepositoryImpl configRepository, Executor asyncExecutor, int cassandraGcGraceSeconds,
+                     RollupLagMetrics rollupLagMetrics, Clock clock)
             throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
@@ -225,6 +248,7 @@ public class AggregateDaoImpl implements AggregateDao {
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
+        this.rollupLagMetrics = rollupLagMetrics;
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
@@ -270,8 +294,10 @@ public class AggregateDaoImpl implements AggregateDao {
                             expirationHours);
                     session.createTableWithTWCS(createSummaryTableQuery(table, true, i),
                             expirationHours);
-                    insertOverallList.add(session.prepare(insertSummaryPS(table, false, i)));
-                    insertTransactionList.add(session.prepare(insertSummaryPS(table, true, i)));
+                    insertOverallList
+                            .add(session.prepareCoalescedInsert(insertSummaryPS(table, false, i)));
+                    insertTransactionList
+                            .add(session.prepareCoalescedInsert(insertSummaryPS(table, true, i)));
                     readOverallList.add(session.prepare(readSummaryPS(table, false, i)));
                     readOverallForRollupList
                             .add(session.prepare(readSummaryForRollupPS(table, false, i)));
@@ -281,8 +307,10 @@ public class AggregateDaoImpl implements AggregateDao {
                 } else {
                     session.createTableWithTWCS(createTableQuery(table, false, i), expirationHours);
                     session.createTableWithTWCS(createTableQuery(table, true, i), expirationHours);
-                    insertOverallList.add(session.prepare(insertPS(table, false, i)));
-                    insertTransactionList.add(session.prepare(insertPS(table, true, i)));
+                    insertOverallList
+                            .add(session.prepareCoalescedInsert(insertPS(table, false, i)));
+                    insertTransactionList
+                            .add(session.prepareCoalescedInsert(insertPS(table, true, i)));
                     readOverallList.add(session.prepare(readPS(table, false, i)));
                     readOverallForRollupList.add(session.prepare(readForRollupPS(table, false, i)));
                     readTransactionList.add(session.prepare(readPS(table, true, i)));
@@ -342,6 +370,56 @@ public class AggregateDaoImpl implements AggregateDao {
         this.existsAuxThreadProfileOverallPS = existsAuxThreadProfileOverallPS;
         this.existsAuxThreadProfileTransactionPS = existsAuxThreadProfileTransactionPS;
 
+        List<PreparedStatement> insertSummaryTopThresholdPS = new ArrayList<>();
+        List<PreparedStatement> insertSummaryTopPS = new ArrayList<>();
+        List<PreparedStatement> readSummaryTopThresholdPS = new ArrayList<>();
+        List<PreparedStatement> readSummaryTopPS = new ArrayList<>();
+        List<PreparedStatement> readTransactionNameSummaryFromOverviewPS = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String thresholdTableName = getTableName("summary_top", false, i);
+            String topTableName = getTableName("summary_top", true, i);
+            // total_duration_nanos_threshold and transaction_count_threshold are upper bounds on
+            // the values of any transaction name that is not in the top table for the interval
+            session.createTableWithTWCS("create table if not exists " + thresholdTableName
+                    + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+                    + " total_duration_nanos_threshold double, transaction_count_threshold bigint,"
+                    + " primary key ((agent_rollup, transaction_type), capture_time))",
+                    rollupExpirationHours.get(i));
+            session.createTableWithTWCS("create table if not exists " + topTableName
+                    + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+                    + " transaction_name varchar, total_duration_nanos double, transaction_count"
+                    + " bigint, primary key ((agent_rollup, transaction_type), capture_time,"
+                    + " transaction_name))", rollupExpirationHours.get(i));
+            insertSummaryTopThresholdPS.add(session.prepare("insert into " + thresholdTableName
+                    + " (agent_rollup, transaction_type, capture_time,"
+                    + " total_duration_nanos_threshold, transaction_count_threshold) values"
+                    + " (?, ?, ?, ?, ?) using TTL ?"));
+            insertSummaryTopPS.add(session.prepare("insert into " + topTableName
+                    + " (agent_rollup, transaction_type, capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count) values (?, ?, ?, ?, ?, ?)"
+                    + " using TTL ?"));
+            readSummaryTopThresholdPS.add(session.prepare("select capture_time,"
+                    + " total_duration_nanos_threshold, transaction_count_threshold from "
+                    + thresholdTableName + " where agent_rollup = ? and transaction_type = ? and"
+                    + " capture_time > ? and capture_time <= ?"));
+            readSummaryTopPS.add(session.prepare("select capture_time, transaction_name,"
+                    + " total_duration_nanos, transaction_count from " + topTableName
+                    + " where agent_rollup = ? and transaction_type = ? and capture_time > ? and"
+                    + " capture_time <= ?"));
+            readTransactionNameSummaryFromOverviewPS.add(session.prepare("select capture_time,"
+                    + " total_duration_nanos, transaction_count, main_thread_total_cpu_nanos,"
+                    + " main_thread_total_allocated_bytes, aux_thread_root_timers,"
+                    + " aux_thread_total_cpu_nanos, aux_thread_total_allocated_bytes from "
+                    + getTableName(overviewTable.partialName(), true, i)
+                    + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ?"));
+        }
+        this.insertSummaryTopThresholdPS = insertSummaryTopThresholdPS;
+        this.insertSummaryTopPS = insertSummaryTopPS;
+        this.readSummaryTopThresholdPS = readSummaryTopThresholdPS;
+        this.readSummaryTopPS = readSummaryTopPS;
+        this.readTransactionNameSummaryFromOverviewPS = readTransactionNameSummaryFromOverviewPS;
+
         List<PreparedStatement> insertNeedsRollup = new ArrayList<>();
         List<PreparedStatement> readNeedsRollup = new ArrayList<>();
         List<PreparedStatement> deleteNeedsRollup = new ArrayList<>();
@@ -444,12 +522,22 @@ public class AggregateDaoImpl implements AggregateDao {
                     // transactionName rollups are based on finding transactionName in summary table
                     futures.add(CompletableFutures.allAsList(futures1).thenCompose(ignoredResult -> {
                         List<CompletionStage<?>> futuresInner = new ArrayList<>();
+                        Map<String, MutableSummary> summaries = new HashMap<>();
                         for (OldTransactionAggregate transactionAggregate : aggregatesByType
                                 .getTransactionAggregateList()) {
                             futuresInner.addAll(storeTransactionNameSummary(agentId, transactionType,
                                     transactionAggregate.getTransactionName(), captureTime,
                                     transactionAggregate.getAggregate(), adjustedTTL));
+                            MutableSummary summary = summaries.computeIfAbsent(
+                                    transactionAggregate.getTransactionName(),
+                                    k -> new MutableSummary());
+                            summary.totalDurationNanos +=
+                                    transactionAggregate.getAggregate().getTotalDurationNanos();
+                            summary.transactionCount +=
+                                    transactionAggregate.getAggregate().getTransactionCount();
                         }
+                        futuresInner.addAll(insertTopTransactionSummaries(agentId, transactionType,
+                                captureTime, 0, summaries, adjustedTTL.generalTTL(), collector));
                         futuresInner.add(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
                         return CompletableFutures.allAsList(futuresInner);
                     }));
@@ -523,14 +611,180 @@ public class AggregateDaoImpl implements AggregateDao {
         return executeQuery(agentRollupId, query, summaryTable, profile).thenCompose(compute);
     }
 
-    // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
-    // repository which currently has to pull in all records anyways just delegates ordering and
-    // limit to TransactionNameSummaryCollector
+    // for total time and throughput sort orders, the top transaction names are determined from the
+    // aggregate_tn_summary_top_rollup_* tables when possible, otherwise (and for the other sort
+    // orders) all records are pulled in and ordering and limit is delegated to
+    // TransactionNameSummaryCollector
     //
     // query.from() is non-inclusive
     @Override
     public CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
                                                                 SummarySortOrder sortOrder, int limit, TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        if ((sortOrder != SummarySortOrder.TOTAL_TIME && sortOrder != SummarySortOrder.THROUGHPUT)
+                || limit + TOP_TRANSACTION_NAMES_SLACK >= TOP_TRANSACTION_NAMES) {
+            return mergeAllTransactionNameSummariesInto(agentRollupId, query, collector, profile);
+        }
+        return mergeTopTransactionNameSummariesInto(agentRollupId, query, sortOrder, limit,
+                collector, profile).thenCompose(merged -> {
+                    if (merged) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return mergeAllTransactionNameSummariesInto(agentRollupId, query, collector,
+                            profile);
+                });
+    }
+
+    // returns false (without merging anything into the collector) if the top transaction names
+    // cannot be determined from the top transaction name summary tables, e.g. if some intervals in
+    // the time range were stored prior to these tables being introduced
+    private CompletionStage<Boolean> mergeTopTransactionNameSummariesInto(String agentRollupId,
+            SummaryQuery query, SummarySortOrder sortOrder, int limit,
+            TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        boolean totalTime = sortOrder == SummarySortOrder.TOTAL_TIME;
+        Set<Long> captureTimes = new HashSet<>();
+        Map<Long, Double> thresholds = new HashMap<>();
+        Map<String, MutableTopSummary> topSummaries = new HashMap<>();
+        BoundStatement boundStatement =
+                checkNotNull(readOverallPS.get(summaryTable)).get(query.rollupLevel()).bind();
+        CompletionStage<?> captureTimesFuture = readAllRows(
+                bindQuery(boundStatement, agentRollupId, query), profile,
+                row -> captureTimes.add(checkNotNull(row.getInstant(0)).toEpochMilli()));
+        boundStatement = readSummaryTopThresholdPS.get(query.rollupLevel()).bind();
+        CompletionStage<?> thresholdsFuture = readAllRows(
+                bindQuery(boundStatement, agentRollupId, query), profile, row -> {
+                    int i = 0;
+                    long captureTime = checkNotNull(row.getInstant(i++)).toEpochMilli();
+                    double totalDurationNanosThreshold = row.getDouble(i++);
+                    long transactionCountThreshold = row.getLong(i++);
+                    thresholds.put(captureTime, totalTime ? totalDurationNanosThreshold
+                            : transactionCountThreshold);
+                });
+        boundStatement = readSummaryTopPS.get(query.rollupLevel()).bind();
+        CompletionStage<?> topFuture = readAllRows(
+                bindQuery(boundStatement, agentRollupId, query), profile, row -> {
+                    int i = 0;
+                    long captureTime = checkNotNull(row.getInstant(i++)).toEpochMilli();
+                    String transactionName = checkNotNull(row.getString(i++));
+                    double totalDurationNanos = row.getDouble(i++);
+                    long transactionCount = row.getLong(i++);
+                    MutableTopSummary topSummary = topSummaries
+                            .computeIfAbsent(transactionName, k -> new MutableTopSummary());
+                    topSummary.value += totalTime ? totalDurationNanos : transactionCount;
+                    topSummary.captureTimes.add(captureTime);
+                });
+        return CompletableFutures.allAsList(ImmutableList.of(captureTimesFuture.toCompletableFuture(),
+                thresholdsFuture.toCompletableFuture(), topFuture.toCompletableFuture()))
+                .thenCompose(ignored -> {
+                    if (!thresholds.keySet().containsAll(captureTimes)) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    List<String> candidates = getTopTransactionNameCandidates(topSummaries,
+                            thresholds, limit + TOP_TRANSACTION_NAMES_SLACK);
+                    if (candidates == null) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return mergeTransactionNameSummariesFromOverviewInto(agentRollupId, query,
+                            candidates, collector, profile).thenApply(ignored2 -> true);
+                });
+    }
+
+    // the lower bound of each transaction name's value is the sum of its values in the intervals
+    // where it was in the top table, and the upper bound additionally includes the thresholds of
+    // the intervals where it was not, so any transaction name whose upper bound does not exceed
+    // the (limit + 1)th highest lower bound cannot be in the top (limit + 1)
+    private static @Nullable List<String> getTopTransactionNameCandidates(
+            Map<String, MutableTopSummary> topSummaries, Map<Long, Double> thresholds, int limit) {
+        double totalThreshold = 0;
+        for (double threshold : thresholds.values()) {
+            totalThreshold += threshold;
+        }
+        List<Map.Entry<String, MutableTopSummary>> entries =
+                new ArrayList<>(topSummaries.entrySet());
+        entries.sort(Comparator.comparingDouble(
+                (Map.Entry<String, MutableTopSummary> entry) -> entry.getValue().value)
+                .reversed());
+        double cutoff;
+        if (entries.size() > limit) {
+            cutoff = entries.get(limit).getValue().value;
+        } else {
+            cutoff = 0;
+        }
+        // transaction names that were never in the top table are bounded by totalThreshold
+        if (totalThreshold > cutoff) {
+            return null;
+        }
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, MutableTopSummary> entry : entries) {
+            MutableTopSummary topSummary = entry.getValue();
+            double upperBound = topSummary.value + totalThreshold;
+            for (long captureTime : topSummary.captureTimes) {
+                upperBound -= checkNotNull(thresholds.get(captureTime));
+            }
+            if (candidates.size() <= limit || upperBound > cutoff) {
+                candidates.add(entry.getKey());
+            }
+        }
+        if (candidates.size() > TOP_TRANSACTION_NAMES_MAX_CANDIDATES) {
+            return null;
+        }
+        return candidates;
+    }
+
+    // the overview table has the same totals as the summary table, but is partitioned by
+    // transaction name
+    private CompletionStage<?> mergeTransactionNameSummariesFromOverviewInto(String agentRollupId,
+            SummaryQuery query, List<String> transactionNames,
+            TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (String transactionName : transactionNames) {
+            int i = 0;
+            BoundStatement boundStatement = readTransactionNameSummaryFromOverviewPS
+                    .get(query.rollupLevel()).bind()
+                    .setString(i++, agentRollupId)
+                    .setString(i++, query.transactionType())
+                    .setString(i++, transactionName)
+                    .setInstant(i++, Instant.ofEpochMilli(query.from()))
+                    .setInstant(i++, Instant.ofEpochMilli(query.to()));
+            futures.add(readAllRows(boundStatement, profile, row -> {
+                int j = 0;
+                long captureTime = checkNotNull(row.getInstant(j++)).toEpochMilli();
+                double totalDurationNanos = row.getDouble(j++);
+                long transactionCount = row.getLong(j++);
+                double totalCpuNanos = row.getDouble(j++);
+                double totalAllocatedBytes = row.getDouble(j++);
+                if (!row.isNull(j++)) {
+                    totalCpuNanos += row.getDouble(j++);
+                    totalAllocatedBytes += row.getDouble(j++);
+                }
+                synchronized (collector) {
+                    collector.collect(transactionName, totalDurationNanos, totalCpuNanos,
+                            totalAllocatedBytes, transactionCount, captureTime);
+                }
+            }).toCompletableFuture());
+        }
+        return CompletableFutures.allAsList(futures);
+    }
+
+    private CompletionStage<?> readAllRows(BoundStatement boundStatement,
+            CassandraProfile profile, Consumer<Row> rowConsumer) {
+        Function<AsyncResultSet, CompletableFuture<Void>> compute = new Function<AsyncResultSet, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(AsyncResultSet results) {
+                for (Row row : results.currentPage()) {
+                    rowConsumer.accept(row);
+                }
+                if (results.hasMorePages()) {
+                    return results.fetchNextPage().thenCompose(this::apply).toCompletableFuture();
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        return session.readAsync(boundStatement, profile).thenCompose(compute);
+    }
+
+    private CompletionStage<?> mergeAllTransactionNameSummariesInto(String agentRollupId,
+            SummaryQuery query, TransactionNameSummaryCollector collector,
+            CassandraProfile profile) {
         // currently have to do group by / sort / limit client-side
         BoundStatement boundStatement =
                 checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
@@ -914,6 +1168,10 @@ public class AggregateDaoImpl implements AggregateDao {
         for (int i = 1; i < configRepository.getRollupConfigs().size(); i++) {
             session.updateSchemaWithRetry("truncate aggregate_needs_rollup_" + i);
         }
+        for (int i = 0; i < configRepository.getRollupConfigs().size(); i++) {
+            session.updateSchemaWithRetry("truncate " + getTableName("summary_top", false, i));
+            session.updateSchemaWithRetry("truncate " + getTableName("summary_top", true, i));
+        }
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
     }
 
@@ -977,8 +1235,8 @@ public class AggregateDaoImpl implements AggregateDao {
     private CompletionStage<?> rollup(String agentRollupId, String agentRollupIdForMeta, int rollupLevel, TTL ttl) {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
-        return Common.getNeedsRollupList(agentRollupId,
-                rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock, rollup).thenCompose(needsRollupCollection -> {
+        return Common.getNeedsRollupList("aggregate", agentRollupId, rollupLevel, rollupIntervalMillis,
+                readNeedsRollup, session, rollupLagMetrics, clock, rollup).thenCompose(needsRollupCollection -> {
             List<NeedsRollup> needsRollupList = new ArrayList<>(needsRollupCollection);
             Long nextRollupIntervalMillis = null;
             if (rollupLevel + 1 < rollupConfigs.size()) {
@@ -1319,9 +1577,86 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setInt(i++, rollup.adjustedTTL().generalTTL());
             futures.add(session.writeAsync(boundStatement, profile).toCompletableFuture());
         }
+        futures.addAll(insertTopTransactionSummaries(rollup.agentRollupId(),
+                query.transactionType(), query.to(), rollup.rollupLevel(), summaries,
+                rollup.adjustedTTL().generalTTL(), profile));
         return CompletableFutures.allAsList(futures);
     }
 
+    // only the transaction names that are in the top TOP_TRANSACTION_NAMES for the interval (by
+    // total time or by throughput) are stored, along with thresholds that bound the values of all
+    // other transaction names for the interval, which is enough to (usually) determine the top
+    // transaction names over a time range without reading every transaction name summary
+    private List<CompletableFuture<?>> insertTopTransactionSummaries(String agentRollupId,
+            String transactionType, long captureTime, int rollupLevel,
+            Map<String, MutableSummary> summaries, int ttl, CassandraProfile profile) {
+        Collection<Map.Entry<String, MutableSummary>> topEntries;
+        double totalDurationNanosThreshold;
+        long transactionCountThreshold;
+        if (summaries.size() <= TOP_TRANSACTION_NAMES) {
+            // all transaction names are stored, so there is nothing else to bound
+            topEntries = summaries.entrySet();
+            totalDurationNanosThreshold = 0;
+            transactionCountThreshold = 0;
+        } else {
+            List<Map.Entry<String, MutableSummary>> topByTotalTime =
+                    new Ordering<Map.Entry<String, MutableSummary>>() {
+                        @Override
+                        public int compare(Map.Entry<String, MutableSummary> left,
+                                Map.Entry<String, MutableSummary> right) {
+                            return Double.compare(left.getValue().totalDurationNanos,
+                                    right.getValue().totalDurationNanos);
+                        }
+                    }.greatestOf(summaries.entrySet(), TOP_TRANSACTION_NAMES);
+            List<Map.Entry<String, MutableSummary>> topByThroughput =
+                    new Ordering<Map.Entry<String, MutableSummary>>() {
+                        @Override
+                        public int compare(Map.Entry<String, MutableSummary> left,
+                                Map.Entry<String, MutableSummary> right) {
+                            return Long.compare(left.getValue().transactionCount,
+                                    right.getValue().transactionCount);
+                        }
+                    }.greatestOf(summaries.entrySet(), TOP_TRANSACTION_NAMES);
+            Map<String, Map.Entry<String, MutableSummary>> union = new HashMap<>();
+            for (Map.Entry<String, MutableSummary> entry : Iterables.concat(topByTotalTime,
+                    topByThroughput)) {
+                union.put(entry.getKey(), entry);
+            }
+            topEntries = union.values();
+            totalDurationNanosThreshold = topByTotalTime.get(TOP_TRANSACTION_NAMES - 1)
+                    .getValue().totalDurationNanos;
+            transactionCountThreshold = topByThroughput.get(TOP_TRANSACTION_NAMES - 1)
+                    .getValue().transactionCount;
+        }
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, MutableSummary> entry : topEntries) {
+            MutableSummary summary = entry.getValue();
+            int i = 0;
+            BoundStatement boundStatement = insertSummaryTopPS.get(rollupLevel).bind()
+                    .setString(i++, agentRollupId)
+                    .setString(i++, transactionType)
+                    .setInstant(i++, Instant.ofEpochMilli(captureTime))
+                    .setString(i++, entry.getKey())
+                    .setDouble(i++, summary.totalDurationNanos)
+                    .setLong(i++, summary.transactionCount)
+                    .setInt(i++, ttl);
+            futures.add(session.writeAsync(boundStatement, profile).toCompletableFuture());
+        }
+        // the threshold record is written after the top records, since its presence is what marks
+        // the interval as usable when reading
+        int i = 0;
+        BoundStatement boundStatement = insertSummaryTopThresholdPS.get(rollupLevel).bind()
+                .setString(i++, agentRollupId)
+                .setString(i++, transactionType)
+                .setInstant(i++, Instant.ofEpochMilli(captureTime))
+                .setDouble(i++, totalDurationNanosThreshold)
+                .setLong(i++, transactionCountThreshold)
+                .setInt(i++, ttl);
+        CompletableFuture<?> future = CompletableFutures.allAsList(futures)
+                .thenCompose(ignored -> session.writeAsync(boundStatement, profile));
+        return ImmutableList.of(future);
+    }
+
     private CompletableFuture<?> rollupTransactionErrorSummary(RollupParams rollup,
                                                                AggregateQuery query) {
         BoundStatement boundStatement =
@@ -2857,6 +3192,11 @@ public class AggregateDaoImpl implements AggregateDao {
         private double totalAllocatedBytes;
     }
 
+    private static class MutableTopSummary {
+        private double value;
+        private final Set<Long> captureTimes = new HashSet<>();
+    }
+
     private static class MutableErrorSummary {
         private long errorCount;
         private long transactionCount;
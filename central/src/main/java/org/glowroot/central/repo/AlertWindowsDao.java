@@ -0,0 +1,93 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.central.repo.proto.StoredAlertWindows.AlertWindows;
+import org.glowroot.central.util.Session;
+import org.glowroot.common2.repo.CassandraProfile;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// checkpoints of the alert windows (see CentralAlertingService) that are written on shutdown and
+// read back (and deleted) the first time data is received from the agent after start up
+public class AlertWindowsDao {
+
+    // agents buffer data while central is unavailable and send it when central is back, which
+    // keeps the alert windows complete, but not indefinitely
+    private static final int TTL = Ints.saturatedCast(DAYS.toSeconds(1));
+
+    private final Session session;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+    private final PreparedStatement deletePS;
+
+    AlertWindowsDao(Session session) throws Exception {
+        this.session = session;
+
+        session.createTableWithLCS("create table if not exists alert_windows (agent_id varchar,"
+                + " alert_windows blob, primary key (agent_id))");
+
+        insertPS = session.prepare("insert into alert_windows (agent_id, alert_windows) values"
+                + " (?, ?) using ttl ?");
+        readPS = session.prepare("select alert_windows from alert_windows where agent_id = ?");
+        deletePS = session.prepare("delete from alert_windows where agent_id = ?");
+    }
+
+    public CompletionStage<?> store(String agentId, AlertWindows alertWindows,
+            CassandraProfile profile) {
+        int i = 0;
+        BoundStatement boundStatement = insertPS.bind()
+                .setString(i++, agentId)
+                .setByteBuffer(i++, ByteBuffer.wrap(alertWindows.toByteArray()))
+                .setInt(i++, TTL);
+        return session.writeAsync(boundStatement, profile);
+    }
+
+    public CompletionStage<@Nullable AlertWindows> readAndDelete(String agentId,
+            CassandraProfile profile) {
+        BoundStatement boundStatement = readPS.bind()
+                .setString(0, agentId);
+        return session.readAsync(boundStatement, profile).thenCompose(results -> {
+            Row row = results.one();
+            if (row == null) {
+                return CompletableFuture.<@Nullable AlertWindows>completedFuture(null);
+            }
+            AlertWindows alertWindows;
+            try {
+                alertWindows = AlertWindows.parseFrom(checkNotNull(row.getByteBuffer(0)));
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException(e);
+            }
+            // the checkpoint is only valid until data is received again, so it must not be read
+            // again after a subsequent unclean shutdown
+            return session.writeAsync(deletePS.bind().setString(0, agentId), profile)
+                    .thenApply(ignored -> alertWindows);
+        });
+    }
+}
@@ -30,6 +30,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.AggregateDaoWithV09Support;
 import org.glowroot.central.v09support.GaugeValueDaoWithV09Support;
@@ -54,6 +55,7 @@ public class CentralRepoModule {
     private final RoleDao roleDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingDisabledDao alertingDisabledDao;
+    private final AlertWindowsDao alertWindowsDao;
     private final RollupLevelService rollupLevelService;
     private final ActiveAgentDao activeAgentDao;
     private final EnvironmentDao environmentDao;
@@ -67,6 +69,7 @@ public class CentralRepoModule {
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final V09AgentRollupDao v09AgentRollupDao;
+    private final RollupLagMetrics rollupLagMetrics;
 
     public CentralRepoModule(ClusterManager clusterManager, Session session, File confDir,
             String cassandraSymmetricEncryptionKey, int cassandraGcGraceSeconds, ExecutorService asyncExecutor,
@@ -85,6 +88,7 @@ public class CentralRepoModule {
         configRepository = new ConfigRepositoryImpl(centralConfigDao, agentConfigDao, userDao,
                 roleDao, cassandraSymmetricEncryptionKey);
         alertingDisabledDao = new AlertingDisabledDao(session, clock);
+        alertWindowsDao = new AlertWindowsDao(session);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         activeAgentDao = new ActiveAgentDao(session, agentDisplayDao, agentConfigDao,
                 configRepository, rollupLevelService, clock);
@@ -147,12 +151,14 @@ public class CentralRepoModule {
             v09AggregateLastExpirationTime = checkNotNull(row.getInstant(i++)).toEpochMilli();
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository);
+        rollupLagMetrics = new RollupLagMetrics();
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, cassandraGcGraceSeconds, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, cassandraGcGraceSeconds,
+                rollupLagMetrics, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
-                clusterManager, asyncExecutor, cassandraGcGraceSeconds, clock);
+                clusterManager, asyncExecutor, cassandraGcGraceSeconds, rollupLagMetrics, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
-                configRepository, asyncExecutor, cassandraGcGraceSeconds, clock);
+                configRepository, asyncExecutor, cassandraGcGraceSeconds, rollupLagMetrics, clock);
         if (v09AggregateLastExpirationTime < clock.currentTimeMillis()) {
             aggregateDao = aggregateDaoImpl;
             gaugeValueDao = gaugeValueDaoImpl;
@@ -201,6 +207,10 @@ public class CentralRepoModule {
         return alertingDisabledDao;
     }
 
+    public AlertWindowsDao getAlertWindowsDao() {
+        return alertWindowsDao;
+    }
+
     public RollupLevelService getRollupLevelService() {
         return rollupLevelService;
     }
@@ -245,6 +255,10 @@ public class CentralRepoModule {
         return syntheticResultDao;
     }
 
+    public RollupLagMetrics getRollupLagMetrics() {
+        return rollupLagMetrics;
+    }
+
     public V09AgentRollupDao getV09AgentRollupDao() {
         return v09AgentRollupDao;
     }
@@ -38,6 +38,7 @@ import com.google.common.primitives.Ints;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -77,9 +78,10 @@ class Common {
         return Math.max(needsRollupAdjustedTTL, 60);
     }
 
-    static CompletionStage<Collection<NeedsRollup>> getNeedsRollupList(String agentRollupId, int rollupLevel,
+    static CompletionStage<Collection<NeedsRollup>> getNeedsRollupList(String rollupType, String agentRollupId, int rollupLevel,
                                                                        long rollupIntervalMillis, List<PreparedStatement> readNeedsRollup, Session session,
-                                                                       Clock clock, CassandraProfile profile) {
+                                                                       RollupLagMetrics rollupLagMetrics, Clock clock,
+                                                                       CassandraProfile profile) {
         // capture current time before reading data to prevent race condition with optimization
         // that prevents duplicate needs rollup data which is also based on current time
         long currentTimeMillis = clock.currentTimeMillis();
@@ -125,7 +127,14 @@ class Common {
             }
         };
         return session.readAsync(boundStatement, profile)
-                .thenCompose(compute).thenApply(Map::values);
+                .thenCompose(compute).thenApply(map -> {
+                    // needs rollup map is ordered by capture time
+                    long lagMillis = map.isEmpty() ? 0
+                            : currentTimeMillis - map.keySet().iterator().next();
+                    rollupLagMetrics.recordLag(rollupType, rollupLevel, agentRollupId,
+                            lagMillis);
+                    return map.values();
+                });
     }
 
     static CompletionStage<List<NeedsRollupFromChildren>> getNeedsRollupFromChildrenList(
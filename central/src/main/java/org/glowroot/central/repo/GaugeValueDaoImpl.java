@@ -27,6 +27,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -60,6 +61,7 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final ExecutorService asyncExecutor;
+    private final RollupLagMetrics rollupLagMetrics;
     private final Clock clock;
 
     private final GaugeNameDao gaugeNameDao;
@@ -85,11 +87,12 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
     GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository,
                       ClusterManager clusterManager, ExecutorService asyncExecutor,
-                      int cassandraGcGraceSeconds, Clock clock)
+                      int cassandraGcGraceSeconds, RollupLagMetrics rollupLagMetrics, Clock clock)
             throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
+        this.rollupLagMetrics = rollupLagMetrics;
         this.clock = clock;
 
         gaugeNameDao = new GaugeNameDao(session, configRepository, clock);
@@ -424,8 +427,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                                       int ttl, CassandraProfile profile) {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
-        return Common.getNeedsRollupList(agentRollupId,
-                rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock, profile).thenCompose(needsRollupCollection -> {
+        return Common.getNeedsRollupList("gauge", agentRollupId, rollupLevel, rollupIntervalMillis,
+                readNeedsRollup, session, rollupLagMetrics, clock, profile).thenCompose(needsRollupCollection -> {
             List<NeedsRollup> needsRollupList = ImmutableList.copyOf(needsRollupCollection);
             Long nextRollupIntervalMillis = null;
             if (rollupLevel < rollupConfigs.size()) {
@@ -29,6 +29,7 @@ import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.proto.Stored;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -62,6 +63,7 @@ public class SyntheticResultDaoImpl implements SyntheticResultDao {
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final Executor asyncExecutor;
+    private final RollupLagMetrics rollupLagMetrics;
     private final Clock clock;
 
     private final SyntheticMonitorIdDao syntheticMonitorIdDao;
@@ -78,10 +80,12 @@ public class SyntheticResultDaoImpl implements SyntheticResultDao {
     private final PreparedStatement readLastFromRollup0;
 
     SyntheticResultDaoImpl(Session session, ConfigRepositoryImpl configRepository,
-                           Executor asyncExecutor, int cassandraGcGraceSeconds, Clock clock) throws Exception {
+                           Executor asyncExecutor, int cassandraGcGraceSeconds, RollupLagMetrics rollupLagMetrics,
+                           Clock clock) throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
+        this.rollupLagMetrics = rollupLagMetrics;
         this.clock = clock;
 
         syntheticMonitorIdDao = new SyntheticMonitorIdDao(session, configRepository, clock);
@@ -317,8 +321,9 @@ public class SyntheticResultDaoImpl implements SyntheticResultDao {
     private CompletionStage<?> rollup(String agentRollupId, int rollupLevel, int ttl) {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
-        return Common.getNeedsRollupList(agentRollupId,
-                        rollupLevel, rollupIntervalMillis, readNeedsRollup, session, clock, rollup)
+        return Common.getNeedsRollupList("synthetic", agentRollupId,
+                        rollupLevel, rollupIntervalMillis, readNeedsRollup, session,
+                        rollupLagMetrics, clock, rollup)
                 .thenCompose(needsRollupCollection -> {
                     Long nextRollupIntervalMillis = null;
                     if (rollupLevel + 1 < rollupConfigs.size()) {
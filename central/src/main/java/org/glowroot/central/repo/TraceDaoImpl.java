@@ -15,6 +15,7 @@
  */
 package org.glowroot.central.repo;
 
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
@@ -26,6 +27,7 @@ import com.google.common.hash.Hashing;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.spotify.futures.CompletableFutures;
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.central.util.CassandraWriteMetrics;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.Session;
@@ -35,6 +37,7 @@ import org.glowroot.common.live.ImmutableEntriesAndQueries;
 import org.glowroot.common.live.ImmutableQueries;
 import org.glowroot.common.live.ImmutableTracePoint;
 import org.glowroot.common.live.LiveTraceRepository.*;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -69,6 +72,10 @@ public class TraceDaoImpl implements TraceDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    private static final int MAX_INDEX_KEYS_PER_TRACE = 10;
+    // cannot collide with user ("u:") or attribute ("a:") index keys
+    private static final String OVERFLOW_INDEX_KEY = "*";
+
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -78,6 +85,9 @@ public class TraceDaoImpl implements TraceDao {
 
     private final boolean cassandra2x;
 
+    // trace points captured before this time may not be present in the trace point index tables
+    private final long pointIndexSince;
+
     private final PreparedStatement insertOverallSlowCount;
     private final PreparedStatement insertOverallSlowCountPartial;
     private final PreparedStatement insertTransactionSlowCount;
@@ -94,6 +104,11 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorPoint;
     private final PreparedStatement insertTransactionErrorPoint;
 
+    private final PreparedStatement insertOverallSlowPointIndex;
+    private final PreparedStatement insertTransactionSlowPointIndex;
+    private final PreparedStatement insertOverallErrorPointIndex;
+    private final PreparedStatement insertTransactionErrorPointIndex;
+
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
@@ -120,6 +135,11 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readOverallSlowPointIndex;
+    private final PreparedStatement readTransactionSlowPointIndex;
+    private final PreparedStatement readOverallErrorPointIndex;
+    private final PreparedStatement readTransactionErrorPointIndex;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
@@ -247,6 +267,64 @@ public class TraceDaoImpl implements TraceDao {
                 + " key ((agent_rollup, transaction_type, transaction_name), capture_time,"
                 + " agent_id, trace_id))", expirationHours);
 
+        // the trace point index tables duplicate the (completed) slow and error points under each
+        // user and attribute value, so that the most common (equality) filters can be pushed down
+        // to Cassandra instead of reading back every point in the time range
+        //
+        // index_key is case folded (see getIndexKey()) since filters are case insensitive
+        //
+        // a single trace writes at most MAX_INDEX_KEYS_PER_TRACE index rows per agent rollup, traces
+        // with more user/attribute values than that are written once under OVERFLOW_INDEX_KEY
+        // instead, which is read back (and then filtered) along with every indexed query
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, index_key varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, duration_nanos"
+                + " bigint, error boolean, headline varchar, user varchar, attributes blob, primary"
+                + " key ((agent_rollup, transaction_type, index_key), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " index_key varchar, capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, error boolean, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, index_key), capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tt_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, index_key varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, duration_nanos"
+                + " bigint, error_message varchar, headline varchar, user varchar, attributes"
+                + " blob, primary key ((agent_rollup, transaction_type, index_key), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " index_key varchar, capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, error_message varchar, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, index_key), capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        // records the first time that trace points were written to the index tables, so that
+        // queries reaching back before that time (e.g. right after upgrade) still read the full
+        // trace point tables
+        session.createTableWithLCS("create table if not exists trace_point_index_since (one int,"
+                + " since timestamp, primary key (one))");
+        BoundStatement insertPointIndexSince = session.prepare("insert into"
+                + " trace_point_index_since (one, since) values (1, ?) if not exists").bind()
+                .setInstant(0, Instant.ofEpochMilli(clock.currentTimeMillis()));
+        // consistency level must be at least LOCAL_SERIAL
+        if (insertPointIndexSince.getSerialConsistencyLevel() != ConsistencyLevel.SERIAL) {
+            insertPointIndexSince =
+                    insertPointIndexSince.setSerialConsistencyLevel(ConsistencyLevel.LOCAL_SERIAL);
+        }
+        session.updateAsync(insertPointIndexSince, CassandraProfile.slow).toCompletableFuture()
+                .get();
+        results = session.readAsync("select since from trace_point_index_since where one = 1",
+                CassandraProfile.slow).toCompletableFuture().get();
+        pointIndexSince = checkNotNull(checkNotNull(results.one()).getInstant(0)).toEpochMilli();
+
         session.createTableWithTWCS("create table if not exists trace_tt_error_message"
                         + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                         + " agent_id varchar, trace_id varchar, error_message varchar, primary key"
@@ -376,6 +454,27 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_id, duration_nanos, error_message, headline, user, attributes) values (?,"
                 + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSlowPointIndex = session.prepare("insert into trace_tt_slow_point_index"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
+                + " duration_nanos, error, headline, user, attributes, index_key) values (?, ?, ?,"
+                + " ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionSlowPointIndex = session.prepare("insert into trace_tn_slow_point_index"
+                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+                + " trace_id, duration_nanos, error, headline, user, attributes, index_key) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertOverallErrorPointIndex = session.prepare("insert into trace_tt_error_point_index"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
+                + " duration_nanos, error_message, headline, user, attributes, index_key) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorPointIndex = session.prepare("insert into"
+                + " trace_tn_error_point_index (agent_rollup, transaction_type, transaction_name,"
+                + " capture_time, agent_id, trace_id, duration_nanos, error_message, headline,"
+                + " user, attributes, index_key) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using"
+                + " ttl ?");
+
         insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
                 + " error_message) values (?, ?, ?, ?, ?, ?) using ttl ?");
@@ -497,6 +596,28 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_tn_error_point where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallSlowPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error, headline, user, attributes from"
+                + " trace_tt_slow_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " index_key in ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionSlowPointIndex = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, error, headline, user, attributes from"
+                + " trace_tn_slow_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and index_key in ? and capture_time > ? and capture_time"
+                + " <= ?");
+
+        readOverallErrorPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tt_error_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " index_key in ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorPointIndex = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tn_error_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and index_key in ? and capture_time > ? and capture_time"
+                + " <= ?");
+
         readOverallErrorMessage = session.prepare("select capture_time, error_message from"
                 + " trace_tt_error_message where agent_rollup = ? and transaction_type = ? and"
                 + " capture_time > ? and capture_time <= ?");
@@ -632,6 +753,7 @@ public class TraceDaoImpl implements TraceDao {
                         int adjustedTTL =
                                 Common.getAdjustedTTL(centralStorageConfig.getTraceTTL(),
                                         header.getCaptureTime(), clock);
+                        Set<String> indexKeys = getIndexKeys(header);
                         for (String agentRollupId : agentRollupIds) {
                             if (header.getSlow()) {
                                 BoundStatement boundStatement;
@@ -641,7 +763,7 @@ public class TraceDaoImpl implements TraceDao {
                                     boundStatement = insertOverallSlowPoint.bind();
                                 }
                                 boundStatement = bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        true, header.getPartial(), cassandra2x);
+                                        true, header.getPartial(), cassandra2x, null);
                                 futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
                                 if (header.getPartial()) {
@@ -650,9 +772,25 @@ public class TraceDaoImpl implements TraceDao {
                                     boundStatement = insertTransactionSlowPoint.bind();
                                 }
                                 boundStatement = bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        false, header.getPartial(), cassandra2x);
+                                        false, header.getPartial(), cassandra2x, null);
                                 futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
+                                // partial points are not indexed, they are short-lived and relatively
+                                // few, and are always read back in full
+                                if (!header.getPartial()) {
+                                    for (String indexKey : indexKeys) {
+                                        boundStatement = bindSlowPoint(insertOverallSlowPointIndex.bind(),
+                                                agentRollupId, agentId, traceId, header, adjustedTTL, true,
+                                                false, cassandra2x, indexKey);
+                                        futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+
+                                        boundStatement = bindSlowPoint(insertTransactionSlowPointIndex.bind(),
+                                                agentRollupId, agentId, traceId, header, adjustedTTL, false,
+                                                false, cassandra2x, indexKey);
+                                        futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+                                    }
+                                }
+
                                 if (header.getPartial()) {
                                     boundStatement = insertOverallSlowCountPartial.bind();
                                 } else {
@@ -713,14 +851,24 @@ public class TraceDaoImpl implements TraceDao {
 
                                 boundStatement = insertOverallErrorPoint.bind();
                                 boundStatement = bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        true);
+                                        true, null);
                                 futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
                                 boundStatement = insertTransactionErrorPoint.bind();
                                 boundStatement = bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        false);
+                                        false, null);
                                 futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
+                                for (String indexKey : indexKeys) {
+                                    boundStatement = bindErrorPoint(insertOverallErrorPointIndex.bind(), agentRollupId,
+                                            agentId, traceId, header, adjustedTTL, true, indexKey);
+                                    futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+
+                                    boundStatement = bindErrorPoint(insertTransactionErrorPointIndex.bind(),
+                                            agentRollupId, agentId, traceId, header, adjustedTTL, false, indexKey);
+                                    futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+                                }
+
                                 boundStatement = insertOverallErrorCount.bind();
                                 boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                                         true, false, cassandra2x);
@@ -884,22 +1032,33 @@ public class TraceDaoImpl implements TraceDao {
         BoundStatement boundStatement;
         BoundStatement boundStatementPartial;
         String transactionName = query.transactionName();
+        String indexKey = getIndexKey(query, filter);
         if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
+            if (indexKey == null) {
+                boundStatement = readOverallSlowPoint.bind();
+                boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, true);
+            } else {
+                boundStatement = readOverallSlowPointIndex.bind();
+                boundStatement = bindIndexedTraceQuery(boundStatement, agentRollupId, query, true, indexKey);
+            }
             boundStatementPartial = readOverallSlowPointPartial.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, true);
             boundStatementPartial = bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, true, cassandra2x);
         } else {
-            boundStatement = readTransactionSlowPoint.bind();
+            if (indexKey == null) {
+                boundStatement = readTransactionSlowPoint.bind();
+                boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
+            } else {
+                boundStatement = readTransactionSlowPointIndex.bind();
+                boundStatement = bindIndexedTraceQuery(boundStatement, agentRollupId, query, false, indexKey);
+            }
             boundStatementPartial = readTransactionSlowPointPartial.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
             boundStatementPartial = bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, false, cassandra2x);
         }
 
         CompletionStage<List<TracePoint>> completedPointsCS = session.readAsync(boundStatement, CassandraProfile.web)
-                .thenCompose(future -> processPoints(future, filter, false, false));
+                .thenCompose(future -> processPoints(future, filter, false, false, limit));
         CompletionStage<List<TracePoint>> partialPointsCS = session.readAsync(boundStatementPartial, CassandraProfile.web)
-                .thenCompose(futurePartial -> processPoints(futurePartial, filter, true, false));
+                .thenCompose(futurePartial -> processPoints(futurePartial, filter, true, false, limit));
 
         return completedPointsCS.thenCombine(partialPointsCS,
                 (completedPoints, partialPoints) -> combine(completedPoints, partialPoints, limit));
@@ -925,15 +1084,26 @@ public class TraceDaoImpl implements TraceDao {
                                                                TracePointFilter filter, int limit) {
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
+        String indexKey = getIndexKey(query, filter);
         if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, true);
+            if (indexKey == null) {
+                boundStatement = readOverallErrorPoint.bind();
+                boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, true);
+            } else {
+                boundStatement = readOverallErrorPointIndex.bind();
+                boundStatement = bindIndexedTraceQuery(boundStatement, agentRollupId, query, true, indexKey);
+            }
         } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
+            if (indexKey == null) {
+                boundStatement = readTransactionErrorPoint.bind();
+                boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
+            } else {
+                boundStatement = readTransactionErrorPointIndex.bind();
+                boundStatement = bindIndexedTraceQuery(boundStatement, agentRollupId, query, false, indexKey);
+            }
         }
         return session.readAsync(boundStatement, CassandraProfile.web)
-                .thenCompose(results -> processPoints(results, filter, false, true))
+                .thenCompose(results -> processPoints(results, filter, false, true, limit))
                 .thenApply(errorPoints -> createResult(errorPoints, limit));
     }
 
@@ -1351,6 +1521,10 @@ public class TraceDaoImpl implements TraceDao {
         session.updateSchemaWithRetry("truncate table trace_tn_error_count");
         session.updateSchemaWithRetry("truncate table trace_tt_error_point");
         session.updateSchemaWithRetry("truncate table trace_tn_error_point");
+        session.updateSchemaWithRetry("truncate table trace_tt_slow_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tn_slow_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tt_error_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tn_error_point_index");
         session.updateSchemaWithRetry("truncate table trace_tt_error_message");
         session.updateSchemaWithRetry("truncate table trace_tn_error_message");
         session.updateSchemaWithRetry("truncate table trace_header");
@@ -1369,7 +1543,7 @@ public class TraceDaoImpl implements TraceDao {
     @CheckReturnValue
     private static BoundStatement bindSlowPoint(BoundStatement boundStatement, String agentRollupId,
                                                 String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall,
-                                                boolean partial, boolean cassandra2x) {
+                                                boolean partial, boolean cassandra2x, @Nullable String indexKey) {
         AtomicInteger ind = new AtomicInteger(0);
         boundStatement = bind(boundStatement, agentRollupId, agentId, traceId, header, overall,
                 partial && !cassandra2x, ind);
@@ -1392,6 +1566,9 @@ public class TraceDaoImpl implements TraceDao {
         } else {
             boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(attributes));
         }
+        if (indexKey != null) {
+            boundStatement = boundStatement.setString(i++, indexKey);
+        }
         return boundStatement.setInt(i++, adjustedTTL);
     }
 
@@ -1426,7 +1603,8 @@ public class TraceDaoImpl implements TraceDao {
 
     @CheckReturnValue
     private static BoundStatement bindErrorPoint(BoundStatement boundStatement, String agentRollupId,
-                                                 String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
+                                                 String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall,
+                                                 @Nullable String indexKey) {
         AtomicInteger ind = new AtomicInteger(0);
         boundStatement = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, false, ind);
         int i = ind.get();
@@ -1440,6 +1618,9 @@ public class TraceDaoImpl implements TraceDao {
         } else {
             boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(attributes));
         }
+        if (indexKey != null) {
+            boundStatement = boundStatement.setString(i++, indexKey);
+        }
         return boundStatement.setInt(i++, adjustedTTL);
     }
 
@@ -1484,6 +1665,20 @@ public class TraceDaoImpl implements TraceDao {
                 .setInstant(i++, Instant.ofEpochMilli(query.to()));
     }
 
+    @CheckReturnValue
+    private static BoundStatement bindIndexedTraceQuery(BoundStatement boundStatement, String agentRollupId,
+                                                        TraceQuery query, boolean overall, String indexKey) {
+        int i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, query.transactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, query.transactionName());
+        }
+        return boundStatement.setList(i++, List.of(indexKey, OVERFLOW_INDEX_KEY), String.class)
+                .setInstant(i++, Instant.ofEpochMilli(query.from()))
+                .setInstant(i++, Instant.ofEpochMilli(query.to()));
+    }
+
     @CheckReturnValue
     private static BoundStatement bindTraceQueryPartial(BoundStatement boundStatement, String agentRollupId,
                                                         TraceQuery query, boolean overall, boolean cassandra2x) {
@@ -1512,13 +1707,23 @@ public class TraceDaoImpl implements TraceDao {
         return CaptureTimes.getRollup(captureTime, MINUTES.toMillis(30));
     }
 
+    // the limit is applied to the points with the longest durations (across the whole time range),
+    // but rows are clustered by capture_time, not by duration, so any later row can still be one of
+    // the longest and there is no way to stop reading early
+    //
+    // what can be avoided is the work per row: only the (limit + 1) longest points need to be
+    // retained along the way (the extra point being enough to still report that the limit was
+    // exceeded), and once that many have been retained, rows shorter than the shortest of them are
+    // skipped before the headline, user and attributes are parsed and filtered
     private static CompletionStage<List<TracePoint>> processPoints(AsyncResultSet results, TracePointFilter filter,
-                                                                   boolean partial, boolean errorPoints) {
-        return processPoints(results, filter, partial, errorPoints, new ArrayList<>());
+                                                                   boolean partial, boolean errorPoints, int limit) {
+        return processPoints(results, filter, partial, errorPoints, limit, new ArrayList<>(), 0);
     }
 
     private static CompletionStage<List<TracePoint>> processPoints(AsyncResultSet results, TracePointFilter filter,
-                                                                   boolean partial, boolean errorPoints, List<TracePoint> tracePoints) {
+                                                                   boolean partial, boolean errorPoints, int limit,
+                                                                   List<TracePoint> tracePoints,
+                                                                   long minDurationNanos) {
         for (Row row : results.currentPage()) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -1532,6 +1737,9 @@ public class TraceDaoImpl implements TraceDao {
                 }
             }
             long durationNanos = row.getLong(i++);
+            if (durationNanos < minDurationNanos) {
+                continue;
+            }
             boolean error = errorPoints || row.getBoolean(i++);
             // error points are defined by having an error message, so safe to checkNotNull
             String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
@@ -1560,11 +1768,95 @@ public class TraceDaoImpl implements TraceDao {
             }
         }
         if (results.hasMorePages()) {
-            return results.fetchNextPage().thenCompose(res -> processPoints(res, filter, partial, errorPoints, tracePoints));
+            List<TracePoint> retainedPoints = retainLongestPoints(tracePoints, limit);
+            long nextMinDurationNanos = getMinDurationNanos(retainedPoints, limit, minDurationNanos);
+            return results.fetchNextPage().thenCompose(res -> processPoints(res, filter, partial,
+                    errorPoints, limit, retainedPoints, nextMinDurationNanos));
         }
         return CompletableFuture.completedFuture(tracePoints);
     }
 
+    private static List<TracePoint> retainLongestPoints(List<TracePoint> tracePoints, int limit) {
+        long retainCount = limit + 1L;
+        // only trim once the list has doubled, so that trimming cost is amortized across pages
+        if (tracePoints.size() < 2 * retainCount) {
+            return tracePoints;
+        }
+        return new ArrayList<>(Ordering.from(Comparator.comparingLong(TracePoint::durationNanos))
+                .greatestOf(tracePoints, (int) retainCount));
+    }
+
+    private static long getMinDurationNanos(List<TracePoint> retainedPoints, int limit,
+            long minDurationNanos) {
+        if (retainedPoints.size() <= limit) {
+            return minDurationNanos;
+        }
+        // a point shorter than each of (limit + 1) retained points can never be returned
+        long min = Long.MAX_VALUE;
+        for (TracePoint tracePoint : retainedPoints) {
+            min = Math.min(min, tracePoint.durationNanos());
+        }
+        return Math.max(min, minDurationNanos);
+    }
+
+    private @Nullable String getIndexKey(TraceQuery query, TracePointFilter filter) {
+        if (query.from() < pointIndexSince) {
+            // index may be incomplete for this time range
+            return null;
+        }
+        String user = filter.user();
+        if (filter.userComparator() == StringComparator.EQUALS && !Strings.isNullOrEmpty(user)) {
+            return getUserIndexKey(user);
+        }
+        String attributeName = filter.attributeName();
+        String attributeValue = filter.attributeValue();
+        if (!Strings.isNullOrEmpty(attributeName)
+                && filter.attributeValueComparator() == StringComparator.EQUALS
+                && !Strings.isNullOrEmpty(attributeValue)) {
+            return getAttributeIndexKey(attributeName, attributeValue);
+        }
+        return null;
+    }
+
+    private static Set<String> getIndexKeys(Trace.Header header) {
+        Set<String> indexKeys = new LinkedHashSet<>();
+        String user = header.getUser();
+        if (!user.isEmpty()) {
+            indexKeys.add(getUserIndexKey(user));
+        }
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            for (String value : attribute.getValueList()) {
+                if (!value.isEmpty()) {
+                    indexKeys.add(getAttributeIndexKey(attribute.getName(), value));
+                }
+            }
+        }
+        if (indexKeys.size() > MAX_INDEX_KEYS_PER_TRACE) {
+            // bound the number of index rows (each one a copy of the point) written per trace
+            return Set.of(OVERFLOW_INDEX_KEY);
+        }
+        return indexKeys;
+    }
+
+    private static String getUserIndexKey(String user) {
+        return "u:" + caseFold(user);
+    }
+
+    private static String getAttributeIndexKey(String attributeName, String attributeValue) {
+        // separator collisions only result in extra points being read (and then filtered out)
+        return "a:" + caseFold(attributeName) + ":" + caseFold(attributeValue);
+    }
+
+    // folds each char the same way as String.equalsIgnoreCase(), which is what
+    // StringComparator.EQUALS uses, so that index keys match exactly when the filter matches
+    private static String caseFold(String text) {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(text.charAt(i)));
+        }
+        return new String(chars);
+    }
+
     private static Result<TracePoint> combine(List<TracePoint> completedPoints,
                                               List<TracePoint> partialPoints, int limit) {
         if (partialPoints.isEmpty()) {
@@ -56,6 +56,11 @@ public class CassandraWriteMetrics {
 
     private final Map<String, WriteMetrics> writeMetrics = new ConcurrentHashMap<>();
 
+    // write latency (exponentially weighted moving average) and the baseline latency that it is
+    // compared against, guarded by this
+    private double writeLatencyNanos;
+    private double baselineWriteLatencyNanos;
+
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
@@ -145,6 +150,31 @@ public class CassandraWriteMetrics {
         }
     }
 
+    synchronized void recordWriteLatency(long nanos) {
+        if (writeLatencyNanos == 0) {
+            writeLatencyNanos = nanos;
+            baselineWriteLatencyNanos = nanos;
+            return;
+        }
+        writeLatencyNanos += (nanos - writeLatencyNanos) * 0.1;
+        if (nanos < baselineWriteLatencyNanos) {
+            baselineWriteLatencyNanos = nanos;
+        } else {
+            // slowly drift upwards so that the baseline recovers from a one-off fast write and
+            // follows permanent changes (e.g. larger cluster, different hardware)
+            baselineWriteLatencyNanos += (writeLatencyNanos - baselineWriteLatencyNanos) * 0.001;
+        }
+    }
+
+    // ratio of recent write latency to baseline write latency, 1 means writes are completing as
+    // fast as they have been, larger values mean cassandra is starting to queue up writes
+    synchronized double getWriteLatencyRatio() {
+        if (baselineWriteLatencyNanos == 0) {
+            return 1;
+        }
+        return writeLatencyNanos / baselineWriteLatencyNanos;
+    }
+
     void close() throws InterruptedException {
         // this shouldn't require shutdownNow()
         scheduledExecutor.shutdown();
@@ -17,21 +17,25 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Queue;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.commons.marshall.JavaSerializationMarshaller;
 import org.infinispan.configuration.cache.CacheMode;
@@ -44,6 +48,7 @@ import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
 import org.infinispan.remoting.transport.Address;
 import org.infinispan.util.function.SerializableFunction;
+import org.infinispan.util.function.SerializableRunnable;
 import org.infinispan.util.function.TriConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +59,7 @@ import org.glowroot.common2.repo.util.LockSet;
 import org.glowroot.common2.repo.util.LockSet.LockSetImpl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -62,6 +68,12 @@ public abstract class ClusterManager implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(ClusterManager.class);
 
+    private static final HashFunction OWNER_HASH_FUNCTION = Hashing.murmur3_128();
+
+    // futures of tasks that were started on another node, by execution id
+    private static final ConcurrentMap<String, CompletableFuture<?>> pendingRemoteExecutions =
+            new ConcurrentHashMap<>();
+
     public static ClusterManager create() {
         return new NonClusterManager();
     }
@@ -103,9 +115,38 @@ public abstract class ClusterManager implements AutoCloseable {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // returns true if this central collector node is responsible for the given key, used to split
+    // background work (e.g. rollups) across the central collector cluster so that each key is
+    // processed by exactly one node (as long as cluster membership is stable)
+    public abstract boolean isLocallyOwned(String key);
+
+    // returns true if this central collector node may be part of a cluster, in which case agents
+    // distribute their data across the central collector nodes
+    public abstract boolean isClustered();
+
     @Override
     public abstract void close() throws InterruptedException;
 
+    // rendezvous (highest random weight) hashing, so that when a node joins or leaves the cluster,
+    // only the keys owned by that node move
+    @VisibleForTesting
+    static int getOwnerIndex(String key, List<String> members) {
+        int ownerIndex = -1;
+        long ownerWeight = 0;
+        for (int i = 0; i < members.size(); i++) {
+            long weight = OWNER_HASH_FUNCTION.newHasher()
+                    .putString(members.get(i), UTF_8)
+                    .putString(key, UTF_8)
+                    .hash()
+                    .asLong();
+            if (ownerIndex == -1 || weight > ownerWeight) {
+                ownerIndex = i;
+                ownerWeight = weight;
+            }
+        }
+        return ownerIndex;
+    }
+
     private static class ClusterManagerImpl extends ClusterManager {
 
         private final EmbeddedCacheManager cacheManager;
@@ -202,6 +243,27 @@ public abstract class ClusterManager implements AutoCloseable {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public boolean isClustered() {
+            return true;
+        }
+
+        @Override
+        public boolean isLocallyOwned(String key) {
+            List<Address> members = cacheManager.getMembers();
+            Address localAddress = cacheManager.getAddress();
+            if (members == null || members.isEmpty() || localAddress == null) {
+                // not (yet) part of a cluster
+                return true;
+            }
+            List<String> memberNames = new ArrayList<>();
+            for (Address member : members) {
+                memberNames.add(member.toString());
+            }
+            int ownerIndex = getOwnerIndex(key, memberNames);
+            return members.get(ownerIndex).equals(localAddress);
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -317,6 +379,16 @@ public abstract class ClusterManager implements AutoCloseable {
                     .asMap();
         }
 
+        @Override
+        public boolean isLocallyOwned(String key) {
+            return true;
+        }
+
+        @Override
+        public boolean isClustered() {
+            return false;
+        }
+
         @Override
         public void close() {}
     }
@@ -466,24 +538,42 @@ public abstract class ClusterManager implements AutoCloseable {
         }
 
         @Override
-        public <R extends Serializable> Optional<R> execute(String key,
-                int timeoutSeconds, SerializableFunction<V, R> task) throws Exception {
-            CollectingConsumer<R> consumer = new CollectingConsumer<R>();
-            CompletableFuture<Void> future = cache.getCacheManager().executor().submitConsumer(
-                    new AdapterFunction<K, V, R>(cache.getName(), key, task), consumer);
-            // TODO short-circuit after receiving one (non-empty and non-shutting-down) response,
-            // instead of waiting for all responses
-            future.get(timeoutSeconds, SECONDS);
-            if (consumer.logStackTrace) {
-                logger.warn("context for remote error(s) logged above",
-                        new Exception("location stack trace"));
-            }
-            if (consumer.values.isEmpty()) {
-                return Optional.empty();
-            } else {
-                // TODO first non-shutting-down response
-                return Optional.of(consumer.values.remove());
+        public <R extends Serializable> CompletableFuture<Optional<R>> executeAsync(String key,
+                int timeoutSeconds, SerializableFunction<V, CompletableFuture<R>> task) {
+            V value = cache.get(key);
+            if (value != null) {
+                // short-circuit when the key is present on the local node
+                return task.apply(value).thenApply(Optional::of);
             }
+            // the node where the key is present only starts the task (so that none of its threads
+            // wait for the task), and completes the returned future once the task completes, see
+            // CompleteRemoteExecution
+            EmbeddedCacheManager cacheManager = cache.getCacheManager();
+            String executionId = UUID.randomUUID().toString();
+            CompletableFuture<Optional<R>> future = new CompletableFuture<>();
+            pendingRemoteExecutions.put(executionId, future);
+            // the timeout also covers the node where the key is present leaving the cluster before
+            // the task completes
+            future.orTimeout(timeoutSeconds, SECONDS)
+                    .whenComplete((result, t) -> pendingRemoteExecutions.remove(executionId));
+            StartedConsumer consumer = new StartedConsumer();
+            cacheManager.executor()
+                    .timeout(timeoutSeconds, SECONDS)
+                    .submitConsumer(new StartRemoteExecution<K, V, R>(cache.getName(), key, task,
+                            cacheManager.getAddress().toString(), executionId), consumer)
+                    .whenComplete((v, t) -> {
+                        if (consumer.logStackTrace) {
+                            logger.warn("context for remote error(s) logged above",
+                                    new Exception("location stack trace"));
+                        }
+                        if (t != null) {
+                            future.completeExceptionally(t);
+                        } else if (!consumer.started) {
+                            // key is not present on any node
+                            future.complete(Optional.empty());
+                        }
+                    });
+            return future;
         }
     }
 
@@ -510,52 +600,101 @@ public abstract class ClusterManager implements AutoCloseable {
         }
 
         @Override
-        public <R extends Serializable> Optional<R> execute(String key,
-                int timeoutSeconds, SerializableFunction<V, R> task) throws Exception {
+        public <R extends Serializable> CompletableFuture<Optional<R>> executeAsync(String key,
+                int timeoutSeconds, SerializableFunction<V, CompletableFuture<R>> task) {
             V value = cache.get(key);
             if (value == null) {
-                return Optional.empty();
+                return CompletableFuture.completedFuture(Optional.empty());
             }
-            return Optional.of(task.apply(value));
+            return task.apply(value).thenApply(Optional::of);
         }
     }
 
+    // runs on every node, and starts the task on the node where the key is present
     @SuppressWarnings("serial")
-    private static class AdapterFunction<K, V, R extends /*@NonNull*/ Object>
-            implements SerializableFunction<EmbeddedCacheManager, Optional<R>> {
+    private static class StartRemoteExecution<K, V, R extends /*@NonNull*/ Serializable>
+            implements SerializableFunction<EmbeddedCacheManager, Boolean> {
 
         private final String cacheName;
         private final String key;
-        private final SerializableFunction<V, R> task;
+        private final SerializableFunction<V, CompletableFuture<R>> task;
+        private final String originAddress;
+        private final String executionId;
 
-        private AdapterFunction(String cacheName, String key, SerializableFunction<V, R> task) {
+        private StartRemoteExecution(String cacheName, String key,
+                SerializableFunction<V, CompletableFuture<R>> task, String originAddress,
+                String executionId) {
             this.cacheName = cacheName;
             this.key = key;
             this.task = task;
+            this.originAddress = originAddress;
+            this.executionId = executionId;
         }
 
         @Override
-        public Optional<R> apply(EmbeddedCacheManager cacheManager) {
+        public Boolean apply(EmbeddedCacheManager cacheManager) {
             org.infinispan.Cache<K, V> cache = cacheManager.getCache(cacheName, false);
             if (cache == null) {
-                return Optional.empty();
+                return false;
             }
             V value = cache.get(key);
             if (value == null) {
-                return Optional.empty();
+                return false;
+            }
+            task.apply(value).whenComplete((result, t) -> {
+                if (t != null) {
+                    // the error is not sent back since it may not be serializable, and the origin
+                    // node treats a missing result the same as the key not being present
+                    logger.warn(t.getMessage(), t);
+                }
+                cacheManager.executor()
+                        .filterTargets(address -> address.toString().equals(originAddress))
+                        .submit(new CompleteRemoteExecution(executionId, t == null ? result : null))
+                        .whenComplete((v, t2) -> {
+                            if (t2 != null) {
+                                logger.warn("could not send result to {}: {}", originAddress,
+                                        t2.getMessage(), t2);
+                            }
+                        });
+            });
+            return true;
+        }
+    }
+
+    // runs on the origin node
+    @SuppressWarnings("serial")
+    private static class CompleteRemoteExecution implements SerializableRunnable {
+
+        private final String executionId;
+        private final @Nullable Serializable result;
+
+        private CompleteRemoteExecution(String executionId, @Nullable Serializable result) {
+            this.executionId = executionId;
+            this.result = result;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            CompletableFuture<Optional<Serializable>> future =
+                    (CompletableFuture<Optional<Serializable>>) pendingRemoteExecutions
+                            .get(executionId);
+            if (future == null) {
+                // already timed out
+                return;
             }
-            return Optional.ofNullable(task.apply(value));
+            future.complete(Optional.ofNullable(result));
         }
     }
 
-    private static class CollectingConsumer<V extends /*@NonNull*/ Object>
-            implements TriConsumer<Address, /*@Nullable*/ Optional<V>, /*@Nullable*/ Throwable> {
+    private static class StartedConsumer
+            implements TriConsumer<Address, /*@Nullable*/ Boolean, /*@Nullable*/ Throwable> {
 
-        private final Queue<V> values = new ConcurrentLinkedQueue<>();
+        private volatile boolean started;
         private volatile boolean logStackTrace;
 
         @Override
-        public void accept(Address address, @Nullable Optional<V> value,
+        public void accept(Address address, @Nullable Boolean value,
                 @Nullable Throwable throwable) {
             if (throwable != null) {
                 logger.warn("received error from {}: {}", address, throwable.getMessage(),
@@ -564,8 +703,8 @@ public abstract class ClusterManager implements AutoCloseable {
                 return;
             }
             // value is only null when throwable is not null
-            if (checkNotNull(value).isPresent()) {
-                values.add(value.get());
+            if (checkNotNull(value)) {
+                started = true;
             }
         }
     }
@@ -17,6 +17,7 @@ package org.glowroot.central.util;
 
 import java.io.Serializable;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.util.function.SerializableFunction;
@@ -30,6 +31,10 @@ public interface DistributedExecutionMap<K extends /*@NonNull*/ Serializable, V
 
     void remove(K key, V value);
 
-    <R extends Serializable> Optional<R> execute(String key, int timeoutSeconds,
-            SerializableFunction<V, R> task) throws Exception;
+    // the returned future is completed without blocking the calling thread when the key is present
+    // on the local node, otherwise the task is started on the node where the key is present, and the
+    // returned future is completed once the task's future completes on that node (or the timeout
+    // expires), no thread waits for the task's future on either node
+    <R extends Serializable> CompletableFuture<Optional<R>> executeAsync(String key,
+            int timeoutSeconds, SerializableFunction<V, CompletableFuture<R>> task);
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// tracks how far behind rollups are, per rollup type (aggregate, gauge, synthetic) and rollup level,
+// measured as the age of the oldest "needs rollup" capture time that was eligible for rollup the
+// last time each agent rollup was rolled up
+//
+// exposed over JMX as org.glowroot.central:type=RollupLag,name=<rollup type>,level=<rollup level>
+// so that it can be monitored (including from a glowroot agent monitoring the central collector),
+// but only once registered by the rollup service, so that lag recorded outside of the rollup
+// service (e.g. in tests) is not exposed
+public class RollupLagMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupLagMetrics.class);
+
+    private final Map<String, LevelLag> levelLags = new ConcurrentHashMap<>();
+
+    private volatile boolean registered;
+
+    public void recordLag(String rollupType, int rollupLevel, String agentRollupId,
+            long lagMillis) {
+        String key = rollupType + ':' + rollupLevel;
+        LevelLag levelLag = levelLags.get(key);
+        if (levelLag == null) {
+            levelLag = new LevelLag();
+            LevelLag existing = levelLags.putIfAbsent(key, levelLag);
+            if (existing == null) {
+                if (registered) {
+                    register(key, levelLag);
+                }
+            } else {
+                levelLag = existing;
+            }
+        }
+        levelLag.lagMillisByAgentRollupId.put(agentRollupId, lagMillis);
+    }
+
+    public long getMaxLagMillis(String rollupType, int rollupLevel) {
+        LevelLag levelLag = levelLags.get(rollupType + ':' + rollupLevel);
+        return levelLag == null ? 0 : levelLag.getMaxLagMillis();
+    }
+
+    public void registerMBeans() {
+        registered = true;
+        for (Map.Entry<String, LevelLag> entry : levelLags.entrySet()) {
+            register(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void unregisterMBeans() {
+        registered = false;
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (String key : levelLags.keySet()) {
+            try {
+                mbeanServer.unregisterMBean(getObjectName(key));
+            } catch (InstanceNotFoundException e) {
+                // registered by another central module in the same jvm (see register() below)
+                logger.debug(e.getMessage(), e);
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void register(String key, LevelLag levelLag) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(levelLag,
+                    getObjectName(key));
+        } catch (InstanceAlreadyExistsException e) {
+            // this can happen when there are multiple central modules in the same jvm, or when
+            // racing with registerMBeans() above
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    // key is <rollup type>:<rollup level>
+    private static ObjectName getObjectName(String key) throws Exception {
+        int index = key.lastIndexOf(':');
+        return new ObjectName("org.glowroot.central:type=RollupLag,name="
+                + key.substring(0, index) + ",level=" + key.substring(index + 1));
+    }
+
+    public interface RollupLagMXBean {
+        long getMaxLagMillis();
+        long getAgentRollupCount();
+    }
+
+    private static class LevelLag implements RollupLagMXBean {
+
+        // expiring so that agent rollups which are no longer active (or which are now rolled up by
+        // a different central collector node) stop contributing to the max lag
+        private final Cache<String, Long> lagMillisByAgentRollupId = CacheBuilder.newBuilder()
+                .expireAfterWrite(10, MINUTES)
+                .build();
+
+        @Override
+        public long getMaxLagMillis() {
+            long maxLagMillis = 0;
+            for (long lagMillis : lagMillisByAgentRollupId.asMap().values()) {
+                maxLagMillis = Math.max(maxLagMillis, lagMillis);
+            }
+            return maxLagMillis;
+        }
+
+        @Override
+        public long getAgentRollupCount() {
+            return lagMillisByAgentRollupId.size();
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import com.datastax.oss.driver.api.core.AllNodesFailedException;
 import com.datastax.oss.driver.api.core.CqlSession;
@@ -34,6 +35,7 @@ import com.datastax.oss.driver.api.core.cql.*;
 import com.datastax.oss.driver.api.core.metadata.Metadata;
 import com.datastax.oss.driver.api.core.servererrors.InvalidConfigurationInQueryException;
 import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;
 import com.datastax.oss.driver.api.core.metadata.schema.KeyspaceMetadata;
 import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
 import com.google.common.base.Stopwatch;
@@ -60,6 +62,7 @@ public class Session implements AutoCloseable {
     private final Queue<String> allTableNames = new ConcurrentLinkedQueue<>();
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
+    private final WriteCoalescer writeCoalescer;
 
     public Session(CqlSession wrappedSession, String keyspaceName,
                    @Nullable ConsistencyLevel writeConsistencyLevel, int gcGraceSeconds)
@@ -71,6 +74,9 @@ public class Session implements AutoCloseable {
         this.gcGraceSeconds = gcGraceSeconds;
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
+        writeCoalescer = new WriteCoalescer(
+                stmt -> withRetryOnUnavailable(() -> executeWriteAsync(stmt)),
+                cassandraWriteMetrics);
 
         if (!wrappedSession.getMetadata().getKeyspace(keyspaceName).isPresent()) {
             // "create keyspace if not exists" requires create permission on all keyspaces
@@ -91,6 +97,26 @@ public class Session implements AutoCloseable {
         return wrappedSession.prepare(query);
     }
 
+    // writes of the returned insert (via writeAsync) are coalesced with other writes to the same
+    // partition, see WriteCoalescer
+    public PreparedStatement prepareCoalescedInsert(String query) {
+        if (!query.startsWith("insert ")) {
+            throw new IllegalStateException("Unexpected insert query: " + query);
+        }
+        PreparedStatement preparedStatement = wrappedSession.prepare(query);
+        ColumnDefinitions variableDefinitions = preparedStatement.getVariableDefinitions();
+        TableMetadata table = variableDefinitions.size() == 0 ? null
+                : getTable(variableDefinitions.get(0).getTable().asInternal());
+        if (table == null) {
+            logger.warn("not coalescing writes, table metadata not found: {}", query);
+            return preparedStatement;
+        }
+        writeCoalescer.allowCoalescing(preparedStatement, table.getPrimaryKey().stream()
+                .map(ColumnMetadata::getName)
+                .collect(Collectors.toList()));
+        return preparedStatement;
+    }
+
     public ResultSet read(String query, CassandraProfile profile) throws Exception {
         if (!query.startsWith("select ")) {
             throw new IllegalStateException("Unexpected read query: " + query);
@@ -175,7 +201,7 @@ public class Session implements AutoCloseable {
         }
         Statement<?> stmt = statement.setExecutionProfileName(profile.name());
         cassandraWriteMetrics.recordMetrics(stmt);
-        return withRetryOnUnavailable(() -> wrappedSession.executeAsync(stmt));
+        return writeCoalescer.write(stmt);
     }
 
     public String getKeyspaceName() {
@@ -205,6 +231,7 @@ public class Session implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
+        writeCoalescer.close();
         wrappedSession.close();
         cassandraWriteMetrics.close();
     }
@@ -368,6 +395,17 @@ public class Session implements AutoCloseable {
         return getTwcsCompactionClause("HOURS", getCompactionWindowSizeHours(expirationHours));
     }
 
+    // write latency is recorded per attempt so that retry back-off (see withRetryOnUnavailable)
+    // doesn't look like cassandra slowing down to the in-flight limit in WriteCoalescer
+    private CompletionStage<AsyncResultSet> executeWriteAsync(Statement<?> stmt) {
+        long startTick = System.nanoTime();
+        return wrappedSession.executeAsync(stmt).whenComplete((results, t) -> {
+            if (t == null) {
+                cassandraWriteMetrics.recordWriteLatency(System.nanoTime() - startTick);
+            }
+        });
+    }
+
     private <T> CompletionStage<T> withRetryOnUnavailable(
             Supplier<CompletionStage<T>> operation) {
         return withRetryOnUnavailable(operation, 0);
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// coalesces inserts that target the same partition (and arrive within a short window) into
+// unlogged batches, which cassandra applies as a single mutation on the replicas that own the
+// partition, instead of the coordinator handling each row as a separate request
+//
+// only inserts whose prepared statement has been registered via allowCoalescing() are coalesced
+// (and delayed by the window), all other writes are submitted immediately
+//
+// also limits the number of coalesced batches in flight, adapting the limit to the observed write
+// latency (see CassandraWriteMetrics), so that bursts of aggregate inserts queue up here instead of
+// overloading the cassandra coordinators
+//
+// batches beyond the limit wait for a slot instead of failing, the number waiting is bounded in
+// practice since agents wait for their aggregates to be stored before sending the next ones
+class WriteCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    // zero disables coalescing (and with it the in-flight limit)
+    private static final long WINDOW_MILLIS =
+            Long.getLong("glowroot.internal.cassandra.writeCoalesceMillis", 5);
+
+    // stay under cassandra's default batch_size_warn_threshold_in_kb (5kb)
+    private static final int MAX_BATCH_BYTES = 4 * 1024;
+    private static final int MAX_BATCH_STATEMENTS = 32;
+
+    private static final int MIN_IN_FLIGHT_LIMIT = 16;
+    private static final int MAX_IN_FLIGHT_LIMIT = 1024;
+
+    // write latency is considered degraded once it is this many times the baseline write latency
+    private static final double DEGRADED_LATENCY_RATIO = 2;
+
+    private final Function<Statement<?>, CompletionStage<AsyncResultSet>> executor;
+    private final CassandraWriteMetrics cassandraWriteMetrics;
+    private final long windowMillis;
+
+    // key is the prepared query, value is the bind variable indexes of the primary key columns
+    private final ConcurrentMap<String, int[]> coalescedInserts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<PartitionKey, PendingBatch> pendingBatches =
+            new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService scheduledExecutor =
+            MoreExecutors2.newSingleThreadScheduledExecutor("Cassandra-Write-Coalescer");
+
+    // these are guarded by this
+    private final Queue<PendingWrite> waitingWrites = new ArrayDeque<>();
+    private double inFlightLimit = 128;
+    private int inFlight;
+
+    WriteCoalescer(Function<Statement<?>, CompletionStage<AsyncResultSet>> executor,
+            CassandraWriteMetrics cassandraWriteMetrics) {
+        this(executor, cassandraWriteMetrics, WINDOW_MILLIS);
+    }
+
+    // the executor is expected to record the write latency of each successful attempt (excluding
+    // any retry back-off) in cassandraWriteMetrics
+    @VisibleForTesting
+    WriteCoalescer(Function<Statement<?>, CompletionStage<AsyncResultSet>> executor,
+            CassandraWriteMetrics cassandraWriteMetrics, long windowMillis) {
+        this.executor = executor;
+        this.cassandraWriteMetrics = cassandraWriteMetrics;
+        this.windowMillis = windowMillis;
+    }
+
+    // statements in a batch share a single write timestamp, so writes to the same row are never
+    // placed in the same batch (otherwise the row would end up with whichever value sorts higher
+    // instead of the last one written), which requires all of the primary key columns to be bound
+    //
+    // only inserts should be registered, since a delete would win over an insert of the same row
+    // in a different batch that happened to be assigned the same timestamp
+    void allowCoalescing(PreparedStatement preparedStatement,
+            List<CqlIdentifier> primaryKeyColumns) {
+        ColumnDefinitions variableDefinitions = preparedStatement.getVariableDefinitions();
+        int[] primaryKeyIndexes = new int[primaryKeyColumns.size()];
+        for (int i = 0; i < primaryKeyColumns.size(); i++) {
+            primaryKeyIndexes[i] = variableDefinitions.firstIndexOf(primaryKeyColumns.get(i));
+            if (primaryKeyIndexes[i] == -1) {
+                logger.warn("not coalescing writes, primary key column {} is not bound: {}",
+                        primaryKeyColumns.get(i), preparedStatement.getQuery());
+                return;
+            }
+        }
+        coalescedInserts.put(preparedStatement.getQuery(), primaryKeyIndexes);
+    }
+
+    CompletionStage<AsyncResultSet> write(Statement<?> statement) {
+        int @Nullable [] primaryKeyIndexes =
+                windowMillis == 0 ? null : getPrimaryKeyIndexes(statement);
+        PartitionKey partitionKey =
+                primaryKeyIndexes == null ? null : getPartitionKey((BoundStatement) statement);
+        if (primaryKeyIndexes == null || partitionKey == null) {
+            return executeNow(statement);
+        }
+        BoundStatement boundStatement = (BoundStatement) statement;
+        int bytes = getApproximateSize(boundStatement);
+        if (bytes > MAX_BATCH_BYTES) {
+            return executeNow(statement);
+        }
+        List<@Nullable ByteBuffer> rowKey = getRowKey(boundStatement, primaryKeyIndexes);
+        CompletableFuture<AsyncResultSet> future = new CompletableFuture<>();
+        List<PendingWrite> readyWrites = new ArrayList<>();
+        pendingBatches.compute(partitionKey, (key, pendingBatch) -> {
+            if (pendingBatch != null && !pendingBatch.canAdd(rowKey, bytes)) {
+                // the full batch is queued inside compute() so that it is always queued ahead of
+                // the new batch (and of any later write to the same row)
+                enqueue(pendingBatch.toPendingWrite(), readyWrites);
+                pendingBatch = null;
+            }
+            if (pendingBatch == null) {
+                pendingBatch = new PendingBatch();
+            }
+            pendingBatch.add(boundStatement, rowKey, bytes, future);
+            return pendingBatch;
+        });
+        // writes are executed outside of compute() since their callbacks can write again
+        execute(readyWrites);
+        scheduleFlush();
+        return future;
+    }
+
+    void close() throws InterruptedException {
+        flush();
+        // this shouldn't require shutdownNow()
+        scheduledExecutor.shutdown();
+        if (!scheduledExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for Cassandra write coalescing thread to terminate");
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduledExecutor.schedule(this::flush, windowMillis, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // probably shutdown requested (see close method above)
+                logger.debug(e.getMessage(), e);
+                flush();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void flush() {
+        flushScheduled.set(false);
+        for (PartitionKey partitionKey : pendingBatches.keySet()) {
+            PendingBatch pendingBatch = pendingBatches.remove(partitionKey);
+            if (pendingBatch != null) {
+                List<PendingWrite> readyWrites = new ArrayList<>();
+                enqueue(pendingBatch.toPendingWrite(), readyWrites);
+                execute(readyWrites);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getInFlightLimit() {
+        return (int) inFlightLimit;
+    }
+
+    @VisibleForTesting
+    synchronized int getWaitingWriteCount() {
+        return waitingWrites.size();
+    }
+
+    private CompletionStage<AsyncResultSet> executeNow(Statement<?> statement) {
+        try {
+            return executor.apply(statement);
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    private synchronized void enqueue(PendingWrite pendingWrite, List<PendingWrite> readyWrites) {
+        waitingWrites.add(pendingWrite);
+        pollReadyWrites(readyWrites);
+    }
+
+    // must be called while holding lock on this
+    private void pollReadyWrites(List<PendingWrite> readyWrites) {
+        while (inFlight < (int) inFlightLimit && !waitingWrites.isEmpty()) {
+            readyWrites.add(waitingWrites.remove());
+            inFlight++;
+        }
+    }
+
+    private void execute(List<PendingWrite> readyWrites) {
+        for (PendingWrite readyWrite : readyWrites) {
+            executeNow(readyWrite.statement).whenComplete((results, t) -> {
+                onComplete(t);
+                if (t == null) {
+                    readyWrite.future.complete(results);
+                } else {
+                    readyWrite.future.completeExceptionally(t);
+                }
+            });
+        }
+    }
+
+    private void onComplete(@Nullable Throwable t) {
+        List<PendingWrite> readyWrites = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            if (t != null && isOverloaded(t)) {
+                // multiplicative decrease
+                inFlightLimit = Math.max(inFlightLimit / 2, MIN_IN_FLIGHT_LIMIT);
+            } else if (t == null) {
+                if (cassandraWriteMetrics.getWriteLatencyRatio() > DEGRADED_LATENCY_RATIO) {
+                    // gentle decrease, writes are starting to queue up inside cassandra
+                    inFlightLimit = Math.max(inFlightLimit * 0.99, MIN_IN_FLIGHT_LIMIT);
+                } else if (inFlight + 1 >= (int) inFlightLimit) {
+                    // additive increase (approx by one per round trip), but only when the
+                    // limit is actually being reached
+                    inFlightLimit = Math.min(inFlightLimit + 1 / inFlightLimit,
+                            MAX_IN_FLIGHT_LIMIT);
+                }
+            }
+            pollReadyWrites(readyWrites);
+        }
+        execute(readyWrites);
+    }
+
+    private int @Nullable [] getPrimaryKeyIndexes(Statement<?> statement) {
+        if (!(statement instanceof BoundStatement)) {
+            return null;
+        }
+        return coalescedInserts
+                .get(((BoundStatement) statement).getPreparedStatement().getQuery());
+    }
+
+    private static @Nullable PartitionKey getPartitionKey(BoundStatement boundStatement) {
+        ByteBuffer routingKey = boundStatement.getRoutingKey();
+        if (routingKey == null) {
+            return null;
+        }
+        ColumnDefinitions variableDefinitions =
+                boundStatement.getPreparedStatement().getVariableDefinitions();
+        if (variableDefinitions.size() == 0) {
+            return null;
+        }
+        return new PartitionKey(variableDefinitions.get(0).getKeyspace(),
+                variableDefinitions.get(0).getTable(), routingKey,
+                boundStatement.getExecutionProfileName(), boundStatement.getConsistencyLevel());
+    }
+
+    private static List<@Nullable ByteBuffer> getRowKey(BoundStatement boundStatement,
+            int[] primaryKeyIndexes) {
+        @Nullable ByteBuffer[] values = new ByteBuffer[primaryKeyIndexes.length];
+        for (int i = 0; i < primaryKeyIndexes.length; i++) {
+            values[i] = boundStatement.getBytesUnsafe(primaryKeyIndexes[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    private static int getApproximateSize(BoundStatement boundStatement) {
+        int bytes = 0;
+        for (int i = 0; i < boundStatement.size(); i++) {
+            ByteBuffer value = boundStatement.getBytesUnsafe(i);
+            if (value != null) {
+                bytes += value.remaining();
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean isOverloaded(Throwable t) {
+        Throwable cause = t;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof OverloadedException || cause instanceof WriteTimeoutException
+                || cause instanceof DriverTimeoutException;
+    }
+
+    private static class PartitionKey {
+
+        private final CqlIdentifier keyspace;
+        private final CqlIdentifier table;
+        private final ByteBuffer routingKey;
+        private final @Nullable String executionProfileName;
+        private final @Nullable ConsistencyLevel consistencyLevel;
+
+        private PartitionKey(CqlIdentifier keyspace, CqlIdentifier table, ByteBuffer routingKey,
+                @Nullable String executionProfileName,
+                @Nullable ConsistencyLevel consistencyLevel) {
+            this.keyspace = keyspace;
+            this.table = table;
+            this.routingKey = routingKey;
+            this.executionProfileName = executionProfileName;
+            this.consistencyLevel = consistencyLevel;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof PartitionKey)) {
+                return false;
+            }
+            PartitionKey that = (PartitionKey) obj;
+            return keyspace.equals(that.keyspace) && table.equals(that.table)
+                    && routingKey.equals(that.routingKey)
+                    && Objects.equals(executionProfileName, that.executionProfileName)
+                    && Objects.equals(consistencyLevel, that.consistencyLevel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keyspace, table, routingKey, executionProfileName,
+                    consistencyLevel);
+        }
+    }
+
+    // guarded by pendingBatches.compute()
+    private static class PendingBatch {
+
+        private final List<BoundStatement> statements = new ArrayList<>();
+        private final Set<List<@Nullable ByteBuffer>> rowKeys = new HashSet<>();
+        private final List<CompletableFuture<AsyncResultSet>> futures = new ArrayList<>();
+        private int bytes;
+
+        private boolean canAdd(List<@Nullable ByteBuffer> rowKey, int moreBytes) {
+            return statements.size() < MAX_BATCH_STATEMENTS && bytes + moreBytes <= MAX_BATCH_BYTES
+                    && !rowKeys.contains(rowKey);
+        }
+
+        private void add(BoundStatement statement, List<@Nullable ByteBuffer> rowKey,
+                int statementBytes, CompletableFuture<AsyncResultSet> future) {
+            statements.add(statement);
+            rowKeys.add(rowKey);
+            futures.add(future);
+            bytes += statementBytes;
+        }
+
+        private PendingWrite toPendingWrite() {
+            Statement<?> statement;
+            if (statements.size() == 1) {
+                statement = statements.get(0);
+            } else {
+                BoundStatement first = statements.get(0);
+                BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED)
+                        .setExecutionProfileName(first.getExecutionProfileName())
+                        .setConsistencyLevel(first.getConsistencyLevel())
+                        .setRoutingKey(first.getRoutingKey());
+                for (BatchableStatement<?> loopStatement : statements) {
+                    builder.addStatement(loopStatement);
+                }
+                statement = builder.build();
+            }
+            PendingWrite pendingWrite = new PendingWrite(statement);
+            for (CompletableFuture<AsyncResultSet> future : futures) {
+                pendingWrite.future.whenComplete((results, t) -> {
+                    if (t == null) {
+                        future.complete(results);
+                    } else {
+                        future.completeExceptionally(t);
+                    }
+                });
+            }
+            return pendingWrite;
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final Statement<?> statement;
+        private final CompletableFuture<AsyncResultSet> future = new CompletableFuture<>();
+
+        private PendingWrite(Statement<?> statement) {
+            this.statement = statement;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common2.repo.util.AlertingService.MetricWindowValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AgentAlertWindowsTest {
+
+    private static final MetricCondition AVERAGE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("transaction:average")
+            .setTransactionType("Web")
+            .setTimePeriodSeconds(180)
+            .build();
+
+    private static final MetricCondition PERCENTILE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("transaction:x-percentile")
+            .setTransactionType("Web")
+            .setPercentile(OptionalDouble.newBuilder().setValue(50))
+            .setTimePeriodSeconds(120)
+            .build();
+
+    private static final MetricCondition GAUGE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("gauge:java.lang:type=Memory:HeapMemoryUsage.used")
+            .setTimePeriodSeconds(120)
+            .build();
+
+    @Test
+    public void shouldNotCalculateUntilWindowCoversTimePeriod() {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(AVERAGE_CONDITION)));
+
+        // when
+        alertWindows.addAggregates(60000, createAggregates(1000000, 1, 0));
+        alertWindows.addAggregates(120000, createAggregates(3000000, 1, 0));
+        alertWindows.addAggregates(180000, createAggregates(3000000, 1, 0));
+
+        // then
+        assertThat(alertWindows.getMetricWindowValue(AVERAGE_CONDITION, 180000)).isNull();
+        alertWindows.addAggregates(240000, createAggregates(3000000, 1, 0));
+        assertThat(alertWindows.getMetricWindowValue(AVERAGE_CONDITION, 240000)).isNotNull();
+    }
+
+    @Test
+    public void shouldCalculateTransactionAverage() {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(AVERAGE_CONDITION)));
+
+        // when
+        alertWindows.addAggregates(60000, createAggregates(1000000, 1, 0));
+        alertWindows.addAggregates(120000, createAggregates(2000000, 1, 0));
+        alertWindows.addAggregates(180000, createAggregates(3000000, 1, 0));
+        alertWindows.addAggregates(240000, createAggregates(7000000, 1, 0));
+
+        // then
+        MetricWindowValue metricWindowValue =
+                alertWindows.getMetricWindowValue(AVERAGE_CONDITION, 240000);
+        assertThat(metricWindowValue).isNotNull();
+        assertThat(metricWindowValue.value()).isEqualTo(4.0);
+        assertThat(metricWindowValue.transactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldCalculateTransactionPercentile() {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(PERCENTILE_CONDITION)));
+
+        // when
+        addPercentileAggregates(alertWindows);
+
+        // then
+        MetricWindowValue metricWindowValue =
+                alertWindows.getMetricWindowValue(PERCENTILE_CONDITION, 180000);
+        assertThat(metricWindowValue).isNotNull();
+        assertThat(metricWindowValue.value()).isEqualTo(1.0);
+        assertThat(metricWindowValue.transactionCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldCalculateGaugeAverage() {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(GAUGE_CONDITION)));
+
+        // when
+        alertWindows.addGaugeValues(ImmutableList.of(createGaugeValue(5000, 10),
+                createGaugeValue(10000, 20)));
+        alertWindows.addGaugeValues(ImmutableList.of(createGaugeValue(120000, 30),
+                createGaugeValue(125000, 40)));
+
+        // then
+        MetricWindowValue metricWindowValue =
+                alertWindows.getMetricWindowValue(GAUGE_CONDITION, 125000);
+        assertThat(metricWindowValue).isNotNull();
+        assertThat(metricWindowValue.value()).isEqualTo(30.0);
+    }
+
+    @Test
+    public void shouldStopTrackingWhenAlertIsRemoved() {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(AVERAGE_CONDITION)));
+        alertWindows.addAggregates(60000, createAggregates(1000000, 1, 0));
+
+        // when
+        boolean tracking = alertWindows.updateAlertConfigs(ImmutableList.of());
+
+        // then
+        assertThat(tracking).isFalse();
+        assertThat(alertWindows.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldRoundTripThroughProto() throws Exception {
+        // given
+        AgentAlertWindows alertWindows = new AgentAlertWindows();
+        alertWindows.updateAlertConfigs(ImmutableList.of(createAlertConfig(PERCENTILE_CONDITION),
+                createAlertConfig(GAUGE_CONDITION)));
+        addPercentileAggregates(alertWindows);
+        alertWindows.addGaugeValues(ImmutableList.of(createGaugeValue(5000, 10),
+                createGaugeValue(125000, 40)));
+
+        // when
+        AgentAlertWindows restored = AgentAlertWindows.fromProto(alertWindows.toProto());
+        restored.updateAlertConfigs(ImmutableList.of(createAlertConfig(PERCENTILE_CONDITION),
+                createAlertConfig(GAUGE_CONDITION)));
+
+        // then
+        MetricWindowValue metricWindowValue =
+                restored.getMetricWindowValue(PERCENTILE_CONDITION, 180000);
+        assertThat(metricWindowValue).isNotNull();
+        assertThat(metricWindowValue)
+                .isEqualTo(alertWindows.getMetricWindowValue(PERCENTILE_CONDITION, 180000));
+        metricWindowValue = restored.getMetricWindowValue(GAUGE_CONDITION, 125000);
+        assertThat(metricWindowValue).isNotNull();
+        assertThat(metricWindowValue)
+                .isEqualTo(alertWindows.getMetricWindowValue(GAUGE_CONDITION, 125000));
+    }
+
+    private static void addPercentileAggregates(AgentAlertWindows alertWindows) {
+        alertWindows.addAggregates(60000, createAggregates(9000000, 1, 0, 9000000));
+        alertWindows.addAggregates(120000, createAggregates(2000000, 2, 0, 1000000, 1000000));
+        alertWindows.addAggregates(180000, createAggregates(6000000, 2, 0, 2000000, 4000000));
+    }
+
+    private static AlertConfig createAlertConfig(MetricCondition metricCondition) {
+        return AlertConfig.newBuilder()
+                .setCondition(AlertCondition.newBuilder()
+                        .setMetricCondition(metricCondition))
+                .build();
+    }
+
+    private static ImmutableList<OldAggregatesByType> createAggregates(long totalDurationNanos,
+            long transactionCount, long errorCount, long... durationNanos) {
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        for (long value : durationNanos) {
+            histogram.addOrderedRawValue(value);
+        }
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(Aggregate.newBuilder()
+                        .setTotalDurationNanos(totalDurationNanos)
+                        .setTransactionCount(transactionCount)
+                        .setErrorCount(errorCount)
+                        .setDurationNanosHistogram(histogram))
+                .build());
+    }
+
+    private static GaugeValue createGaugeValue(long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+}
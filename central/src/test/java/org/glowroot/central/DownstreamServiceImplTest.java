@@ -0,0 +1,250 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.AgentResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CentralRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CurrentTimeRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.CurrentTimeResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeaderResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogram;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapHistogramResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Hello;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownstreamServiceImplTest {
+
+    private static ClusterManager clusterManager;
+
+    private DownstreamServiceImpl downstreamService;
+    private List<CentralRequest> sentRequests;
+    private StreamObserver<AgentResponse> responseObserver;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        clusterManager = ClusterManager.create();
+    }
+
+    @AfterAll
+    public static void tearDown() throws Exception {
+        clusterManager.close();
+    }
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        GrpcCommon grpcCommon = mock(GrpcCommon.class);
+        when(grpcCommon.getAgentId("a", true)).thenReturn("a");
+        downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
+        sentRequests = Lists.newCopyOnWriteArrayList();
+        responseObserver = downstreamService.connect(new RecordingObserver(sentRequests));
+        responseObserver.onNext(AgentResponse.newBuilder()
+                .setHello(Hello.newBuilder()
+                        .setAgentId("a")
+                        .setPostV09(true))
+                .build());
+        // hello ack
+        sentRequests.clear();
+    }
+
+    @AfterEach
+    public void afterEach() throws Exception {
+        responseObserver.onError(new Exception());
+        downstreamService.close();
+    }
+
+    @Test
+    public void shouldCorrelateResponsesReceivedOutOfOrder() throws Exception {
+        // given
+        CompletableFuture<AgentResponse> future1 =
+                downstreamService.runOnClusterAsync("a", createCurrentTimeRequest());
+        CompletableFuture<AgentResponse> future2 =
+                downstreamService.runOnClusterAsync("a", createCurrentTimeRequest());
+
+        // when
+        responseObserver.onNext(createCurrentTimeResponse(sentRequests.get(1), 2));
+        responseObserver.onNext(createCurrentTimeResponse(sentRequests.get(0), 1));
+
+        // then
+        assertThat(future1.get().getCurrentTimeResponse().getCurrentTimeMillis()).isEqualTo(1);
+        assertThat(future2.get().getCurrentTimeResponse().getCurrentTimeMillis()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldQueueRequestsBeyondInFlightLimit() throws Exception {
+        // given
+        List<CompletableFuture<AgentResponse>> futures = Lists.newArrayList();
+        for (int i = 0; i < 9; i++) {
+            futures.add(downstreamService.runOnClusterAsync("a", createCurrentTimeRequest()));
+        }
+        assertThat(sentRequests).hasSize(8);
+
+        // when
+        responseObserver.onNext(createCurrentTimeResponse(sentRequests.get(0), 1));
+
+        // then
+        assertThat(futures.get(0).get().getCurrentTimeResponse().getCurrentTimeMillis())
+                .isEqualTo(1);
+        assertThat(sentRequests).hasSize(9);
+        assertThat(futures.get(8)).isNotDone();
+    }
+
+    @Test
+    public void shouldLimitLongRunningRequestsToHalfOfInFlightLimit() throws Exception {
+        // given
+        List<CompletableFuture<AgentResponse>> futures = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            futures.add(downstreamService.runOnClusterAsync("a", createHeapHistogramRequest()));
+        }
+        assertThat(sentRequests).hasSize(4);
+
+        // when
+        for (int i = 0; i < 4; i++) {
+            futures.add(downstreamService.runOnClusterAsync("a", createCurrentTimeRequest()));
+        }
+
+        // then
+        assertThat(sentRequests).hasSize(8);
+        assertThat(sentRequests.get(7).hasCurrentTimeRequest()).isTrue();
+        responseObserver.onNext(createCurrentTimeResponse(sentRequests.get(7), 1));
+        assertThat(futures.get(8).get().getCurrentTimeResponse().getCurrentTimeMillis())
+                .isEqualTo(1);
+        // the freed slot cannot be used by the queued long-running request
+        assertThat(sentRequests).hasSize(8);
+        responseObserver.onNext(createHeapHistogramResponse(sentRequests.get(0)));
+        futures.get(0).get();
+        assertThat(sentRequests).hasSize(9);
+        assertThat(sentRequests.get(8).hasHeapHistogramRequest()).isTrue();
+    }
+
+    @Test
+    public void shouldStartTimeoutWhenRequestIsSent() throws Exception {
+        // given
+        List<CompletableFuture<Trace. /*@Nullable*/ Header>> futures = Lists.newArrayList();
+        for (int i = 0; i < 9; i++) {
+            futures.add(downstreamService.getHeader("a", "t" + i));
+        }
+        assertThat(sentRequests).hasSize(8);
+
+        // when
+        // header requests time out after 5 seconds
+        for (int i = 0; i < 8; i++) {
+            ExecutionException e = assertThrows(ExecutionException.class, futures.get(i)::get);
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+
+        // then
+        // timed out requests keep their slots until the agent responds
+        assertThat(sentRequests).hasSize(8);
+        assertThat(futures.get(8)).isNotDone();
+        responseObserver.onNext(createHeaderResponse(sentRequests.get(0)));
+        assertThat(sentRequests).hasSize(9);
+        responseObserver.onNext(createHeaderResponse(sentRequests.get(8)));
+        assertThat(futures.get(8).get().getHeadline()).isEqualTo("t8");
+    }
+
+    @Test
+    public void shouldFailPendingRequestsWhenAgentDisconnects() {
+        // given
+        CompletableFuture<AgentResponse> future =
+                downstreamService.runOnClusterAsync("a", createCurrentTimeRequest());
+
+        // when
+        responseObserver.onError(new Exception());
+
+        // then
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertThat(e.getCause()).isInstanceOf(AgentNotConnectedException.class);
+    }
+
+    private static CentralRequest createCurrentTimeRequest() {
+        return CentralRequest.newBuilder()
+                .setCurrentTimeRequest(CurrentTimeRequest.getDefaultInstance())
+                .build();
+    }
+
+    private static CentralRequest createHeapHistogramRequest() {
+        return CentralRequest.newBuilder()
+                .setHeapHistogramRequest(HeapHistogramRequest.getDefaultInstance())
+                .build();
+    }
+
+    private static AgentResponse createHeapHistogramResponse(CentralRequest request) {
+        return AgentResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setHeapHistogramResponse(HeapHistogramResponse.newBuilder()
+                        .setHeapHistogram(HeapHistogram.getDefaultInstance()))
+                .build();
+    }
+
+    private static AgentResponse createHeaderResponse(CentralRequest request) {
+        return AgentResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setHeaderResponse(HeaderResponse.newBuilder()
+                        .setHeader(Trace.Header.newBuilder()
+                                .setHeadline(request.getHeaderRequest().getTraceId())))
+                .build();
+    }
+
+    private static AgentResponse createCurrentTimeResponse(CentralRequest request,
+            long currentTimeMillis) {
+        return AgentResponse.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setCurrentTimeResponse(CurrentTimeResponse.newBuilder()
+                        .setCurrentTimeMillis(currentTimeMillis))
+                .build();
+    }
+
+    private static class RecordingObserver implements StreamObserver<CentralRequest> {
+
+        private final List<CentralRequest> sentRequests;
+
+        private RecordingObserver(List<CentralRequest> sentRequests) {
+            this.sentRequests = sentRequests;
+        }
+
+        @Override
+        public void onNext(CentralRequest value) {
+            sentRequests.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -24,6 +24,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import static org.glowroot.central.DownstreamServiceImpl.await;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.mock;
 
@@ -52,38 +53,38 @@ public class DownstreamServiceNotConnectedTest {
     @Test
     public void shouldThrowAgentNotConnectExceptionOnThreadDump() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.threadDump("a"));
+            await(downstreamService.threadDump("a")));
     }
 
     @Test
     public void shouldThrowAgentNotConnectExceptionOnAvailableDiskSpaceBytes() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.availableDiskSpaceBytes("a", "dummy"));
+            await(downstreamService.availableDiskSpaceBytes("a", "dummy")));
     }
 
     @Test
     public void shouldThrowAgentNotConnectExceptionOnHeapDump() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.heapDump("a", "dummy"));
+            await(downstreamService.heapDump("a", "dummy")));
     }
 
     @Test
     public void shouldThrowAgentNotConnectExceptionOnExplicitGcDisabled() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.isExplicitGcDisabled("a"));
+            await(downstreamService.isExplicitGcDisabled("a")));
     }
 
     @Test
     public void shouldThrowAgentNotConnectExceptionOnGc() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.forceGC("a"));
+            await(downstreamService.forceGC("a")));
     }
 
     @Test
     public void shouldThrowAgentNotConnectExceptionOnMbeanDump() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.mbeanDump("a", MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES,
-                    ImmutableList.of()));
+            await(downstreamService.mbeanDump("a",
+                    MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES, ImmutableList.of())));
     }
 
     @Test
@@ -101,7 +102,7 @@ public class DownstreamServiceNotConnectedTest {
     @Test
     public void shouldThrowAgentNotConnectExceptionOnCapabilities() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.capabilities("a"));
+            await(downstreamService.capabilities("a")));
     }
 
     @Test
@@ -143,7 +144,7 @@ public class DownstreamServiceNotConnectedTest {
     @Test
     public void shouldThrowAgentNotConnectExceptionOnGetHeader() {
         assertThrows(AgentNotConnectedException.class, () ->
-            downstreamService.getHeader("a", "dummy"));
+            await(downstreamService.getHeader("a", "dummy")));
     }
 
     @Test
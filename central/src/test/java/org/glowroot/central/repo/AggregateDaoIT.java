@@ -21,6 +21,7 @@ import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.AggregateDaoWithV09Support;
 import org.glowroot.common.ConfigDefaults;
@@ -128,7 +129,8 @@ public class AggregateDaoIT {
                 configRepository, rollupLevelService, Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
                 new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, asyncExecutor, 0, Clock.systemClock()));
+                        configRepository, asyncExecutor, 0, new RollupLagMetrics(),
+                        Clock.systemClock()));
 
         session.updateSchemaWithRetry("truncate agent_config");
     }
@@ -315,6 +317,52 @@ public class AggregateDaoIT {
 
     }
 
+    @Test
+    public void shouldReadTopTransactionNamesWithManyTransactionNames() throws Exception {
+        // given
+        agentConfigDao.store("one", AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build(), true).toCompletableFuture().get();
+        aggregateDao.truncateAll();
+        // more transaction names than are retained per interval in the top table, and with the
+        // top transaction names over the time range not being in the top of the first interval
+        aggregateDao.store("one", 60000, createManyTransactionNamesData(false), ImmutableList.of())
+                .toCompletableFuture().join();
+        aggregateDao.store("one", 120000, createManyTransactionNamesData(true), ImmutableList.of())
+                .toCompletableFuture().join();
+        SummaryQuery summaryQuery = ImmutableSummaryQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(0)
+                .build();
+
+        // when
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        SummarySortOrder sortOrder = SummarySortOrder.TOTAL_TIME;
+        aggregateDao.mergeTransactionNameSummariesInto("one", summaryQuery, sortOrder, 7,
+                collector, web).toCompletableFuture().join();
+
+        // then
+        Result<TransactionNameSummary> result = collector.getResult(sortOrder, 7);
+        assertThat(result.records()).hasSize(7);
+        assertThat(result.moreAvailable()).isTrue();
+        for (int i = 0; i < 5; i++) {
+            assertThat(result.records().get(i).transactionName()).isEqualTo("tn" + (5 - i));
+            assertThat(result.records().get(i).totalDurationNanos()).isEqualTo(1005 - i);
+            assertThat(result.records().get(i).transactionCount()).isEqualTo(2);
+        }
+        assertThat(result.records().get(5).transactionName()).isEqualTo("tn300");
+        assertThat(result.records().get(5).totalDurationNanos()).isEqualTo(600);
+        assertThat(result.records().get(6).transactionName()).isEqualTo("tn299");
+        assertThat(result.records().get(6).totalDurationNanos()).isEqualTo(598);
+        // slack transaction names (with exact totals) for merging with other results
+        Result<TransactionNameSummary> slackResult = collector.getResult(sortOrder, 1000);
+        assertThat(slackResult.records().size()).isGreaterThanOrEqualTo(7 + 100);
+        assertThat(slackResult.records().get(106).transactionName()).isEqualTo("tn199");
+        assertThat(slackResult.records().get(106).totalDurationNanos()).isEqualTo(398);
+    }
+
     @Test
     public void shouldRollupFromChildren() throws Exception {
 
@@ -708,6 +756,24 @@ public class AggregateDaoIT {
         return aggregatesByType;
     }
 
+    private static List<OldAggregatesByType> createManyTransactionNamesData(boolean boostFirst) {
+        OldAggregatesByType.Builder builder = OldAggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(createOverallAggregate());
+        for (int i = 1; i <= 300; i++) {
+            builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                    .setTransactionName("tn" + i)
+                    .setAggregate(Aggregate.newBuilder()
+                            .setTotalDurationNanos(boostFirst && i <= 5 ? 1000 : i)
+                            .setTransactionCount(1)
+                            .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                                    .setName("abc")
+                                    .setTotalNanos(1)
+                                    .setCount(1))));
+        }
+        return ImmutableList.of(builder.build());
+    }
+
     private static Aggregate createOverallAggregate() {
         return Aggregate.newBuilder()
                 .setTotalDurationNanos(3579)
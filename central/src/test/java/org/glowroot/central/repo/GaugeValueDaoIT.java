@@ -21,6 +21,7 @@ import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.GaugeValueDaoWithV09Support;
 import org.glowroot.common.util.Clock;
@@ -74,7 +75,7 @@ public class GaugeValueDaoIT {
                 agentConfigDao, userDao, roleDao, "");
         gaugeValueDao = new GaugeValueDaoWithV09Support(ImmutableSet.of(), 0, Clock.systemClock(),
                 new GaugeValueDaoImpl(session, configRepository, clusterManager, asyncExecutor, 0,
-                        Clock.systemClock()));
+                        new RollupLagMetrics(), Clock.systemClock()));
     }
 
     @AfterAll
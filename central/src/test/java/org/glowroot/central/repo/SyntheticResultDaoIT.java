@@ -20,6 +20,7 @@ import com.datastax.oss.driver.api.core.CqlSessionBuilder;
 import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.google.common.collect.Lists;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagMetrics;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.config.ImmutableCentralStorageConfig;
@@ -70,7 +71,7 @@ public class SyntheticResultDaoIT {
         ConfigRepositoryImpl configRepository =
                 new ConfigRepositoryImpl(centralConfigDao, agentConfigDao, userDao, roleDao, "");
         syntheticResultDao = new SyntheticResultDaoImpl(session, configRepository, asyncExecutor, 0,
-                Clock.systemClock());
+                new RollupLagMetrics(), Clock.systemClock());
     }
 
     @AfterAll
@@ -453,4 +453,118 @@ public class TraceDaoIT {
         });
         assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
     }
+
+    @Test
+    public void shouldReadTraceWithIndexedUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(false); // partial records are not indexed
+        // capture time after the trace point index was created (the mock clock returns 200)
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(300))
+                .build();
+        CompletionStage<?> cf = traceDao.store(AGENT_ID, trace).thenCompose(res -> {
+            try {
+                TraceQuery query = ImmutableTraceQuery.builder()
+                        .transactionType("unit test")
+                        .from(250)
+                        .to(350)
+                        .build();
+                TracePointFilter filter = ImmutableTracePointFilter.builder()
+                        .durationNanosLow(0)
+                        .userComparator(StringComparator.EQUALS)
+                        .user("J")
+                        .build();
+
+                // when
+                return traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).thenAccept(queryResult -> {
+            // then
+            assertThat(queryResult.records()).hasSize(1);
+        });
+        assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
+    }
+
+    @Test
+    public void shouldReadTraceErrorWithIndexedAttributeQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(false); // partial records are not inserted into
+        // error tables
+        // capture time after the trace point index was created (the mock clock returns 200)
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(300)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("this is A test")))
+                .build();
+        CompletionStage<?> cf = traceDao.store(AGENT_ID, trace).thenCompose(res -> {
+            try {
+                TraceQuery query = ImmutableTraceQuery.builder()
+                        .transactionType("unit test")
+                        .transactionName("test transaction name")
+                        .from(250)
+                        .to(350)
+                        .build();
+                TracePointFilter filter = ImmutableTracePointFilter.builder()
+                        .durationNanosLow(0)
+                        .attributeName("ABC")
+                        .attributeValueComparator(StringComparator.EQUALS)
+                        .attributeValue("XYZ")
+                        .build();
+
+                // when
+                return traceDao.readErrorPoints(AGENT_ID, query, filter, 1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).thenAccept(queryResult -> {
+            // then
+            assertThat(queryResult.records()).hasSize(1);
+        });
+        assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
+    }
+
+    @Test
+    public void shouldReadTraceWithMoreIndexKeysThanIndexed() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(false); // partial records are not indexed
+        Trace.Attribute.Builder attribute = Trace.Attribute.newBuilder()
+                .setName("many");
+        for (int i = 0; i < 20; i++) {
+            attribute.addValue("value" + i);
+        }
+        // capture time after the trace point index was created (the mock clock returns 200)
+        trace = trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(300)
+                        .addAttribute(attribute))
+                .build();
+        CompletionStage<?> cf = traceDao.store(AGENT_ID, trace).thenCompose(res -> {
+            try {
+                TraceQuery query = ImmutableTraceQuery.builder()
+                        .transactionType("unit test")
+                        .from(250)
+                        .to(350)
+                        .build();
+                TracePointFilter filter = ImmutableTracePointFilter.builder()
+                        .durationNanosLow(0)
+                        .attributeName("many")
+                        .attributeValueComparator(StringComparator.EQUALS)
+                        .attributeValue("value17")
+                        .build();
+
+                // when
+                return traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).thenAccept(queryResult -> {
+            // then
+            assertThat(queryResult.records()).hasSize(1);
+        });
+        assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterManagerTest {
+
+    @Test
+    public void shouldSpreadKeysAcrossMembers() {
+        List<String> members = ImmutableList.of("node-a", "node-b", "node-c");
+        int[] counts = new int[members.size()];
+        for (int i = 0; i < 3000; i++) {
+            counts[ClusterManager.getOwnerIndex("agent-" + i, members)]++;
+        }
+        for (int count : counts) {
+            assertThat(count).isBetween(800, 1200);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOwnedByRemovedMember() {
+        List<String> members = ImmutableList.of("node-a", "node-b", "node-c");
+        List<String> remainingMembers = ImmutableList.of("node-a", "node-c");
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            String owner = members.get(ClusterManager.getOwnerIndex(key, members));
+            String newOwner =
+                    remainingMembers.get(ClusterManager.getOwnerIndex(key, remainingMembers));
+            if (!owner.equals("node-b")) {
+                assertThat(newOwner).isEqualTo(owner);
+            }
+        }
+    }
+}
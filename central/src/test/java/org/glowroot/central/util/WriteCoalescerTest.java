@@ -0,0 +1,313 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WriteCoalescerTest {
+
+    private static final String COALESCED_INSERT =
+            "insert into aggregate (agent_id, capture_time, value) values (?, ?, ?)";
+    private static final String OTHER_INSERT =
+            "insert into trace (agent_id, trace_id, value) values (?, ?, ?)";
+
+    // long enough that the scheduled flush never happens during a test
+    private static final long WINDOW_MILLIS = 60000;
+
+    private final List<Statement<?>> executedStatements = new ArrayList<>();
+    private final List<CompletableFuture<AsyncResultSet>> executedFutures = new ArrayList<>();
+
+    private CassandraWriteMetrics cassandraWriteMetrics;
+    private PreparedStatement coalescedInsert;
+    private PreparedStatement otherInsert;
+
+    @BeforeEach
+    public void beforeEach() {
+        cassandraWriteMetrics = mock(CassandraWriteMetrics.class);
+        when(cassandraWriteMetrics.getWriteLatencyRatio()).thenReturn(1.0);
+        coalescedInsert = mockPreparedStatement(COALESCED_INSERT, "aggregate");
+        otherInsert = mockPreparedStatement(OTHER_INSERT, "trace");
+    }
+
+    @Test
+    public void shouldCoalesceInsertsToSamePartition() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+
+        // when
+        CompletionStage<AsyncResultSet> future1 =
+                writeCoalescer.write(bind(coalescedInsert, 1, 1));
+        CompletionStage<AsyncResultSet> future2 =
+                writeCoalescer.write(bind(coalescedInsert, 1, 2));
+        CompletionStage<AsyncResultSet> future3 =
+                writeCoalescer.write(bind(coalescedInsert, 2, 1));
+        assertThat(executedStatements).isEmpty();
+        writeCoalescer.flush();
+
+        // then
+        assertThat(executedStatements).hasSize(2);
+        Statement<?> batch = getExecutedStatement(1);
+        assertThat(batch).isInstanceOf(BatchStatement.class);
+        assertThat(((BatchStatement) batch).size()).isEqualTo(2);
+        Statement<?> single = getExecutedStatement(2);
+        assertThat(single).isInstanceOf(BoundStatement.class);
+        AsyncResultSet results = mock(AsyncResultSet.class);
+        executedFutures.get(executedStatements.indexOf(batch)).complete(results);
+        assertThat(future1.toCompletableFuture().getNow(null)).isSameAs(results);
+        assertThat(future2.toCompletableFuture().getNow(null)).isSameAs(results);
+        assertThat(future3.toCompletableFuture().isDone()).isFalse();
+    }
+
+    @Test
+    public void shouldNotCoalesceWritesToSameRow() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        BoundStatement first = bind(coalescedInsert, 1, 1);
+        BoundStatement second = bind(coalescedInsert, 1, 1);
+
+        // when
+        writeCoalescer.write(first);
+        writeCoalescer.write(second);
+        writeCoalescer.flush();
+
+        // then
+        assertThat(executedStatements).containsExactly(first, second);
+    }
+
+    @Test
+    public void shouldNotDelayWritesThatAreNotCoalesced() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        BoundStatement statement = bind(otherInsert, 1, 1);
+
+        // when
+        writeCoalescer.write(statement);
+
+        // then
+        assertThat(executedStatements).containsExactly(statement);
+    }
+
+    @Test
+    public void shouldPropagateBatchFailureToEachWrite() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        CompletionStage<AsyncResultSet> future1 =
+                writeCoalescer.write(bind(coalescedInsert, 1, 1));
+        CompletionStage<AsyncResultSet> future2 =
+                writeCoalescer.write(bind(coalescedInsert, 1, 2));
+        writeCoalescer.flush();
+        RuntimeException exception = new RuntimeException("write failed");
+
+        // when
+        executedFutures.get(0).completeExceptionally(exception);
+
+        // then
+        assertThat(future1.toCompletableFuture()).failsWithin(Duration.ZERO)
+                .withThrowableOfType(ExecutionException.class).withCause(exception);
+        assertThat(future2.toCompletableFuture()).failsWithin(Duration.ZERO)
+                .withThrowableOfType(ExecutionException.class).withCause(exception);
+    }
+
+    @Test
+    public void shouldHalveInFlightLimitOnTimeout() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        writeCoalescer.write(bind(coalescedInsert, 1, 1));
+        writeCoalescer.flush();
+
+        // when
+        executedFutures.get(0).completeExceptionally(new DriverTimeoutException("timed out"));
+
+        // then
+        assertThat(writeCoalescer.getInFlightLimit()).isEqualTo(64);
+    }
+
+    @Test
+    public void shouldIncreaseInFlightLimitWhileLimitIsReached() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        for (int i = 0; i < 1000; i++) {
+            writeCoalescer.write(bind(coalescedInsert, i, 1));
+        }
+        writeCoalescer.flush();
+        assertThat(executedStatements).hasSize(128);
+
+        // when
+        for (int i = 0; i < 300; i++) {
+            executedFutures.get(i).complete(mock(AsyncResultSet.class));
+        }
+
+        // then
+        assertThat(writeCoalescer.getInFlightLimit()).isGreaterThan(128);
+        assertThat(executedStatements.size() - 300)
+                .isEqualTo(writeCoalescer.getInFlightLimit());
+    }
+
+    @Test
+    public void shouldDecreaseInFlightLimitWhileLatencyIsDegraded() {
+        // given
+        when(cassandraWriteMetrics.getWriteLatencyRatio()).thenReturn(3.0);
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        for (int i = 0; i < 10; i++) {
+            writeCoalescer.write(bind(coalescedInsert, i, 1));
+        }
+        writeCoalescer.flush();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            executedFutures.get(i).complete(mock(AsyncResultSet.class));
+        }
+
+        // then
+        assertThat(writeCoalescer.getInFlightLimit()).isEqualTo(115);
+    }
+
+    @Test
+    public void shouldNotThrottleWritesThatAreNotCoalesced() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        for (int i = 0; i < 200; i++) {
+            writeCoalescer.write(bind(coalescedInsert, i, 1));
+        }
+        writeCoalescer.flush();
+        assertThat(executedStatements).hasSize(128);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            writeCoalescer.write(bind(otherInsert, 1, i));
+        }
+
+        // then
+        assertThat(executedStatements).hasSize(1128);
+        assertThat(writeCoalescer.getWaitingWriteCount()).isEqualTo(72);
+    }
+
+    @Test
+    public void shouldQueueBatchesBeyondInFlightLimitDuringMultiAgentBurst() {
+        // given
+        WriteCoalescer writeCoalescer = createWriteCoalescer();
+        List<CompletionStage<AsyncResultSet>> futures = new ArrayList<>();
+
+        // when
+        // each agent sends a minute of aggregates (20 rows to each of 10 partitions), along with
+        // 250 trace and gauge writes, all at the same time
+        for (int agent = 0; agent < 50; agent++) {
+            for (int partition = 0; partition < 10; partition++) {
+                for (int row = 0; row < 20; row++) {
+                    futures.add(writeCoalescer
+                            .write(bind(coalescedInsert, agent * 10 + partition, row)));
+                }
+            }
+            // (the same statement is reused only to keep the test fast)
+            BoundStatement otherWrite = bind(otherInsert, agent, 1);
+            for (int i = 0; i < 250; i++) {
+                futures.add(writeCoalescer.write(otherWrite));
+            }
+        }
+        writeCoalescer.flush();
+
+        // then
+        assertThat(executedStatements).hasSize(50 * 250 + 128);
+        assertThat(writeCoalescer.getWaitingWriteCount()).isEqualTo(50 * 10 - 128);
+        // completing writes (which can execute more writes) until nothing is left in flight
+        for (int i = 0; i < executedFutures.size(); i++) {
+            executedFutures.get(i).complete(mock(AsyncResultSet.class));
+        }
+        assertThat(executedStatements).hasSize(50 * 250 + 50 * 10);
+        assertThat(writeCoalescer.getWaitingWriteCount()).isZero();
+        for (CompletionStage<AsyncResultSet> future : futures) {
+            assertThat(future.toCompletableFuture()).isCompleted();
+        }
+    }
+
+    private WriteCoalescer createWriteCoalescer() {
+        WriteCoalescer writeCoalescer = new WriteCoalescer(statement -> {
+            CompletableFuture<AsyncResultSet> future = new CompletableFuture<>();
+            executedStatements.add(statement);
+            executedFutures.add(future);
+            return future;
+        }, cassandraWriteMetrics, WINDOW_MILLIS);
+        writeCoalescer.allowCoalescing(coalescedInsert, ImmutableList
+                .of(CqlIdentifier.fromCql("agent_id"), CqlIdentifier.fromCql("capture_time")));
+        return writeCoalescer;
+    }
+
+    // statements of the same partition can be executed in either order
+    private Statement<?> getExecutedStatement(int partition) {
+        for (Statement<?> statement : executedStatements) {
+            if (statement.getRoutingKey().equals(toBytes(partition))) {
+                return statement;
+            }
+        }
+        throw new AssertionError("Statement not executed for partition: " + partition);
+    }
+
+    private static PreparedStatement mockPreparedStatement(String query, String table) {
+        ColumnDefinition columnDefinition = mock(ColumnDefinition.class);
+        when(columnDefinition.getKeyspace()).thenReturn(CqlIdentifier.fromCql("glowroot"));
+        when(columnDefinition.getTable()).thenReturn(CqlIdentifier.fromCql(table));
+        ColumnDefinitions variableDefinitions = mock(ColumnDefinitions.class);
+        when(variableDefinitions.size()).thenReturn(3);
+        when(variableDefinitions.get(anyInt())).thenReturn(columnDefinition);
+        when(variableDefinitions.firstIndexOf(CqlIdentifier.fromCql("agent_id"))).thenReturn(0);
+        when(variableDefinitions.firstIndexOf(CqlIdentifier.fromCql("capture_time")))
+                .thenReturn(1);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        when(preparedStatement.getQuery()).thenReturn(query);
+        when(preparedStatement.getVariableDefinitions()).thenReturn(variableDefinitions);
+        return preparedStatement;
+    }
+
+    private static BoundStatement bind(PreparedStatement preparedStatement, int partition,
+            int row) {
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        when(boundStatement.getPreparedStatement()).thenReturn(preparedStatement);
+        when(boundStatement.getRoutingKey()).thenReturn(toBytes(partition));
+        when(boundStatement.size()).thenReturn(3);
+        when(boundStatement.getBytesUnsafe(0)).thenReturn(toBytes(partition));
+        when(boundStatement.getBytesUnsafe(1)).thenReturn(toBytes(row));
+        when(boundStatement.getBytesUnsafe(2)).thenReturn(ByteBuffer.allocate(100));
+        return boundStatement;
+    }
+
+    private static ByteBuffer toBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(0, value);
+    }
+}
@@ -70,6 +70,20 @@ public abstract class AdvancedConfig {
         return 50000;
     }
 
+    // trace entries beyond maxTraceEntriesPerTransaction (up to this limit) are spilled to a local
+    // file instead of being dropped (zero disables spilling)
+    @Value.Default
+    public int traceEntrySpillLimit() {
+        return 0;
+    }
+
+    // budget for storing completed traces, beyond which only the most informative traces in each
+    // second are stored (zero disables trace sampling)
+    @Value.Default
+    public int maxTracesPerSecond() {
+        return 0;
+    }
+
     @Value.Default
     public int mbeanGaugeNotFoundDelaySeconds() {
         return 60;
@@ -90,6 +104,8 @@ public abstract class AdvancedConfig {
                 .setMaxServiceCallAggregates(of(maxServiceCallAggregates()))
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
+                .setTraceEntrySpillLimit(traceEntrySpillLimit())
+                .setMaxTracesPerSecond(maxTracesPerSecond())
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                 .setWeavingTimer(weavingTimer())
                 .build();
@@ -122,7 +138,9 @@ public abstract class AdvancedConfig {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
-        return builder.weavingTimer(config.getWeavingTimer())
+        return builder.traceEntrySpillLimit(config.getTraceEntrySpillLimit())
+                .maxTracesPerSecond(config.getMaxTracesPerSecond())
+                .weavingTimer(config.getWeavingTimer())
                 .build();
     }
 
@@ -38,6 +38,33 @@ public abstract class TransactionConfig {
         return 1000;
     }
 
+    // the following three settings make up the adaptive profiling mode, and are all disabled by
+    // default
+
+    // 0 means no limit, otherwise only the top (most recent) frames of each stack trace are
+    // captured, which reduces the time spent at the safepoint capturing very deep stack traces
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public int profilingMaxStackDepth() {
+        return 0;
+    }
+
+    // 0 means no limit, otherwise at most this many threads are sampled per profiling interval,
+    // rotating fairly across the active transactions
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public int profilingMaxThreadsPerInterval() {
+        return 0;
+    }
+
+    // 0 means no limit, otherwise the profiling interval is stretched whenever the time spent
+    // capturing stack traces exceeds this percent of the interval
+    @Value.Default
+    @JsonInclude(Include.NON_EMPTY)
+    public double profilingMaxOverheadPercent() {
+        return 0;
+    }
+
     @Value.Default
     // do not use @JsonInclude NON_EMPTY
     // need to always write this value to config.json since default value is true
@@ -48,11 +75,18 @@ public abstract class TransactionConfig {
     @JsonInclude(Include.NON_EMPTY)
     public abstract ImmutableList<ImmutableSlowThresholdOverride> slowThresholdOverrides();
 
+    // transaction types without an override use LazyHistogram.DEFAULT_SIGNIFICANT_DIGITS
+    @JsonInclude(Include.NON_EMPTY)
+    public abstract ImmutableList<ImmutableHistogramPrecisionOverride> histogramPrecisionOverrides();
+
     public AgentConfig.TransactionConfig toProto() {
         AgentConfig.TransactionConfig.Builder builder = AgentConfig.TransactionConfig.newBuilder()
                 .setSlowThresholdMillis(of(slowThresholdMillis()))
                 .setProfilingIntervalMillis(of(profilingIntervalMillis()))
-                .setCaptureThreadStats(captureThreadStats());
+                .setCaptureThreadStats(captureThreadStats())
+                .setProfilingMaxStackDepth(profilingMaxStackDepth())
+                .setProfilingMaxThreadsPerInterval(profilingMaxThreadsPerInterval())
+                .setProfilingMaxOverheadPercent(profilingMaxOverheadPercent());
         for (SlowThresholdOverride slowThresholdOverride : slowThresholdOverrides()) {
             builder.addSlowThresholdOverride(AgentConfig.SlowThresholdOverride.newBuilder()
                     .setTransactionType(slowThresholdOverride.transactionType())
@@ -61,6 +95,12 @@ public abstract class TransactionConfig {
                     .setThresholdMillis(slowThresholdOverride.thresholdMillis())
                     .build());
         }
+        for (HistogramPrecisionOverride histogramPrecisionOverride : histogramPrecisionOverrides()) {
+            builder.addHistogramPrecisionOverride(AgentConfig.HistogramPrecisionOverride.newBuilder()
+                    .setTransactionType(histogramPrecisionOverride.transactionType())
+                    .setSignificantDigits(histogramPrecisionOverride.significantDigits())
+                    .build());
+        }
         return builder.build();
     }
 
@@ -72,6 +112,9 @@ public abstract class TransactionConfig {
         if (config.hasProfilingIntervalMillis()) {
             builder.profilingIntervalMillis(config.getProfilingIntervalMillis().getValue());
         }
+        builder.profilingMaxStackDepth(config.getProfilingMaxStackDepth())
+                .profilingMaxThreadsPerInterval(config.getProfilingMaxThreadsPerInterval())
+                .profilingMaxOverheadPercent(config.getProfilingMaxOverheadPercent());
         builder.captureThreadStats(config.getCaptureThreadStats());
         for (AgentConfig.SlowThresholdOverride slowThresholdOverride : config
                 .getSlowThresholdOverrideList()) {
@@ -82,6 +125,13 @@ public abstract class TransactionConfig {
                     .thresholdMillis(slowThresholdOverride.getThresholdMillis())
                     .build());
         }
+        for (AgentConfig.HistogramPrecisionOverride histogramPrecisionOverride : config
+                .getHistogramPrecisionOverrideList()) {
+            builder.addHistogramPrecisionOverrides(ImmutableHistogramPrecisionOverride.builder()
+                    .transactionType(histogramPrecisionOverride.getTransactionType())
+                    .significantDigits(histogramPrecisionOverride.getSignificantDigits())
+                    .build());
+        }
         return builder.build();
     }
 
@@ -108,4 +158,13 @@ public abstract class TransactionConfig {
 
         public abstract int thresholdMillis();
     }
+
+    @Value.Immutable
+    public abstract static class HistogramPrecisionOverride {
+
+        public abstract String transactionType();
+
+        // between LazyHistogram.MIN_SIGNIFICANT_DIGITS and LazyHistogram.MAX_SIGNIFICANT_DIGITS
+        public abstract int significantDigits();
+    }
 }
@@ -17,6 +17,8 @@ package org.glowroot.common.live;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.Capabilities;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.HeapDumpFileInfo;
@@ -58,6 +60,111 @@ public interface LiveJvmService {
 
     Capabilities getCapabilities(String agentId) throws Exception;
 
+    // the async variants below are for callers that should not hold a thread while waiting for a
+    // remote agent, the default implementations just call the corresponding method above
+
+    default CompletionStage<ThreadDump> getThreadDumpAsync(String agentId) {
+        CompletableFuture<ThreadDump> future = new CompletableFuture<ThreadDump>();
+        try {
+            future.complete(getThreadDump(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<String> getJstackAsync(String agentId) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        try {
+            future.complete(getJstack(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<Long> getAvailableDiskSpaceAsync(String agentId, String directory) {
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        try {
+            future.complete(getAvailableDiskSpace(agentId, directory));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<HeapDumpFileInfo> heapDumpAsync(String agentId, String directory) {
+        CompletableFuture<HeapDumpFileInfo> future = new CompletableFuture<HeapDumpFileInfo>();
+        try {
+            future.complete(heapDump(agentId, directory));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<HeapHistogram> heapHistogramAsync(String agentId) {
+        CompletableFuture<HeapHistogram> future = new CompletableFuture<HeapHistogram>();
+        try {
+            future.complete(heapHistogram(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<Boolean> isExplicitGcDisabledAsync(String agentId) {
+        CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        try {
+            future.complete(isExplicitGcDisabled(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<Void> forceGCAsync(String agentId) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try {
+            forceGC(agentId);
+            future.complete(null);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<MBeanDump> getMBeanDumpAsync(String agentId, MBeanDumpKind mbeanDumpKind,
+            List<String> objectNames) {
+        CompletableFuture<MBeanDump> future = new CompletableFuture<MBeanDump>();
+        try {
+            future.complete(getMBeanDump(agentId, mbeanDumpKind, objectNames));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<Map<String, String>> getSystemPropertiesAsync(String agentId) {
+        CompletableFuture<Map<String, String>> future = new CompletableFuture<Map<String, String>>();
+        try {
+            future.complete(getSystemProperties(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    default CompletionStage<Capabilities> getCapabilitiesAsync(String agentId) {
+        CompletableFuture<Capabilities> future = new CompletableFuture<Capabilities>();
+        try {
+            future.complete(getCapabilities(agentId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     @SuppressWarnings("serial")
     public class AgentNotConnectedException extends Exception {}
 
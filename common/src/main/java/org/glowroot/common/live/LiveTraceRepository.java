@@ -19,6 +19,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -35,6 +37,20 @@ public interface LiveTraceRepository {
     // null return value means trace not found
     Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception;
 
+    // same as getHeader(), for callers that should not hold a thread while waiting for a remote
+    // agent (null future value means trace not found)
+    default CompletionStage<Trace. /*@Nullable*/ Header> getHeaderAsync(String agentId,
+            String traceId) {
+        CompletableFuture<Trace. /*@Nullable*/ Header> future =
+                new CompletableFuture<Trace. /*@Nullable*/ Header>();
+        try {
+            future.complete(getHeader(agentId, traceId));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     // null return value means trace not found or was found but had no entries
     //
     // SharedQueryTexts are returned with either fullTrace or
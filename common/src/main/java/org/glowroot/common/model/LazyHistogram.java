@@ -18,162 +18,423 @@ package org.glowroot.common.model;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
-import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
+import org.HdrHistogram.HistogramIterationValue;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+// values are tracked at a fixed precision (number of significant digits) using the same
+// log-linear bucketing as HdrHistogram, but only non-empty buckets are stored (as parallel arrays
+// ordered by bucket index) so that histograms with few distinct values stay small, and so that
+// merging two histograms is just a merge of the two ordered bucket lists
+//
+// prior to packed buckets, up to 1024 raw values were kept exactly, and beyond that values were
+// tracked by HdrHistogram at 5 significant digits (with microsecond resolution), so percentiles are
+// now only exact to within the precision (0.1% at the default of 3 significant digits), even for
+// histograms with few values
 public class LazyHistogram {
 
-    private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
-    private static final int MAX_VALUES = 1024;
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 3;
+    public static final int MIN_SIGNIFICANT_DIGITS = 1;
+    public static final int MAX_SIGNIFICANT_DIGITS = 5;
+
+    // precision of the HdrHistogram encoding that is read by central collectors that do not read
+    // packed buckets
+    private static final long LEGACY_LOWEST_DISCERNIBLE_VALUE = 1000;
+    private static final int LEGACY_SIGNIFICANT_DIGITS = 5;
+
+    // raw values are buffered and then bucketed in batches, which is cheaper than inserting each
+    // value into the ordered bucket list
+    private static final int MAX_VALUES = 256;
+
+    private static final Precision[] precisions;
+
+    static {
+        precisions = new Precision[MAX_SIGNIFICANT_DIGITS + 1];
+        for (int i = MIN_SIGNIFICANT_DIGITS; i <= MAX_SIGNIFICANT_DIGITS; i++) {
+            precisions[i] = new Precision(i);
+        }
+    }
+
+    // 0 means not yet determined, in which case the precision is adopted from the first histogram
+    // merged in (or DEFAULT_SIGNIFICANT_DIGITS if values are added directly)
+    private int significantDigits;
 
     private long[] values = new long[8];
     private int size;
-    private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private int[] bucketIndexes = new int[0];
+    private long[] bucketCounts = new long[0];
+    private int bucketSize;
+
+    // only meaningful when non-empty
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue = Long.MIN_VALUE;
 
     public LazyHistogram() {}
 
-    // special constructor, histogram created this way cannot be further mutated
+    public LazyHistogram(int significantDigits) {
+        this.significantDigits = Math.max(MIN_SIGNIFICANT_DIGITS,
+                Math.min(MAX_SIGNIFICANT_DIGITS, significantDigits));
+    }
+
     public LazyHistogram(Aggregate.Histogram hist) {
-        ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
-            List<Long> orderedRawValues = hist.getOrderedRawValueList();
-            values = new long[orderedRawValues.size()];
-            for (int i = 0; i < values.length; i++) {
-                values[i] = orderedRawValues.get(i);
-            }
-            size = values.length;
-        } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
-        }
+        merge(hist);
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
+        bucketValues();
         final Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
-            if (!sorted) {
-                // sort values before storing so don't have to sort each time later when calculating
-                // percentiles
-                sortValues();
-            }
-            for (int i = 0; i < size; i++) {
-                builder.addOrderedRawValue(values[i]);
-            }
-        } else {
-            scratchBuffer.execute(histogram.getNeededByteBufferCapacity(), new DoWithByteBuffer() {
-                @Override
-                public void call(ByteBuffer buffer) {
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).clear();
-                    histogram.encodeIntoByteBuffer(buffer);
-                    int size = buffer.position();
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).flip();
-                    builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
-                }
-            });
+        if (bucketSize == 0) {
+            return builder.build();
         }
+        builder.setSignificantDigits(significantDigits)
+                .setMinValue(minValue)
+                .setMaxValue(maxValue);
+        // max varint length is 5 bytes for bucket index delta and 10 bytes for count
+        scratchBuffer.execute(bucketSize * 15, new DoWithByteBuffer() {
+            @Override
+            public void call(ByteBuffer buffer) {
+                // this cast is needed in order to avoid
+                // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
+                // when this code is compiled with Java 9 and run with Java 8 or earlier
+                ((Buffer) buffer).clear();
+                int prevBucketIndex = 0;
+                for (int i = 0; i < bucketSize; i++) {
+                    writeVarint(buffer, bucketIndexes[i] - prevBucketIndex);
+                    writeVarint(buffer, bucketCounts[i]);
+                    prevBucketIndex = bucketIndexes[i];
+                }
+                int size = buffer.position();
+                // this cast is needed in order to avoid
+                // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
+                // when this code is compiled with Java 9 and run with Java 8 or earlier
+                ((Buffer) buffer).flip();
+                builder.setPackedBuckets(ByteString.copyFrom(buffer, size));
+            }
+        });
         return builder.build();
     }
 
+    // converts packed buckets to the HdrHistogram encoding, for central collectors that do not read
+    // packed buckets (see InitResponse.packed_histograms)
+    public static Aggregate.Histogram toLegacyProto(Aggregate.Histogram hist) {
+        if (hist.getPackedBuckets().isEmpty()) {
+            return hist;
+        }
+        LazyHistogram lazyHistogram = new LazyHistogram(hist);
+        Histogram histogram = new Histogram(LEGACY_LOWEST_DISCERNIBLE_VALUE,
+                2 * LEGACY_LOWEST_DISCERNIBLE_VALUE, LEGACY_SIGNIFICANT_DIGITS);
+        histogram.setAutoResize(true);
+        for (int i = 0; i < lazyHistogram.bucketSize; i++) {
+            histogram.recordValueWithCount(lazyHistogram.getBucketValue(i),
+                    lazyHistogram.bucketCounts[i]);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoByteBuffer(buffer);
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).flip();
+        return Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer))
+                .build();
+    }
+
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
+        ByteString packedBuckets = toBeMergedHistogram.getPackedBuckets();
+        if (!packedBuckets.isEmpty()) {
+            int otherSignificantDigits = Math.max(MIN_SIGNIFICANT_DIGITS, Math.min(
+                    MAX_SIGNIFICANT_DIGITS, toBeMergedHistogram.getSignificantDigits()));
+            mergePackedBuckets(otherSignificantDigits, packedBuckets.asReadOnlyByteBuffer());
+            minValue = Math.min(minValue, toBeMergedHistogram.getMinValue());
+            maxValue = Math.max(maxValue, toBeMergedHistogram.getMaxValue());
+            return;
+        }
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
+            // data from agent prior to packed buckets
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+            // data from agent prior to packed buckets (or from agent that has not yet found out
+            // that the central collector reads packed buckets)
+            Histogram histogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            mergeHdrHistogram(histogram);
+            if (histogram.getTotalCount() > 0) {
+                minValue = Math.min(minValue, histogram.getMinValue());
+                maxValue = Math.max(maxValue, histogram.getMaxValue());
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
-            for (int i = 0; i < toBeMergedHistogram.size; i++) {
-                add(toBeMergedHistogram.values[i]);
-            }
-        } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
-            }
-            histogram.add(toBeMergedHistogram.histogram);
+        if (toBeMergedHistogram.bucketSize > 0) {
+            mergeBuckets(toBeMergedHistogram.significantDigits,
+                    toBeMergedHistogram.bucketIndexes, toBeMergedHistogram.bucketCounts,
+                    toBeMergedHistogram.bucketSize);
+            minValue = Math.min(minValue, toBeMergedHistogram.minValue);
+            maxValue = Math.max(maxValue, toBeMergedHistogram.maxValue);
+        }
+        for (int i = 0; i < toBeMergedHistogram.size; i++) {
+            add(toBeMergedHistogram.values[i]);
         }
     }
 
     public long getValueAtPercentile(double percentile) {
-        if (histogram == null) {
-            if (size == 0) {
-                // this is consistent with HdrHistogram behavior
-                return 0;
-            }
-            if (!sorted) {
-                sortValues();
-            }
-            if (percentile == 0) {
-                // support "0th" percentile to mean the smallest tracked percentile
-                return values[0];
+        bucketValues();
+        long totalCount = 0;
+        for (int i = 0; i < bucketSize; i++) {
+            totalCount += bucketCounts[i];
+        }
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // support "0th" percentile to mean the smallest tracked percentile
+        long countAtPercentile = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long count = 0;
+        for (int i = 0; i < bucketSize; i++) {
+            count += bucketCounts[i];
+            if (count >= countAtPercentile) {
+                return getBucketValue(i);
             }
-            return values[(int) Math.ceil(size * percentile / 100) - 1];
         }
-        return histogram.getValueAtPercentile(percentile);
+        return maxValue;
     }
 
     @VisibleForTesting
     public void add(long value) {
-        ensureCapacity(size + 1);
-        if (histogram != null) {
-            histogram.recordValue(value);
-        } else {
-            values[size++] = value;
-            sorted = false;
+        if (size == values.length) {
+            if (size >= MAX_VALUES) {
+                bucketValues();
+            } else {
+                values = Arrays.copyOf(values, size * 2);
+            }
         }
+        values[size++] = value;
+        minValue = Math.min(minValue, value);
+        maxValue = Math.max(maxValue, value);
+    }
+
+    @VisibleForTesting
+    int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    // lowest equivalent value never overstates the recorded values, and the exact min and max make
+    // the value exact at both extremes (e.g. a single value)
+    //
+    // note: HdrHistogram percentiles are the highest equivalent value instead, so percentiles are
+    // now reported lower than before, by up to the precision
+    private long getBucketValue(int i) {
+        return Math.max(minValue, Math.min(maxValue,
+                precisions[significantDigits].lowestEquivalentValue(bucketIndexes[i])));
     }
 
-    private void ensureCapacity(int capacity) {
-        if (histogram != null) {
+    private void bucketValues() {
+        if (size == 0) {
             return;
         }
-        if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
-            return;
+        if (significantDigits == 0) {
+            significantDigits = DEFAULT_SIGNIFICANT_DIGITS;
         }
-        if (capacity > values.length) {
-            // at least double in size
-            long[] temp = new long[Math.max(size * 2, capacity)];
-            System.arraycopy(values, 0, temp, 0, size);
-            values = temp;
+        Precision precision = precisions[significantDigits];
+        Arrays.sort(values, 0, size);
+        int[] indexes = new int[size];
+        long[] counts = new long[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int bucketIndex = precision.bucketIndex(values[i]);
+            if (n > 0 && indexes[n - 1] == bucketIndex) {
+                counts[n - 1]++;
+            } else {
+                indexes[n] = bucketIndex;
+                counts[n] = 1;
+                n++;
+            }
         }
+        size = 0;
+        mergeBucketsWithSamePrecision(indexes, counts, n);
     }
 
-    @EnsuresNonNull("histogram")
-    private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+    private void mergePackedBuckets(int otherSignificantDigits, ByteBuffer buffer) {
+        int[] indexes = new int[16];
+        long[] counts = new long[16];
+        int n = 0;
+        int bucketIndex = 0;
+        while (buffer.hasRemaining()) {
+            if (n == indexes.length) {
+                indexes = Arrays.copyOf(indexes, n * 2);
+                counts = Arrays.copyOf(counts, n * 2);
+            }
+            bucketIndex += (int) readVarint(buffer);
+            indexes[n] = bucketIndex;
+            counts[n] = readVarint(buffer);
+            n++;
+        }
+        mergeBuckets(otherSignificantDigits, indexes, counts, n);
+    }
+
+    private void mergeHdrHistogram(Histogram histogram) {
+        if (significantDigits == 0) {
+            significantDigits = DEFAULT_SIGNIFICANT_DIGITS;
+        }
+        Precision precision = precisions[significantDigits];
+        int[] indexes = new int[16];
+        long[] counts = new long[16];
+        int n = 0;
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            int bucketIndex = precision.bucketIndex(value.getValueIteratedTo());
+            if (n > 0 && indexes[n - 1] == bucketIndex) {
+                counts[n - 1] += value.getCountAtValueIteratedTo();
+                continue;
+            }
+            if (n == indexes.length) {
+                indexes = Arrays.copyOf(indexes, n * 2);
+                counts = Arrays.copyOf(counts, n * 2);
+            }
+            indexes[n] = bucketIndex;
+            counts[n] = value.getCountAtValueIteratedTo();
+            n++;
+        }
+        mergeBucketsWithSamePrecision(indexes, counts, n);
+    }
+
+    // the merged histogram has the lower of the two precisions
+    private void mergeBuckets(int otherSignificantDigits, int[] otherIndexes, long[] otherCounts,
+            int otherSize) {
+        if (significantDigits == 0 || bucketSize == 0 && size == 0) {
+            significantDigits = otherSignificantDigits;
+        } else if (otherSignificantDigits < significantDigits) {
+            bucketValues();
+            bucketSize = rebucket(bucketIndexes, bucketCounts, bucketSize, significantDigits,
+                    otherSignificantDigits);
+            significantDigits = otherSignificantDigits;
+        }
+        if (otherSignificantDigits == significantDigits) {
+            mergeBucketsWithSamePrecision(otherIndexes, otherCounts, otherSize);
+        } else {
+            int[] indexes = Arrays.copyOf(otherIndexes, otherSize);
+            long[] counts = Arrays.copyOf(otherCounts, otherSize);
+            int n = rebucket(indexes, counts, otherSize, otherSignificantDigits,
+                    significantDigits);
+            mergeBucketsWithSamePrecision(indexes, counts, n);
+        }
+    }
+
+    private void mergeBucketsWithSamePrecision(int[] otherIndexes, long[] otherCounts,
+            int otherSize) {
+        int[] mergedIndexes = new int[bucketSize + otherSize];
+        long[] mergedCounts = new long[bucketSize + otherSize];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < bucketSize || j < otherSize) {
+            int bucketIndex;
+            long count;
+            if (j == otherSize || i < bucketSize && bucketIndexes[i] < otherIndexes[j]) {
+                bucketIndex = bucketIndexes[i];
+                count = bucketCounts[i++];
+            } else if (i == bucketSize || otherIndexes[j] < bucketIndexes[i]) {
+                bucketIndex = otherIndexes[j];
+                count = otherCounts[j++];
+            } else {
+                bucketIndex = bucketIndexes[i];
+                count = bucketCounts[i++] + otherCounts[j++];
+            }
+            mergedIndexes[n] = bucketIndex;
+            mergedCounts[n] = count;
+            n++;
+        }
+        bucketIndexes = mergedIndexes;
+        bucketCounts = mergedCounts;
+        bucketSize = n;
+    }
+
+    // converts (in place) to a lower precision, which preserves the bucket ordering
+    private static int rebucket(int[] indexes, long[] counts, int size, int fromSignificantDigits,
+            int toSignificantDigits) {
+        Precision from = precisions[fromSignificantDigits];
+        Precision to = precisions[toSignificantDigits];
+        int n = 0;
         for (int i = 0; i < size; i++) {
-            histogram.recordValue(values[i]);
+            int bucketIndex = to.bucketIndex(from.lowestEquivalentValue(indexes[i]));
+            if (n > 0 && indexes[n - 1] == bucketIndex) {
+                counts[n - 1] += counts[i];
+            } else {
+                indexes[n] = bucketIndex;
+                counts[n] = counts[i];
+                n++;
+            }
         }
-        values = new long[0];
+        return n;
     }
 
-    private void sortValues() {
-        Arrays.sort(values, 0, size);
-        sorted = true;
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    // same bucketing as HdrHistogram with a unit magnitude of zero, i.e. values below
+    // 2 * 10^significantDigits each have their own bucket, and then each power of two range is
+    // split into the same number of linear sub-buckets
+    private static class Precision {
+
+        private final int subBucketHalfCountMagnitude;
+        private final int subBucketHalfCount;
+        private final long subBucketMask;
+        private final int leadingZeroCountBase;
+
+        private Precision(int significantDigits) {
+            long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+            int subBucketCountMagnitude =
+                    (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+            subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+            subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+            subBucketMask = (1L << subBucketCountMagnitude) - 1;
+            leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+        }
+
+        private int bucketIndex(long value) {
+            long nonNegativeValue = Math.max(0, value);
+            int bucketIndex = leadingZeroCountBase
+                    - Long.numberOfLeadingZeros(nonNegativeValue | subBucketMask);
+            int subBucketIndex = (int) (nonNegativeValue >>> bucketIndex);
+            return ((bucketIndex + 1) << subBucketHalfCountMagnitude)
+                    + (subBucketIndex - subBucketHalfCount);
+        }
+
+        private long lowestEquivalentValue(int index) {
+            int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+            int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+            if (bucketIndex < 0) {
+                subBucketIndex -= subBucketHalfCount;
+                bucketIndex = 0;
+            }
+            return (long) subBucketIndex << bucketIndex;
+        }
     }
 
     public static class ScratchBuffer {
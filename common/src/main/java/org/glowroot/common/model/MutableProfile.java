@@ -16,9 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -27,26 +25,35 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored as a struct of arrays (indexed by node) instead of as a tree of
+// objects, since deep stack traces (e.g. spring/hibernate) otherwise retain large amounts of heap
+//
+// node 0 is a virtual root node whose children are the actual root nodes of the profile
+//
+// each node references an interned frame (stack trace element + leaf thread state), and children
+// are linked via first child / next sibling, with a hashed lookup by (parent node, frame)
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -58,31 +65,112 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // frames, indexed by frame id
+    private int frameCount;
+    private int[] framePackageNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameClassNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameMethodNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameFileNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] frameLineNumbers = new int[INITIAL_CAPACITY];
+    private byte[] frameLeafThreadStates = new byte[INITIAL_CAPACITY];
+    // open addressing hash table of frame id + 1 (0 means empty slot)
+    private int[] frameTable = new int[2 * INITIAL_CAPACITY];
+
+    // nodes, indexed by node id
+    private int nodeCount;
+    private int[] nodeFrames = new int[INITIAL_CAPACITY];
+    private int[] nodeParents = new int[INITIAL_CAPACITY];
+    private int[] nodeFirstChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeLastChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeNextSiblings = new int[INITIAL_CAPACITY];
+    private long[] nodeSampleCounts = new long[INITIAL_CAPACITY];
+    // only allocated once branches have been truncated
+    private long /*@Nullable*/ [] nodeEllipsedSampleCounts;
+
+    // open addressing hash table of child node ids keyed by (parent node, frame), 0 means empty
+    // slot (which works since the virtual root node is never a child)
+    private int[] childTable = new int[2 * INITIAL_CAPACITY];
+    private int childTableSize;
+    // nodes removed by filtering or truncating are left in the node arrays (unreachable), and the
+    // child table is rebuilt from the reachable nodes on next merge
+    private boolean childTableStale;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
-    // this method is not used that often (only for traces with > 20 stack trace samples) so ok
-    // that it does not have most optimal implementation (converts unnecessarily to profile tree)
+    public MutableProfile() {
+        nodeFrames[ROOT] = NONE;
+        nodeParents[ROOT] = NONE;
+        nodeFirstChilds[ROOT] = NONE;
+        nodeLastChilds[ROOT] = NONE;
+        nodeNextSiblings[ROOT] = NONE;
+        nodeCount = 1;
+    }
+
     public void merge(MutableProfile profile) {
-        merge(profile.toProto());
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.packageNames, packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.classNames, classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.methodNames, methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.fileNames, fileNameIndexes, fileNames);
+        int[] frameMapping = new int[profile.frameCount];
+        for (int i = 0; i < profile.frameCount; i++) {
+            frameMapping[i] = getFrame(
+                    packageNameIndexMapping[profile.framePackageNameIndexes[i]],
+                    classNameIndexMapping[profile.frameClassNameIndexes[i]],
+                    methodNameIndexMapping[profile.frameMethodNameIndexes[i]],
+                    fileNameIndexMapping[profile.frameFileNameIndexes[i]],
+                    profile.frameLineNumbers[i], profile.frameLeafThreadStates[i]);
+        }
+        int[] nodeMapping = new int[profile.nodeCount];
+        nodeMapping[ROOT] = ROOT;
+        // pre-order walk, so that a node's parent is always mapped before the node itself
+        int node = profile.nodeFirstChilds[ROOT];
+        while (node != NONE) {
+            int destinationNode = getOrAddChild(nodeMapping[profile.nodeParents[node]],
+                    frameMapping[profile.nodeFrames[node]]);
+            nodeSampleCounts[destinationNode] += profile.nodeSampleCounts[node];
+            nodeMapping[node] = destinationNode;
+            node = profile.nextInPreOrder(node);
+        }
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping = makeIndexMapping(profile.getPackageNameList(),
+                packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destinationStack[depth] is the destination parent node for a flat node at that depth
+        int[] destinationStack = new int[INITIAL_CAPACITY];
+        destinationStack[0] = ROOT;
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int frame = getFrame(packageNameIndexMapping[flatNode.getPackageNameIndex()],
+                    classNameIndexMapping[flatNode.getClassNameIndex()],
+                    methodNameIndexMapping[flatNode.getMethodNameIndex()],
+                    fileNameIndexMapping[flatNode.getFileNameIndex()],
+                    flatNode.getLineNumber(), toByte(flatNode.getLeafThreadState()));
+            int destinationNode = getOrAddChild(destinationStack[depth], frame);
+            nodeSampleCounts[destinationNode] += flatNode.getSampleCount();
+            if (depth + 1 == destinationStack.length) {
+                destinationStack = Arrays.copyOf(destinationStack, 2 * destinationStack.length);
+            }
+            destinationStack[depth + 1] = destinationNode;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int node = ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
             String fullClassName = stackTraceElement.getClassName();
             int index = fullClassName.lastIndexOf('.');
             String packageName;
@@ -103,50 +191,55 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            int frame = getFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, toByte(leafThreadState));
+            int childNode = NONE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                childNode = getChild(node, frame);
             }
-            if (node == null) {
+            if (childNode == NONE) {
+                // once a new node is added, there is no need to look for matches below it
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                childNode = addChild(node, frame);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            nodeSampleCounts[childNode]++;
+            node = childNode;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        ProfileFilterer filterer = new ProfileFilterer();
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            filterer.reset(include, false);
+            int prevNode = NONE;
+            int rootNode = nodeFirstChilds[ROOT];
+            while (rootNode != NONE) {
+                int nextNode = nodeNextSiblings[rootNode];
+                filterer.traverse(rootNode);
+                if (filterer.matched[rootNode]) {
+                    new ProfileResetMatches(filterer.matched).traverse(rootNode);
+                    prevNode = rootNode;
                 } else {
-                    i.remove();
+                    removeChild(ROOT, prevNode, rootNode);
                 }
+                rootNode = nextNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            filterer.reset(exclude, true);
+            int prevNode = NONE;
+            int rootNode = nodeFirstChilds[ROOT];
+            while (rootNode != NONE) {
+                int nextNode = nodeNextSiblings[rootNode];
+                filterer.traverse(rootNode);
+                if (filterer.matched[rootNode]) {
+                    removeChild(ROOT, prevNode, rootNode);
+                } else {
+                    prevNode = rootNode;
                 }
+                rootNode = nextNode;
             }
         }
     }
@@ -156,35 +249,49 @@ public class MutableProfile {
             return;
         }
         int minSamples = (int) Math.ceil(getSampleCount() * truncateBranchPercentage / 100);
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        long[] ellipsedSampleCounts = nodeEllipsedSampleCounts;
+        if (ellipsedSampleCounts == null) {
+            ellipsedSampleCounts = new long[nodeSampleCounts.length];
+            nodeEllipsedSampleCounts = ellipsedSampleCounts;
+        }
+        // breadth first, each reachable node is queued at most once
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int prevNode = NONE;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NONE) {
+                int nextNode = nodeNextSiblings[childNode];
+                if (nodeSampleCounts[childNode] < minSamples) {
+                    removeChild(node, prevNode, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    ellipsedSampleCounts[node] += nodeSampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    toBeVisited[tail++] = childNode;
+                    prevNode = childNode;
                 }
+                childNode = nextNode;
             }
         }
     }
 
     public boolean isEmpty() {
-        return rootNodes.isEmpty();
+        return nodeFirstChilds[ROOT] == NONE;
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            sampleCount += nodeSampleCounts[rootNode];
         }
         return sampleCount;
     }
@@ -199,8 +306,10 @@ public class MutableProfile {
 
     public Profile toProto() {
         List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        ProfileNodeCollector collector = new ProfileNodeCollector(nodes);
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            collector.traverse(rootNode);
         }
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
@@ -223,8 +332,10 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter writer = new ProfileWriter(jg);
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            writer.traverse(rootNode);
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -238,10 +349,11 @@ public class MutableProfile {
             jg.writeNumberField("totalSampleCount", getSampleCount());
             jg.writeArrayFieldStart("rootNodes");
             int height = 0;
-            for (ProfileNode rootNode : rootNodes) {
-                if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                    flameGraphWriter.traverse();
+            for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                    rootNode = nodeNextSiblings[rootNode]) {
+                if (nodeSampleCounts[rootNode] > getEllipsedSampleCount(rootNode)) {
+                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+                    flameGraphWriter.traverse(rootNode);
                     height = Math.max(height, flameGraphWriter.height);
                 }
             }
@@ -254,6 +366,231 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private int getFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, byte leafThreadState) {
+        int mask = frameTable.length - 1;
+        int slot = hashFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState) & mask;
+        while (true) {
+            int entry = frameTable[slot];
+            if (entry == 0) {
+                break;
+            }
+            int frame = entry - 1;
+            // checking line number first since most likely to be different
+            if (frameLineNumbers[frame] == lineNumber
+                    && frameFileNameIndexes[frame] == fileNameIndex
+                    && frameLeafThreadStates[frame] == leafThreadState
+                    && frameMethodNameIndexes[frame] == methodNameIndex
+                    && frameClassNameIndexes[frame] == classNameIndex
+                    && framePackageNameIndexes[frame] == packageNameIndex) {
+                return frame;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int frame = frameCount++;
+        if (frame == frameLineNumbers.length) {
+            int newCapacity = 2 * frame;
+            framePackageNameIndexes = Arrays.copyOf(framePackageNameIndexes, newCapacity);
+            frameClassNameIndexes = Arrays.copyOf(frameClassNameIndexes, newCapacity);
+            frameMethodNameIndexes = Arrays.copyOf(frameMethodNameIndexes, newCapacity);
+            frameFileNameIndexes = Arrays.copyOf(frameFileNameIndexes, newCapacity);
+            frameLineNumbers = Arrays.copyOf(frameLineNumbers, newCapacity);
+            frameLeafThreadStates = Arrays.copyOf(frameLeafThreadStates, newCapacity);
+        }
+        framePackageNameIndexes[frame] = packageNameIndex;
+        frameClassNameIndexes[frame] = classNameIndex;
+        frameMethodNameIndexes[frame] = methodNameIndex;
+        frameFileNameIndexes[frame] = fileNameIndex;
+        frameLineNumbers[frame] = lineNumber;
+        frameLeafThreadStates[frame] = leafThreadState;
+        if (2 * frameCount > frameTable.length) {
+            rebuildFrameTable(2 * frameTable.length);
+        } else {
+            frameTable[slot] = frame + 1;
+        }
+        return frame;
+    }
+
+    private void rebuildFrameTable(int capacity) {
+        frameTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int slot = hashFrame(framePackageNameIndexes[frame], frameClassNameIndexes[frame],
+                    frameMethodNameIndexes[frame], frameFileNameIndexes[frame],
+                    frameLineNumbers[frame], frameLeafThreadStates[frame]) & mask;
+            while (frameTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            frameTable[slot] = frame + 1;
+        }
+    }
+
+    private int getOrAddChild(int parentNode, int frame) {
+        int childNode = getChild(parentNode, frame);
+        if (childNode == NONE) {
+            childNode = addChild(parentNode, frame);
+        }
+        return childNode;
+    }
+
+    private int getChild(int parentNode, int frame) {
+        if (childTableStale) {
+            rebuildChildTable(childTable.length);
+        }
+        int mask = childTable.length - 1;
+        int slot = hashChild(parentNode, frame) & mask;
+        while (true) {
+            int node = childTable[slot];
+            if (node == 0) {
+                return NONE;
+            }
+            if (nodeFrames[node] == frame && nodeParents[node] == parentNode) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int addChild(int parentNode, int frame) {
+        int node = nodeCount++;
+        if (node == nodeFrames.length) {
+            int newCapacity = 2 * node;
+            nodeFrames = Arrays.copyOf(nodeFrames, newCapacity);
+            nodeParents = Arrays.copyOf(nodeParents, newCapacity);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newCapacity);
+            nodeLastChilds = Arrays.copyOf(nodeLastChilds, newCapacity);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newCapacity);
+            nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+            if (nodeEllipsedSampleCounts != null) {
+                nodeEllipsedSampleCounts = Arrays.copyOf(nodeEllipsedSampleCounts, newCapacity);
+            }
+        }
+        nodeFrames[node] = frame;
+        nodeParents[node] = parentNode;
+        nodeFirstChilds[node] = NONE;
+        nodeLastChilds[node] = NONE;
+        nodeNextSiblings[node] = NONE;
+        int lastChild = nodeLastChilds[parentNode];
+        if (lastChild == NONE) {
+            nodeFirstChilds[parentNode] = node;
+        } else {
+            nodeNextSiblings[lastChild] = node;
+        }
+        nodeLastChilds[parentNode] = node;
+        if (childTableStale) {
+            rebuildChildTable(childTable.length);
+        } else if (2 * ++childTableSize > childTable.length) {
+            rebuildChildTable(2 * childTable.length);
+        } else {
+            int mask = childTable.length - 1;
+            int slot = hashChild(parentNode, frame) & mask;
+            while (childTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            childTable[slot] = node;
+        }
+        return node;
+    }
+
+    private void removeChild(int parentNode, int prevNode, int node) {
+        int nextNode = nodeNextSiblings[node];
+        if (prevNode == NONE) {
+            nodeFirstChilds[parentNode] = nextNode;
+        } else {
+            nodeNextSiblings[prevNode] = nextNode;
+        }
+        if (nodeLastChilds[parentNode] == node) {
+            nodeLastChilds[parentNode] = prevNode;
+        }
+        childTableStale = true;
+    }
+
+    private void rebuildChildTable(int minCapacity) {
+        int size = 0;
+        for (int node = nodeFirstChilds[ROOT]; node != NONE; node = nextInPreOrder(node)) {
+            size++;
+        }
+        int capacity = minCapacity;
+        while (2 * size > capacity) {
+            capacity *= 2;
+        }
+        childTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int node = nodeFirstChilds[ROOT]; node != NONE; node = nextInPreOrder(node)) {
+            int slot = hashChild(nodeParents[node], nodeFrames[node]) & mask;
+            while (childTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            childTable[slot] = node;
+        }
+        childTableSize = size;
+        childTableStale = false;
+    }
+
+    private int nextInPreOrder(int node) {
+        int firstChild = nodeFirstChilds[node];
+        if (firstChild != NONE) {
+            return firstChild;
+        }
+        int n = node;
+        while (n != ROOT) {
+            int nextSibling = nodeNextSiblings[n];
+            if (nextSibling != NONE) {
+                return nextSibling;
+            }
+            n = nodeParents[n];
+        }
+        return NONE;
+    }
+
+    private long getEllipsedSampleCount(int node) {
+        long[] ellipsedSampleCounts = nodeEllipsedSampleCounts;
+        return ellipsedSampleCounts == null ? 0 : ellipsedSampleCounts[node];
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[frameLeafThreadStates[nodeFrames[node]]];
+    }
+
+    private String getText(int frame) {
+        String packageName = packageNames.get(framePackageNameIndexes[frame]);
+        String className = classNames.get(frameClassNameIndexes[frame]);
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName,
+                methodNames.get(frameMethodNameIndexes[frame]),
+                fileNames.get(frameFileNameIndexes[frame]), frameLineNumbers[frame]).toString();
+    }
+
+    private static int hashFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, byte leafThreadState) {
+        int h = packageNameIndex;
+        h = 31 * h + classNameIndex;
+        h = 31 * h + methodNameIndex;
+        h = 31 * h + fileNameIndex;
+        h = 31 * h + lineNumber;
+        h = 31 * h + leafThreadState;
+        return smear(h);
+    }
+
+    private static int hashChild(int parentNode, int frame) {
+        return smear(31 * parentNode + frame);
+    }
+
+    // same as the supplemental hash function used by guava (and java.util.HashMap)
+    private static int smear(int hashCode) {
+        return 0x1b873593 * Integer.rotateLeft(hashCode * 0xcc9e2d51, 15);
+    }
+
+    private static byte toByte(Profile.LeafThreadState leafThreadState) {
+        return (byte) leafThreadState.ordinal();
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -288,18 +625,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -318,227 +643,149 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
+    // same traversal order as org.glowroot.common.util.Traverser, but walks the node arrays
+    // directly (using the parent links instead of a stack) to avoid StackOverflowError caused by a
+    // recursive algorithm
+    private abstract class NodeTraverser<E extends Exception> {
+
+        void traverse(int rootNode) throws E {
+            int node = rootNode;
+            int depth = 0;
+            while (true) {
+                if (visit(node, depth) && nodeFirstChilds[node] != NONE) {
+                    node = nodeFirstChilds[node];
+                    depth++;
+                    continue;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
-            }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
-            }
-            return textUpper;
-        }
-    }
-
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
+                // optimization for no children
+                revisitAfterChildren(node);
+                while (node != rootNode) {
+                    int nextSibling = nodeNextSiblings[node];
+                    if (nextSibling != NONE) {
+                        node = nextSibling;
+                        break;
+                    }
+                    node = nodeParents[node];
+                    depth--;
+                    revisitAfterChildren(node);
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                if (node == rootNode) {
+                    return;
                 }
             }
         }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
-            }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
-        }
+        // returns whether to visit the node's children
+        abstract boolean visit(int node, int depth) throws E;
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileNodeCollector extends NodeTraverser<RuntimeException> {
 
         private final List<Profile.ProfileNode> nodes;
 
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
+        private ProfileNodeCollector(List<Profile.ProfileNode> nodes) {
             this.nodes = nodes;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
+            int frame = nodeFrames[node];
             nodes.add(Profile.ProfileNode.newBuilder()
                     .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
+                    .setPackageNameIndex(framePackageNameIndexes[frame])
+                    .setClassNameIndex(frameClassNameIndexes[frame])
+                    .setMethodNameIndex(frameMethodNameIndexes[frame])
+                    .setFileNameIndex(frameFileNameIndexes[frame])
+                    .setLineNumber(frameLineNumbers[frame])
+                    .setLeafThreadState(LEAF_THREAD_STATES[frameLeafThreadStates[frame]])
+                    .setSampleCount(nodeSampleCounts[node])
                     .build());
-            return node.childNodes;
+            return true;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
+
+        private final boolean[] matched = new boolean[nodeCount];
+        // text is cached per frame since it is shared across nodes and across filters
+        private final String /*@Nullable*/ [] frameTextUppers = new String[frameCount];
 
-        private final String filterTextUpper;
-        private final boolean exclusion;
+        private String filterTextUpper = "";
+        private boolean exclusion;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private void reset(String filterText, boolean exclusion) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                matched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (matched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] == NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    matched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                matched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int prevNode = NONE;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NONE) {
+                int nextNode = nodeNextSiblings[childNode];
+                if (exclusion == !matched[childNode]) {
+                    filteredSampleCount += nodeSampleCounts[childNode];
+                    prevNode = childNode;
                 } else {
-                    i.remove();
+                    removeChild(node, prevNode, childNode);
                 }
+                childNode = nextNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodeSampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
-            if (textUpper.contains(filterTextUpper)) {
+        private boolean isMatch(int node) {
+            if (getTextUpper(nodeFrames[node]).contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
+            String leafThreadStateUpper =
+                    getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
+        }
+
+        private String getTextUpper(int frame) {
+            String textUpper = frameTextUppers[frame];
+            if (textUpper == null) {
+                textUpper = getText(frame).toUpperCase(Locale.ENGLISH);
+                frameTextUppers[frame] = textUpper;
             }
-            return false;
+            return textUpper;
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -546,18 +793,20 @@ public class MutableProfile {
             }
         }
 
-        private static boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (!matched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private static boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (matched[childNode]) {
                     return false;
                 }
             }
@@ -565,82 +814,81 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileResetMatches extends NodeTraverser<RuntimeException> {
+
+        private final boolean[] matched;
 
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+        private ProfileResetMatches(boolean[] matched) {
+            this.matched = matched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+        boolean visit(int node, int depth) {
+            matched[node] = false;
+            return true;
         }
     }
 
-    private static class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(nodeFrames[node]));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodeSampleCounts[node]);
+            long ellipsedSampleCount = getEllipsedSampleCount(node);
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private static class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(nodeFrames[node]));
+            jg.writeNumberField("value", nodeSampleCounts[node]);
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
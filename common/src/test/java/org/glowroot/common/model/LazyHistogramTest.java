@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
 import org.junit.jupiter.api.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,118 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldMergeAtLowerPrecision() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(4);
+        for (int i = 1000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        LazyHistogram other = new LazyHistogram(2);
+        for (int i = 2000000; i > 1000000; i -= 1000) {
+            other.add(i);
+        }
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+
+        // when
+        lazyHistogram.merge(histogram);
+
+        // then
+        assertThat(lazyHistogram.getSignificantDigits()).isEqualTo(2);
+        assertPercentile(lazyHistogram, 2000000, 50);
+        assertPercentile(lazyHistogram, 2000000, 95);
+        assertPercentile(lazyHistogram, 2000000, 99);
+    }
+
+    @Test
+    public void shouldAdoptPrecisionOfFirstMergedHistogram() {
+        // given
+        LazyHistogram other = new LazyHistogram(5);
+        other.add(123456789);
+        Aggregate.Histogram histogram = other.toProto(new ScratchBuffer());
+
+        // when
+        LazyHistogram lazyHistogram = new LazyHistogram(histogram);
+
+        // then
+        assertThat(lazyHistogram.getSignificantDigits()).isEqualTo(5);
+        assertThat(lazyHistogram.getValueAtPercentile(50)).isEqualTo(123456789L);
+    }
+
+    @Test
+    public void shouldMergeLegacyEncodings() {
+        // given
+        Aggregate.Histogram.Builder rawValues = Aggregate.Histogram.newBuilder();
+        Histogram hdrHistogram = new Histogram(1000, 2000, 5);
+        hdrHistogram.setAutoResize(true);
+        for (int i = 1000; i <= 1000000; i += 1000) {
+            if (i <= 500000) {
+                rawValues.addOrderedRawValue(i);
+            } else {
+                hdrHistogram.recordValue(i);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(hdrHistogram.getNeededByteBufferCapacity());
+        hdrHistogram.encodeIntoByteBuffer(buffer);
+        buffer.flip();
+        Aggregate.Histogram encoded = Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(buffer))
+                .build();
+        LazyHistogram lazyHistogram = new LazyHistogram();
+
+        // when
+        lazyHistogram.merge(rawValues.build());
+        lazyHistogram.merge(encoded);
+
+        // then
+        assertPercentile(lazyHistogram, 1000000, 50);
+        assertPercentile(lazyHistogram, 1000000, 95);
+        assertPercentile(lazyHistogram, 1000000, 99);
+    }
+
+    @Test
+    public void shouldConvertToLegacyEncoding() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 1000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+
+        // when
+        Aggregate.Histogram legacy = LazyHistogram.toLegacyProto(histogram);
+
+        // then
+        assertThat(legacy.getPackedBuckets().isEmpty()).isTrue();
+        Histogram hdrHistogram = Histogram
+                .decodeFromByteBuffer(legacy.getEncodedBytes().asReadOnlyByteBuffer(), 0);
+        assertThat(hdrHistogram.getTotalCount()).isEqualTo(1000);
+        for (double percentile : new double[] {50, 95, 99, 99.9}) {
+            assertThat(hdrHistogram.getValueAtPercentile(percentile))
+                    .isBetween(lazyHistogram.getValueAtPercentile(percentile) * 99 / 100,
+                            lazyHistogram.getValueAtPercentile(percentile) * 101 / 100);
+        }
+    }
+
+    @Test
+    public void shouldEncodeFewerBytesThanRawValues() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        Aggregate.Histogram.Builder rawValues = Aggregate.Histogram.newBuilder();
+        for (int i = 0; i < 1000; i++) {
+            long value = 1000000 + (i % 100) * 1000;
+            lazyHistogram.add(value);
+            rawValues.addOrderedRawValue(value);
+        }
+
+        // when
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+
+        // then
+        assertThat(histogram.getSerializedSize())
+                .isLessThan(rawValues.build().getSerializedSize() / 10);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
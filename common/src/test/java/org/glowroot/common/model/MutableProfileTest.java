@@ -23,6 +23,7 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.jupiter.api.Test;
@@ -164,6 +165,77 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingProfiles() throws IOException {
+        // given
+        MutableProfile profile1 = new MutableProfile();
+        MutableProfile profile2 = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile1.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile2.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile2.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        MutableProfile expected = new MutableProfile();
+        expected.merge(profile1.toProto());
+        expected.merge(profile2.toProto());
+        // when
+        profile1.merge(profile2);
+        // then
+        assertThat(profile1.toProto()).isEqualTo(expected.toProto());
+        assertThat(profile1.getSampleCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testFilterAndTruncate() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements3 = Lists.newArrayList();
+        stackTraceElements3.add(new StackTraceElement("aa.bb.cc.Def", "mno", "Def.java", 789));
+        stackTraceElements3.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        for (int i = 0; i < 10; i++) {
+            profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        }
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements3, Thread.State.RUNNABLE);
+        // when
+        profile.filter(ImmutableList.<String>of(), ImmutableList.of("mno"));
+        profile.truncateBranches(50);
+        // then
+        assertThat(profile.getUnfilteredSampleCount()).isEqualTo(12);
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 12,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 11,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 10"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+
+        // merging after filtering and truncating
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        assertThat(profile.getSampleCount()).isEqualTo(12);
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(3);
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
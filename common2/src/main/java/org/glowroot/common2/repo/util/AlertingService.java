@@ -58,6 +58,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -152,47 +153,67 @@ public class AlertingService {
                                                long endTime, CassandraProfile profile) {
         long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
         return metricService.getMetricValue(agentRollupId, metricCondition, startTime, endTime, profile).thenCompose(value -> {
+            return checkMetricValue(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                    metricCondition, endTime, value == null ? null : value.doubleValue(),
+                    () -> metricService.getTransactionCount(agentRollupId,
+                            metricCondition.getTransactionType(),
+                            Strings.emptyToNull(metricCondition.getTransactionName()), startTime,
+                            endTime, profile),
+                    profile);
+        });
+    }
 
-            if (value == null) {
-                // cannot calculate due to no data, e.g. error rate (but not error count, which can be
-                // calculated - zero - when no data)
-                return CompletableFuture.completedFuture(null);
-            }
-            boolean currentlyTriggered;
-            if (metricCondition.getLowerBoundThreshold()) {
-                currentlyTriggered = value.doubleValue() <= metricCondition.getThreshold();
-            } else {
-                currentlyTriggered = value.doubleValue() >= metricCondition.getThreshold();
-            }
-            AlertCondition alertCondition = alertConfig.getCondition();
-            return incidentRepository.readOpenIncident(agentRollupId,
-                    alertCondition, alertConfig.getSeverity(), profile).thenCompose(openIncident -> {
-                if (openIncident != null && !currentlyTriggered) {
-                    // TODO don't close if no data and no heartbeat?
-                    return (CompletionStage<Object>) resolveIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
-                            metricCondition, endTime, alertCondition, openIncident, profile);
-                } else if (openIncident == null && currentlyTriggered) {
-                    // don't open if min transaction count is not met
-                    if (hasMinTransactionCount(metricCondition.getMetric())) {
-                        long minTransactionCount = metricCondition.getMinTransactionCount();
-                        if (minTransactionCount != 0) {
-                            return (CompletionStage<Object>) metricService.getTransactionCount(agentRollupId,
-                                    metricCondition.getTransactionType(),
-                                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime,
-                                    endTime, profile).thenCompose(transactionCount -> {
-                                if (transactionCount < minTransactionCount) {
-                                    return (CompletionStage<Object>) CompletableFuture.completedFuture(null);
-                                }
-                                return (CompletionStage<Object>) openIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
-                                        metricCondition, endTime, alertCondition, profile);
-                            });
-                        }
+    // same as above, except using a metric value over the alert's time period that has already
+    // been calculated by the caller, so that no aggregates or gauge values need to be read
+    public CompletionStage<?> checkMetricAlert(String centralDisplay, String agentRollupId,
+                                               String agentRollupDisplay, AlertConfig alertConfig, MetricCondition metricCondition,
+                                               long endTime, MetricWindowValue metricWindowValue, CassandraProfile profile) {
+        return checkMetricValue(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                metricCondition, endTime, metricWindowValue.value(),
+                () -> CompletableFuture.completedFuture(metricWindowValue.transactionCount()),
+                profile);
+    }
+
+    private CompletionStage<?> checkMetricValue(String centralDisplay, String agentRollupId,
+                                                String agentRollupDisplay, AlertConfig alertConfig, MetricCondition metricCondition,
+                                                long endTime, @Nullable Double value,
+                                                Supplier<CompletionStage<Long>> transactionCountSupplier, CassandraProfile profile) {
+        if (value == null) {
+            // cannot calculate due to no data, e.g. error rate (but not error count, which can be
+            // calculated - zero - when no data)
+            return CompletableFuture.completedFuture(null);
+        }
+        boolean currentlyTriggered;
+        if (metricCondition.getLowerBoundThreshold()) {
+            currentlyTriggered = value <= metricCondition.getThreshold();
+        } else {
+            currentlyTriggered = value >= metricCondition.getThreshold();
+        }
+        AlertCondition alertCondition = alertConfig.getCondition();
+        return incidentRepository.readOpenIncident(agentRollupId,
+                alertCondition, alertConfig.getSeverity(), profile).thenCompose(openIncident -> {
+            if (openIncident != null && !currentlyTriggered) {
+                // TODO don't close if no data and no heartbeat?
+                return (CompletionStage<Object>) resolveIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                        metricCondition, endTime, alertCondition, openIncident, profile);
+            } else if (openIncident == null && currentlyTriggered) {
+                // don't open if min transaction count is not met
+                if (hasMinTransactionCount(metricCondition.getMetric())) {
+                    long minTransactionCount = metricCondition.getMinTransactionCount();
+                    if (minTransactionCount != 0) {
+                        return (CompletionStage<Object>) transactionCountSupplier.get().thenCompose(transactionCount -> {
+                            if (transactionCount < minTransactionCount) {
+                                return (CompletionStage<Object>) CompletableFuture.completedFuture(null);
+                            }
+                            return (CompletionStage<Object>) openIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                                    metricCondition, endTime, alertCondition, profile);
+                        });
                     }
-                    return (CompletionStage<Object>) openIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
-                            metricCondition, endTime, alertCondition, profile);
                 }
-                return (CompletionStage<Object>) CompletableFuture.completedFuture(null);
-            });
+                return (CompletionStage<Object>) openIncident(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                        metricCondition, endTime, alertCondition, profile);
+            }
+            return (CompletionStage<Object>) CompletableFuture.completedFuture(null);
         });
     }
 
@@ -578,6 +599,16 @@ public class AlertingService {
         return Encryption.decrypt(password, lazySecretKey);
     }
 
+    @Value.Immutable
+    public interface MetricWindowValue {
+        // null when it cannot be calculated due to no data (see MetricService.getMetricValue())
+        @Nullable
+        Double value();
+
+        // only used for metrics that support a min transaction count
+        long transactionCount();
+    }
+
     @Value.Immutable
     @Serial.Structural
     public interface IncidentKey extends Serializable {
@@ -239,7 +239,7 @@ HandlebarsRendering = (function () {
 
   Handlebars.registerHelper('ifNotAllNA', function (threadStats, options) {
     if (threadStats.totalCpuNanos !== -1 || threadStats.totalBlockedNanos !== -1 || threadStats.totalWaitedNanos !== -1
-        || threadStats.totalAllocatedBytes !== -1) {
+        || threadStats.totalAllocatedBytes !== -1 || threadStats.totalVirtualThreadPinnedNanos) {
       return options.fn(this);
     }
     return options.inverse(this);
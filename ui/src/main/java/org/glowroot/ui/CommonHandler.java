@@ -25,6 +25,9 @@ import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -143,11 +146,13 @@ public class CommonHandler {
         this.jsonServiceMappings = ImmutableList.copyOf(jsonServiceMappings);
     }
 
-    public CommonResponse handle(CommonRequest request) throws Exception {
+    // the returned stage is not complete yet when a json service method is waiting on a remote
+    // agent (see CompletionStages)
+    public CompletionStage<CommonResponse> handle(CommonRequest request) throws Exception {
         logger.debug("handleRequest(): path={}", request.getPath());
-        CommonResponse response = handleIfLoginOrLogoutRequest(request);
-        if (response != null) {
-            return response;
+        CommonResponse loginOrLogoutResponse = handleIfLoginOrLogoutRequest(request);
+        if (loginOrLogoutResponse != null) {
+            return CompletableFuture.completedFuture(loginOrLogoutResponse);
         }
         boolean autoRefresh = isAutoRefresh(request.getParameters("auto-refresh"));
         boolean touchSession = !autoRefresh && !request.getPath().equals("/backend/layout");
@@ -156,7 +161,18 @@ public class CommonHandler {
         Glowroot.setTransactionUser(authentication.caseAmbiguousUsername());
         // need to grab agent-rollup-id up here before it is removed from query parameters
         String agentRollupId = getAgentRollupIdFromRequest(request);
-        response = handleRequest(request, authentication);
+        return handleRequest(request, authentication).thenApply(response -> {
+            try {
+                addLayoutVersionHeaders(request, response, authentication, agentRollupId);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return response;
+        });
+    }
+
+    private void addLayoutVersionHeaders(CommonRequest request, CommonResponse response,
+            Authentication authentication, @Nullable String agentRollupId) throws Exception {
         if (request.getPath().startsWith("/backend/")) {
             if (!request.getPath().equals("/backend/layout")) {
                 response.setHeader("Glowroot-Layout-Version",
@@ -172,7 +188,6 @@ public class CommonHandler {
                 }
             }
         }
-        return response;
     }
 
     private @Nullable CommonResponse handleIfLoginOrLogoutRequest(CommonRequest request)
@@ -223,18 +238,19 @@ public class CommonHandler {
         return null;
     }
 
-    private CommonResponse handleRequest(CommonRequest request, Authentication authentication)
-            throws Exception {
+    private CompletionStage<CommonResponse> handleRequest(CommonRequest request,
+            Authentication authentication) throws Exception {
         String path = request.getPath();
         HttpService httpService = getHttpService(path);
         if (httpService != null) {
-            return handleHttpService(request, httpService, authentication);
+            return CompletableFuture
+                    .completedFuture(handleHttpService(request, httpService, authentication));
         }
         JsonServiceMapping jsonServiceMapping = getJsonServiceMapping(request, path);
         if (jsonServiceMapping != null) {
             return handleJsonServiceMappings(request, jsonServiceMapping, authentication);
         }
-        return handleStaticResource(path, request);
+        return CompletableFuture.completedFuture(handleStaticResource(path, request));
     }
 
     private @Nullable HttpService getHttpService(String path) {
@@ -275,7 +291,7 @@ public class CommonHandler {
         return null;
     }
 
-    private CommonResponse handleJsonServiceMappings(CommonRequest request,
+    private CompletionStage<CommonResponse> handleJsonServiceMappings(CommonRequest request,
             JsonServiceMapping jsonServiceMapping, Authentication authentication) throws Exception {
         List<Class<?>> parameterTypes = Lists.newArrayList();
         List<Object> parameters = Lists.newArrayList();
@@ -317,16 +333,34 @@ public class CommonHandler {
                     || authentication.isAdminPermitted(jsonServiceMapping.permission());
         }
         if (!permitted) {
-            return handleNotAuthorized(request, authentication);
+            return CompletableFuture.completedFuture(handleNotAuthorized(request, authentication));
         }
         Object responseObject;
         try {
             responseObject = callMethod(jsonServiceMapping, parameterTypes, parameters,
                     queryParameters, authentication, request);
         } catch (Exception e) {
-            return newHttpResponseFromException(request, authentication, e);
+            return CompletableFuture
+                    .completedFuture(newHttpResponseFromException(request, authentication, e));
+        }
+        if (responseObject instanceof CompletionStage) {
+            return ((CompletionStage<?>) responseObject).handle((value, t) -> {
+                if (t == null) {
+                    return buildJsonResponse(value);
+                }
+                Throwable cause = CompletionStages.unwrap(t);
+                if (!(cause instanceof Exception)) {
+                    throw new CompletionException(cause);
+                }
+                try {
+                    return newHttpResponseFromException(request, authentication,
+                            (Exception) cause);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
         }
-        return buildJsonResponse(responseObject);
+        return CompletableFuture.completedFuture(buildJsonResponse(responseObject));
     }
 
     CommonResponse newHttpResponseFromException(CommonRequest request,
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// json service methods can return CompletionStage<String> instead of String (see CommonHandler), so
+// that they don't hold an http thread while waiting for a remote agent
+class CompletionStages {
+
+    private CompletionStages() {}
+
+    // similar to CompletionStage.handle(), except that the functions can throw checked exceptions
+    // (which complete the returned stage exceptionally), and onException receives the unwrapped
+    // exception, and either returns a response for it or rethrows it
+    static <T> CompletionStage<String> handle(CompletionStage<T> stage,
+            ValueFunction<T> onValue, ExceptionFunction onException) {
+        return stage.handle((value, t) -> {
+            Throwable cause = t == null ? null : unwrap(t);
+            if (cause != null && !(cause instanceof Exception)) {
+                throw new CompletionException(cause);
+            }
+            try {
+                if (cause == null) {
+                    return onValue.apply(value);
+                } else {
+                    return onException.apply((Exception) cause);
+                }
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    static Throwable unwrap(Throwable t) {
+        if ((t instanceof CompletionException || t instanceof ExecutionException)
+                && t.getCause() != null) {
+            return t.getCause();
+        }
+        return t;
+    }
+
+    interface ValueFunction<T> {
+        String apply(@Nullable T value) throws Exception;
+    }
+
+    interface ExceptionFunction {
+        String apply(Exception e) throws Exception;
+    }
+}
@@ -354,19 +354,39 @@ class ConfigJsonService {
 
         abstract int slowThresholdMillis();
         abstract int profilingIntervalMillis();
+        @Value.Default
+        int profilingMaxStackDepth() {
+            return 0;
+        }
+        @Value.Default
+        int profilingMaxThreadsPerInterval() {
+            return 0;
+        }
+        @Value.Default
+        double profilingMaxOverheadPercent() {
+            return 0;
+        }
         abstract boolean captureThreadStats();
         abstract List<ImmutableSlowThresholdOverrideDto> slowThresholdOverrides();
+        abstract List<ImmutableHistogramPrecisionOverrideDto> histogramPrecisionOverrides();
         abstract String version();
 
         private TransactionConfig convert() {
             TransactionConfig.Builder builder = TransactionConfig.newBuilder()
                     .setSlowThresholdMillis(of(slowThresholdMillis()))
                     .setProfilingIntervalMillis(of(profilingIntervalMillis()))
+                    .setProfilingMaxStackDepth(profilingMaxStackDepth())
+                    .setProfilingMaxThreadsPerInterval(profilingMaxThreadsPerInterval())
+                    .setProfilingMaxOverheadPercent(profilingMaxOverheadPercent())
                     .setCaptureThreadStats(captureThreadStats());
             for (SlowThresholdOverrideDto slowThresholdOverride : new SlowThresholdOverrideDtoOrdering()
                     .sortedCopy(slowThresholdOverrides())) {
                 builder.addSlowThresholdOverride(slowThresholdOverride.convert());
             }
+            for (HistogramPrecisionOverrideDto histogramPrecisionOverride :
+                    histogramPrecisionOverrides()) {
+                builder.addHistogramPrecisionOverride(histogramPrecisionOverride.convert());
+            }
             return builder.build();
         }
 
@@ -374,6 +394,9 @@ class ConfigJsonService {
             ImmutableTransactionConfigDto.Builder builder = ImmutableTransactionConfigDto.builder()
                     .slowThresholdMillis(config.getSlowThresholdMillis().getValue())
                     .profilingIntervalMillis(config.getProfilingIntervalMillis().getValue())
+                    .profilingMaxStackDepth(config.getProfilingMaxStackDepth())
+                    .profilingMaxThreadsPerInterval(config.getProfilingMaxThreadsPerInterval())
+                    .profilingMaxOverheadPercent(config.getProfilingMaxOverheadPercent())
                     .captureThreadStats(config.getCaptureThreadStats())
                     .version(Versions.getVersion(config));
             for (SlowThresholdOverride slowThresholdOverride : config
@@ -381,10 +404,37 @@ class ConfigJsonService {
                 builder.addSlowThresholdOverrides(
                         SlowThresholdOverrideDto.create(slowThresholdOverride));
             }
+            for (HistogramPrecisionOverride histogramPrecisionOverride : config
+                    .getHistogramPrecisionOverrideList()) {
+                builder.addHistogramPrecisionOverrides(
+                        HistogramPrecisionOverrideDto.create(histogramPrecisionOverride));
+            }
             return builder.build();
         }
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    abstract static class HistogramPrecisionOverrideDto {
+
+        abstract String transactionType();
+        abstract int significantDigits();
+
+        private HistogramPrecisionOverride convert() {
+            return HistogramPrecisionOverride.newBuilder()
+                    .setTransactionType(transactionType())
+                    .setSignificantDigits(significantDigits())
+                    .build();
+        }
+
+        private static ImmutableHistogramPrecisionOverrideDto create(
+                HistogramPrecisionOverride histogramPrecisionOverride) {
+            return ImmutableHistogramPrecisionOverrideDto.of(
+                    histogramPrecisionOverride.getTransactionType(),
+                    histogramPrecisionOverride.getSignificantDigits());
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class SlowThresholdOverrideDto {
@@ -592,6 +642,8 @@ class ConfigJsonService {
         abstract int maxServiceCallAggregates();
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxProfileSamplesPerTransaction();
+        abstract int traceEntrySpillLimit();
+        abstract int maxTracesPerSecond();
         abstract int mbeanGaugeNotFoundDelaySeconds();
         abstract boolean weavingTimer();
         abstract String version();
@@ -605,6 +657,8 @@ class ConfigJsonService {
                     .setMaxServiceCallAggregates(of(maxServiceCallAggregates()))
                     .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                     .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
+                    .setTraceEntrySpillLimit(traceEntrySpillLimit())
+                    .setMaxTracesPerSecond(maxTracesPerSecond())
                     .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                     .setWeavingTimer(weavingTimer())
                     .build();
@@ -621,6 +675,8 @@ class ConfigJsonService {
                             config.getMaxTraceEntriesPerTransaction().getValue())
                     .maxProfileSamplesPerTransaction(
                             config.getMaxProfileSamplesPerTransaction().getValue())
+                    .traceEntrySpillLimit(config.getTraceEntrySpillLimit())
+                    .maxTracesPerSecond(config.getMaxTracesPerSecond())
                     .mbeanGaugeNotFoundDelaySeconds(
                             config.getMbeanGaugeNotFoundDelaySeconds().getValue())
                     .weavingTimer(config.getWeavingTimer())
@@ -18,6 +18,7 @@ package org.glowroot.ui;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
@@ -55,6 +56,7 @@ import org.glowroot.ui.CommonHandler.CommonRequest;
 import org.glowroot.ui.CommonHandler.CommonResponse;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
@@ -125,12 +127,21 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             }
             QueryStringDecoder decoder = new QueryStringDecoder(stripContextPath(uri, contextPath));
             CommonRequest commonRequest = new NettyRequest(request, contextPath, decoder);
-            CommonResponse response = commonHandler.handle(commonRequest);
-            if (response.isCloseConnectionAfterPortChange()) {
-                response.setHeader("Connection", "close");
-                keepAlive = false;
+            CompletableFuture<CommonResponse> future =
+                    commonHandler.handle(commonRequest).toCompletableFuture();
+            if (future.isDone()) {
+                sendResponse(ctx, request, future.join(), keepAlive);
+            } else {
+                // the request content has already been consumed, so the request can still be
+                // released below, and reading is suspended so that responses on this connection
+                // are not reordered
+                channel.config().setAutoRead(false);
+                future.whenComplete((response, t) -> {
+                    sendResponseWhenComplete(ctx, request, response, t, keepAlive);
+                    channel.config().setAutoRead(true);
+                    ctx.flush();
+                });
             }
-            sendResponse(ctx, request, response, keepAlive);
         } catch (Exception e) {
             logger.error("error handling request {}: {}", uri, e.getMessage(), e);
             CommonResponse response =
@@ -142,8 +153,36 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private static void sendResponseWhenComplete(ChannelHandlerContext ctx,
+            FullHttpRequest request, @Nullable CommonResponse response, @Nullable Throwable t,
+            boolean keepAlive) {
+        try {
+            if (t == null) {
+                sendResponse(ctx, request, checkNotNull(response), keepAlive);
+                return;
+            }
+        } catch (Exception e) {
+            t = e;
+        }
+        Throwable cause = CompletionStages.unwrap(t);
+        logger.error("error handling request {}: {}", request.uri(), cause.getMessage(), cause);
+        Exception e = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        try {
+            sendResponse(ctx, request,
+                    CommonHandler.newHttpResponseWithStackTrace(e, INTERNAL_SERVER_ERROR, null),
+                    false);
+        } catch (Exception f) {
+            logger.error(f.getMessage(), f);
+            ctx.close();
+        }
+    }
+
     private static void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request,
             CommonResponse response, boolean keepAlive) throws IOException {
+        if (response.isCloseConnectionAfterPortChange()) {
+            response.setHeader("Connection", "close");
+            keepAlive = false;
+        }
         Object content = response.getContent();
         if (content instanceof String) {
             FullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, response.getStatus(),
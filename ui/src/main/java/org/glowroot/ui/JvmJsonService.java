@@ -23,6 +23,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
 
 import javax.management.ObjectName;
 
@@ -168,15 +169,20 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/thread-dump", permission = "agent:jvm:threadDump")
-    String getThreadDump(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> getThreadDump(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        ThreadDump threadDump;
-        try {
-            threadDump = liveJvmService.getThreadDump(agentId);
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        }
+        return CompletionStages.handle(liveJvmService.getThreadDumpAsync(agentId),
+                threadDump -> getThreadDumpJson(checkNotNull(threadDump)),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getThreadDumpJson(ThreadDump threadDump) throws IOException {
         List<ThreadDump.Thread> allThreads = Lists.newArrayList();
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
@@ -232,25 +238,33 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/jstack", permission = "agent:jvm:threadDump")
-    String getJstack(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> getJstack(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        String jstack;
-        try {
-            jstack = liveJvmService.getJstack(agentId);
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        } catch (UnavailableDueToRunningInJreException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"unavailableDueToRunningInJre\":true}";
-        } catch (UnavailableDueToRunningInJ9JvmException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"unavailableDueToRunningInJ9Jvm\":true}";
-        } catch (AgentUnsupportedOperationException e) {
-            // this operation introduced in 0.9.2
-            logger.debug(e.getMessage(), e);
-            return getAgentUnsupportedOperationResponse(agentId);
-        }
+        return CompletionStages.handle(liveJvmService.getJstackAsync(agentId),
+                jstack -> getJstackJson(checkNotNull(jstack)),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    if (e instanceof UnavailableDueToRunningInJreException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"unavailableDueToRunningInJre\":true}";
+                    }
+                    if (e instanceof UnavailableDueToRunningInJ9JvmException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"unavailableDueToRunningInJ9Jvm\":true}";
+                    }
+                    if (e instanceof AgentUnsupportedOperationException) {
+                        // this operation introduced in 0.9.2
+                        logger.debug(e.getMessage(), e);
+                        return getAgentUnsupportedOperationResponse(agentId);
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getJstackJson(String jstack) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -284,29 +298,37 @@ class JvmJsonService {
     }
 
     @POST(path = "/backend/jvm/available-disk-space", permission = "agent:jvm:heapDump")
-    String getAvailableDiskSpace(@BindAgentId String agentId, @BindRequest HeapDumpRequest request)
-            throws Exception {
+    CompletionStage<String> getAvailableDiskSpace(@BindAgentId String agentId,
+            @BindRequest HeapDumpRequest request) {
         checkNotNull(liveJvmService);
-        try {
-            return Long
-                    .toString(liveJvmService.getAvailableDiskSpace(agentId, request.directory()));
-        } catch (DirectoryDoesNotExistException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"directoryDoesNotExist\": true}";
-        }
+        return CompletionStages.handle(
+                liveJvmService.getAvailableDiskSpaceAsync(agentId, request.directory()),
+                availableDiskSpace -> Long.toString(checkNotNull(availableDiskSpace)),
+                e -> {
+                    if (e instanceof DirectoryDoesNotExistException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"directoryDoesNotExist\": true}";
+                    }
+                    throw e;
+                });
     }
 
     @POST(path = "/backend/jvm/heap-dump", permission = "agent:jvm:heapDump")
-    String heapDump(@BindAgentId String agentId, @BindRequest HeapDumpRequest request)
-            throws Exception {
+    CompletionStage<String> heapDump(@BindAgentId String agentId,
+            @BindRequest HeapDumpRequest request) {
         checkNotNull(liveJvmService);
-        HeapDumpFileInfo heapDumpFileInfo;
-        try {
-            heapDumpFileInfo = liveJvmService.heapDump(agentId, request.directory());
-        } catch (DirectoryDoesNotExistException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"directoryDoesNotExist\": true}";
-        }
+        return CompletionStages.handle(liveJvmService.heapDumpAsync(agentId, request.directory()),
+                heapDumpFileInfo -> getHeapDumpJson(checkNotNull(heapDumpFileInfo)),
+                e -> {
+                    if (e instanceof DirectoryDoesNotExistException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"directoryDoesNotExist\": true}";
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getHeapDumpJson(HeapDumpFileInfo heapDumpFileInfo) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -321,28 +343,37 @@ class JvmJsonService {
     }
 
     @POST(path = "/backend/jvm/heap-histogram", permission = "agent:jvm:heapHistogram")
-    String heapHistogram(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> heapHistogram(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        HeapHistogram heapHistogram;
-        try {
-            heapHistogram = liveJvmService.heapHistogram(agentId);
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        } catch (UnavailableDueToRunningInJreException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"unavailableDueToRunningInJre\":true}";
-        } catch (UnavailableDueToRunningInJ9JvmException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"unavailableDueToRunningInJ9Jvm\":true}";
-        } catch (UnavailableDueToDockerAlpinePidOneException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"unavailableDueToDockerAlpinePidOne\":true}";
-        } catch (AgentUnsupportedOperationException e) {
-            // this operation introduced in 0.9.2
-            logger.debug(e.getMessage(), e);
-            return getAgentUnsupportedOperationResponse(agentId);
-        }
+        return CompletionStages.handle(liveJvmService.heapHistogramAsync(agentId),
+                heapHistogram -> getHeapHistogramJson(checkNotNull(heapHistogram)),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    if (e instanceof UnavailableDueToRunningInJreException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"unavailableDueToRunningInJre\":true}";
+                    }
+                    if (e instanceof UnavailableDueToRunningInJ9JvmException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"unavailableDueToRunningInJ9Jvm\":true}";
+                    }
+                    if (e instanceof UnavailableDueToDockerAlpinePidOneException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"unavailableDueToDockerAlpinePidOne\":true}";
+                    }
+                    if (e instanceof AgentUnsupportedOperationException) {
+                        // this operation introduced in 0.9.2
+                        logger.debug(e.getMessage(), e);
+                        return getAgentUnsupportedOperationResponse(agentId);
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getHeapHistogramJson(HeapHistogram heapHistogram) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -370,35 +401,43 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/explicit-gc-disabled", permission = "agent:jvm:forceGC")
-    String explicitGcDisabled(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> explicitGcDisabled(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        try {
-            boolean explicitGcDisabled = liveJvmService.isExplicitGcDisabled(agentId);
-            return "{\"explicitGcDisabled\":" + explicitGcDisabled + "}";
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        }
+        return CompletionStages.handle(liveJvmService.isExplicitGcDisabledAsync(agentId),
+                explicitGcDisabled -> "{\"explicitGcDisabled\":" + explicitGcDisabled + "}",
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    throw e;
+                });
     }
 
     @POST(path = "/backend/jvm/force-gc", permission = "agent:jvm:forceGC")
-    void performGC(@BindAgentId String agentId) throws Exception {
+    CompletionStage<Void> performGC(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        liveJvmService.forceGC(agentId);
+        return liveJvmService.forceGCAsync(agentId);
     }
 
     @GET(path = "/backend/jvm/mbean-tree", permission = "agent:jvm:mbeanTree")
-    String getMBeanTree(@BindAgentId String agentId, @BindRequest MBeanTreeRequest request)
-            throws Exception {
+    CompletionStage<String> getMBeanTree(@BindAgentId String agentId,
+            @BindRequest MBeanTreeRequest request) {
         checkNotNull(liveJvmService);
-        MBeanDump mbeanDump;
-        try {
-            mbeanDump = liveJvmService.getMBeanDump(agentId,
-                    MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES_FOR_SOME, request.expanded());
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        }
+        return CompletionStages.handle(liveJvmService.getMBeanDumpAsync(agentId,
+                MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES_FOR_SOME, request.expanded()),
+                mbeanDump -> getMBeanTreeJson(checkNotNull(mbeanDump), request),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getMBeanTreeJson(MBeanDump mbeanDump, MBeanTreeRequest request)
+            throws Exception {
         Map<String, MBeanTreeInnerNode> sortedRootNodes = Maps.newTreeMap();
         for (MBeanDump.MBeanInfo mbeanInfo : mbeanDump.getMbeanInfoList()) {
             ObjectName objectName = ObjectName.getInstance(mbeanInfo.getObjectName());
@@ -425,12 +464,20 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/mbean-attribute-map", permission = "agent:jvm:mbeanTree")
-    String getMBeanAttributeMap(@BindAgentId String agentId,
-            @BindRequest MBeanAttributeMapRequest request) throws Exception {
+    CompletionStage<String> getMBeanAttributeMap(@BindAgentId String agentId,
+            @BindRequest MBeanAttributeMapRequest request) {
         checkNotNull(liveJvmService);
-        MBeanDump mbeanDump =
-                liveJvmService.getMBeanDump(agentId, MBeanDumpKind.SOME_MBEANS_INCLUDE_ATTRIBUTES,
-                        ImmutableList.of(request.objectName()));
+        return CompletionStages.handle(liveJvmService.getMBeanDumpAsync(agentId,
+                MBeanDumpKind.SOME_MBEANS_INCLUDE_ATTRIBUTES,
+                ImmutableList.of(request.objectName())),
+                mbeanDump -> getMBeanAttributeMapJson(checkNotNull(mbeanDump), request),
+                e -> {
+                    throw e;
+                });
+    }
+
+    private static String getMBeanAttributeMapJson(MBeanDump mbeanDump,
+            MBeanAttributeMapRequest request) throws IOException {
         List<MBeanDump.MBeanInfo> mbeanInfos = mbeanDump.getMbeanInfoList();
         if (mbeanInfos.isEmpty()) {
             throw new IllegalStateException(
@@ -444,23 +491,30 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/system-properties", permission = "agent:jvm:systemProperties")
-    String getSystemProperties(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> getSystemProperties(@BindAgentId String agentId) throws Exception {
         checkNotNull(liveJvmService);
-        Map<String, String> properties;
-        try {
-            properties = liveJvmService.getSystemProperties(agentId);
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        } catch (AgentUnsupportedOperationException e) {
-            // this operation introduced in 0.9.2
-            logger.debug(e.getMessage(), e);
-            return getAgentUnsupportedOperationResponse(agentId);
-        }
         // mask here to provide support in central for agents prior to 0.10.0
         List<String> maskSystemProperties = getJvmMaskSystemProperties(agentId);
-        properties = Masking.maskSystemProperties(properties, maskSystemProperties);
+        return CompletionStages.handle(liveJvmService.getSystemPropertiesAsync(agentId),
+                properties -> getSystemPropertiesJson(
+                        Masking.maskSystemProperties(checkNotNull(properties),
+                                maskSystemProperties)),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    if (e instanceof AgentUnsupportedOperationException) {
+                        // this operation introduced in 0.9.2
+                        logger.debug(e.getMessage(), e);
+                        return getAgentUnsupportedOperationResponse(agentId);
+                    }
+                    throw e;
+                });
+    }
 
+    private static String getSystemPropertiesJson(Map<String, String> properties)
+            throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -492,15 +546,20 @@ class JvmJsonService {
     }
 
     @GET(path = "/backend/jvm/capabilities", permission = "agent:jvm:capabilities")
-    String getCapabilities(@BindAgentId String agentId) throws Exception {
+    CompletionStage<String> getCapabilities(@BindAgentId String agentId) {
         checkNotNull(liveJvmService);
-        Capabilities capabilities;
-        try {
-            capabilities = liveJvmService.getCapabilities(agentId);
-        } catch (AgentNotConnectedException e) {
-            logger.debug(e.getMessage(), e);
-            return "{\"agentNotConnected\":true}";
-        }
+        return CompletionStages.handle(liveJvmService.getCapabilitiesAsync(agentId),
+                capabilities -> getCapabilitiesJson(checkNotNull(capabilities)),
+                e -> {
+                    if (e instanceof AgentNotConnectedException) {
+                        logger.debug(e.getMessage(), e);
+                        return "{\"agentNotConnected\":true}";
+                    }
+                    throw e;
+                });
+    }
+
+    private static String getCapabilitiesJson(Capabilities capabilities) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableSummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.AggregateRepository;
+import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ConfigRepository;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// reads summaries for a single rollup level, splitting the time range into fixed (aligned) buckets
+// and caching the summaries of buckets that have been completely rolled up, so that repeatedly
+// reading the same (sliding) time range, e.g. an auto-refreshing dashboard, only needs to re-read
+// the partial buckets at the start and end of the time range
+class SummaryCache {
+
+    // each bucket spans this many intervals of its rollup level
+    @VisibleForTesting
+    static final int BUCKET_INTERVALS = 12;
+
+    // buckets that ended at least this long ago are considered completely rolled up even when no
+    // later rolled up data has been seen, e.g. for transaction types with no recent activity
+    private static final long FINALIZED_DELAY_MILLIS = HOURS.toMillis(1);
+
+    // this bounds how long a cached bucket can be stale in case an already rolled up bucket is
+    // rolled up again due to late arriving aggregates (e.g. agent sending spooled aggregates)
+    private static final long EXPIRE_AFTER_WRITE_MINUTES = 60;
+
+    // weight is number of summaries (one per overall summary, one per transaction name summary)
+    private static final long MAX_WEIGHT = 100000;
+
+    private final AggregateRepository aggregateRepository;
+    private final ConfigRepository configRepository;
+    private final Clock clock;
+
+    private final Cache<BucketKey, CachedOverallSummary> overallSummaryCache;
+    private final Cache<BucketKey, CachedTransactionNameSummaries> transactionNameSummaryCache;
+
+    SummaryCache(AggregateRepository aggregateRepository, ConfigRepository configRepository,
+            Clock clock) {
+        this.aggregateRepository = aggregateRepository;
+        this.configRepository = configRepository;
+        this.clock = clock;
+        overallSummaryCache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_WEIGHT)
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, MINUTES)
+                .build();
+        transactionNameSummaryCache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .<BucketKey, CachedTransactionNameSummaries>weigher(
+                        (key, value) -> value.summaries().size() + 1)
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, MINUTES)
+                .build();
+    }
+
+    // query.from() is non-inclusive
+    CompletionStage<?> mergeOverallSummaryInto(String agentRollupId, SummaryQuery query,
+            OverallSummaryCollector collector) {
+        Map<BucketKey, OverallSummaryCollector> uncachedBuckets = Maps.newLinkedHashMap();
+        CompletionStage<Void> stage = CompletableFuture.completedFuture(null);
+        for (Segment segment : getSegments(query)) {
+            SummaryQuery segmentQuery = withRange(query, segment);
+            if (!segment.bucket()) {
+                stage = stage.thenCompose(
+                        ignored -> readOverallSummary(agentRollupId, segmentQuery, collector));
+                continue;
+            }
+            BucketKey key = ImmutableBucketKey.of(agentRollupId, query.transactionType(),
+                    query.rollupLevel(), segment.to());
+            CachedOverallSummary cached = overallSummaryCache.getIfPresent(key);
+            if (cached != null) {
+                mergeInto(collector, cached.summary(), cached.lastCaptureTime());
+                continue;
+            }
+            OverallSummaryCollector bucketCollector = new OverallSummaryCollector();
+            uncachedBuckets.put(key, bucketCollector);
+            stage = stage.thenCompose(
+                    ignored -> readOverallSummary(agentRollupId, segmentQuery, bucketCollector))
+                    .thenAccept(ignored -> mergeInto(collector,
+                            bucketCollector.getOverallSummary(),
+                            bucketCollector.getLastCaptureTime()));
+        }
+        return stage.thenAccept(ignored -> {
+            for (Map.Entry<BucketKey, OverallSummaryCollector> entry : uncachedBuckets
+                    .entrySet()) {
+                BucketKey key = entry.getKey();
+                if (isFinalized(key.bucketEnd(), collector.getLastCaptureTime())) {
+                    OverallSummaryCollector bucketCollector = entry.getValue();
+                    overallSummaryCache.put(key, ImmutableCachedOverallSummary.of(
+                            bucketCollector.getOverallSummary(),
+                            bucketCollector.getLastCaptureTime()));
+                }
+            }
+        });
+    }
+
+    // query.from() is non-inclusive
+    //
+    // every segment is read without a limit, since the summaries of the segments are summed, and a
+    // transaction name that is cut from the top names of one segment but not another would
+    // otherwise end up with a partial total (and possibly in the wrong place in the result)
+    CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
+            SummarySortOrder sortOrder, TransactionNameSummaryCollector collector,
+            CassandraProfile profile) {
+        Map<BucketKey, TransactionNameSummaryCollector> uncachedBuckets = Maps.newLinkedHashMap();
+        CompletionStage<Void> stage = CompletableFuture.completedFuture(null);
+        for (Segment segment : getSegments(query)) {
+            SummaryQuery segmentQuery = withRange(query, segment);
+            if (!segment.bucket()) {
+                stage = stage.thenCompose(ignored -> readTransactionNameSummaries(agentRollupId,
+                        segmentQuery, sortOrder, collector, profile));
+                continue;
+            }
+            BucketKey key = ImmutableBucketKey.of(agentRollupId, query.transactionType(),
+                    query.rollupLevel(), segment.to());
+            CachedTransactionNameSummaries cached = transactionNameSummaryCache.getIfPresent(key);
+            if (cached != null) {
+                mergeInto(collector, cached.summaries(), cached.lastCaptureTime());
+                continue;
+            }
+            TransactionNameSummaryCollector bucketCollector =
+                    new TransactionNameSummaryCollector();
+            uncachedBuckets.put(key, bucketCollector);
+            // since the bucket is read without a limit, it can be re-used for any sort order and
+            // limit
+            stage = stage.thenCompose(ignored -> readTransactionNameSummaries(agentRollupId,
+                    segmentQuery, sortOrder, bucketCollector, profile))
+                    .thenAccept(ignored -> mergeInto(collector,
+                            getAllSummaries(bucketCollector),
+                            bucketCollector.getLastCaptureTime()));
+        }
+        return stage.thenAccept(ignored -> {
+            for (Map.Entry<BucketKey, TransactionNameSummaryCollector> entry : uncachedBuckets
+                    .entrySet()) {
+                BucketKey key = entry.getKey();
+                if (isFinalized(key.bucketEnd(), collector.getLastCaptureTime())) {
+                    TransactionNameSummaryCollector bucketCollector = entry.getValue();
+                    transactionNameSummaryCache.put(key,
+                            ImmutableCachedTransactionNameSummaries.of(
+                                    getAllSummaries(bucketCollector),
+                                    bucketCollector.getLastCaptureTime()));
+                }
+            }
+        });
+    }
+
+    // the aligned buckets that are fully contained in the query range, plus the partial segments
+    // before and after them
+    @VisibleForTesting
+    List<Segment> getSegments(SummaryQuery query) {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        long bucketMillis = intervalMillis * BUCKET_INTERVALS;
+        long from = query.from();
+        long to = query.to();
+        long bucketStart = CaptureTimes.getRollup(from, bucketMillis);
+        if (bucketStart + bucketMillis > to) {
+            return ImmutableList.of(ImmutableSegment.of(from, to, false));
+        }
+        List<Segment> segments = Lists.newArrayList();
+        if (from < bucketStart) {
+            segments.add(ImmutableSegment.of(from, bucketStart, false));
+        }
+        while (bucketStart + bucketMillis <= to) {
+            segments.add(ImmutableSegment.of(bucketStart, bucketStart + bucketMillis, true));
+            bucketStart += bucketMillis;
+        }
+        if (bucketStart < to) {
+            segments.add(ImmutableSegment.of(bucketStart, to, false));
+        }
+        return segments;
+    }
+
+    // rollups are performed in capture time order, so once later rolled up data has been seen,
+    // the bucket is complete
+    private boolean isFinalized(long bucketEnd, long lastRolledUpCaptureTime) {
+        return bucketEnd <= lastRolledUpCaptureTime
+                || bucketEnd <= clock.currentTimeMillis() - FINALIZED_DELAY_MILLIS;
+    }
+
+    private static SummaryQuery withRange(SummaryQuery query, Segment segment) {
+        return ImmutableSummaryQuery.builder()
+                .copyFrom(query)
+                .from(segment.from())
+                .to(segment.to())
+                .build();
+    }
+
+    private static void mergeInto(OverallSummaryCollector collector, OverallSummary summary,
+            long lastCaptureTime) {
+        collector.mergeSummary(summary.totalDurationNanos(), summary.totalCpuNanos(),
+                summary.totalAllocatedBytes(), summary.transactionCount(), lastCaptureTime);
+    }
+
+    private static void mergeInto(TransactionNameSummaryCollector collector,
+            List<TransactionNameSummary> summaries, long lastCaptureTime) {
+        for (TransactionNameSummary summary : summaries) {
+            collector.collect(summary.transactionName(), summary.totalDurationNanos(),
+                    summary.totalCpuNanos(), summary.totalAllocatedBytes(),
+                    summary.transactionCount(), lastCaptureTime);
+        }
+    }
+
+    private static List<TransactionNameSummary> getAllSummaries(
+            TransactionNameSummaryCollector collector) {
+        return collector.getResult(SummarySortOrder.TOTAL_TIME, Integer.MAX_VALUE).records();
+    }
+
+    private CompletionStage<Void> readOverallSummary(String agentRollupId, SummaryQuery query,
+            OverallSummaryCollector collector) {
+        try {
+            return aggregateRepository.mergeOverallSummaryInto(agentRollupId, query, collector,
+                    CassandraProfile.web).thenAccept(ignored -> {});
+        } catch (Exception e) {
+            return failedFuture(e);
+        }
+    }
+
+    private CompletionStage<Void> readTransactionNameSummaries(String agentRollupId,
+            SummaryQuery query, SummarySortOrder sortOrder,
+            TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        try {
+            return aggregateRepository.mergeTransactionNameSummariesInto(agentRollupId, query,
+                    sortOrder, Integer.MAX_VALUE, collector, profile).thenAccept(ignored -> {});
+        } catch (Exception e) {
+            return failedFuture(e);
+        }
+    }
+
+    private static CompletionStage<Void> failedFuture(Exception e) {
+        CompletableFuture<Void> failedFuture = new CompletableFuture<>();
+        failedFuture.completeExceptionally(e);
+        return failedFuture;
+    }
+
+    // from is non-inclusive, to is inclusive
+    @Value.Immutable
+    @Styles.AllParameters
+    interface Segment {
+        long from();
+        long to();
+        boolean bucket();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BucketKey {
+        String agentRollupId();
+        String transactionType();
+        int rollupLevel();
+        long bucketEnd();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CachedOverallSummary {
+        OverallSummary summary();
+        long lastCaptureTime();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CachedTransactionNameSummaries {
+        ImmutableList<TransactionNameSummary> summaries();
+        long lastCaptureTime();
+    }
+}
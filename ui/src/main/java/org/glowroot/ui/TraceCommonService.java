@@ -20,6 +20,7 @@ import java.text.SimpleDateFormat;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeoutException;
 
@@ -66,24 +67,34 @@ class TraceCommonService {
         this.agentDisplayRepository = agentDisplayRepository;
     }
 
-    @Nullable
-    String getHeaderJson(String agentId, String traceId, boolean checkLiveTraces) throws Exception {
-        if (checkLiveTraces) {
-            // check active/pending traces first, and lastly stored traces to make sure that the
-            // trace is not missed if it is in transition between these states
-            Trace.Header header;
-            try {
-                header = liveTraceRepository.getHeader(agentId, traceId);
-            } catch (AgentNotConnectedException e) {
-                header = null;
-            } catch (TimeoutException e) {
-                header = null;
-            }
-            if (header != null) {
-                return toJsonLiveHeader(agentId, header);
-            }
+    // the returned stage completes with null if the trace is not found
+    CompletionStage<String> getHeaderJson(String agentId, String traceId,
+            boolean checkLiveTraces) throws Exception {
+        if (!checkLiveTraces) {
+            return CompletableFuture.completedFuture(
+                    getStoredHeaderJson(agentId, traceId, new RetryCountdown(false)));
         }
-        HeaderPlus header = getStoredHeader(agentId, traceId, new RetryCountdown(checkLiveTraces));
+        // check active/pending traces first, and lastly stored traces to make sure that the
+        // trace is not missed if it is in transition between these states
+        return CompletionStages.handle(liveTraceRepository.getHeaderAsync(agentId, traceId),
+                header -> {
+                    if (header != null) {
+                        return toJsonLiveHeader(agentId, header);
+                    }
+                    return getStoredHeaderJson(agentId, traceId, new RetryCountdown(true));
+                },
+                e -> {
+                    if (e instanceof AgentNotConnectedException
+                            || e instanceof TimeoutException) {
+                        return getStoredHeaderJson(agentId, traceId, new RetryCountdown(true));
+                    }
+                    throw e;
+                });
+    }
+
+    private @Nullable String getStoredHeaderJson(String agentId, String traceId,
+            RetryCountdown retryCountdown) throws Exception {
+        HeaderPlus header = getStoredHeader(agentId, traceId, retryCountdown);
         if (header == null) {
             return null;
         }
@@ -753,6 +764,10 @@ class TraceCommonService {
         jg.writeNumberField("totalBlockedNanos", threadStats.getBlockedNanos());
         jg.writeNumberField("totalWaitedNanos", threadStats.getWaitedNanos());
         jg.writeNumberField("totalAllocatedBytes", threadStats.getAllocatedBytes());
+        long virtualThreadPinnedNanos = threadStats.getVirtualThreadPinnedNanos();
+        if (virtualThreadPinnedNanos != 0) {
+            jg.writeNumberField("totalVirtualThreadPinnedNanos", virtualThreadPinnedNanos);
+        }
         jg.writeEndObject();
     }
 
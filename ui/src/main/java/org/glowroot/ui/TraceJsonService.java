@@ -15,6 +15,8 @@
  */
 package org.glowroot.ui;
 
+import java.util.concurrent.CompletionStage;
+
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,17 +34,19 @@ class TraceJsonService {
 
     // see special case for "agent:trace" permission in Authentication.isPermitted()
     @GET(path = "/backend/trace/header", permission = "agent:trace")
-    String getHeader(@BindAgentId String agentId, @BindRequest HeaderRequest request)
-            throws Exception {
-        String headerJson = traceCommonService.getHeaderJson(agentId, request.traceId(),
-                request.checkLiveTraces());
-        if (headerJson == null) {
-            logger.debug("no trace found for agent id '{}' and trace id '{}'", agentId,
-                    request.traceId());
-            return "{\"expired\":true}";
-        } else {
-            return headerJson;
-        }
+    CompletionStage<String> getHeader(@BindAgentId String agentId,
+            @BindRequest HeaderRequest request) throws Exception {
+        return traceCommonService
+                .getHeaderJson(agentId, request.traceId(), request.checkLiveTraces())
+                .thenApply(headerJson -> {
+                    if (headerJson == null) {
+                        logger.debug("no trace found for agent id '{}' and trace id '{}'",
+                                agentId, request.traceId());
+                        return "{\"expired\":true}";
+                    } else {
+                        return headerJson;
+                    }
+                });
     }
 
     @Value.Immutable
@@ -49,6 +49,8 @@ class TransactionCommonService {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final SummaryCache summaryCache;
+
     TransactionCommonService(AggregateRepository aggregateRepository,
                              LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
                              Clock clock) {
@@ -56,6 +58,7 @@ class TransactionCommonService {
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
+        summaryCache = new SummaryCache(aggregateRepository, configRepository, clock);
     }
 
     // query.from() is non-inclusive
@@ -85,7 +88,17 @@ class TransactionCommonService {
                         .rollupLevel(currentRollupLevel)
                         .build();
                 try {
-                    return aggregateRepository.mergeOverallSummaryInto(agentRollupId, revisedQuery, collector, CassandraProfile.web)
+                    CompletionStage<?> mergeStage;
+                    if (currentRollupLevel == query.rollupLevel()) {
+                        // completely rolled up buckets of the requested rollup level are cached, the
+                        // lower rollup levels only cover the (short) not yet rolled up tail
+                        mergeStage = summaryCache.mergeOverallSummaryInto(agentRollupId, revisedQuery,
+                                collector);
+                    } else {
+                        mergeStage = aggregateRepository.mergeOverallSummaryInto(agentRollupId,
+                                revisedQuery, collector, CassandraProfile.web);
+                    }
+                    return mergeStage
                             .thenAccept(v -> {
                                 long lastRolledUpTime = collector.getLastCaptureTime();
                                 revisedFrom.set(Math.max(from, lastRolledUpTime + 1));
@@ -129,8 +142,15 @@ class TransactionCommonService {
                         .rollupLevel(currentRollupLevel)
                         .build();
                 try {
-                    return aggregateRepository.mergeTransactionNameSummariesInto(agentRollupId, revisedQuery,
-                            sortOrder, limit, collector, profile)
+                    CompletionStage<?> mergeStage;
+                    if (currentRollupLevel == query.rollupLevel()) {
+                        mergeStage = summaryCache.mergeTransactionNameSummariesInto(agentRollupId,
+                                revisedQuery, sortOrder, collector, profile);
+                    } else {
+                        mergeStage = aggregateRepository.mergeTransactionNameSummariesInto(agentRollupId,
+                                revisedQuery, sortOrder, limit, collector, profile);
+                    }
+                    return mergeStage
                             .thenAccept(v -> {
                                 long lastRolledUpTime = collector.getLastCaptureTime();
                                 revisedFrom.set(Math.max(from, lastRolledUpTime + 1));
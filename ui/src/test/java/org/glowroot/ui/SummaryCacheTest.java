@@ -0,0 +1,216 @@
+/*
+ * Copyright 2026 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common.live.ImmutableSummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.AggregateRepository;
+import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ConfigRepository;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SummaryCacheTest {
+
+    private static final long BUCKET_MILLIS =
+            ConfigRepository.ROLLUP_0_INTERVAL_MILLIS * SummaryCache.BUCKET_INTERVALS;
+
+    // partial bucket, then 3 full buckets, then partial bucket
+    private static final SummaryQuery QUERY = ImmutableSummaryQuery.builder()
+            .transactionType("Web")
+            .from(BUCKET_MILLIS / 2)
+            .to(4 * BUCKET_MILLIS + 1000)
+            .rollupLevel(0)
+            .build();
+
+    private AggregateRepository aggregateRepository;
+    private Clock clock;
+    private SummaryCache summaryCache;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        aggregateRepository = mock(AggregateRepository.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(QUERY.to());
+        summaryCache = new SummaryCache(aggregateRepository, configRepository, clock);
+        // each segment contributes a single transaction, captured at the end of the segment
+        doAnswer(invocation -> {
+            SummaryQuery query = invocation.getArgument(1);
+            OverallSummaryCollector collector = invocation.getArgument(2);
+            collector.mergeSummary(1000, 0, 0, 1, query.to());
+            return CompletableFuture.completedFuture(null);
+        }).when(aggregateRepository).mergeOverallSummaryInto(any(), any(), any(), any());
+        doAnswer(invocation -> {
+            SummaryQuery query = invocation.getArgument(1);
+            TransactionNameSummaryCollector collector = invocation.getArgument(4);
+            collector.collect("/abc", 1000, 0, 0, 1, query.to());
+            return CompletableFuture.completedFuture(null);
+        }).when(aggregateRepository).mergeTransactionNameSummariesInto(any(), any(), any(),
+                anyInt(), any(), any());
+    }
+
+    @Test
+    public void shouldSplitQueryIntoAlignedBuckets() {
+        // when
+        List<SummaryCache.Segment> segments = summaryCache.getSegments(QUERY);
+
+        // then
+        assertThat(segments).containsExactly(
+                ImmutableSegment.of(BUCKET_MILLIS / 2, BUCKET_MILLIS, false),
+                ImmutableSegment.of(BUCKET_MILLIS, 2 * BUCKET_MILLIS, true),
+                ImmutableSegment.of(2 * BUCKET_MILLIS, 3 * BUCKET_MILLIS, true),
+                ImmutableSegment.of(3 * BUCKET_MILLIS, 4 * BUCKET_MILLIS, true),
+                ImmutableSegment.of(4 * BUCKET_MILLIS, 4 * BUCKET_MILLIS + 1000, false));
+    }
+
+    @Test
+    public void shouldNotSplitQueryShorterThanBucket() {
+        // given
+        SummaryQuery query = ImmutableSummaryQuery.builder()
+                .copyFrom(QUERY)
+                .from(BUCKET_MILLIS + 1000)
+                .to(2 * BUCKET_MILLIS)
+                .build();
+
+        // when
+        List<SummaryCache.Segment> segments = summaryCache.getSegments(query);
+
+        // then
+        assertThat(segments).containsExactly(
+                ImmutableSegment.of(BUCKET_MILLIS + 1000, 2 * BUCKET_MILLIS, false));
+    }
+
+    @Test
+    public void shouldOnlyReadPartialBucketsOnceCached() throws Exception {
+        // given
+        OverallSummaryCollector collector = new OverallSummaryCollector();
+        summaryCache.mergeOverallSummaryInto("", QUERY, collector).toCompletableFuture().get();
+
+        // when
+        OverallSummaryCollector collector2 = new OverallSummaryCollector();
+        summaryCache.mergeOverallSummaryInto("", QUERY, collector2).toCompletableFuture().get();
+
+        // then
+        verify(aggregateRepository, times(5 + 2)).mergeOverallSummaryInto(any(), any(), any(),
+                eq(CassandraProfile.web));
+        assertThat(collector2.getOverallSummary()).isEqualTo(collector.getOverallSummary());
+        assertThat(collector2.getOverallSummary().transactionCount()).isEqualTo(5);
+        assertThat(collector2.getLastCaptureTime()).isEqualTo(QUERY.to());
+    }
+
+    @Test
+    public void shouldNotCacheBucketsThatAreNotRolledUpYet() throws Exception {
+        // given
+        doAnswer(invocation -> CompletableFuture.completedFuture(null)).when(aggregateRepository)
+                .mergeOverallSummaryInto(any(), any(), any(), any());
+        summaryCache.mergeOverallSummaryInto("", QUERY, new OverallSummaryCollector())
+                .toCompletableFuture().get();
+
+        // when
+        summaryCache.mergeOverallSummaryInto("", QUERY, new OverallSummaryCollector())
+                .toCompletableFuture().get();
+
+        // then
+        verify(aggregateRepository, times(5 + 5)).mergeOverallSummaryInto(any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void shouldCacheTransactionNameSummaries() throws Exception {
+        // given
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        summaryCache.mergeTransactionNameSummariesInto("", QUERY, SummarySortOrder.TOTAL_TIME,
+                collector, CassandraProfile.web).toCompletableFuture().get();
+
+        // when
+        TransactionNameSummaryCollector collector2 = new TransactionNameSummaryCollector();
+        summaryCache.mergeTransactionNameSummariesInto("", QUERY, SummarySortOrder.THROUGHPUT,
+                collector2, CassandraProfile.web).toCompletableFuture().get();
+
+        // then
+        verify(aggregateRepository, times(5 + 2)).mergeTransactionNameSummariesInto(any(),
+                any(), any(), anyInt(), any(), any());
+        // segments are read without a limit
+        verify(aggregateRepository, times(5 + 2)).mergeTransactionNameSummariesInto(any(),
+                any(), any(), eq(Integer.MAX_VALUE), any(), any());
+        Result<TransactionNameSummary> result = collector2.getResult(SummarySortOrder.THROUGHPUT, 5);
+        assertThat(result.records()).hasSize(1);
+        assertThat(result.records().get(0).transactionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldSumTransactionNameThatIsNotInTopNamesOfEveryBucket() throws Exception {
+        // given
+        // the repository only returns the top names (up to the limit), "/a" is the top name in the
+        // first bucket, and "/b" is the top name in every other segment
+        doAnswer(invocation -> {
+            SummaryQuery query = invocation.getArgument(1);
+            int limit = invocation.getArgument(3);
+            TransactionNameSummaryCollector collector = invocation.getArgument(4);
+            boolean firstBucket = query.to() == 2 * BUCKET_MILLIS;
+            collector.collect(firstBucket ? "/a" : "/b", 10000, 0, 0, 1, query.to());
+            if (limit > 1) {
+                collector.collect(firstBucket ? "/b" : "/a", 1000, 0, 0, 1, query.to());
+            }
+            return CompletableFuture.completedFuture(null);
+        }).when(aggregateRepository).mergeTransactionNameSummariesInto(any(), any(), any(),
+                anyInt(), any(), any());
+        summaryCache.mergeTransactionNameSummariesInto("", QUERY, SummarySortOrder.TOTAL_TIME,
+                new TransactionNameSummaryCollector(), CassandraProfile.web)
+                .toCompletableFuture().get();
+
+        // when
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        summaryCache.mergeTransactionNameSummariesInto("", QUERY, SummarySortOrder.TOTAL_TIME,
+                collector, CassandraProfile.web).toCompletableFuture().get();
+
+        // then
+        Result<TransactionNameSummary> result = collector.getResult(SummarySortOrder.TOTAL_TIME, 1);
+        assertThat(result.records()).hasSize(1);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("/b");
+        assertThat(result.records().get(0).totalDurationNanos()).isEqualTo(41000);
+        assertThat(result.records().get(0).transactionCount()).isEqualTo(5);
+        assertThat(result.moreAvailable()).isTrue();
+        TransactionNameSummary other = collector.getResult(SummarySortOrder.TOTAL_TIME, 2)
+                .records().get(1);
+        assertThat(other.transactionName()).isEqualTo("/a");
+        assertThat(other.totalDurationNanos()).isEqualTo(14000);
+        assertThat(other.transactionCount()).isEqualTo(5);
+    }
+}
@@ -15,10 +15,13 @@
  */
 package org.glowroot.ui;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TraceJsonServiceTest {
 
@@ -26,12 +29,15 @@ public class TraceJsonServiceTest {
     public void test() throws Exception {
         // given
         TraceCommonService traceCommonService = mock(TraceCommonService.class);
+        when(traceCommonService.getHeaderJson("", "1234", false))
+                .thenReturn(CompletableFuture.completedFuture(null));
         TraceJsonService traceJsonService = new TraceJsonService(traceCommonService);
         // when
         String json = traceJsonService.getHeader("",
                 ImmutableHeaderRequest.builder()
                         .traceId("1234")
-                        .build());
+                        .build())
+                .toCompletableFuture().get();
         // then
         assertThat(json).isEqualTo("{\"expired\":true}");
     }
@@ -201,6 +201,8 @@ public abstract class WebDriverIT {
                 + "\"maxServiceCallAggregates\":500,"
                 + "\"maxTraceEntriesPerTransaction\":2000,"
                 + "\"maxProfileSamplesPerTransaction\":50000,"
+                + "\"traceEntrySpillLimit\":0,"
+                + "\"maxTracesPerSecond\":0,"
                 + "\"mbeanGaugeNotFoundDelaySeconds\":60,"
                 + "\"weavingTimer\":false,"
                 + "\"version\":\"$version\"}");